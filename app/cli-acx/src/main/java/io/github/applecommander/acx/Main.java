@@ -24,6 +24,8 @@ import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
+import com.webcodepro.applecommander.storage.Disk;
+
 import io.github.applecommander.acx.command.CompareCommand;
 import io.github.applecommander.acx.command.ConvertCommand;
 import io.github.applecommander.acx.command.CopyFileCommand;
@@ -34,6 +36,7 @@ import io.github.applecommander.acx.command.DumpCommand;
 import io.github.applecommander.acx.command.ExportCommand;
 import io.github.applecommander.acx.command.FindDuplicateFilesCommand;
 import io.github.applecommander.acx.command.ImportCommand;
+import io.github.applecommander.acx.command.IndexCommand;
 import io.github.applecommander.acx.command.InfoCommand;
 import io.github.applecommander.acx.command.ListCommand;
 import io.github.applecommander.acx.command.LockCommand;
@@ -42,6 +45,7 @@ import io.github.applecommander.acx.command.ReadCommand;
 import io.github.applecommander.acx.command.RenameDiskCommand;
 import io.github.applecommander.acx.command.RenameFileCommand;
 import io.github.applecommander.acx.command.RmdirCommand;
+import io.github.applecommander.acx.command.SearchCommand;
 import io.github.applecommander.acx.command.UnlockCommand;
 import io.github.applecommander.acx.command.WriteCommand;
 import picocli.CommandLine;
@@ -69,6 +73,7 @@ import picocli.CommandLine.Option;
             FindDuplicateFilesCommand.class,
             HelpCommand.class,
             ImportCommand.class,
+            IndexCommand.class,
             InfoCommand.class,
             ListCommand.class,
             LockCommand.class,
@@ -77,6 +82,7 @@ import picocli.CommandLine.Option;
             RenameFileCommand.class,
             RenameDiskCommand.class,
             RmdirCommand.class,
+            SearchCommand.class,
             UnlockCommand.class,
             WriteCommand.class
     })
@@ -114,6 +120,21 @@ public class Main {
     	setAllLogLevels(Level.OFF);
     }
 
+    @Option(names = { "--gz-index" }, description = "Save a random-access index next to compressed images.")
+    public void setSaveCompressedIndex(boolean flag) {
+        Disk.setSaveCompressedIndex(flag);
+    }
+
+    @Option(names = { "--gz-level" }, description = "Compression level (0-9) when saving compressed images.")
+    public void setCompressionLevel(int level) {
+        Disk.setCompressionLevel(level);
+    }
+
+    @Option(names = { "--gz-threads" }, description = "Number of threads used when saving compressed images.")
+    public void setCompressionThreads(int threads) {
+        Disk.setCompressionThreads(threads);
+    }
+
     public static void main(String[] args) {
         CommandLine cmd = new CommandLine(new Main());
         cmd.setExecutionExceptionHandler(new PrintExceptionMessageHandler());
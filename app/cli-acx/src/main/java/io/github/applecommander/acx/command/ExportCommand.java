@@ -22,6 +22,7 @@ package io.github.applecommander.acx.command;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.util.ArrayList;
@@ -117,7 +118,7 @@ public class ExportCommand extends ReadOnlyDiskImageCommandOptions {
     public void writeToStdout(FileTuple tuple) {
         try {
             FileFilter ff = extraction.extractFunction.apply(tuple.fileEntry);
-            System.out.write(ff.filter(tuple.fileEntry));
+            write(ff, tuple.fileEntry, System.out);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -135,11 +136,24 @@ public class ExportCommand extends ReadOnlyDiskImageCommandOptions {
         }
         LOG.info(String.format("Writing to '%s'", file.getPath()));
         try (OutputStream out = new FileOutputStream(file)) {
-            out.write(ff.filter(tuple.fileEntry));
+            write(ff, tuple.fileEntry, out);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
+    /**
+     * Raw exports are copied straight from the disk a block at a time; any
+     * other filter needs the entire file to work with.
+     */
+    private void write(FileFilter ff, FileEntry fileEntry, OutputStream out) throws IOException {
+        if (ff instanceof BinaryFileFilter) {
+            try (InputStream in = fileEntry.openInputStream()) {
+                in.transferTo(out);
+            }
+        } else {
+            out.write(ff.filter(fileEntry));
+        }
+    }
 
     private static class FileExtractMethods {
         private Function<FileEntry,FileFilter> extractFunction = this::asSuggestedFile; 
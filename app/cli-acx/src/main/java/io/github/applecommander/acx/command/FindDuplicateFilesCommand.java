@@ -19,87 +19,58 @@
  */
 package io.github.applecommander.acx.command;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
-import com.webcodepro.applecommander.storage.FormattedDisk;
-import com.webcodepro.applecommander.util.filestreamer.FileStreamer;
-import com.webcodepro.applecommander.util.filestreamer.FileTuple;
-import com.webcodepro.applecommander.util.filestreamer.TypeOfFile;
+import com.webcodepro.applecommander.storage.compare.DuplicateFinder;
+import com.webcodepro.applecommander.storage.compare.DuplicateFinder.Location;
 
 import io.github.applecommander.acx.base.ReadOnlyDiskImageCommandOptions;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
 
 @Command(name = "dups", description = "Find duplicate files.")
 public class FindDuplicateFilesCommand extends ReadOnlyDiskImageCommandOptions {
     @Option(names = { "-a", "--all" }, description = "Compare all files across all volumes; useful for formats like UniDOS.")
     private boolean compareAcrossVolumes;
+
+    @Option(names = { "--threads" }, description = "Number of threads used to read files (default = processors).")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameters(arity = "*", description = "Additional images to search; duplicates are found across all images.")
+    private List<String> images = new ArrayList<>();
     
     @Override
     public int handleCommand() throws Exception {
-        Map<String,List<FileTuple>> content = new HashMap<>();
-        Supplier<Map<String,List<FileTuple>>> supplier = () -> content;
-        int dupsFound = 0;
+        DuplicateFinder finder = DuplicateFinder.create()
+                .add(disk)
+                .threads(threads)
+                .matchWithinVolume(!compareAcrossVolumes && images.isEmpty());
+        images.forEach(finder::addImage);
+        List<List<Location>> duplicates = finder.findDuplicates();
         
-        for (FormattedDisk formattedDisk : disk.getFormattedDisks()) {
-            FileStreamer.forDisk(formattedDisk)
-                    .includeTypeOfFile(TypeOfFile.FILE)
-                    .recursive(true)
-                    .stream()
-                    .collect(Collectors.groupingBy(this::contentHash, supplier, Collectors.toList()));
-            if (compareAcrossVolumes && !content.isEmpty()) {
-                System.out.printf("Differences in: %s\n", formattedDisk.getDiskName());
-                dupsFound += report(content);
-                content.clear();
+        int volume = -1;
+        for (List<Location> group : duplicates) {
+            Location first = group.get(0);
+            if (!compareAcrossVolumes && images.isEmpty() && first.volume != volume) {
+                volume = first.volume;
+                System.out.printf("Differences in: %s\n", first.volumeName);
+            }
+            System.out.printf("%s has the following duplicates:\n", describe(first));
+            for (Location location : group.subList(1, group.size())) {
+                System.out.printf("    - %s\n", describe(location));
             }
         }
         
-        if (!content.isEmpty()) {
-            System.out.println("Differences:");
-            dupsFound += report(content);
-        }
-        
-        if (dupsFound == 0) {
+        if (duplicates.isEmpty()) {
             System.out.println("There are no duplicate files.");
         }
         
         return 0;
     }
-
-    private String contentHash(FileTuple tuple) {
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-            byte[] digest = messageDigest.digest(tuple.fileEntry.getFileData());
-            return String.format("%032X", new BigInteger(1, digest));
-        } catch (NoSuchAlgorithmException ex) {
-            throw new RuntimeException(ex);
-        }
-    }
     
-    private int report(Map<String,List<FileTuple>> content) {
-        int dups = 0;
-        for (Map.Entry<String,List<FileTuple>> entry : content.entrySet()) {
-            if (entry.getValue().size() > 1) {
-                dups++;
-                boolean first = true;
-                for (FileTuple tuple : entry.getValue()) {
-                    if (first) {
-                        System.out.printf("%s has the following duplicates:\n", tuple.fullPath());
-                        first= false;
-                    }
-                    else {
-                        System.out.printf("    - %s\n", tuple.fullPath());
-                    }
-                }
-            }
-        }
-        return dups;
+    private String describe(Location location) {
+        return images.isEmpty() ? location.path : location.toString();
     }
 }
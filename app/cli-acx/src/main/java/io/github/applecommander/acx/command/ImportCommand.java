@@ -37,6 +37,7 @@ import java.util.logging.Logger;
 
 import com.webcodepro.applecommander.storage.DirectoryEntry;
 import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
 import com.webcodepro.applecommander.util.AppleUtil;
 import com.webcodepro.applecommander.util.StreamUtil;
@@ -86,13 +87,12 @@ public class ImportCommand extends ReadWriteDiskCommandOptions {
 
     @Override
     public int handleCommand() throws Exception {
-        DirectoryEntry directory = disk.getFormattedDisks()[0];
+        FormattedDisk formattedDisk = disk.getFormattedDisks()[0];
+        DirectoryEntry directory = formattedDisk;
         if (directoryName.isPresent()) {
             String[] dirs = directoryName.get().split("/");
             for (String dir : dirs) {
-                Optional<FileEntry> fileEntry = directory.getFiles().stream()
-                        .filter(f -> dir.equalsIgnoreCase(f.getFilename()))
-                        .findFirst();
+                Optional<FileEntry> fileEntry = Optional.ofNullable(formattedDisk.getFile(directory, dir));
                 Optional<DirectoryEntry> dirEntry = fileEntry
                         .filter(FileEntry::isDirectory)
                         .map(DirectoryEntry.class::cast);
@@ -102,55 +102,82 @@ public class ImportCommand extends ReadWriteDiskCommandOptions {
         }
         
         FileUtils copier = new FileUtils(overwriteFlag);
-        FileEntryReader inputReader = inputData.get();
-        for (FileEntryReader processorReader : processor.apply(inputReader)) {
-            FileEntryReader reader = OverrideFileEntryReader.builder()
-                    .filename(overrides.fileName)
-                    .prodosFiletype(overrides.fileType)
-                    .binaryAddress(overrides.fileAddress)
-                    .auxiliaryType(overrides.auxType)
-                    .build(processorReader);
-            
-            copier.copyFile(directory, reader);
+        // Import everything as one batch; a failure leaves the image untouched
+        formattedDisk.beginBatch();
+        try {
+            if (processor == null) {
+                // A plain import is streamed onto the disk rather than read into memory
+                FileEntryReader reader = OverrideFileEntryReader.builder()
+                        .filename(overrides.fileName)
+                        .prodosFiletype(overrides.fileType)
+                        .binaryAddress(overrides.fileAddress)
+                        .auxiliaryType(overrides.auxType)
+                        .build(inputData.getAttributes());
+                try (InputStream inputStream = inputData.openStream()) {
+                    copier.copyFile(directory, reader, inputStream);
+                }
+                formattedDisk.commit();
+                return 0;
+            }
+            FileEntryReader inputReader = inputData.get();
+            for (FileEntryReader processorReader : processor.apply(inputReader)) {
+                FileEntryReader reader = OverrideFileEntryReader.builder()
+                        .filename(overrides.fileName)
+                        .prodosFiletype(overrides.fileType)
+                        .binaryAddress(overrides.fileAddress)
+                        .auxiliaryType(overrides.auxType)
+                        .build(processorReader);
+                
+                copier.copyFile(directory, reader);
+            }
+            formattedDisk.commit();
+        } catch (Exception e) {
+            formattedDisk.rollback();
+            throw e;
         }
         
         return 0;
     }
 
     public static class InputData {
-        private FileEntryReader fileEntryReader;
+        private String filename;
+        /** The file to import; standard input when null. */
+        private Path path;
         
+        /** Answer with the input, read entirely into memory. */
         public FileEntryReader get() {
-            return fileEntryReader;
-        }
-
-        @Option(names = { "--stdin" }, description = "Import from standard input.")
-        public void stdinFlag(boolean flag) {
-            try {
-                byte[] data = System.in.readAllBytes();
-                fileEntryReader = OverrideFileEntryReader.builder()
+            try (InputStream inputStream = openStream()) {
+                byte[] data = inputStream.readAllBytes();
+                return OverrideFileEntryReader.builder()
                         .fileData(data)
-                        .filename("UNKNOWN")
-                        .prodosFiletype("BIN")
-                        .build();
+                        .build(getAttributes());
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
         }
         
+        /** Answer with the name and type of the input, without its data. */
+        public FileEntryReader getAttributes() {
+            return OverrideFileEntryReader.builder()
+                    .filename(filename)
+                    .prodosFiletype("BIN")
+                    .build();
+        }
+        
+        public InputStream openStream() throws IOException {
+            return path == null ? System.in : Files.newInputStream(path);
+        }
+
+        @Option(names = { "--stdin" }, description = "Import from standard input.")
+        public void stdinFlag(boolean flag) {
+            filename = "UNKNOWN";
+            path = null;
+        }
+        
         @Parameters(description = "File to import.")
         public void fromFile(final String filename) {
-            try {
-                Path path = Path.of(filename);
-                byte[] data = Files.readAllBytes(path);
-                fileEntryReader = OverrideFileEntryReader.builder()
-                        .fileData(data)
-                        .filename(filename)
-                        .prodosFiletype("BIN")
-                        .build();
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
-            }
+            this.filename = filename;
+            this.path = Path.of(filename);
         }
     }
     
@@ -0,0 +1,168 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package io.github.applecommander.acx.command;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.webcodepro.applecommander.storage.catalog.CatalogIndex;
+import com.webcodepro.applecommander.storage.catalog.CatalogIndex.ImageRecord;
+import com.webcodepro.applecommander.storage.catalog.CatalogIndex.Match;
+import com.webcodepro.applecommander.storage.catalog.CatalogIndexer;
+import com.webcodepro.applecommander.storage.catalog.TextIndex;
+import com.webcodepro.applecommander.storage.catalog.TextIndex.Document;
+
+import io.github.applecommander.acx.base.ReusableCommandOptions;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+@Command(name = "index", description = "Build or query a catalog of many disk images.")
+public class IndexCommand extends ReusableCommandOptions {
+    private static Logger LOG = Logger.getLogger(IndexCommand.class.getName());
+
+    @Option(names = { "-i", "--index" }, description = "Catalog index file [$ACX_INDEX_FILE].",
+            defaultValue = "${ACX_INDEX_FILE:-acx-catalog.idx}")
+    private File indexFile;
+
+    @Option(names = { "--text-index" }, description = "Text index file [$ACX_TEXT_INDEX_FILE].",
+            defaultValue = "${ACX_TEXT_INDEX_FILE:-acx-text.idx}")
+    private File textIndexFile;
+
+    @Option(names = { "--text" }, description = "Also index the text of files while scanning.")
+    private boolean text;
+
+    @Option(names = { "--threads" }, description = "Number of images to index at once (default = processors).")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option(names = { "--name" }, description = "Find files with this name.")
+    private String name;
+
+    @Option(names = { "--hash" }, description = "Find files with this content hash (16 hex digits).")
+    private String hash;
+
+    @Option(names = { "--like" }, description = "Find files with the same content as this local file.")
+    private Path like;
+
+    @Option(names = { "--find" }, description = "Find files containing this text (at least 3 characters).")
+    private String find;
+
+    @Option(names = { "--candidates" }, description = "List text index candidates without confirming them.")
+    private boolean candidates;
+
+    @Parameters(arity = "*", description = "Directories to scan for disk images; the catalog is updated.")
+    private List<Path> directories = new ArrayList<>();
+
+    @Override
+    public int handleCommand() throws Exception {
+        CatalogIndex index = CatalogIndex.read(indexFile);
+        TextIndex textIndex = text || find != null ? TextIndex.read(textIndexFile) : null;
+        CatalogIndexer indexer = CatalogIndexer.create(index).threads(threads);
+        
+        if (!directories.isEmpty()) {
+            if (text) {
+                indexer.textIndex(textIndex);
+            }
+            for (Path directory : directories) {
+                long start = System.nanoTime();
+                CatalogIndexer.Result result = indexer.scan(directory);
+                System.out.printf("%s: %,d added, %,d updated, %,d unchanged, %,d removed, %,d unreadable (%,d ms)\n",
+                        directory, result.getAdded(), result.getUpdated(), result.getUnchanged(), 
+                        result.getRemoved(), result.getFailed(), 
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            index.write(indexFile);
+            if (text) {
+                textIndex.write(textIndexFile);
+            }
+        }
+        
+        if (find != null) {
+            return findText(indexer, textIndex);
+        }
+        if (name == null && hash == null && like == null) {
+            if (directories.isEmpty()) {
+                int files = 0;
+                for (ImageRecord image : index.getImages()) {
+                    files += image.getVolumes().stream().mapToInt(v -> v.getFiles().size()).sum();
+                }
+                System.out.printf("%s: %,d images, %,d files\n", indexFile, index.getImages().size(), files);
+            }
+            return 0;
+        }
+        
+        Long contentHash = null;
+        if (hash != null) {
+            contentHash = Long.parseUnsignedLong(hash, 16);
+        } else if (like != null) {
+            try (InputStream inputStream = Files.newInputStream(like)) {
+                contentHash = CatalogIndexer.hash(inputStream);
+            }
+        }
+        
+        long start = System.nanoTime();
+        List<Match> matches;
+        if (name != null && contentHash != null) {
+            matches = index.find(name, contentHash);
+        } else if (name != null) {
+            matches = index.findByName(name);
+        } else {
+            matches = index.findByHash(contentHash);
+        }
+        LOG.info(() -> String.format("Query: %,d us", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)));
+        
+        for (Match match : matches) {
+            System.out.printf("%s: %s %s %s %,d %016x\n", match.getImage().getPath(), 
+                    match.getVolume().getDiskName(), match.getFile().getPath(), 
+                    match.getFile().getFiletype(), match.getFile().getSize(), match.getFile().getHash());
+        }
+        if (matches.isEmpty()) {
+            System.out.println("No matching files.");
+        }
+        return 0;
+    }
+
+    private int findText(CatalogIndexer indexer, TextIndex textIndex) throws Exception {
+        long start = System.nanoTime();
+        List<Document> documents = textIndex.find(find);
+        LOG.info(() -> String.format("Query: %,d us, %,d candidates", 
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), documents.size()));
+        List<Document> matches = candidates ? documents : indexer.confirm(documents, find);
+        
+        for (Document document : matches) {
+            if (document.getVolume() > 0) {
+                System.out.printf("%s: %s (volume %d)\n", document.getImagePath(), document.getPath(), 
+                        document.getVolume());
+            } else {
+                System.out.printf("%s: %s\n", document.getImagePath(), document.getPath());
+            }
+        }
+        if (matches.isEmpty()) {
+            System.out.println("No matching files.");
+        }
+        return 0;
+    }
+}
@@ -19,6 +19,7 @@
  */
 package io.github.applecommander.acx.command;
 
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import com.webcodepro.applecommander.storage.FormattedDisk;
@@ -36,6 +37,8 @@ public class InfoCommand extends ReadOnlyDiskImageCommandOptions {
     public int handleCommand() throws Exception {
         LOG.info(() -> "Path: " + disk.getFilename());
         FormattedDisk[] formattedDisks = disk.getFormattedDisks();
+        LOG.info(() -> String.format("Format probe: %s (%d us)", disk.getFormatSignature(), 
+                TimeUnit.NANOSECONDS.toMicros(disk.getProbeTime())));
         for (int i = 0; i < formattedDisks.length; i++) {
             FormattedDisk formattedDisk = formattedDisks[i];
             LOG.info(() -> String.format("Disk: %s (%s)", formattedDisk.getDiskName(), formattedDisk.getFormat()));
@@ -28,6 +28,7 @@ import com.webcodepro.applecommander.storage.FormattedDisk.FileColumnHeader;
 import com.webcodepro.applecommander.ui.DirectoryLister.CsvListingStrategy;
 import com.webcodepro.applecommander.ui.DirectoryLister.JsonListingStrategy;
 import com.webcodepro.applecommander.ui.DirectoryLister.ListingStrategy;
+import com.webcodepro.applecommander.ui.DirectoryLister.NdJsonListingStrategy;
 import com.webcodepro.applecommander.util.filestreamer.FileStreamer;
 import com.webcodepro.applecommander.util.filestreamer.FileTuple;
 import com.webcodepro.applecommander.util.filestreamer.TypeOfFile;
@@ -120,7 +121,8 @@ public class ListCommand extends ReadOnlyDiskImageCommandOptions {
         private enum OutputStrategy { 
             TEXT(FormattedTextListingStrategy::new), 
             CSV(CsvListingStrategy::new),
-            JSON(JsonListingStrategy::new);
+            JSON(JsonListingStrategy::new),
+            NDJSON(NdJsonListingStrategy::new);
             
             private Function<Integer,ListingStrategy> constructorFn;
             
@@ -144,6 +146,11 @@ public class ListCommand extends ReadOnlyDiskImageCommandOptions {
             this.outputStrategy = OutputStrategy.JSON;
         }
         
+        @Option(names = "--ndjson", description = "Newline-delimited JSON output (one file per line).")
+        public void selectNdJsonOutput(boolean flag) {
+            this.outputStrategy = OutputStrategy.NDJSON;
+        }
+        
         @Option(names = "--csv", description = "CSV output.")
         public void selectCsvOutput(boolean flag) {
             this.outputStrategy = OutputStrategy.CSV;
@@ -0,0 +1,105 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package io.github.applecommander.acx.command;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.webcodepro.applecommander.storage.catalog.CatalogIndexer;
+import com.webcodepro.applecommander.storage.search.ContentSearch;
+import com.webcodepro.applecommander.util.BytePattern;
+
+import io.github.applecommander.acx.base.ReusableCommandOptions;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+@Command(name = "search", description = "Search the contents of files in disk images.",
+        aliases = { "grep" })
+public class SearchCommand extends ReusableCommandOptions {
+    @Option(names = { "--hex" }, description = "Pattern is hex bytes (such as 'A9 00 8D').")
+    private boolean hexFlag;
+
+    @Option(names = { "-c", "--clear-high-bit" }, description = "Clear the high bit of file contents before matching.")
+    private boolean clearHighBitFlag;
+
+    @Option(names = { "--basic", "--detokenize" }, description = "Search Applesoft programs as their listing.")
+    private boolean detokenizeFlag;
+
+    @Option(names = { "--threads" }, description = "Number of threads used to search (default = processors).")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameters(index = "0", description = "Text (or hex bytes) to search for.")
+    private String pattern;
+
+    @Parameters(index = "1..*", arity = "1..*", description = "Disk images, or directories of disk images, to search.")
+    private List<Path> paths = new ArrayList<>();
+
+    @Override
+    public int handleCommand() throws Exception {
+        ContentSearch search = ContentSearch.create(hexFlag ? new BytePattern(parseHex(pattern)) : BytePattern.of(pattern))
+                .clearHighBit(clearHighBitFlag)
+                .detokenize(detokenizeFlag)
+                .threads(threads);
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> stream = Files.walk(path)) {
+                    for (Path image : stream.filter(Files::isRegularFile)
+                                            .filter(CatalogIndexer::isDiskImage)
+                                            .sorted()
+                                            .collect(Collectors.toList())) {
+                        search.addImage(image.toString());
+                    }
+                }
+            } else {
+                search.addImage(path.toString());
+            }
+        }
+        
+        AtomicInteger count = new AtomicInteger();
+        search.search(hit -> {
+            count.incrementAndGet();
+            System.out.printf("%s: %s %s offset %d%s\n", hit.imageName, hit.volumeName, hit.path, 
+                    hit.offset, hit.detokenized ? " (listing)" : "");
+        });
+        
+        if (count.get() == 0) {
+            System.out.println("No matches found.");
+        }
+        return 0;
+    }
+    
+    private static byte[] parseHex(String hex) {
+        String digits = hex.replaceAll("\\s", "");
+        if (digits.isEmpty() || digits.length() % 2 != 0 || !digits.matches("[0-9A-Fa-f]*")) {
+            throw new IllegalArgumentException(String.format("'%s' is not a sequence of hex bytes", hex));
+        }
+        byte[] bytes = new byte[digits.length() / 2];
+        for (int i=0; i<bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(digits.substring(i*2, i*2+2), 16);
+        }
+        return bytes;
+    }
+}
@@ -19,6 +19,9 @@
  */
 package io.github.applecommander.acx.fileutil;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Optional;
 import java.util.logging.Logger;
 
@@ -53,10 +56,8 @@ public class FileUtils {
 	}
 	
 	void copyDirectory(DirectoryEntry targetParent, DirectoryEntry sourceDir, String name) throws DiskException {
-	    Optional<FileEntry> targetFile = targetParent.getFiles()
-	            .stream()
-	            .filter(fileEntry -> name.equals(fileEntry.getFilename()))
-	            .findFirst();
+	    Optional<FileEntry> targetFile = Optional.ofNullable(
+	            targetParent.getFormattedDisk().getFile(targetParent, name));
 	    Optional<DirectoryEntry> targetDir = targetFile
 	            .filter(FileEntry::isDirectory)
 	            .map(DirectoryEntry.class::cast);
@@ -85,11 +86,33 @@ public class FileUtils {
 	}
 	
 	public void copyFile(DirectoryEntry directory, FileEntryReader source) throws DiskException {
+	    FileEntry targetFile = createFile(directory, source);
+	    FileEntryWriter target = FileEntryWriter.get(targetFile);
+        if (source.getFileData().isPresent() && source.getResourceData().isPresent()) {
+            target.setFileData(source.getFileData().get(), source.getResourceData().get());
+        } else {
+            source.getFileData().ifPresent(target::setFileData);
+        }
+	}
+
+	/**
+	 * Copy the attributes of source and then the data read from the stream, which
+	 * is written to the disk as it arrives rather than being collected first.
+	 */
+	public void copyFile(DirectoryEntry directory, FileEntryReader source, InputStream data) 
+	        throws DiskException, IOException {
+	    FileEntry targetFile = createFile(directory, source);
+	    try (OutputStream outputStream = targetFile.openOutputStream()) {
+	        data.transferTo(outputStream);
+	    }
+	}
+
+	/** Locate or create the target file and copy the attributes of source. */
+	private FileEntry createFile(DirectoryEntry directory, FileEntryReader source) throws DiskException {
 	    String sourceName = source.getFilename().get();
 	    String sanitizedName = directory.getFormattedDisk().getSuggestedFilename(sourceName);
-	    final Optional<FileEntry> fileEntry = directory.getFiles().stream()
-	        .filter(entry -> entry.getFilename().equals(sanitizedName))
-	        .findFirst();
+	    final Optional<FileEntry> fileEntry = Optional.ofNullable(
+	        directory.getFormattedDisk().getFile(directory, sanitizedName));
 
         final FileEntry targetFile;
         if (fileEntry.isPresent()) {
@@ -112,11 +135,6 @@ public class FileUtils {
 	    source.getAuxiliaryType().ifPresent(target::setAuxiliaryType);
 	    source.getCreationDate().ifPresent(target::setCreationDate);
 	    source.getLastModificationDate().ifPresent(target::setLastModificationDate);
-
-        if (source.getFileData().isPresent() && source.getResourceData().isPresent()) {
-            target.setFileData(source.getFileData().get(), source.getResourceData().get());
-        } else {
-            source.getFileData().ifPresent(target::setFileData);
-        }
+	    return targetFile;
 	}
 }
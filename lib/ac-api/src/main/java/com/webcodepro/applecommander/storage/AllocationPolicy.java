@@ -0,0 +1,38 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+/**
+ * Indicates how blocks (or sectors) are chosen when file data is written.
+ * @see FormattedDisk#setAllocationPolicy(AllocationPolicy)
+ */
+public enum AllocationPolicy {
+    /**
+     * Use the lowest free block each time one is needed.  This is how
+     * the original operating systems allocate space.
+     */
+    FIRST_FIT,
+    /**
+     * Place the file in the smallest run of free blocks that holds all
+     * of its data and index blocks, so the file is stored as a single
+     * extent.  Falls back to FIRST_FIT when no run is large enough.
+     */
+    BEST_FIT_EXTENT
+}
@@ -19,15 +19,23 @@
  */
 package com.webcodepro.applecommander.storage;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
 
 import com.webcodepro.applecommander.storage.os.cpm.CpmFileEntry;
 import com.webcodepro.applecommander.storage.os.cpm.CpmFormatDisk;
@@ -41,12 +49,15 @@ import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
 import com.webcodepro.applecommander.storage.os.rdos.RdosFormatDisk;
 import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
 import com.webcodepro.applecommander.storage.physical.DosOrder;
+import com.webcodepro.applecommander.storage.physical.GzipImageLayout;
 import com.webcodepro.applecommander.storage.physical.ImageOrder;
+import com.webcodepro.applecommander.storage.physical.MappedFileImageLayout;
 import com.webcodepro.applecommander.storage.physical.NibbleOrder;
+import com.webcodepro.applecommander.storage.physical.ParallelGzipWriter;
 import com.webcodepro.applecommander.storage.physical.ProdosOrder;
 import com.webcodepro.applecommander.storage.physical.UniversalDiskImageLayout;
 import com.webcodepro.applecommander.util.AppleUtil;
-import com.webcodepro.applecommander.util.StreamUtil;
+import com.webcodepro.applecommander.util.ShrinkItUtilities;
 import com.webcodepro.applecommander.util.TextBundle;
 
 /**
@@ -78,6 +89,15 @@ public class Disk {
 		}
 	}
 
+	/**
+	 * The file system signatures that can be recognized on a disk image.
+	 * These are listed in order of precedence; when more than one signature
+	 * matches, the first one determines the FormattedDisk.
+	 */
+	public enum FormatSignature {
+		PRODOS, UNIDOS, OZDOS, DOS, NAKEDOS, PASCAL, RDOS, CPM, WP
+	}
+
 	public static final int BLOCK_SIZE = 512;
 	public static final int SECTOR_SIZE = 256;
 	public static final int PRODOS_BLOCKS_ON_140KB_DISK = 280;
@@ -91,8 +111,13 @@ public class Disk {
 	public static final int APPLE_10MB_HARDDISK = 10485760;
 	public static final int APPLE_20MB_HARDDISK = 20971520;
 	public static final int APPLE_32MB_HARDDISK = 33553920;	// short one block!
+	private static final int DC42_HEADER_SIZE = 84;
 
 	private static FilenameFilter[] filenameFilters;
+	private static boolean saveCompressedIndex = false;
+	private static int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private static int compressionThreads = Runtime.getRuntime().availableProcessors();
+	private static int archiveThreads = 1;
 	private static String[] allFileExtensions = null;
 	private TextBundle textBundle = StorageBundle.getInstance();
 	private String filename;
@@ -100,6 +125,10 @@ public class Disk {
 	private boolean isDC42 = false;
 	private ByteArrayImageLayout diskImageManager;
 	private ImageOrder imageOrder = null;
+	private String lowercaseFilename;
+	private String lowercaseFilenameSource;
+	private Map<ImageOrder,ProbeResult> probeResults = new IdentityHashMap<>();
+	private long probeTime;
 
 	/**
 	 * Get the supported file filters supported by the Disk interface.
@@ -124,6 +153,78 @@ public class Disk {
 		return allFileExtensions;
 	}
 
+	/**
+	 * Indicates if a random-access index is saved next to compressed images
+	 * when they are opened, so later opens do not need to inflate the image.
+	 */
+	public static boolean isSaveCompressedIndex() {
+		return saveCompressedIndex;
+	}
+
+	/**
+	 * Set whether a random-access index is saved next to compressed images.
+	 * @see GzipImageLayout
+	 */
+	public static void setSaveCompressedIndex(boolean saveCompressedIndex) {
+		Disk.saveCompressedIndex = saveCompressedIndex;
+	}
+
+	/**
+	 * Answer with the compression level used when saving compressed images.
+	 */
+	public static int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Set the compression level (0-9, or -1 for the default) used when
+	 * saving compressed images.
+	 */
+	public static void setCompressionLevel(int compressionLevel) {
+		if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + compressionLevel); //$NON-NLS-1$
+		}
+		Disk.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Answer with the number of threads used when saving compressed images.
+	 */
+	public static int getCompressionThreads() {
+		return compressionThreads;
+	}
+
+	/**
+	 * Set the number of threads used when saving compressed images.
+	 * @see ParallelGzipWriter
+	 */
+	public static void setCompressionThreads(int compressionThreads) {
+		if (compressionThreads < 1) {
+			throw new IllegalArgumentException("Invalid number of threads: " + compressionThreads); //$NON-NLS-1$
+		}
+		Disk.compressionThreads = compressionThreads;
+	}
+
+	/**
+	 * Answer with the number of threads used to decompress ShrinkIt archives.
+	 */
+	public static int getArchiveThreads() {
+		return archiveThreads;
+	}
+
+	/**
+	 * Set the number of threads used to decompress ShrinkIt archives.  The
+	 * default of one streams each file directly onto the unpacked volume;
+	 * more threads decompress upcoming records ahead, at the cost of memory.
+	 * @see ShrinkItUtilities#unpackSHKLayout(String, int, int)
+	 */
+	public static void setArchiveThreads(int archiveThreads) {
+		if (archiveThreads < 1) {
+			throw new IllegalArgumentException("Invalid number of threads: " + archiveThreads); //$NON-NLS-1$
+		}
+		Disk.archiveThreads = archiveThreads;
+	}
+
 	/**
 	 * Constructor for a Disk - used only to generate FilenameFilter objects.
 	 */
@@ -201,32 +302,46 @@ public class Disk {
 
 	/**
 	 * Construct a Disk and load the specified file.
-	 * Read in the entire contents of the file.
+	 * Uncompressed images are memory-mapped so that only the portions of
+	 * the file which are actually read get loaded; compressed images and
+	 * archives are read in their entirety.
 	 */
 	public Disk(String filename, int startBlocks, boolean knownProDOSOrder) throws IOException {
 		this.filename = filename;
 		int diskSize = 0;
 		byte[] diskImage = null;
 		byte[] diskImageDC42 = null;
+		MappedFileImageLayout mappedImage = null;
+		GzipImageLayout gzipImage = null;
+		ByteArrayImageLayout archiveImage = null;
 
 		if (isSDK() || isSHK() || isBXY()) {
-			// If we have an SDK, unpack it and send along the byte array
+			// If we have an SDK, unpack it directly into a layout
 			// If we have a SHK, build a new disk and unpack the contents on to it
-			diskImage = com.webcodepro.applecommander.util.ShrinkItUtilities.unpackSHKFile(filename, startBlocks);
+			archiveImage = ShrinkItUtilities.unpackSHKLayout(filename, startBlocks, archiveThreads);
+			diskImage = archiveImage.getDiskImage();
 			diskSize = diskImage.length;
 			// Since we don't want to overwrite their shrinkit with a raw ProDOS image,
 			// add a .po extension to it
 			this.filename += ".po"; //$NON-NLS-1$
+		} else if (isCompressed()) {
+			File file = new File(filename);
+			diskSize = (int) file.length();
+			gzipImage = new GzipImageLayout(file, saveCompressedIndex);
+			// Only the header is needed to identify the layout
+			diskImage = gzipImage.readBytes(0, Math.min(gzipImage.getPhysicalSize(), DC42_HEADER_SIZE));
 		} else {
 			File file = new File(filename);
 			diskSize = (int) file.length();
-			InputStream input = new FileInputStream(file);
-			if (isCompressed()) {
-				input = new GZIPInputStream(input);
-			}
-			ByteArrayOutputStream diskImageByteArray = new ByteArrayOutputStream(diskSize);
-			StreamUtil.copy(input, diskImageByteArray);
-			diskImage = diskImageByteArray.toByteArray();
+			mappedImage = new MappedFileImageLayout(file);
+			// Only the header is needed to identify the layout
+			diskImage = mappedImage.readBytes(0, Math.min(diskSize, DC42_HEADER_SIZE));
+		}
+		int imageSize = diskImage.length;
+		if (mappedImage != null) {
+			imageSize = mappedImage.getPhysicalSize();
+		} else if (gzipImage != null) {
+			imageSize = gzipImage.getPhysicalSize();
 		}
 		boolean is2img = false;
 		/* Does it have the 2IMG header? */
@@ -236,10 +351,17 @@ public class Disk {
 		/* Does it have the DiskCopy 4.2 header? */
 		else if (Disk.isDC42(diskImage)) {
 			isDC42 = true;
+			if (mappedImage != null) {
+				diskImage = mappedImage.getDiskImage();
+				mappedImage = null;
+			} else if (gzipImage != null) {
+				diskImage = gzipImage.getDiskImage();
+				gzipImage = null;
+			}
 			long end = AppleUtil.getLongValue(diskImage,0x40);
 			if (end < diskImage.length - 83) {
 				diskImageDC42 = new byte[(int)end];
-				System.arraycopy(diskImage, 84, diskImageDC42, 0, (int)end); // 84 bytes into the DC42 stream is where the real data starts
+				System.arraycopy(diskImage, DC42_HEADER_SIZE, diskImageDC42, 0, (int)end); // 84 bytes into the DC42 stream is where the real data starts
 				diskImageManager = new ByteArrayImageLayout(diskImageDC42);
 				// Since we don't want to overwrite their dmg or dc42 with a raw ProDOS image,
 				// add a .po extension to it
@@ -248,14 +370,27 @@ public class Disk {
 			else
 				throw new IllegalArgumentException(textBundle.get("CommandLineDC42Bad")); //$NON-NLS-1$
 		}
-		if (is2img == true || diskImage.length == APPLE_800KB_DISK + UniversalDiskImageLayout.OFFSET 
-				|| diskImage.length == APPLE_5MB_HARDDISK + UniversalDiskImageLayout.OFFSET 
-				|| diskImage.length == APPLE_10MB_HARDDISK + UniversalDiskImageLayout.OFFSET 
-				|| diskImage.length == APPLE_20MB_HARDDISK + UniversalDiskImageLayout.OFFSET 
-				|| diskImage.length == APPLE_32MB_HARDDISK + UniversalDiskImageLayout.OFFSET) {
-			diskImageManager = new UniversalDiskImageLayout(diskImage);
+		if (is2img == true || imageSize == APPLE_800KB_DISK + UniversalDiskImageLayout.OFFSET 
+				|| imageSize == APPLE_5MB_HARDDISK + UniversalDiskImageLayout.OFFSET 
+				|| imageSize == APPLE_10MB_HARDDISK + UniversalDiskImageLayout.OFFSET 
+				|| imageSize == APPLE_20MB_HARDDISK + UniversalDiskImageLayout.OFFSET 
+				|| imageSize == APPLE_32MB_HARDDISK + UniversalDiskImageLayout.OFFSET) {
+			if (mappedImage != null) {
+				diskImageManager = mappedImage.withOffset(UniversalDiskImageLayout.OFFSET);
+			} else {
+				if (gzipImage != null) {
+					diskImage = gzipImage.getDiskImage();
+				}
+				diskImageManager = new UniversalDiskImageLayout(diskImage);
+			}
 		} else if (isDC42) {
 			diskImageManager = new ByteArrayImageLayout(diskImageDC42);
+		} else if (archiveImage != null) {
+			diskImageManager = archiveImage;
+		} else if (mappedImage != null) {
+			diskImageManager = mappedImage;
+		} else if (gzipImage != null) {
+			diskImageManager = gzipImage;
 		} else {
 			diskImageManager = new ByteArrayImageLayout(diskImage);
 		}
@@ -335,30 +470,183 @@ public class Disk {
 	 */
 	public int testImageOrder()
 	{
-		int rc = (true == isProdosFormat() ? 1 : 0) + (true == isDosFormat() ? 2 : 0) + (true == isCpmFormat() ? 4 : 0) + (true == isUniDosFormat() ? 8 : 0) + (true == isPascalFormat() ? 16 : 0) + (true == isOzDosFormat() ? 32 : 0);
+		Set<FormatSignature> signatures = getFormatSignatures();
+		int rc = (signatures.contains(FormatSignature.PRODOS) ? 1 : 0) 
+				+ (signatures.contains(FormatSignature.DOS) ? 2 : 0) 
+				+ (signatures.contains(FormatSignature.CPM) ? 4 : 0) 
+				+ (signatures.contains(FormatSignature.UNIDOS) ? 8 : 0) 
+				+ (signatures.contains(FormatSignature.PASCAL) ? 16 : 0) 
+				+ (signatures.contains(FormatSignature.OZDOS) ? 32 : 0);
 		if (rc == 0)
 			rc = -1;
 		return rc;
 	}
 
 	/**
-	 * Save a Disk image to its file.
+	 * Answer with every file system signature recognized under the current
+	 * image order.  All probes run in a single pass that reads each block
+	 * or sector once; the result is cached per image order until the image
+	 * is modified.
+	 */
+	public Set<FormatSignature> getFormatSignatures() {
+		ByteArrayImageLayout layout = imageOrder.getDiskImageManager();
+		ProbeResult result = probeResults.get(imageOrder);
+		if (result == null || result.layout != layout 
+				|| result.modificationCount != layout.getModificationCount()) {
+			long start = System.nanoTime();
+			result = new ProbeResult(layout, probeFormats());
+			probeTime += System.nanoTime() - start;
+			probeResults.put(imageOrder, result);
+		}
+		return result.signatures;
+	}
+
+	/**
+	 * Answer with the signature that wins under the current image order,
+	 * which is the signature used by getFormattedDisks.  Null if nothing
+	 * was recognized.
+	 */
+	public FormatSignature getFormatSignature() {
+		Set<FormatSignature> signatures = getFormatSignatures();
+		return signatures.isEmpty() ? null : signatures.iterator().next();
+	}
+
+	/**
+	 * Answer with the total time, in nanoseconds, spent probing this disk
+	 * for file system signatures.
+	 */
+	public long getProbeTime() {
+		return probeTime;
+	}
+
+	/**
+	 * Run every format probe against the current image order.  A probe that
+	 * fails with an exception simply does not match.
+	 */
+	private Set<FormatSignature> probeFormats() {
+		ProbeReader reader = new ProbeReader();
+		EnumSet<FormatSignature> signatures = EnumSet.noneOf(FormatSignature.class);
+		for (FormatSignature signature : FormatSignature.values()) {
+			try {
+				if (probe(signature, reader)) {
+					signatures.add(signature);
+				}
+			} catch (RuntimeException ex) {
+				// Unreadable blocks or sectors mean this is not the format
+			}
+		}
+		return Collections.unmodifiableSet(signatures);
+	}
+
+	/**
+	 * Test a single file system signature.
+	 */
+	private boolean probe(FormatSignature signature, ProbeReader reader) {
+		switch (signature) {
+		case PRODOS:	return probeProdosFormat(reader);
+		case UNIDOS:	return probeUniDosFormat(reader);
+		case OZDOS:		return probeOzDosFormat(reader);
+		case DOS:		return probeDosFormat(reader);
+		case NAKEDOS:	return probeNakedosFormat(reader);
+		case PASCAL:	return probePascalFormat(reader);
+		case RDOS:		return probeRdosFormat(reader);
+		case CPM:		return probeCpmFormat(reader);
+		case WP:		return probeWPFormat(reader);
+		default:		return false;
+		}
+	}
+
+	/**
+	 * Save a Disk image to its file.  When the file already holds this
+	 * (uncompressed) image, only the blocks which have changed are written;
+	 * otherwise the entire image is written.  A disk cannot be saved while a
+	 * batch of changes is active, as the batch may still be rolled back.
 	 */
 	public void save() throws IOException {
-		File file = new File(getFilename());
-		if (!file.exists()) {
-			file.createNewFile();
+		ByteArrayImageLayout layout = getDiskImageManager();
+		if (layout.isJournaling()) {
+			throw new IllegalStateException("Cannot save while a batch is active"); //$NON-NLS-1$
+		}
+		File file = new File(getFilename()).getAbsoluteFile();
+		BitSet changedBlocks = layout.getChangedBlocks();
+		if (!isCompressed() && changedBlocks != null
+				&& file.equals(layout.getBackingFile())
+				&& file.length() == layout.getPhysicalSize()) {
+			saveChangedBlocks(file, changedBlocks);
+		} else {
+			saveDiskImage(file);
 		}
-		OutputStream output = new FileOutputStream(file);
 		if (isCompressed()) {
-			output = new GZIPOutputStream(output);
+			// Any saved index describes the previous contents
+			Files.deleteIfExists(GzipImageLayout.getIndexFile(file).toPath());
 		}
-		output.write(getDiskImageManager().getDiskImage());
-		output.close();
-		getDiskImageManager().setChanged(false);
+		layout.setBackingFile(isCompressed() ? null : file);
+		layout.setChanged(false);
 		newImage = false;
 	}
 
+	/**
+	 * Write the entire disk image to the file.  The file is never truncated in
+	 * place: a mapping of it may not have been released yet, and some platforms
+	 * (Windows) refuse to truncate a mapped file.  A file of the same length is
+	 * overwritten through a channel; otherwise the image is written to a
+	 * temporary file which then replaces the original.
+	 */
+	private void saveDiskImage(File file) throws IOException {
+		byte[] diskImage = getDiskImageManager().getDiskImage();
+		if (!isCompressed() && file.isFile() && file.length() == diskImage.length) {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				writeRegion(channel, diskImage, 0, diskImage.length);
+			}
+			return;
+		}
+		File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		try {
+			try (OutputStream output = new FileOutputStream(tempFile)) {
+				if (isCompressed()) {
+					new ParallelGzipWriter(compressionLevel, compressionThreads).write(diskImage, output);
+				} else {
+					output.write(diskImage);
+				}
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Write only the changed 512-byte regions of the disk image into the
+	 * existing file.  Adjacent regions are combined into a single write.
+	 */
+	private void saveChangedBlocks(File file, BitSet changedBlocks) throws IOException {
+		if (changedBlocks.isEmpty()) {
+			return;
+		}
+		byte[] diskImage = getDiskImageManager().getDiskImage();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			int block = changedBlocks.nextSetBit(0);
+			while (block >= 0) {
+				int endBlock = changedBlocks.nextClearBit(block);
+				int start = block * BLOCK_SIZE;
+				int end = Math.min(endBlock * BLOCK_SIZE, diskImage.length);
+				writeRegion(channel, diskImage, start, end);
+				block = changedBlocks.nextSetBit(endBlock);
+			}
+		}
+	}
+
+	/**
+	 * Write a region of the disk image to the same position in the file.
+	 */
+	private static void writeRegion(FileChannel channel, byte[] diskImage, int start, int end) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(diskImage, start, end - start);
+		while (buffer.hasRemaining()) {
+			// file position and array position are the same
+			channel.write(buffer, buffer.position());
+		}
+	}
+
 	/**
 	 * Save a Disk image as a new/different file.
 	 */
@@ -373,41 +661,47 @@ public class Disk {
 	 * @throws DiskUnrecognizedException 
 	 */
 	public FormattedDisk[] getFormattedDisks() throws DiskUnrecognizedException {
-		if (isProdosFormat()) {
+		FormatSignature signature = getFormatSignature();
+		if (signature == null) {
+			throw new DiskUnrecognizedException(filename);
+		}
+		switch (signature) {
+		case PRODOS:
 			return new FormattedDisk[]
 				{ new ProdosFormatDisk(filename, imageOrder) };
-		} else if (isUniDosFormat()) {
+		case UNIDOS:
 			return new FormattedDisk[] {
 				new UniDosFormatDisk(filename, imageOrder, 
 									UniDosFormatDisk.UNIDOS_DISK_1),
 				new UniDosFormatDisk(filename, imageOrder, 
 									UniDosFormatDisk.UNIDOS_DISK_2) };
-		} else if (isOzDosFormat()) {
+		case OZDOS:
 			return new FormattedDisk[] {
 				new OzDosFormatDisk(filename, imageOrder,
 									OzDosFormatDisk.OZDOS_DISK_1),
 				new OzDosFormatDisk(filename, imageOrder,
 									OzDosFormatDisk.OZDOS_DISK_2) };
-		} else if (isDosFormat()) {
+		case DOS:
 			return new FormattedDisk[]
 				{ new DosFormatDisk(filename, imageOrder) };
-		} else if (isNakedosFormat()) {
+		case NAKEDOS:
 			return new FormattedDisk[]
 				{ new NakedosFormatDisk(filename, imageOrder) };
-		} else if (isPascalFormat()) {
+		case PASCAL:
 			return new FormattedDisk[]
 				{ new PascalFormatDisk(filename, imageOrder) };
-		} else if (isRdosFormat()) {
+		case RDOS:
 			return new FormattedDisk[]
 				{ new RdosFormatDisk(filename, imageOrder) };
-		} else if (isCpmFormat()) {
+		case CPM:
 			return new FormattedDisk[]
 				{ new CpmFormatDisk(filename, imageOrder) };
-		} else if (isWPFormat()) {
+		case WP:
 			return new FormattedDisk[]
 				{ new GutenbergFormatDisk(filename, imageOrder) };
+		default:
+			throw new DiskUnrecognizedException(filename);
 		}
-		throw new DiskUnrecognizedException(filename);
 	}
 
 	/**
@@ -444,11 +738,23 @@ public class Disk {
 		return (imageOrder == null) ? textBundle.get("FormattedDisk.Unknown") : imageOrder.getName(); 
 	}
 	
+	/**
+	 * Answer with the filename in lowercase for extension tests.  This is
+	 * only recomputed when the filename changes.
+	 */
+	private String getLowercaseFilename() {
+		if (lowercaseFilenameSource != filename) {
+			lowercaseFilename = filename.toLowerCase();
+			lowercaseFilenameSource = filename;
+		}
+		return lowercaseFilename;
+	}
+	
 	/**
 	 * Indicate if this disk is GZIP compressed.
 	 */
 	public boolean isCompressed() {
-		return filename.toLowerCase().endsWith(".gz"); //$NON-NLS-1$
+		return getLowercaseFilename().endsWith(".gz"); //$NON-NLS-1$
 	}
 	
 	/**
@@ -456,7 +762,7 @@ public class Disk {
 	 */
 	public boolean isSDK()
 	{
-		return filename.toLowerCase().endsWith(".sdk"); //$NON-NLS-1$
+		return getLowercaseFilename().endsWith(".sdk"); //$NON-NLS-1$
 	}
 
 	/**
@@ -464,7 +770,7 @@ public class Disk {
 	 */
 	public boolean isSHK()
 	{
-		return filename.toLowerCase().endsWith(".shk"); //$NON-NLS-1$
+		return getLowercaseFilename().endsWith(".shk"); //$NON-NLS-1$
 	}
 
 	/**
@@ -472,17 +778,17 @@ public class Disk {
 	 */
 	public boolean isBXY()
 	{
-		return filename.toLowerCase().endsWith(".bxy"); //$NON-NLS-1$
+		return getLowercaseFilename().endsWith(".bxy"); //$NON-NLS-1$
 	}
 
 	/**
 	 * Indicate if this disk is ProDOS ordered (beginning with block 0).
 	 */
 	public boolean isProdosOrder() {
-		return filename.toLowerCase().endsWith(".po") //$NON-NLS-1$
-			|| filename.toLowerCase().endsWith(".po.gz") //$NON-NLS-1$
+		return getLowercaseFilename().endsWith(".po") //$NON-NLS-1$
+			|| getLowercaseFilename().endsWith(".po.gz") //$NON-NLS-1$
 			|| is2ImgOrder()
-			|| filename.toLowerCase().endsWith(".hdv") //$NON-NLS-1$
+			|| getLowercaseFilename().endsWith(".hdv") //$NON-NLS-1$
 			|| getPhysicalSize() >= APPLE_800KB_2IMG_DISK;
 	}
 	
@@ -490,10 +796,10 @@ public class Disk {
 	 * Indicate if this disk is DOS ordered (T0,S0 - T35,S15).
 	 */
 	public boolean isDosOrder() {
-		return filename.toLowerCase().endsWith(".do") //$NON-NLS-1$
-			|| filename.toLowerCase().endsWith(".do.gz") //$NON-NLS-1$
-			|| filename.toLowerCase().endsWith(".dsk") //$NON-NLS-1$
-			|| filename.toLowerCase().endsWith(".dsk.gz"); //$NON-NLS-1$
+		return getLowercaseFilename().endsWith(".do") //$NON-NLS-1$
+			|| getLowercaseFilename().endsWith(".do.gz") //$NON-NLS-1$
+			|| getLowercaseFilename().endsWith(".dsk") //$NON-NLS-1$
+			|| getLowercaseFilename().endsWith(".dsk.gz"); //$NON-NLS-1$
 	}
 	
 	/**
@@ -501,18 +807,18 @@ public class Disk {
 	 * This is ProDOS ordered, but with a header on the disk.
 	 */
 	public boolean is2ImgOrder() {
-		return filename.toLowerCase().endsWith(".2img") //$NON-NLS-1$
-			|| filename.toLowerCase().endsWith(".2img.gz") //$NON-NLS-1$
-			|| filename.toLowerCase().endsWith(".2mg") //$NON-NLS-1$
-		|| filename.toLowerCase().endsWith(".2mg.gz"); //$NON-NLS-1$
+		return getLowercaseFilename().endsWith(".2img") //$NON-NLS-1$
+			|| getLowercaseFilename().endsWith(".2img.gz") //$NON-NLS-1$
+			|| getLowercaseFilename().endsWith(".2mg") //$NON-NLS-1$
+		|| getLowercaseFilename().endsWith(".2mg.gz"); //$NON-NLS-1$
 	}
 
 	/**
 	 * Indicate if this disk is a nibbilized disk..
 	 */
 	public boolean isNibbleOrder() {
-		return filename.toLowerCase().endsWith(".nib") //$NON-NLS-1$
-			|| filename.toLowerCase().endsWith(".nib.gz"); //$NON-NLS-1$
+		return getLowercaseFilename().endsWith(".nib") //$NON-NLS-1$
+			|| getLowercaseFilename().endsWith(".nib.gz"); //$NON-NLS-1$
 	}
 	
 	/**
@@ -550,6 +856,20 @@ public class Disk {
 		return imageOrder.readBlock(block);
 	}
 	
+	/**
+	 * Read the block from the disk image into the given buffer at offset.
+	 */
+	public void readBlockInto(int block, byte[] buffer, int offset) {
+		imageOrder.readBlockInto(block, buffer, offset);
+	}
+	
+	/**
+	 * Answer with a read-only view of the block.
+	 */
+	public ByteBuffer readBlockBuffer(int block) {
+		return imageOrder.readBlockBuffer(block);
+	}
+	
 	/**
 	 * Write the block to the disk image.
 	 */
@@ -564,6 +884,21 @@ public class Disk {
 		return imageOrder.readSector(track, sector);
 	}
 	
+	/**
+	 * Read the specified sector into the given buffer at offset.
+	 */
+	public void readSectorInto(int track, int sector, byte[] buffer, int offset) 
+			throws IllegalArgumentException {
+		imageOrder.readSectorInto(track, sector, buffer, offset);
+	}
+	
+	/**
+	 * Answer with a read-only view of the specified sector.
+	 */
+	public ByteBuffer readSectorBuffer(int track, int sector) throws IllegalArgumentException {
+		return imageOrder.readSectorBuffer(track, sector);
+	}
+	
 	/**
 	 * Write the specified sector.
 	 */
@@ -577,7 +912,11 @@ public class Disk {
 	 * disk.
 	 */
 	public boolean isProdosFormat() {
-		byte[] prodosVolumeDirectory = readBlock(2);
+		return getFormatSignatures().contains(FormatSignature.PRODOS);
+	}
+
+	private boolean probeProdosFormat(ProbeReader reader) {
+		byte[] prodosVolumeDirectory = reader.readBlock(2);
 		int volDirEntryLength = prodosVolumeDirectory[0x23];
 		int volDirEntriesPerBlock = prodosVolumeDirectory[0x24];
 
@@ -593,12 +932,16 @@ public class Disk {
 	 * different characteristics.  This just tests 140KB images.
 	 */
 	public boolean isDosFormat() {
+		return getFormatSignatures().contains(FormatSignature.DOS);
+	}
+
+	private boolean probeDosFormat(ProbeReader reader) {
 		boolean good = false;
 		if (!is140KbDisk()) {
 			return false;
 		}
 		try {
-			byte[] vtoc = readSector(17, 0);
+			byte[] vtoc = reader.readSector(17, 0);
 			good = (imageOrder.isSizeApprox(APPLE_140KB_DISK)
 					 || imageOrder.isSizeApprox(APPLE_140KB_NIBBLE_DISK))						 
 						&& vtoc[0x01] == 17		// expect catalog to start on track 17
@@ -610,12 +953,12 @@ public class Disk {
 			if (good) {
 				int catTrack = vtoc[0x01]; // Pull out the first catalog track/sector
 				int catSect = vtoc[0x02];
-				byte[] cat = readSector(catTrack, catSect);
+				byte[] cat = reader.readSector(catTrack, catSect);
 				if (catTrack == cat[1] && catSect == cat[2] + 1) {
 					// Still good... let's follow one more
 					catTrack = cat[1];
 					catSect = cat[2];
-					cat = readSector(catTrack, catSect);
+					cat = reader.readSector(catTrack, catSect);
 					if (catTrack == cat[1] && catSect == cat[2] + 1) {
 						good = true;
 					} else {
@@ -640,9 +983,13 @@ public class Disk {
 	 * logical disk takes up the second 400KB.
 	 */
 	public boolean isUniDosFormat() {
+		return getFormatSignatures().contains(FormatSignature.UNIDOS);
+	}
+
+	private boolean probeUniDosFormat(ProbeReader reader) {
 		if (!is800KbDisk()) return false;
-		byte[] vtoc1 = readSector(17, 0);	// logical disk #1
-		byte[] vtoc2 = readSector(67, 0);	// logical disk #2
+		byte[] vtoc1 = reader.readSector(17, 0);	// logical disk #1
+		byte[] vtoc2 = reader.readSector(67, 0);	// logical disk #2
 		return
 			// LOGICAL DISK #1
 			vtoc1[0x01] == 17		// expect catalog to start on track 17
@@ -669,8 +1016,12 @@ public class Disk {
 	 * the second logical disk takes the second half of each block.
 	 */
 	public boolean isOzDosFormat() {
+		return getFormatSignatures().contains(FormatSignature.OZDOS);
+	}
+
+	private boolean probeOzDosFormat(ProbeReader reader) {
 		if (!is800KbDisk()) return false;
-		byte[] vtoc = readBlock(544);	// contains BOTH VTOCs!
+		byte[] vtoc = reader.readBlock(544);	// contains BOTH VTOCs!
 		return
 			// LOGICAL DISK #1
 			vtoc[0x001] == 17		// expect catalog to start on track 17
@@ -696,8 +1047,12 @@ public class Disk {
 	 * disk.  
 	 */
 	public boolean isNakedosFormat() {
+		return getFormatSignatures().contains(FormatSignature.NAKEDOS);
+	}
+
+	private boolean probeNakedosFormat(ProbeReader reader) {
 		if (!is140KbDisk()) return false;
-		byte[] vtoc = readSector(0, 3); // VTOC starts on sector 9 (mapped to 3)
+		byte[] vtoc = reader.readSector(0, 3); // VTOC starts on sector 9 (mapped to 3)
 		return (imageOrder.isSizeApprox(APPLE_140KB_DISK)
 				 || imageOrder.isSizeApprox(APPLE_140KB_NIBBLE_DISK))						 
 			&& vtoc[0xd0] == -2		// expect DOS as reserved
@@ -721,8 +1076,12 @@ public class Disk {
 	 * disk. Pascal disks may be either 140K or 800K.
 	 */
 	public boolean isPascalFormat() {
+		return getFormatSignatures().contains(FormatSignature.PASCAL);
+	}
+
+	private boolean probePascalFormat(ProbeReader reader) {
 		if (!(is140KbDisk() || is800KbDisk())) return false;
-		byte[] directory = readBlock(2);
+		byte[] directory = reader.readBlock(2);
 		return directory[0] == 0 && directory[1] == 0
 			&& directory[2] == 6 && directory[3] == 0
 			&& directory[4] == 0 && directory[5] == 0;
@@ -733,8 +1092,12 @@ public class Disk {
 	 * Check the first 256 bytes of the CP/M directory for validity.
 	 */
 	public boolean isCpmFormat() {
+		return getFormatSignatures().contains(FormatSignature.CPM);
+	}
+
+	private boolean probeCpmFormat(ProbeReader reader) {
 		if (!is140KbDisk()) return false;
-		byte[] directory = readSector(3, 0);
+		byte[] directory = reader.readSector(3, 0);
 		int bytes[] = new int[256];
 		for (int i=0; i<directory.length; i++) {
 			bytes[i] = AppleUtil.getUnsignedByte(directory[i]);
@@ -788,8 +1151,12 @@ public class Disk {
 	 * disk.
 	 */
 	public boolean isRdosFormat() {
+		return getFormatSignatures().contains(FormatSignature.RDOS);
+	}
+
+	private boolean probeRdosFormat(ProbeReader reader) {
 		if (!is140KbDisk()) return false;
-		byte[] block = readSector(0, 0x0d);
+		byte[] block = reader.readSector(0, 0x0d);
 		String id = AppleUtil.getString(block, 0xe0, 4);
 		return "RDOS".equals(id); //$NON-NLS-1$
 	}
@@ -799,8 +1166,12 @@ public class Disk {
 	 * disk.
 	 */
 	public boolean isWPFormat() {
+		return getFormatSignatures().contains(FormatSignature.WP);
+	}
+
+	private boolean probeWPFormat(ProbeReader reader) {
 		if (!is140KbDisk()) return false;
-		byte[] vtoc = readSector(17, 7);
+		byte[] vtoc = reader.readSector(17, 7);
 		return (imageOrder.isSizeApprox(APPLE_140KB_DISK)
 				 || imageOrder.isSizeApprox(APPLE_140KB_NIBBLE_DISK))						 
 			&& vtoc[0x00] == 17		// expect catalog to start on track 17
@@ -947,4 +1318,37 @@ public class Disk {
 		return sourceOrder.getSectorsPerDisk() == targetOrder.getSectorsPerDisk();
 	}
 
+
+	/**
+	 * Reads blocks and sectors for a single probe pass, so that each one is
+	 * read from the image only once regardless of how many probes use it.
+	 */
+	private class ProbeReader {
+		private Map<Integer,byte[]> blocks = new HashMap<>();
+		private Map<Integer,byte[]> sectors = new HashMap<>();
+
+		public byte[] readBlock(int block) {
+			return blocks.computeIfAbsent(block, imageOrder::readBlock);
+		}
+		public byte[] readSector(int track, int sector) {
+			return sectors.computeIfAbsent(track << 8 | sector, 
+				key -> imageOrder.readSector(track, sector));
+		}
+	}
+
+	/**
+	 * The probe results for one image order, along with the state of the
+	 * image when they were computed.
+	 */
+	private static class ProbeResult {
+		private ByteArrayImageLayout layout;
+		private long modificationCount;
+		private Set<FormatSignature> signatures;
+
+		public ProbeResult(ByteArrayImageLayout layout, Set<FormatSignature> signatures) {
+			this.layout = layout;
+			this.modificationCount = layout.getModificationCount();
+			this.signatures = signatures;
+		}
+	}
 }
@@ -0,0 +1,129 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads file data from a disk one block (or sector) at a time, as it is
+ * needed.  Only the current block is held in memory, so reading a large
+ * file takes a constant amount of memory.
+ * <p>
+ * Subclasses supply the blocks of the file in order.  As with getFileData,
+ * missing blocks (sparse files, or a chain that ends early) read as zeros
+ * and the stream always answers with exactly the given number of bytes.
+ */
+public abstract class FileDataInputStream extends InputStream {
+	private final byte[] buffer;
+	/** Next byte of buffer to answer with. */
+	private int position;
+	/** Bytes of the file which have not yet been answered with. */
+	private long remaining;
+	/** Set once readNextBlock indicates there is nothing more to read. */
+	private boolean endOfChain;
+
+	/**
+	 * Create a stream of length bytes which reads blockSize bytes from
+	 * the disk at a time.
+	 */
+	protected FileDataInputStream(int blockSize, long length) {
+		this.buffer = new byte[blockSize];
+		this.position = blockSize;
+		this.remaining = length;
+	}
+
+	/**
+	 * Read the next block of the file into the (zero filled) buffer.  Leave
+	 * the buffer as is for a sparse block.  Answers false when the file has
+	 * no more blocks.
+	 */
+	protected abstract boolean readNextBlock(byte[] buffer) throws IOException;
+
+	/**
+	 * Read a single byte.
+	 */
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		remaining--;
+		return buffer[position++] & 0xff;
+	}
+
+	/**
+	 * Read up to len bytes into b.
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int total = 0;
+		while (total < len && fill()) {
+			int count = (int) Math.min(Math.min(len - total, buffer.length - position), remaining);
+			System.arraycopy(buffer, position, b, off + total, count);
+			position+= count;
+			remaining-= count;
+			total+= count;
+		}
+		return (total == 0) ? -1 : total;
+	}
+
+	/**
+	 * Skip over n bytes.  Blocks which are skipped entirely are still
+	 * located but their contents are not copied out.
+	 */
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n && fill()) {
+			int count = (int) Math.min(Math.min(n - skipped, buffer.length - position), remaining);
+			position+= count;
+			remaining-= count;
+			skipped+= count;
+		}
+		return skipped;
+	}
+
+	/**
+	 * Answer with the number of bytes which can be read without going to
+	 * the disk.
+	 */
+	public int available() {
+		return (int) Math.min(buffer.length - position, remaining);
+	}
+
+	/**
+	 * Ensure there is data in the buffer.  Answers false at the end of the file.
+	 */
+	private boolean fill() throws IOException {
+		if (remaining <= 0) {
+			return false;
+		}
+		if (position >= buffer.length) {
+			Arrays.fill(buffer, (byte) 0);
+			if (!endOfChain) {
+				endOfChain = !readNextBlock(buffer);
+			}
+			position = 0;
+		}
+		return true;
+	}
+}
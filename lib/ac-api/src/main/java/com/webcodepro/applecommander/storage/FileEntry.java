@@ -19,6 +19,10 @@
  */
 package com.webcodepro.applecommander.storage;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 
 /**
@@ -92,6 +96,24 @@ public interface FileEntry {
 	 * and length into Applesoft files.
 	 */
 	public byte[] getFileData();
+
+	/**
+	 * Open a stream over the same data answered by getFileData.  Formats
+	 * which support it read the file from the disk as the stream is read
+	 * rather than loading all of it at once.
+	 */
+	public default InputStream openInputStream() throws IOException {
+		return new ByteArrayInputStream(getFileData());
+	}
+
+	/**
+	 * Open a stream which replaces the file data, as setFileData does.  The
+	 * file is written when the stream is closed.  Formats which support it
+	 * write the data to the disk as it arrives rather than collecting it.
+	 */
+	public default OutputStream openOutputStream() throws IOException {
+		return getFormattedDisk().openOutputStream(this);
+	}
 	
 	/**
 	 * Set file data.  This, essentially, is saving data to disk using this
@@ -19,12 +19,21 @@
  */
 package com.webcodepro.applecommander.storage;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
 import com.webcodepro.applecommander.storage.physical.ImageOrder;
 import com.webcodepro.applecommander.util.TextBundle;
 
@@ -36,6 +45,16 @@ import com.webcodepro.applecommander.util.TextBundle;
  */
 public abstract class FormattedDisk extends Disk implements DirectoryEntry {
 	private TextBundle textBundle = StorageBundle.getInstance();
+	private AllocationPolicy allocationPolicy = AllocationPolicy.FIRST_FIT;
+	private Map<Object,Map<String,FileEntry>> fileIndex = new HashMap<>();
+	/** Directory key of each indexed entry, by getEntryLocation. */
+	private Map<Object,Object> entryDirectories = new HashMap<>();
+	/** The image as of the file index; any other change discards the index. */
+	private ByteArrayImageLayout fileIndexLayout;
+	private long fileIndexModificationCount;
+	private long fileIndexHits;
+	private long fileIndexMisses;
+	private boolean batchActive;
 	/**
 	 * Use this inner class for label/value mappings in the disk info page.
 	 */
@@ -267,39 +286,273 @@ public abstract class FormattedDisk extends Disk implements DirectoryEntry {
 	 * @see FileEntry#getFileData()
 	 */
 	public abstract byte[] getFileData(FileEntry fileEntry);
+
+	/**
+	 * Open a stream over the data associated with the specified FileEntry.
+	 * This answers with the same bytes as getFileData; formats override it
+	 * to read the file as the stream is consumed.
+	 */
+	public InputStream openInputStream(FileEntry fileEntry) throws IOException {
+		return new ByteArrayInputStream(getFileData(fileEntry));
+	}
+
+	/**
+	 * Open a stream which replaces the data associated with the specified
+	 * FileEntry, as FileEntry.setFileData does.  This collects the data in
+	 * memory and writes it when the stream is closed; formats override it
+	 * to write the file as the data arrives.
+	 */
+	public OutputStream openOutputStream(final FileEntry fileEntry) throws IOException {
+		return new ByteArrayOutputStream() {
+			private boolean closed;
+
+			@Override
+			public void close() throws IOException {
+				if (closed) return;
+				closed = true;
+				try {
+					fileEntry.setFileData(toByteArray());
+				} catch (DiskFullException ex) {
+					throw new IOException(ex.getMessage(), ex);
+				}
+			}
+		};
+	}
 	
 	/**
 	 * Locate a specific file by filename.
 	 * Returns a null if specific filename is not located.
+	 * The volume directory is searched first and then each subdirectory,
+	 * in directory order, using the file index.  Deleted files are not
+	 * located.
+	 * <p>
+	 * Before the file index, this was a depth-first walk which answered
+	 * the first match in walk order (possibly inside a subdirectory that
+	 * precedes a match in the volume directory) and could answer a deleted
+	 * file.  Now each directory is checked before any of its subdirectories
+	 * are searched, so a match in a directory wins over one below it.
 	 */
 	public FileEntry getFile(String filename) throws DiskException {
-		List<FileEntry> files = getFiles();
-		return getFile(files, filename.trim());
+		return findFile(this, filename);
 	}
-	
+
+	/**
+	 * Recursive routine to locate a file by filename in the given
+	 * directory or any of its subdirectories.
+	 */
+	protected FileEntry findFile(DirectoryEntry directory, String filename) throws DiskException {
+		FileEntry fileEntry = getFile(directory, filename);
+		if (fileEntry == null) {
+			for (FileEntry entry : getDirectoryIndex(directory).values()) {
+				if (entry.isDirectory() && !entry.isDeleted()) {
+					fileEntry = findFile((DirectoryEntry) entry, filename);
+					if (fileEntry != null) break;
+				}
+			}
+		}
+		return fileEntry;
+	}
+
+	/**
+	 * Locate a file by filename in the given directory (which may be this
+	 * disk for the volume directory).  Filenames are compared as folded by
+	 * foldFilename.  Returns null if the file is not present or has been
+	 * deleted.
+	 * <p>
+	 * Lookups are answered from a per-directory index which is built the
+	 * first time a directory is searched and maintained as files are named,
+	 * renamed and deleted.  An indexed entry is checked against the disk
+	 * before it is returned; if the disk was changed behind the index, the
+	 * directory is scanned again.  Writes made other than through this
+	 * disk (such as through another FormattedDisk over the same image)
+	 * discard the index.
+	 */
+	public FileEntry getFile(DirectoryEntry directory, String filename) throws DiskException {
+		validateFileIndex();
+		String key = foldFilename(filename);
+		Map<String,FileEntry> index = fileIndex.get(getDirectoryKey(directory));
+		if (index != null) {
+			FileEntry fileEntry = index.get(key);
+			if (fileEntry == null || key.equals(foldFilename(fileEntry.getFilename()))) {
+				fileIndexHits++;
+				return fileEntry == null || fileEntry.isDeleted() ? null : fileEntry;
+			}
+		}
+		fileIndexMisses++;
+		FileEntry fileEntry = buildDirectoryIndex(directory).get(key);
+		return fileEntry == null || fileEntry.isDeleted() ? null : fileEntry;
+	}
+
+	/**
+	 * Answer with the index for the given directory, building it if needed.
+	 */
+	private Map<String,FileEntry> getDirectoryIndex(DirectoryEntry directory) throws DiskException {
+		validateFileIndex();
+		Map<String,FileEntry> index = fileIndex.get(getDirectoryKey(directory));
+		return index != null ? index : buildDirectoryIndex(directory);
+	}
+
 	/**
-	 * Recursive routine to locate a specific file by filename.
-	 * Note that in the instance of a system with directories (ie, ProDOS),
-	 * this really returns the first file with the given filename.
+	 * Scan the given directory and (re)build its index.  When a name
+	 * appears more than once, the first file that is not deleted wins.
 	 */
-	protected FileEntry getFile(List<FileEntry> files, String filename) throws DiskException {
-		FileEntry theFileEntry = null;
+	private Map<String,FileEntry> buildDirectoryIndex(DirectoryEntry directory) throws DiskException {
+		Map<String,FileEntry> index = new LinkedHashMap<>();
+		Object directoryKey = getDirectoryKey(directory);
+		List<FileEntry> files = directory.getFiles();
 		if (files != null) {
-		    for (FileEntry entry : files) {
-				if (entry.isDirectory()) {
-					theFileEntry = getFile(
-						((DirectoryEntry)entry).getFiles(), filename);
-					if (theFileEntry != null) break;
+			for (FileEntry entry : files) {
+				Object location = getEntryLocation(entry);
+				if (location != null) {
+					entryDirectories.put(location, directoryKey);
 				}
-				String otherFilename = entry.getFilename();
-				if (otherFilename != null) otherFilename = otherFilename.trim();
-				if (filename.equalsIgnoreCase(otherFilename)) {
-					theFileEntry = entry;
-					break;
+				String key = foldFilename(entry.getFilename());
+				FileEntry existing = index.get(key);
+				if (existing == null || (existing.isDeleted() && !entry.isDeleted())) {
+					index.put(key, entry);
 				}
 			}
 		}
-		return theFileEntry;
+		fileIndex.put(directoryKey, index);
+		return index;
+	}
+
+	/**
+	 * Update the file index after a file has been named or renamed.  File
+	 * entry implementations call this once the new name has been written.
+	 * The old filename may be null when the entry had no previous name.
+	 * <p>
+	 * The directory is the one the entry was found in when it was indexed;
+	 * getParentKey (which may rely on what is recorded on disk) is only used
+	 * for entries that have not been indexed, such as new files.
+	 */
+	public void updateFileIndex(FileEntry fileEntry, String oldFilename) {
+		validateFileIndex();
+		Object location = getEntryLocation(fileEntry);
+		Object directoryKey = (location == null) ? null : entryDirectories.get(location);
+		if (directoryKey == null) {
+			directoryKey = getParentKey(fileEntry);
+		}
+		Map<String,FileEntry> index = fileIndex.get(directoryKey);
+		if (index == null) {
+			return;	// directory has not been indexed yet
+		}
+		if (location != null) {
+			entryDirectories.put(location, directoryKey);
+		}
+		String key = foldFilename(fileEntry.getFilename());
+		if (oldFilename != null) {
+			String oldKey = foldFilename(oldFilename);
+			FileEntry existing = index.get(oldKey);
+			if (!oldKey.equals(key) && existing != null
+					&& (existing == fileEntry || !oldKey.equals(foldFilename(existing.getFilename())))) {
+				index.remove(oldKey);
+			}
+		}
+		FileEntry existing = index.get(key);
+		if (existing == null || existing.isDeleted() || !key.equals(foldFilename(existing.getFilename()))) {
+			index.put(key, fileEntry);
+		}
+	}
+
+	/**
+	 * Discard the file index if the disk image was replaced or written other
+	 * than through this disk since the index was last known to be current.
+	 */
+	private void validateFileIndex() {
+		ByteArrayImageLayout layout = getDiskImageManager();
+		if (fileIndexLayout != layout || fileIndexModificationCount != layout.getModificationCount()) {
+			invalidateFileIndex();
+			fileIndexLayout = layout;
+			fileIndexModificationCount = layout.getModificationCount();
+		}
+	}
+
+	/**
+	 * Write the block to the disk image.  A current file index remains
+	 * current, as entries update the index when they change.
+	 */
+	@Override
+	public void writeBlock(int block, byte[] data) {
+		boolean current = isFileIndexCurrent();
+		super.writeBlock(block, data);
+		if (current) fileIndexModificationCount = fileIndexLayout.getModificationCount();
+	}
+
+	/**
+	 * Write the specified sector.  A current file index remains current, as
+	 * entries update the index when they change.
+	 */
+	@Override
+	public void writeSector(int track, int sector, byte[] bytes) throws IllegalArgumentException {
+		boolean current = isFileIndexCurrent();
+		super.writeSector(track, sector, bytes);
+		if (current) fileIndexModificationCount = fileIndexLayout.getModificationCount();
+	}
+
+	private boolean isFileIndexCurrent() {
+		ByteArrayImageLayout layout = getDiskImageManager();
+		return layout != null && fileIndexLayout == layout 
+				&& fileIndexModificationCount == layout.getModificationCount();
+	}
+
+	/**
+	 * Discard the file index.  Formats call this when a change moves
+	 * directory entries around, such that indexed entries may no longer
+	 * refer to the correct file.
+	 */
+	public void invalidateFileIndex() {
+		fileIndex.clear();
+		entryDirectories.clear();
+	}
+
+	/**
+	 * Answer with the number of lookups answered from the file index.
+	 */
+	public long getFileIndexHits() {
+		return fileIndexHits;
+	}
+
+	/**
+	 * Answer with the number of lookups which required a directory scan.
+	 */
+	public long getFileIndexMisses() {
+		return fileIndexMisses;
+	}
+
+	/**
+	 * Fold a filename for comparison.  The default compares names without
+	 * regard to case or surrounding spaces, which suits all of the Apple II
+	 * operating systems that are supported.
+	 */
+	protected String foldFilename(String filename) {
+		return filename == null ? "" : filename.trim().toUpperCase(Locale.ROOT); //$NON-NLS-1$
+	}
+
+	/**
+	 * Answer with a key which identifies the given directory within the
+	 * file index.  The default assumes this disk has a single directory.
+	 */
+	protected Object getDirectoryKey(DirectoryEntry directory) {
+		return directory;
+	}
+
+	/**
+	 * Answer with the key of the directory which contains the given file.
+	 * This must match getDirectoryKey for that directory.
+	 */
+	protected Object getParentKey(FileEntry fileEntry) {
+		return this;
+	}
+
+	/**
+	 * Answer with a key for where the given entry is stored, which is the
+	 * same for every FileEntry object that refers to that entry.  Formats
+	 * with subdirectories use this to remember which directory an entry was
+	 * found in.  The default answers null, as one directory needs no record.
+	 */
+	protected Object getEntryLocation(FileEntry fileEntry) {
+		return null;
 	}
 	
 	/**
@@ -404,4 +657,131 @@ public abstract class FormattedDisk extends Disk implements DirectoryEntry {
 	 * Gives an indication on how this disk's geometry should be handled.
 	 */
 	public abstract DiskGeometry getDiskGeometry();
+
+	/**
+	 * Answer with the policy used to choose blocks (or sectors) when file
+	 * data is written.
+	 */
+	public AllocationPolicy getAllocationPolicy() {
+		return allocationPolicy;
+	}
+
+	/**
+	 * Set the policy used to choose blocks (or sectors) when file data is
+	 * written.  Formats which do not support a policy ignore it.
+	 */
+	public void setAllocationPolicy(AllocationPolicy allocationPolicy) {
+		if (allocationPolicy == null) {
+			throw new IllegalArgumentException("Allocation policy must not be null"); //$NON-NLS-1$
+		}
+		this.allocationPolicy = allocationPolicy;
+	}
+
+	/**
+	 * Answer with the number of contiguous runs of blocks (or sectors) the
+	 * file occupies, including any index blocks or track/sector lists.  A
+	 * fully contiguous file has one extent.  Answers -1 when this is not
+	 * known for this format.
+	 */
+	public int getExtentCount(FileEntry fileEntry) {
+		return -1;
+	}
+
+	/**
+	 * Count the runs of consecutive set bits, where each bit represents
+	 * a block (or linear sector number) in use by a file.
+	 */
+	protected static int countExtents(BitSet units) {
+		int extents = 0;
+		int unit = units.nextSetBit(0);
+		while (unit >= 0) {
+			extents++;
+			unit = units.nextSetBit(units.nextClearBit(unit));
+		}
+		return extents;
+	}
+
+	/**
+	 * Begin a batch of changes, such as importing many files.  While the
+	 * batch is active, formats may hold allocation metadata (the DOS VTOC
+	 * or the ProDOS volume bitmap) and where free directory entries were
+	 * last found in memory rather than writing and re-reading them for
+	 * every file.  Everything written during the batch is journaled.
+	 * <p>
+	 * The batch must be ended with commit, which writes the held metadata,
+	 * or rollback, which restores the disk image to its state when the batch
+	 * began.  The usual pattern is to roll back on DiskFullException:
+	 * <pre>
+	 * disk.beginBatch();
+	 * try {
+	 *     // createFile, setFilename, setFileData, ...
+	 *     disk.commit();
+	 * } catch (DiskFullException ex) {
+	 *     disk.rollback();
+	 *     throw ex;
+	 * }
+	 * </pre>
+	 * Other FormattedDisk instances over the same image do not see the
+	 * held metadata until the batch is committed.
+	 */
+	public void beginBatch() {
+		if (batchActive) {
+			throw new IllegalStateException("A batch is already active"); //$NON-NLS-1$
+		}
+		getDiskImageManager().beginJournal();
+		batchActive = true;
+	}
+
+	/**
+	 * Indicates if a batch of changes is active.
+	 */
+	public boolean isBatchActive() {
+		return batchActive;
+	}
+
+	/**
+	 * Write any metadata held by the batch and end it.
+	 */
+	public void commit() {
+		if (!batchActive) {
+			throw new IllegalStateException("No batch is active"); //$NON-NLS-1$
+		}
+		batchActive = false;
+		flushBatch();
+		getDiskImageManager().endJournal();
+	}
+
+	/**
+	 * Discard the batch, restoring the disk image to its state when the
+	 * batch began.  Any FileEntry obtained during the batch is no longer
+	 * valid.
+	 */
+	public void rollback() {
+		if (!batchActive) {
+			throw new IllegalStateException("No batch is active"); //$NON-NLS-1$
+		}
+		batchActive = false;
+		discardBatch();
+		ByteArrayImageLayout layout = getDiskImageManager();
+		layout.rollbackJournal();
+		// let the image order discard anything it derived from the image
+		getImageOrder().setDiskImageManager(layout);
+		invalidateFileIndex();
+	}
+
+	/**
+	 * Write the metadata held during a batch to the disk image.  Called by
+	 * commit once the batch is no longer active.
+	 */
+	protected void flushBatch() {
+		// nothing is held by default
+	}
+
+	/**
+	 * Forget the metadata held during a batch.  Called by rollback before
+	 * the disk image is restored.
+	 */
+	protected void discardBatch() {
+		// nothing is held by default
+	}
 }
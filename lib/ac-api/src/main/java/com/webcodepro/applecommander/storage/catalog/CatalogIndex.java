@@ -0,0 +1,401 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.catalog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A catalog of many disk images: the format and volumes of each image along
+ * with the name, type, size and content hash of every file.  The catalog is
+ * saved as a compact binary file so that the images themselves only need to
+ * be opened again when they change (see CatalogIndexer).
+ * <p>
+ * Lookups by filename and by content hash are answered from in-memory maps
+ * which are built on the first query.  A catalog is not thread-safe.
+ */
+public class CatalogIndex {
+	private static final int MAGIC = 0x41434358;	// "ACCX"
+	private static final int VERSION = 1;
+
+	private Map<String,ImageRecord> images = new TreeMap<>();
+	private Map<String,List<Match>> byName;
+	private Map<Long,List<Match>> byHash;
+
+	/**
+	 * Read a saved catalog.  Answers with an empty catalog if the file does
+	 * not exist.
+	 */
+	public static CatalogIndex read(File indexFile) throws IOException {
+		CatalogIndex index = new CatalogIndex();
+		if (!indexFile.isFile()) {
+			return index;
+		}
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(indexFile))))) {
+			if (input.readInt() != MAGIC) {
+				throw new IOException(String.format("'%s' is not a catalog index", indexFile));
+			}
+			if (input.readInt() != VERSION) {
+				throw new IOException(String.format("'%s' is an unsupported catalog index version", indexFile));
+			}
+			// Types and formats repeat endlessly; share one copy of each
+			Map<String,String> strings = new HashMap<>();
+			int imageCount = input.readInt();
+			for (int i=0; i<imageCount; i++) {
+				ImageRecord image = new ImageRecord(input.readUTF(), input.readLong(), 
+						input.readLong(), input.readInt());
+				image.order = intern(strings, input.readUTF());
+				String error = input.readUTF();
+				image.error = error.isEmpty() ? null : error;
+				int volumeCount = input.readInt();
+				for (int v=0; v<volumeCount; v++) {
+					VolumeRecord volume = new VolumeRecord(input.readUTF(), intern(strings, input.readUTF()), 
+							input.readInt(), input.readInt(), input.readInt());
+					int fileCount = input.readInt();
+					for (int f=0; f<fileCount; f++) {
+						volume.files.add(new FileRecord(input.readUTF(), intern(strings, input.readUTF()), 
+								input.readInt(), input.readLong(), input.readByte()));
+					}
+					image.volumes.add(volume);
+				}
+				index.images.put(image.path, image);
+			}
+		}
+		return index;
+	}
+	private static String intern(Map<String,String> strings, String s) {
+		return strings.computeIfAbsent(s, k -> k);
+	}
+
+	/**
+	 * Save this catalog.  The file is replaced only once it has been
+	 * completely written.
+	 */
+	public void write(File indexFile) throws IOException {
+		File parent = indexFile.getAbsoluteFile().getParentFile();
+		File tempFile = File.createTempFile(indexFile.getName(), ".tmp", parent);
+		try {
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+					new GZIPOutputStream(new FileOutputStream(tempFile))))) {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				output.writeInt(images.size());
+				for (ImageRecord image : images.values()) {
+					output.writeUTF(image.path);
+					output.writeLong(image.size);
+					output.writeLong(image.lastModified);
+					output.writeInt(image.headerHash);
+					output.writeUTF(image.order);
+					output.writeUTF(image.error == null ? "" : image.error);
+					output.writeInt(image.volumes.size());
+					for (VolumeRecord volume : image.volumes) {
+						output.writeUTF(volume.diskName);
+						output.writeUTF(volume.format);
+						output.writeInt(volume.logicalDiskNumber);
+						output.writeInt(volume.freeSpace);
+						output.writeInt(volume.usedSpace);
+						output.writeInt(volume.files.size());
+						for (FileRecord file : volume.files) {
+							output.writeUTF(file.path);
+							output.writeUTF(file.filetype);
+							output.writeInt(file.size);
+							output.writeLong(file.hash);
+							output.writeByte(file.flags);
+						}
+					}
+				}
+			}
+			Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Answer with every image in the catalog, ordered by path.
+	 */
+	public Collection<ImageRecord> getImages() {
+		return Collections.unmodifiableCollection(images.values());
+	}
+
+	/**
+	 * Answer with the image recorded for the given path, or null.
+	 */
+	public ImageRecord getImage(String path) {
+		return images.get(path);
+	}
+
+	/**
+	 * Add or replace an image.
+	 */
+	public void put(ImageRecord image) {
+		images.put(image.path, image);
+		clearLookups();
+	}
+
+	/**
+	 * Remove an image; answers true if it was in the catalog.
+	 */
+	public boolean remove(String path) {
+		clearLookups();
+		return images.remove(path) != null;
+	}
+
+	/**
+	 * Answer with every file with the given name (not path), ignoring case.
+	 */
+	public List<Match> findByName(String filename) {
+		buildLookups();
+		return byName.getOrDefault(foldFilename(filename), Collections.emptyList());
+	}
+
+	/**
+	 * Answer with every file with the given content hash.
+	 */
+	public List<Match> findByHash(long hash) {
+		buildLookups();
+		return byHash.getOrDefault(hash, Collections.emptyList());
+	}
+
+	/**
+	 * Answer with every file with the given name and content hash.
+	 */
+	public List<Match> find(String filename, long hash) {
+		List<Match> matches = new ArrayList<>();
+		for (Match match : findByName(filename)) {
+			if (match.getFile().getHash() == hash) {
+				matches.add(match);
+			}
+		}
+		return matches;
+	}
+
+	private void clearLookups() {
+		byName = null;
+		byHash = null;
+	}
+	private void buildLookups() {
+		if (byName != null) {
+			return;
+		}
+		Map<String,List<Match>> names = new HashMap<>();
+		Map<Long,List<Match>> hashes = new HashMap<>();
+		for (ImageRecord image : images.values()) {
+			for (VolumeRecord volume : image.volumes) {
+				for (FileRecord file : volume.files) {
+					Match match = new Match(image, volume, file);
+					names.computeIfAbsent(foldFilename(file.getFilename()), k -> new ArrayList<>()).add(match);
+					if (!file.isDirectory()) {
+						hashes.computeIfAbsent(file.hash, k -> new ArrayList<>()).add(match);
+					}
+				}
+			}
+		}
+		byName = names;
+		byHash = hashes;
+	}
+	private static String foldFilename(String filename) {
+		return filename.trim().toUpperCase(Locale.ROOT);
+	}
+
+	/**
+	 * A disk image as it was when it was indexed.
+	 */
+	public static class ImageRecord {
+		private String path;
+		private long size;
+		private long lastModified;
+		private int headerHash;
+		private String order = "";
+		private String error;
+		private List<VolumeRecord> volumes = new ArrayList<>();
+
+		public ImageRecord(String path, long size, long lastModified, int headerHash) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.headerHash = headerHash;
+		}
+		/** Absolute path to the image on the host. */
+		public String getPath() {
+			return path;
+		}
+		/** Size of the image file on the host. */
+		public long getSize() {
+			return size;
+		}
+		/** Modification time of the image file on the host, in milliseconds. */
+		public long getLastModified() {
+			return lastModified;
+		}
+		/** Hash of the start of the image file. */
+		public int getHeaderHash() {
+			return headerHash;
+		}
+		/** Sector ordering of the image. */
+		public String getOrder() {
+			return order;
+		}
+		public void setOrder(String order) {
+			this.order = order;
+		}
+		/** Why the image could not be read, or null. */
+		public String getError() {
+			return error;
+		}
+		public void setError(String error) {
+			this.error = error;
+		}
+		public List<VolumeRecord> getVolumes() {
+			return volumes;
+		}
+		/** Answers true if the image file appears to be unchanged. */
+		public boolean isSameFile(long size, long lastModified, int headerHash) {
+			return this.size == size && this.lastModified == lastModified && this.headerHash == headerHash;
+		}
+	}
+
+	/**
+	 * One formatted disk within an image.
+	 */
+	public static class VolumeRecord {
+		private String diskName;
+		private String format;
+		private int logicalDiskNumber;
+		private int freeSpace;
+		private int usedSpace;
+		private List<FileRecord> files = new ArrayList<>();
+
+		public VolumeRecord(String diskName, String format, int logicalDiskNumber, int freeSpace, int usedSpace) {
+			this.diskName = diskName;
+			this.format = format;
+			this.logicalDiskNumber = logicalDiskNumber;
+			this.freeSpace = freeSpace;
+			this.usedSpace = usedSpace;
+		}
+		public String getDiskName() {
+			return diskName;
+		}
+		public String getFormat() {
+			return format;
+		}
+		public int getLogicalDiskNumber() {
+			return logicalDiskNumber;
+		}
+		public int getFreeSpace() {
+			return freeSpace;
+		}
+		public int getUsedSpace() {
+			return usedSpace;
+		}
+		public List<FileRecord> getFiles() {
+			return files;
+		}
+	}
+
+	/**
+	 * One file (or directory) within a volume.
+	 */
+	public static class FileRecord {
+		public static final int DIRECTORY = 0x01;
+		public static final int LOCKED = 0x02;
+
+		private String path;
+		private String filetype;
+		private int size;
+		private long hash;
+		private int flags;
+
+		public FileRecord(String path, String filetype, int size, long hash, int flags) {
+			this.path = path;
+			this.filetype = filetype;
+			this.size = size;
+			this.hash = hash;
+			this.flags = flags;
+		}
+		/** Full path of the file within the volume. */
+		public String getPath() {
+			return path;
+		}
+		/** The last component of the path. */
+		public String getFilename() {
+			return path.substring(path.lastIndexOf('/') + 1);
+		}
+		public String getFiletype() {
+			return filetype;
+		}
+		public int getSize() {
+			return size;
+		}
+		/** Content hash, as computed by CatalogIndexer.hash. */
+		public long getHash() {
+			return hash;
+		}
+		public boolean isDirectory() {
+			return (flags & DIRECTORY) != 0;
+		}
+		public boolean isLocked() {
+			return (flags & LOCKED) != 0;
+		}
+	}
+
+	/**
+	 * A file found by a query, along with where it is.
+	 */
+	public static class Match {
+		private ImageRecord image;
+		private VolumeRecord volume;
+		private FileRecord file;
+
+		public Match(ImageRecord image, VolumeRecord volume, FileRecord file) {
+			this.image = image;
+			this.volume = volume;
+			this.file = file;
+		}
+		public ImageRecord getImage() {
+			return image;
+		}
+		public VolumeRecord getVolume() {
+			return volume;
+		}
+		public FileRecord getFile() {
+			return file;
+		}
+	}
+}
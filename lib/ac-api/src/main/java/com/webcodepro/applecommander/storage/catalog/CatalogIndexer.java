@@ -0,0 +1,425 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.catalog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FormattedDisk;
+import com.webcodepro.applecommander.storage.catalog.CatalogIndex.FileRecord;
+import com.webcodepro.applecommander.storage.catalog.CatalogIndex.ImageRecord;
+import com.webcodepro.applecommander.storage.catalog.CatalogIndex.VolumeRecord;
+import com.webcodepro.applecommander.storage.catalog.TextIndex.Document;
+import com.webcodepro.applecommander.util.filestreamer.FileStreamer;
+import com.webcodepro.applecommander.util.filestreamer.FileTuple;
+
+/**
+ * Bring a CatalogIndex up to date with the disk images in a host directory tree.
+ * <p>
+ * Images are indexed in parallel.  An image which is already in the catalog with
+ * the same size, modification time and header hash is not opened again.  Images
+ * under the directory which no longer exist are dropped from the catalog.
+ * <p>
+ * When a TextIndex is given, it is maintained in the same pass: the text of each
+ * image which is read is broken into trigrams by the same parallel workers, and
+ * an image is only skipped when both indexes already have it.
+ * <p>
+ * Sample usage:
+ * <pre>
+ * CatalogIndex index = CatalogIndex.read(indexFile);
+ * CatalogIndexer.create(index).threads(4).scan(Paths.get("images"));
+ * index.write(indexFile);
+ * </pre>
+ */
+public class CatalogIndexer {
+	private static final Logger LOG = Logger.getLogger(CatalogIndexer.class.getName());
+	/** Number of bytes at the start of an image which are hashed to detect a change. */
+	public static final int HEADER_SIZE = 4096;
+
+	public static CatalogIndexer create(CatalogIndex index) {
+		return new CatalogIndexer(index);
+	}
+
+	private CatalogIndex index;
+	private TextIndex textIndex;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	private CatalogIndexer(CatalogIndex index) {
+		this.index = Objects.requireNonNull(index);
+	}
+
+	/**
+	 * Number of images to index at once; defaults to the number of processors.
+	 */
+	public CatalogIndexer threads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is required");
+		}
+		this.threads = threads;
+		return this;
+	}
+
+	/**
+	 * Also maintain a text index of the images.
+	 */
+	public CatalogIndexer textIndex(TextIndex textIndex) {
+		this.textIndex = textIndex;
+		return this;
+	}
+
+	/**
+	 * Index every disk image under the directory.
+	 */
+	public Result scan(Path directory) throws IOException {
+		Path root = directory.toAbsolutePath().normalize();
+		List<Path> paths;
+		try (Stream<Path> stream = Files.walk(root)) {
+			paths = stream.filter(Files::isRegularFile)
+						  .filter(CatalogIndexer::isDiskImage)
+						  .collect(Collectors.toList());
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		List<Scanned> scanned;
+		try {
+			scanned = pool.submit(() -> paths.parallelStream()
+							.map(this::scanImage)
+							.collect(Collectors.toList()))
+						.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		} catch (ExecutionException ex) {
+			throw unwrap(ex);
+		} finally {
+			pool.shutdown();
+		}
+
+		Result result = new Result();
+		Set<String> found = new HashSet<>();
+		for (Scanned s : scanned) {
+			found.add(s.path);
+			if (s.image == null) {
+				result.unchanged++;
+				continue;
+			}
+			if (index.getImage(s.path) == null) {
+				result.added++;
+			} else {
+				result.updated++;
+			}
+			if (s.image.getError() != null) {
+				result.failed++;
+			}
+			index.put(s.image);
+			if (textIndex != null) {
+				textIndex.addImage(s.path, s.image.getSize(), s.image.getLastModified(), 
+						s.image.getHeaderHash(), s.documents);
+			}
+		}
+
+		List<String> removed = new ArrayList<>();
+		for (ImageRecord image : index.getImages()) {
+			if (Path.of(image.getPath()).startsWith(root) && !found.contains(image.getPath())) {
+				removed.add(image.getPath());
+			}
+		}
+		removed.forEach(index::remove);
+		result.removed = removed.size();
+		if (textIndex != null) {
+			List<String> removedText = new ArrayList<>();
+			for (String path : textIndex.getImagePaths()) {
+				if (Path.of(path).startsWith(root) && !found.contains(path)) {
+					removedText.add(path);
+				}
+			}
+			removedText.forEach(textIndex::removeImage);
+		}
+		return result;
+	}
+
+	/**
+	 * Check the candidates of a TextIndex search against the images, answering 
+	 * with those which really contain the text.  Images are read in parallel;
+	 * an image which can no longer be read has no matches.
+	 */
+	public List<Document> confirm(List<Document> candidates, String text) throws IOException {
+		Map<String,List<Document>> byImage = new LinkedHashMap<>();
+		for (Document document : candidates) {
+			byImage.computeIfAbsent(document.getImagePath(), k -> new ArrayList<>()).add(document);
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		Set<Document> confirmed;
+		try {
+			confirmed = pool.submit(() -> byImage.values().parallelStream()
+							.flatMap(documents -> confirmImage(documents, text).stream())
+							.collect(Collectors.toSet()))
+						.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		} catch (ExecutionException ex) {
+			throw unwrap(ex);
+		} finally {
+			pool.shutdown();
+		}
+		return candidates.stream()
+				.filter(confirmed::contains)
+				.collect(Collectors.toList());
+	}
+
+	private List<Document> confirmImage(List<Document> documents, String text) {
+		List<Document> confirmed = new ArrayList<>();
+		try {
+			FormattedDisk[] formattedDisks = new Disk(documents.get(0).getImagePath()).getFormattedDisks();
+			for (Document document : documents) {
+				if (document.getVolume() >= formattedDisks.length) {
+					continue;
+				}
+				List<FileTuple> tuples = FileStreamer.forFormattedDisks(formattedDisks[document.getVolume()])
+						.ignoreErrors(true)
+						.recursive(true)
+						.stream()
+						.filter(tuple -> document.getPath().equals(pathOf(tuple)))
+						.collect(Collectors.toList());
+				for (FileTuple tuple : tuples) {
+					byte[] content = TextIndex.extractText(tuple.fileEntry);
+					if (content != null && TextIndex.contains(content, text)) {
+						confirmed.add(document);
+						break;
+					}
+				}
+			}
+		} catch (IOException | DiskException | RuntimeException ex) {
+			LOG.fine(() -> String.format("Unable to confirm '%s': %s", documents.get(0).getImagePath(), ex));
+		}
+		return confirmed;
+	}
+
+	/**
+	 * Answers true if the file has one of the extensions Disk recognizes.
+	 */
+	public static boolean isDiskImage(Path path) {
+		String filename = path.getFileName().toString().toLowerCase(Locale.ROOT);
+		for (String extension : Disk.getAllExtensions()) {
+			if (filename.endsWith(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compute the content hash of a file, as recorded in the catalog.  This is
+	 * CRC-32C in the upper 32 bits and CRC-32 in the lower 32 bits; two unrelated
+	 * polynomials make collisions across a large library very unlikely.
+	 */
+	public static long hash(InputStream inputStream) throws IOException {
+		CRC32C crc32c = new CRC32C();
+		CRC32 crc32 = new CRC32();
+		byte[] buffer = new byte[8192];
+		int length;
+		while ((length = inputStream.read(buffer)) != -1) {
+			crc32c.update(buffer, 0, length);
+			crc32.update(buffer, 0, length);
+		}
+		return crc32c.getValue() << 32 | crc32.getValue();
+	}
+
+	/**
+	 * Answer with a new record for the image, or with just the path if the
+	 * catalog already has it.
+	 */
+	private Scanned scanImage(Path path) {
+		String name = path.toString();
+		try {
+			long size = Files.size(path);
+			long lastModified = Files.getLastModifiedTime(path).toMillis();
+			int headerHash = headerHash(path);
+			ImageRecord existing = index.getImage(name);
+			if (existing != null && existing.isSameFile(size, lastModified, headerHash)) {
+				if (textIndex == null || textIndex.isIndexed(name, size, lastModified, headerHash)) {
+					return new Scanned(name, null);
+				}
+			}
+			ImageRecord image = new ImageRecord(name, size, lastModified, headerHash);
+			Map<Document,int[]> documents = new LinkedHashMap<>();
+			try {
+				readImage(image, documents);
+			} catch (IOException | DiskException | RuntimeException ex) {
+				LOG.fine(() -> String.format("Unable to index '%s': %s", name, ex));
+				image.getVolumes().clear();
+				image.setError(ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage());
+				documents.clear();
+			}
+			return new Scanned(name, image, documents);
+		} catch (IOException ex) {
+			ImageRecord image = new ImageRecord(name, 0, 0, 0);
+			image.setError(ex.getMessage());
+			return new Scanned(name, image);
+		}
+	}
+
+	private void readImage(ImageRecord image, Map<Document,int[]> documents) throws IOException, DiskException {
+		Disk disk = new Disk(image.getPath());
+		image.setOrder(Objects.toString(disk.getOrderName(), ""));
+		for (FormattedDisk formattedDisk : disk.getFormattedDisks()) {
+			VolumeRecord volume = new VolumeRecord(Objects.toString(formattedDisk.getDiskName(), ""), 
+					formattedDisk.getFormat(),
+					formattedDisk.getLogicalDiskNumber(), formattedDisk.getFreeSpace(), 
+					formattedDisk.getUsedSpace());
+			List<FileTuple> tuples = FileStreamer.forFormattedDisks(formattedDisk)
+					.ignoreErrors(true)
+					.recursive(true)
+					.stream()
+					.collect(Collectors.toList());
+			for (FileTuple tuple : tuples) {
+				volume.getFiles().add(toFileRecord(tuple));
+				if (textIndex != null && !tuple.fileEntry.isDirectory()) {
+					addDocument(documents, image.getPath(), image.getVolumes().size(), tuple);
+				}
+			}
+			image.getVolumes().add(volume);
+		}
+	}
+
+	private void addDocument(Map<Document,int[]> documents, String imagePath, int volume, FileTuple tuple) {
+		byte[] text;
+		try {
+			text = TextIndex.extractText(tuple.fileEntry);
+		} catch (RuntimeException ex) {
+			// A damaged file should not cost the rest of the image its text
+			LOG.fine(() -> String.format("Unable to read text of '%s' in '%s': %s", 
+					tuple.fullPath(), imagePath, ex));
+			return;
+		}
+		if (text != null) {
+			int[] trigrams = TextIndex.trigrams(TextIndex.fold(text));
+			if (trigrams.length > 0) {
+				documents.put(new Document(imagePath, volume, pathOf(tuple)), trigrams);
+			}
+		}
+	}
+
+	/**
+	 * Path of a file within its volume, as recorded in both indexes.
+	 */
+	private static String pathOf(FileTuple tuple) {
+		return tuple.paths.isEmpty() ? tuple.fileEntry.getFilename() : tuple.fullPath();
+	}
+
+	private static RuntimeException unwrap(ExecutionException ex) throws IOException {
+		if (ex.getCause() instanceof RuntimeException) {
+			throw (RuntimeException) ex.getCause();
+		}
+		throw new IOException(ex.getCause());
+	}
+
+	private FileRecord toFileRecord(FileTuple tuple) throws IOException {
+		FileEntry fileEntry = tuple.fileEntry;
+		String path = pathOf(tuple);
+		int flags = (fileEntry.isDirectory() ? FileRecord.DIRECTORY : 0)
+				  | (fileEntry.isLocked() ? FileRecord.LOCKED : 0);
+		long hash = 0;
+		if (!fileEntry.isDirectory()) {
+			try (InputStream inputStream = fileEntry.openInputStream()) {
+				hash = hash(inputStream);
+			}
+		}
+		return new FileRecord(path, Objects.toString(fileEntry.getFiletype(), ""), fileEntry.getSize(), 
+				hash, flags);
+	}
+
+	private static int headerHash(Path path) throws IOException {
+		Checksum crc = new CRC32C();
+		try (InputStream inputStream = Files.newInputStream(path)) {
+			byte[] header = inputStream.readNBytes(HEADER_SIZE);
+			crc.update(header, 0, header.length);
+		}
+		return (int) crc.getValue();
+	}
+
+	private static class Scanned {
+		private final String path;
+		private final ImageRecord image;
+		private final Map<Document,int[]> documents;
+		private Scanned(String path, ImageRecord image) {
+			this(path, image, new LinkedHashMap<>());
+		}
+		private Scanned(String path, ImageRecord image, Map<Document,int[]> documents) {
+			this.path = path;
+			this.image = image;
+			this.documents = documents;
+		}
+	}
+
+	/**
+	 * Counts of what a scan did to the catalog.
+	 */
+	public static class Result {
+		private int added;
+		private int updated;
+		private int unchanged;
+		private int removed;
+		private int failed;
+
+		/** Images which were not in the catalog. */
+		public int getAdded() {
+			return added;
+		}
+		/** Images which had changed and were indexed again. */
+		public int getUpdated() {
+			return updated;
+		}
+		/** Images which were skipped as unchanged. */
+		public int getUnchanged() {
+			return unchanged;
+		}
+		/** Images which no longer exist. */
+		public int getRemoved() {
+			return removed;
+		}
+		/** Images (added or updated) which could not be read. */
+		public int getFailed() {
+			return failed;
+		}
+	}
+}
@@ -0,0 +1,449 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.catalog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FileFilter;
+import com.webcodepro.applecommander.storage.filters.AppleWorksWordProcessorFileFilter;
+import com.webcodepro.applecommander.storage.filters.ApplesoftFileFilter;
+import com.webcodepro.applecommander.storage.filters.AssemblySourceFileFilter;
+import com.webcodepro.applecommander.storage.filters.BusinessBASICFileFilter;
+import com.webcodepro.applecommander.storage.filters.IntegerBasicFileFilter;
+import com.webcodepro.applecommander.storage.filters.PascalTextFileFilter;
+import com.webcodepro.applecommander.storage.filters.TextFileFilter;
+import com.webcodepro.applecommander.util.BytePattern;
+
+/**
+ * An inverted index of the text in many disk images.  Text files, BASIC 
+ * listings, assembly source and AppleWorks word processor documents are 
+ * reduced to their text (see extractText), and every three-character sequence 
+ * (trigram) of that text maps to the documents which contain it.  Text is folded 
+ * to 7-bit upper case, so searches ignore case and the high bit.
+ * <p>
+ * A search intersects the documents of each trigram in the query.  A document 
+ * which contains every trigram usually contains the query, but not always; 
+ * CatalogIndexer.confirm checks the candidates against the images.
+ * <p>
+ * The index is maintained by CatalogIndexer along with a CatalogIndex.  It is 
+ * not thread-safe.
+ */
+public class TextIndex {
+	private static final int MAGIC = 0x41435458;	// "ACTX"
+	private static final int VERSION = 1;
+	private static final List<Class<? extends FileFilter>> TEXT_FILTERS = Arrays.asList(
+			TextFileFilter.class, PascalTextFileFilter.class, AssemblySourceFileFilter.class,
+			ApplesoftFileFilter.class, IntegerBasicFileFilter.class, BusinessBASICFileFilter.class,
+			AppleWorksWordProcessorFileFilter.class);
+
+	private Map<String,Image> images = new TreeMap<>();
+	/** Indexed by document id; null once the document has been removed. */
+	private List<Document> documents = new ArrayList<>();
+	private Map<Integer,Postings> postings = new HashMap<>();
+
+	/**
+	 * Read a saved index.  Answers with an empty index if the file does not 
+	 * exist.
+	 */
+	public static TextIndex read(File indexFile) throws IOException {
+		TextIndex index = new TextIndex();
+		if (!indexFile.isFile()) {
+			return index;
+		}
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(indexFile))))) {
+			if (input.readInt() != MAGIC) {
+				throw new IOException(String.format("'%s' is not a text index", indexFile));
+			}
+			if (input.readInt() != VERSION) {
+				throw new IOException(String.format("'%s' is an unsupported text index version", indexFile));
+			}
+			List<Image> imageList = new ArrayList<>();
+			int imageCount = input.readInt();
+			for (int i=0; i<imageCount; i++) {
+				Image image = new Image(input.readUTF(), input.readLong(), input.readLong(), input.readInt());
+				imageList.add(image);
+				index.images.put(image.path, image);
+			}
+			int documentCount = input.readInt();
+			for (int d=0; d<documentCount; d++) {
+				Image image = imageList.get(input.readInt());
+				image.documents.add(d);
+				index.documents.add(new Document(image.path, input.readInt(), input.readUTF()));
+			}
+			int postingCount = input.readInt();
+			for (int p=0; p<postingCount; p++) {
+				int trigram = input.readInt();
+				int size = input.readInt();
+				Postings list = new Postings(size);
+				int id = 0;
+				for (int i=0; i<size; i++) {
+					id += readVarInt(input);
+					list.add(id);
+				}
+				index.postings.put(trigram, list);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Save this index, dropping removed documents.  The file is replaced only 
+	 * once it has been completely written.
+	 */
+	public void write(File indexFile) throws IOException {
+		compact();
+		File parent = indexFile.getAbsoluteFile().getParentFile();
+		File tempFile = File.createTempFile(indexFile.getName(), ".tmp", parent);
+		try {
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+					new GZIPOutputStream(new FileOutputStream(tempFile))))) {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				Map<String,Integer> imageNumbers = new HashMap<>();
+				output.writeInt(images.size());
+				for (Image image : images.values()) {
+					imageNumbers.put(image.path, imageNumbers.size());
+					output.writeUTF(image.path);
+					output.writeLong(image.size);
+					output.writeLong(image.lastModified);
+					output.writeInt(image.headerHash);
+				}
+				output.writeInt(documents.size());
+				for (Document document : documents) {
+					output.writeInt(imageNumbers.get(document.imagePath));
+					output.writeInt(document.volume);
+					output.writeUTF(document.path);
+				}
+				output.writeInt(postings.size());
+				for (Map.Entry<Integer,Postings> entry : new TreeMap<>(postings).entrySet()) {
+					Postings list = entry.getValue();
+					output.writeInt(entry.getKey());
+					output.writeInt(list.size);
+					int last = 0;
+					for (int i=0; i<list.size; i++) {
+						writeVarInt(output, list.ids[i] - last);
+						last = list.ids[i];
+					}
+				}
+			}
+			Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Renumber the documents to drop those which were removed.
+	 */
+	private void compact() {
+		int[] renumber = new int[documents.size()];
+		List<Document> live = new ArrayList<>();
+		for (int id=0; id<documents.size(); id++) {
+			Document document = documents.get(id);
+			renumber[id] = live.size();
+			if (document != null) {
+				live.add(document);
+			}
+		}
+		if (live.size() == documents.size()) {
+			return;
+		}
+		for (Image image : images.values()) {
+			for (int i=0; i<image.documents.size(); i++) {
+				image.documents.set(i, renumber[image.documents.get(i)]);
+			}
+		}
+		postings.values().removeIf(list -> {
+			int size = 0;
+			for (int i=0; i<list.size; i++) {
+				int id = list.ids[i];
+				if (documents.get(id) != null) {
+					list.ids[size++] = renumber[id];
+				}
+			}
+			list.size = size;
+			return size == 0;
+		});
+		documents = live;
+	}
+
+	/**
+	 * Answers true if the image is in the index as it was at the given size, 
+	 * modification time and header hash.
+	 */
+	public boolean isIndexed(String path, long size, long lastModified, int headerHash) {
+		Image image = images.get(path);
+		return image != null && image.size == size && image.lastModified == lastModified 
+				&& image.headerHash == headerHash;
+	}
+
+	/**
+	 * Answer with the path of every image in the index.
+	 */
+	public Set<String> getImagePaths() {
+		return Collections.unmodifiableSet(images.keySet());
+	}
+
+	/**
+	 * Add (or replace) the documents of an image, each with the trigrams of its 
+	 * folded text.
+	 */
+	public void addImage(String path, long size, long lastModified, int headerHash, 
+			Map<Document,int[]> trigrams) {
+		removeImage(path);
+		Image image = new Image(path, size, lastModified, headerHash);
+		for (Map.Entry<Document,int[]> entry : trigrams.entrySet()) {
+			int id = documents.size();
+			documents.add(entry.getKey());
+			image.documents.add(id);
+			for (int trigram : entry.getValue()) {
+				postings.computeIfAbsent(trigram, k -> new Postings(4)).add(id);
+			}
+		}
+		images.put(path, image);
+	}
+
+	/**
+	 * Remove the documents of an image; answers true if it was in the index.
+	 */
+	public boolean removeImage(String path) {
+		Image image = images.remove(path);
+		if (image == null) {
+			return false;
+		}
+		for (int id : image.documents) {
+			documents.set(id, null);
+		}
+		return true;
+	}
+
+	/**
+	 * Answer with the number of documents in the index.
+	 */
+	public int getDocumentCount() {
+		int count = 0;
+		for (Document document : documents) {
+			if (document != null) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Answer with every document which contains all the trigrams of the text.
+	 * The text must be at least three characters long.
+	 */
+	public List<Document> find(String text) {
+		int[] queryTrigrams = trigrams(fold(text.getBytes(StandardCharsets.ISO_8859_1)));
+		if (queryTrigrams.length == 0) {
+			throw new IllegalArgumentException("Search text must be at least 3 characters");
+		}
+		List<Postings> lists = new ArrayList<>();
+		for (int trigram : queryTrigrams) {
+			Postings list = postings.get(trigram);
+			if (list == null) {
+				return Collections.emptyList();
+			}
+			lists.add(list);
+		}
+		lists.sort((a,b) -> Integer.compare(a.size, b.size));
+
+		List<Document> matches = new ArrayList<>();
+		int[] positions = new int[lists.size()];
+		Postings smallest = lists.get(0);
+		candidates:
+		for (int i=0; i<smallest.size; i++) {
+			int id = smallest.ids[i];
+			for (int l=1; l<lists.size(); l++) {
+				Postings list = lists.get(l);
+				int p = positions[l];
+				while (p < list.size && list.ids[p] < id) p++;
+				positions[l] = p;
+				if (p == list.size) {
+					break candidates;
+				}
+				if (list.ids[p] != id) {
+					continue candidates;
+				}
+			}
+			Document document = documents.get(id);
+			if (document != null) {
+				matches.add(document);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Answers true if the text (as extracted) contains the query, ignoring case 
+	 * and the high bit.
+	 */
+	public static boolean contains(byte[] text, String query) {
+		BytePattern pattern = new BytePattern(fold(query.getBytes(StandardCharsets.ISO_8859_1)));
+		return pattern.indexOf(fold(text)) != -1;
+	}
+
+	/**
+	 * Answer with the text of a file, or null if it is not a kind of file which 
+	 * holds text.
+	 */
+	public static byte[] extractText(FileEntry fileEntry) {
+		FileFilter filter = fileEntry.getSuggestedFilter();
+		for (Class<? extends FileFilter> textFilter : TEXT_FILTERS) {
+			if (textFilter.isInstance(filter)) {
+				return filter.filter(fileEntry);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Answer with the distinct trigrams of the folded text, in ascending order.
+	 */
+	public static int[] trigrams(byte[] folded) {
+		if (folded.length < 3) {
+			return new int[0];
+		}
+		int[] trigrams = new int[folded.length - 2];
+		int trigram = folded[0] << 7 | folded[1];
+		for (int i=2; i<folded.length; i++) {
+			trigram = (trigram << 7 | folded[i]) & 0x1fffff;
+			trigrams[i-2] = trigram;
+		}
+		return Arrays.stream(trigrams).sorted().distinct().toArray();
+	}
+
+	/**
+	 * Answer with a copy of the text in 7-bit upper case.
+	 */
+	public static byte[] fold(byte[] text) {
+		byte[] folded = new byte[text.length];
+		for (int i=0; i<text.length; i++) {
+			int ch = text[i] & 0x7f;
+			if (ch >= 'a' && ch <= 'z') {
+				ch -= 'a' - 'A';
+			}
+			folded[i] = (byte) ch;
+		}
+		return folded;
+	}
+
+	private static void writeVarInt(DataOutput output, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			output.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		output.writeByte(value);
+	}
+	private static int readVarInt(DataInput input) throws IOException {
+		int value = 0;
+		for (int shift=0; ; shift+=7) {
+			int b = input.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * A file whose text is in the index.
+	 */
+	public static class Document {
+		private String imagePath;
+		private int volume;
+		private String path;
+
+		public Document(String imagePath, int volume, String path) {
+			this.imagePath = imagePath;
+			this.volume = volume;
+			this.path = path;
+		}
+		/** Absolute path to the image on the host. */
+		public String getImagePath() {
+			return imagePath;
+		}
+		/** Index of the volume within the image. */
+		public int getVolume() {
+			return volume;
+		}
+		/** Full path of the file within the volume, as recorded in the CatalogIndex. */
+		public String getPath() {
+			return path;
+		}
+	}
+
+	/** An image as it was when it was indexed, and its documents. */
+	private static class Image {
+		private String path;
+		private long size;
+		private long lastModified;
+		private int headerHash;
+		private List<Integer> documents = new ArrayList<>();
+
+		private Image(String path, long size, long lastModified, int headerHash) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.headerHash = headerHash;
+		}
+	}
+
+	/** Ascending document ids. */
+	private static class Postings {
+		private int[] ids;
+		private int size;
+
+		private Postings(int capacity) {
+			ids = new int[Math.max(capacity, 1)];
+		}
+		private void add(int id) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+	}
+}
@@ -19,12 +19,11 @@
  */
 package com.webcodepro.applecommander.storage.compare;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -138,9 +137,11 @@ public class DiskDiff {
         }
 
         List<Integer> unequalBlocks = new ArrayList<>();
+        byte[] blockA = new byte[Disk.BLOCK_SIZE];
+        byte[] blockB = new byte[Disk.BLOCK_SIZE];
         for (int block=0; block<orderA.getBlocksOnDevice(); block++) {
-            byte[] blockA = orderA.readBlock(block);
-            byte[] blockB = orderB.readBlock(block);
+            orderA.readBlockInto(block, blockA, 0);
+            orderB.readBlockInto(block, blockB, 0);
             if (!Arrays.equals(blockA, blockB)) {
                 unequalBlocks.add(block);
             }
@@ -166,11 +167,13 @@ public class DiskDiff {
             return;
         }
         
+        byte[] sectorA = new byte[Disk.SECTOR_SIZE];
+        byte[] sectorB = new byte[Disk.SECTOR_SIZE];
         for (int track=0; track<orderA.getTracksPerDisk(); track++) {
             List<Integer> unequalSectors = new ArrayList<>();
             for (int sector=0; sector<orderA.getSectorsPerTrack(); sector++) {
-                byte[] sectorA = orderA.readSector(track, sector);
-                byte[] sectorB = orderB.readSector(track, sector);
+                orderA.readSectorInto(track, sector, sectorA, 0);
+                orderB.readSectorInto(track, sector, sectorB, 0);
                 if (!Arrays.equals(sectorA, sectorB)) {
                     unequalSectors.add(sector);
                 }
@@ -243,56 +246,32 @@ public class DiskDiff {
     /** Compare by file content. Accounts for content differences that are "only" in disk A or "only" in disk B. */
     public void compareByFileContent(FormattedDisk formattedDiskA, FormattedDisk formattedDiskB) {
         try {
-            Map<String,List<FileTuple>> contentA = FileStreamer.forDisk(formattedDiskA)
-                    .includeTypeOfFile(TypeOfFile.FILE)
-                    .recursive(true)
-                    .stream()
-                    .collect(Collectors.groupingBy(this::contentHash));
-            Map<String,List<FileTuple>> contentB = FileStreamer.forDisk(formattedDiskB)
-                    .includeTypeOfFile(TypeOfFile.FILE)
-                    .recursive(true)
-                    .stream()
-                    .collect(Collectors.groupingBy(this::contentHash));
-            
-            Set<String> contentOnlyA = new HashSet<>(contentA.keySet());
-            contentOnlyA.removeAll(contentB.keySet());
-            if (!contentOnlyA.isEmpty()) {
-                Set<String> pathNamesA = contentOnlyA.stream()
-                    .map(contentA::get)
-                    .flatMap(List::stream)
-                    .map(FileTuple::fullPath)
-                    .collect(Collectors.toSet());
-                results.addError("Content that only exists in %s: %s", 
-                        formattedDiskA.getFilename(), String.join(", ", pathNamesA));
-            }
+            List<List<DuplicateFinder.Location>> duplicates = DuplicateFinder.create()
+                    .add(formattedDiskA)
+                    .add(formattedDiskB)
+                    .findDuplicates();
 
-            Set<String> contentOnlyB = new HashSet<>(contentB.keySet());
-            contentOnlyB.removeAll(contentA.keySet());
-            if (!contentOnlyB.isEmpty()) {
-                Set<String> pathNamesB = contentOnlyB.stream()
-                        .map(contentB::get)
-                        .flatMap(List::stream)
-                        .map(FileTuple::fullPath)
-                        .collect(Collectors.toSet());
-                results.addError("Content that only exists in %s: %s", 
-                        formattedDiskB.getFilename(), String.join(", ", pathNamesB));
-            }
-
-            Set<String> contentInAB = new HashSet<>(contentA.keySet());
-            contentInAB.retainAll(contentB.keySet());
-            for (String content : contentInAB) {
-                List<FileTuple> tuplesA = contentA.get(content);
-                List<FileTuple> tuplesB = contentB.get(content);
+            // Whatever is not matched with a file on the other disk is unique to its disk
+            Set<String> pathNamesA = fullPaths(formattedDiskA);
+            Set<String> pathNamesB = fullPaths(formattedDiskB);
+            for (List<DuplicateFinder.Location> group : duplicates) {
+                List<FileTuple> tuplesA = tuplesFrom(group, 0);
+                List<FileTuple> tuplesB = tuplesFrom(group, 1);
+                if (tuplesA.isEmpty() || tuplesB.isEmpty()) {
+                    continue;
+                }
+                tuplesA.forEach(tuple -> pathNamesA.remove(tuple.fullPath()));
+                tuplesB.forEach(tuple -> pathNamesB.remove(tuple.fullPath()));
 
                 // This is by content, but uncertain how to report multiple per disk, so pick first one
                 FileTuple tupleA = tuplesA.get(0);
                 if (tuplesA.size() > 1) {
-                    results.addWarning("Hash %s on disk %s has %d entries.", content, 
+                    results.addWarning("Content of %s on disk %s has %d entries.", tupleA.fullPath(), 
                             formattedDiskA.getFilename(), tuplesA.size());
                 }
                 FileTuple tupleB = tuplesB.get(0);
                 if (tuplesB.size() > 1) {
-                    results.addWarning("Hash %s on disk %s has %d entries.", content, 
+                    results.addWarning("Content of %s on disk %s has %d entries.", tupleB.fullPath(), 
                             formattedDiskB.getFilename(), tuplesB.size());
                 }
                 
@@ -305,18 +284,34 @@ public class DiskDiff {
                             tupleA.fullPath(), tupleB.fullPath(), String.join(", ", differences));
                 }
             }
+
+            if (!pathNamesA.isEmpty()) {
+                results.addError("Content that only exists in %s: %s", 
+                        formattedDiskA.getFilename(), String.join(", ", pathNamesA));
+            }
+            if (!pathNamesB.isEmpty()) {
+                results.addError("Content that only exists in %s: %s", 
+                        formattedDiskB.getFilename(), String.join(", ", pathNamesB));
+            }
         } catch (DiskException ex) {
             results.addError(ex);
+        } catch (IOException ex) {
+            results.addError("Unable to read files: %s", ex.getMessage());
         }
     }
-    private String contentHash(FileTuple tuple) {
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-            byte[] digest = messageDigest.digest(tuple.fileEntry.getFileData());
-            return String.format("%032X", new BigInteger(1, digest));
-        } catch (NoSuchAlgorithmException ex) {
-            throw new RuntimeException(ex);
-        }
+    private Set<String> fullPaths(FormattedDisk formattedDisk) {
+        return FileStreamer.forFormattedDisks(formattedDisk)
+                .includeTypeOfFile(TypeOfFile.FILE)
+                .recursive(true)
+                .stream()
+                .map(FileTuple::fullPath)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+    private List<FileTuple> tuplesFrom(List<DuplicateFinder.Location> group, int source) {
+        return group.stream()
+                .filter(location -> location.source == source)
+                .map(location -> location.tuple)
+                .collect(Collectors.toList());
     }
 
     private List<String> compare(FileEntryReader readerA, FileEntryReader readerB) {
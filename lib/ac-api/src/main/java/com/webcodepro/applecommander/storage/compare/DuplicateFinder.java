@@ -0,0 +1,460 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.compare;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FormattedDisk;
+import com.webcodepro.applecommander.util.filestreamer.FileStreamer;
+import com.webcodepro.applecommander.util.filestreamer.FileTuple;
+import com.webcodepro.applecommander.util.filestreamer.TypeOfFile;
+
+/**
+ * Find files with identical content across any number of disk images.
+ * <p>
+ * Files are grouped by size first, so only files which share their size with
+ * another file are ever read.  Those are hashed in parallel with CRC-32C and
+ * files with the same size and hash are then compared byte for byte, so a hash
+ * collision never produces a false duplicate.
+ * <p>
+ * Disks may be added already loaded, or by image filename.  An image added by
+ * filename is opened when it is needed and not retained, which allows a large
+ * library of images to be searched without holding it in memory.  Such an
+ * image is opened once to list its files and once more for each step in which
+ * one of its files is read.
+ * <p>
+ * To confirm a group, its first file is held in memory while the others are
+ * compared with it.  Groups are confirmed in batches whose first files total
+ * no more than the buffer size, so memory use does not grow with the number
+ * of candidate groups.
+ */
+public class DuplicateFinder {
+    /** Default limit on the file content held while confirming duplicates. */
+    public static final long DEFAULT_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    public static DuplicateFinder create() {
+        return new DuplicateFinder();
+    }
+
+    private List<Source> sources = new ArrayList<>();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean matchWithinVolume;
+    private long bufferSize = DEFAULT_BUFFER_SIZE;
+
+    private DuplicateFinder() {
+        // use create()
+    }
+
+    /** Search the files of a loaded disk image. */
+    public DuplicateFinder add(Disk disk) {
+        Objects.requireNonNull(disk);
+        sources.add(new Source(sources.size(), disk.getFilename(), null, disk));
+        return this;
+    }
+    /** Search the files of the given volumes, which are treated as one image. */
+    public DuplicateFinder add(FormattedDisk... formattedDisks) {
+        Objects.requireNonNull(formattedDisks);
+        String name = formattedDisks.length > 0 ? formattedDisks[0].getFilename() : "";
+        sources.add(new Source(sources.size(), name, formattedDisks, null));
+        return this;
+    }
+    /** Search the files of a disk image which is opened only while it is needed. */
+    public DuplicateFinder addImage(String filename) {
+        Objects.requireNonNull(filename);
+        sources.add(new Source(sources.size(), filename, null, null));
+        return this;
+    }
+    /** Number of threads used to read files; defaults to the number of processors. */
+    public DuplicateFinder threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.threads = threads;
+        return this;
+    }
+    /** Only report files as duplicates when they are on the same volume. */
+    public DuplicateFinder matchWithinVolume(boolean flag) {
+        this.matchWithinVolume = flag;
+        return this;
+    }
+
+    /**
+     * Limit, in bytes, on the file content held in memory at once while confirming
+     * duplicates.  A single file larger than the limit is still read whole.
+     */
+    public DuplicateFinder bufferSize(long bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * Answer with each set of files which have identical content.  Every group has
+     * at least two files; groups and the files within them are in the order the
+     * files were found.
+     */
+    public List<List<Location>> findDuplicates() throws IOException, DiskException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<Item> items = run(pool, this::listFiles);
+
+            // Only files which share their size with another file can be duplicates
+            List<List<Item>> candidates = groupBy(items, item -> Arrays.asList(item.scope, item.location.size));
+            List<Item> toHash = candidates.stream().flatMap(List::stream).collect(Collectors.toList());
+            run(pool, () -> forEachFile(toHash, (item, fileEntry) -> item.hash = hash(fileEntry)));
+
+            List<List<Item>> pending = new ArrayList<>();
+            for (List<Item> group : candidates) {
+                pending.addAll(groupBy(group, item -> item.hash));
+            }
+            List<List<Item>> duplicates = new ArrayList<>();
+            while (!pending.isEmpty()) {
+                List<List<Item>> remaining = new ArrayList<>();
+                for (List<List<Item>> batch : batches(pending)) {
+                    remaining.addAll(confirm(pool, batch, duplicates));
+                }
+                pending = remaining;
+            }
+
+            duplicates.sort(Comparator.comparing(group -> group.get(0)));
+            List<List<Location>> results = new ArrayList<>();
+            for (List<Item> group : duplicates) {
+                results.add(group.stream().map(item -> item.location).collect(Collectors.toList()));
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Split the groups into batches whose first files fit within the buffer size.
+     * Every batch has at least one group.
+     */
+    private List<List<List<Item>>> batches(List<List<Item>> groups) {
+        List<List<List<Item>>> batches = new ArrayList<>();
+        List<List<Item>> batch = new ArrayList<>();
+        long size = 0;
+        for (List<Item> group : groups) {
+            long groupSize = group.get(0).location.size;
+            if (!batch.isEmpty() && size + groupSize > bufferSize) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                size = 0;
+            }
+            batch.add(group);
+            size += groupSize;
+        }
+        if (!batch.isEmpty()) batches.add(batch);
+        return batches;
+    }
+
+    /**
+     * Compare every file in each group with the first file of the group.  Groups of
+     * matching files are added to duplicates; answers with the files which did not
+     * match, which are only present if the hash collided.
+     */
+    private List<List<Item>> confirm(ForkJoinPool pool, List<List<Item>> groups,
+            List<List<Item>> duplicates) throws IOException, DiskException {
+        Map<Item,byte[]> firstContent = new ConcurrentHashMap<>();
+        List<Item> firsts = groups.stream().map(group -> group.get(0)).collect(Collectors.toList());
+        run(pool, () -> forEachFile(firsts, (item, fileEntry) -> firstContent.put(item, read(fileEntry))));
+
+        Map<Item,Item> firstOf = new HashMap<>();
+        for (List<Item> group : groups) {
+            for (Item item : group.subList(1, group.size())) {
+                firstOf.put(item, group.get(0));
+            }
+        }
+        Map<Item,Boolean> matches = new ConcurrentHashMap<>();
+        run(pool, () -> forEachFile(new ArrayList<>(firstOf.keySet()), (item, fileEntry) ->
+                matches.put(item, contentEquals(fileEntry, firstContent.get(firstOf.get(item))))));
+
+        List<List<Item>> remaining = new ArrayList<>();
+        for (List<Item> group : groups) {
+            List<Item> same = new ArrayList<>();
+            List<Item> different = new ArrayList<>();
+            same.add(group.get(0));
+            for (Item item : group.subList(1, group.size())) {
+                (matches.get(item) ? same : different).add(item);
+            }
+            if (same.size() > 1) duplicates.add(same);
+            if (different.size() > 1) remaining.add(different);
+        }
+        return remaining;
+    }
+
+    /** List the files of every source, in a stable order. */
+    private List<Item> listFiles() {
+        List<Item> items = sources.parallelStream()
+                .flatMap(source -> {
+                    List<Item> list = new ArrayList<>();
+                    FormattedDisk[] formattedDisks = source.open();
+                    for (int volume=0; volume<formattedDisks.length; volume++) {
+                        int ordinal = 0;
+                        Iterator<FileTuple> iterator = streamFiles(formattedDisks[volume]).iterator();
+                        while (iterator.hasNext()) {
+                            list.add(new Item(source, volume, ordinal++, iterator.next()));
+                        }
+                    }
+                    return list.stream();
+                })
+                .collect(Collectors.toList());
+        Collections.sort(items);
+        return items;
+    }
+
+    /**
+     * Perform the action on the file entry of each item.  Each source is opened once;
+     * the files are read in parallel.
+     */
+    private void forEachFile(List<Item> items, FileAction action) {
+        Map<Source,List<Item>> bySource = items.stream()
+                .collect(Collectors.groupingBy(item -> item.source, LinkedHashMap::new, Collectors.toList()));
+        bySource.entrySet().parallelStream().forEach(entry -> {
+            Source source = entry.getKey();
+            Map<Item,FileEntry> fileEntries = new HashMap<>();
+            if (source.isLoaded()) {
+                entry.getValue().forEach(item -> fileEntries.put(item, item.location.tuple.fileEntry));
+            } else {
+                // Walk the image again, picking out the files by their position
+                FormattedDisk[] formattedDisks = source.open();
+                Map<List<Integer>,Item> wanted = new HashMap<>();
+                entry.getValue().forEach(item -> wanted.put(Arrays.asList(item.volume, item.ordinal), item));
+                for (int volume=0; volume<formattedDisks.length; volume++) {
+                    int ordinal = 0;
+                    Iterator<FileTuple> iterator = streamFiles(formattedDisks[volume]).iterator();
+                    while (iterator.hasNext()) {
+                        FileTuple tuple = iterator.next();
+                        Item item = wanted.get(Arrays.asList(volume, ordinal++));
+                        if (item != null) fileEntries.put(item, tuple.fileEntry);
+                    }
+                }
+            }
+            fileEntries.entrySet().parallelStream().forEach(e -> {
+                try {
+                    action.accept(e.getKey(), e.getValue());
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        });
+    }
+
+    private static FileStreamer streamFiles(FormattedDisk formattedDisk) {
+        return FileStreamer.forFormattedDisks(formattedDisk)
+                .includeTypeOfFile(TypeOfFile.FILE)
+                .recursive(true);
+    }
+
+    private static long hash(FileEntry fileEntry) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (InputStream inputStream = fileEntry.openInputStream()) {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                crc.update(buffer, 0, length);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static byte[] read(FileEntry fileEntry) throws IOException {
+        try (InputStream inputStream = fileEntry.openInputStream()) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    private static boolean contentEquals(FileEntry fileEntry, byte[] content) throws IOException {
+        try (InputStream inputStream = fileEntry.openInputStream()) {
+            byte[] buffer = new byte[8192];
+            int offset = 0;
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                if (offset + length > content.length
+                        || !Arrays.equals(buffer, 0, length, content, offset, offset + length)) {
+                    return false;
+                }
+                offset += length;
+            }
+            return offset == content.length;
+        }
+    }
+
+    /** Group items by key, keeping only groups of two or more. */
+    private static List<List<Item>> groupBy(Collection<Item> items, Function<Item,Object> key) {
+        return items.stream()
+                .collect(Collectors.groupingBy(key, LinkedHashMap::new, Collectors.toList()))
+                .values().stream()
+                .filter(group -> group.size() > 1)
+                .collect(Collectors.toList());
+    }
+
+    /** Run a step on the pool, unwrapping any failure. */
+    private static <T> T run(ForkJoinPool pool, Callable<T> step) throws IOException, DiskException {
+        try {
+            return pool.submit(step).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof UncheckedDiskException) {
+                throw ((UncheckedDiskException) cause).getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+    private static void run(ForkJoinPool pool, Runnable step) throws IOException, DiskException {
+        run(pool, () -> {
+            step.run();
+            return null;
+        });
+    }
+
+    /** Where a file was found. */
+    public static class Location {
+        /** Position of the image in the order it was added. */
+        public final int source;
+        public final String imageName;
+        /** Index of the volume within the image (for images with several volumes, such as UniDOS). */
+        public final int volume;
+        public final String volumeName;
+        public final String path;
+        public final long size;
+        /** The file itself; only available for images which were added already loaded. */
+        public final FileTuple tuple;
+
+        private Location(Source source, int volume, FileTuple tuple) {
+            this.source = source.index;
+            this.imageName = source.name;
+            this.volume = volume;
+            this.volumeName = tuple.formattedDisk.getDiskName();
+            this.path = tuple.fullPath();
+            this.size = tuple.fileEntry.getSize();
+            this.tuple = source.isLoaded() ? tuple : null;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s:%s", imageName, path);
+        }
+    }
+
+    private interface FileAction {
+        void accept(Item item, FileEntry fileEntry) throws IOException;
+    }
+
+    /** A disk image to be searched. */
+    private static class Source {
+        private final int index;
+        private final String name;
+        private final FormattedDisk[] formattedDisks;
+        private final Disk disk;
+
+        private Source(int index, String name, FormattedDisk[] formattedDisks, Disk disk) {
+            this.index = index;
+            this.name = name;
+            this.formattedDisks = formattedDisks;
+            this.disk = disk;
+        }
+        private boolean isLoaded() {
+            return formattedDisks != null || disk != null;
+        }
+        private FormattedDisk[] open() {
+            try {
+                if (formattedDisks != null) {
+                    return formattedDisks;
+                }
+                return (disk != null ? disk : new Disk(name)).getFormattedDisks();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            } catch (DiskException ex) {
+                throw new UncheckedDiskException(ex);
+            }
+        }
+    }
+
+    /** A file found while searching. */
+    private class Item implements Comparable<Item> {
+        private final Source source;
+        private final int volume;
+        private final int ordinal;
+        private final Location location;
+        private final List<Integer> scope;
+        private long hash;
+
+        private Item(Source source, int volume, int ordinal, FileTuple tuple) {
+            this.source = source;
+            this.volume = volume;
+            this.ordinal = ordinal;
+            this.location = new Location(source, volume, tuple);
+            this.scope = matchWithinVolume ? Arrays.asList(source.index, volume) : Collections.emptyList();
+        }
+
+        @Override
+        public int compareTo(Item other) {
+            int result = Integer.compare(source.index, other.source.index);
+            if (result == 0) result = Integer.compare(volume, other.volume);
+            if (result == 0) result = Integer.compare(ordinal, other.ordinal);
+            return result;
+        }
+    }
+
+    private static class UncheckedDiskException extends RuntimeException {
+        private static final long serialVersionUID = -2107461513702461838L;
+        private UncheckedDiskException(DiskException cause) {
+            super(cause);
+        }
+        @Override
+        public synchronized DiskException getCause() {
+            return (DiskException) super.getCause();
+        }
+    }
+}
@@ -19,6 +19,7 @@
  */
 package com.webcodepro.applecommander.storage.os.cpm;
 
+import java.io.InputStream;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.List;
@@ -171,12 +172,14 @@ public class CpmFileEntry implements FileEntry {
 	 * @see com.webcodepro.applecommander.storage.FileEntry#setFilename(java.lang.String)
 	 */
 	public void setFilename(String filename) {
+		String oldFilename = isDeleted() ? null : getFilename();
 		for (int i=0; i<offsets.size(); i++) {
 			byte[] data = readFileEntry(i);
 			AppleUtil.setString(data, FILENAME_OFFSET, filename, 
 				FILENAME_LENGTH, false);
 			writeFileEntry(i, data);
 		}
+		getFormattedDisk().updateFileIndex(this, oldFilename);
 	}
 
 	/**
@@ -421,6 +424,14 @@ public class CpmFileEntry implements FileEntry {
 		return disk.getFileData(this);
 	}
 
+	/**
+	 * Open a stream over the file data, which is read from the disk as the
+	 * stream is read.
+	 */
+	public InputStream openInputStream() {
+		return disk.openInputStream(this);
+	}
+
 	/**
 	 * Set file data.  This, essentially, is saving data to disk using this
 	 * file entry.
@@ -19,6 +19,7 @@
  */
 package com.webcodepro.applecommander.storage.os.cpm;
 
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -28,6 +29,7 @@ import java.util.StringTokenizer;
 import com.webcodepro.applecommander.storage.DirectoryEntry;
 import com.webcodepro.applecommander.storage.DiskFullException;
 import com.webcodepro.applecommander.storage.DiskGeometry;
+import com.webcodepro.applecommander.storage.FileDataInputStream;
 import com.webcodepro.applecommander.storage.FileEntry;
 import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.StorageBundle;
@@ -274,6 +276,28 @@ public class CpmFormatDisk extends FormattedDisk {
 		return data;
 	}
 
+	/**
+	 * Open a stream over the data associated with the specified FileEntry.
+	 * Each allocation block is read from the disk as the stream reaches it.
+	 */
+	public InputStream openInputStream(FileEntry fileEntry) {
+		CpmFileEntry cpmEntry = (CpmFileEntry) fileEntry;
+		final int[] allocations = cpmEntry.getAllocations();
+		return new FileDataInputStream(CPM_BLOCKSIZE, (long) allocations.length * CPM_BLOCKSIZE) {
+			private int i = 0;
+
+			protected boolean readNextBlock(byte[] buffer) {
+				if (i >= allocations.length) return false;
+				int blockNumber = allocations[i++];
+				if (blockNumber > 0) {
+					byte[] block = readCpmBlock(blockNumber);
+					System.arraycopy(block, 0, buffer, 0, CPM_BLOCKSIZE);
+				}
+				return true;
+			}
+		};
+	}
+
 	/**
 	 * Format the disk.  Simply wipes the disk to all 0xE5 - this seems to
 	 * be the standard (or a requirement). 
@@ -19,8 +19,12 @@
  */
 package com.webcodepro.applecommander.storage.os.dos33;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import com.webcodepro.applecommander.storage.Disk;
@@ -35,6 +39,7 @@ import com.webcodepro.applecommander.storage.filters.BinaryFileFilter;
 import com.webcodepro.applecommander.storage.filters.GraphicsFileFilter;
 import com.webcodepro.applecommander.storage.filters.IntegerBasicFileFilter;
 import com.webcodepro.applecommander.storage.filters.TextFileFilter;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
 import com.webcodepro.applecommander.util.AppleUtil;
 import com.webcodepro.applecommander.util.TextBundle;
 
@@ -71,6 +76,14 @@ public class DosFileEntry implements FileEntry {
 	 * the contents of the data file).
 	 */
 	private Integer address;
+	/**
+	 * The start of the first data sector, which holds the length (and
+	 * address) of B, A, and I files.  Cached as of a given disk image and
+	 * modification count; null when not yet read or the file has no data.
+	 */
+	private byte[] dataHeader;
+	private ByteArrayImageLayout dataHeaderLayout;
+	private long dataHeaderModificationCount;
 
 	/**
 	 * Constructor for DosFileEntry.
@@ -126,9 +139,11 @@ public class DosFileEntry implements FileEntry {
 	 * Set the name of this file.
 	 */
 	public void setFilename(String filename) {
+		String oldFilename = isDeleted() ? null : getFilename();
 		byte[] data = readFileEntry();
 		AppleUtil.setString(data, 3, filename.toUpperCase(), 30);
 		writeFileEntry(data);
+		disk.updateFileIndex(this, oldFilename);
 	}
 
 	/**
@@ -197,25 +212,37 @@ public class DosFileEntry implements FileEntry {
 	 * @see com.webcodepro.applecommander.storage.FileEntry#getSize()
 	 */
 	public int getSize() {
-		byte[] rawdata = null;
-		if (!isDeleted()) {
-			rawdata = disk.getFileData(this);
-		}
 		// default to nothing special, just compute from number of sectors
 		int size = (getSectorsUsed()-1) * Disk.SECTOR_SIZE;
 		if (size < 1) size = 0;	// we assume a T/S block is included (may not be)
-		if (rawdata != null) {
+		byte[] header = isDeleted() ? null : readDataHeader();
+		if (header != null) {
 			if ("B".equals(getFiletype())) { //$NON-NLS-1$
 				// binary
-				return AppleUtil.getWordValue(rawdata, 2);
+				return AppleUtil.getWordValue(header, 2);
 			} else if ("A".equals(getFiletype()) || "I".equals(getFiletype())) { //$NON-NLS-1$ //$NON-NLS-2$
 				// applesoft, integer basic
-				return AppleUtil.getWordValue(rawdata, 0);
+				return AppleUtil.getWordValue(header, 0);
 			}
 		}
 		return size;
 	}
-	
+
+	/**
+	 * Read the start of the first data sector, only going to the disk when
+	 * the image has changed since it was last read.
+	 */
+	protected byte[] readDataHeader() {
+		ByteArrayImageLayout layout = disk.getDiskImageManager();
+		if (dataHeaderLayout != layout || dataHeaderModificationCount != layout.getModificationCount()) {
+			byte[] sectorData = disk.getFirstDataSector(this);
+			dataHeader = (sectorData == null) ? null : Arrays.copyOf(sectorData, 4);
+			dataHeaderLayout = layout;
+			dataHeaderModificationCount = layout.getModificationCount();
+		}
+		return dataHeader;
+	}
+
 	/**
 	 * Compute the number of sectors used.
 	 */
@@ -253,6 +280,7 @@ public class DosFileEntry implements FileEntry {
 	 */
 	public void delete() {
 		disk.freeSectors(this);
+		disk.resetCatalogCursor();
 		byte[] fileEntry = readFileEntry();
 		fileEntry[0x20] = fileEntry[0x00];
 		fileEntry[0x00] = (byte)0xff;
@@ -350,6 +378,60 @@ public class DosFileEntry implements FileEntry {
 		return filedata;
 	}
 	
+	/**
+	 * Open a stream over the same data answered by getFileData.  The length
+	 * (and address) at the start of B, A, and I files is skipped without
+	 * reading the rest of the file.
+	 */
+	public InputStream openInputStream() throws IOException {
+		if (isBinaryFile()) {
+			byte[] header = readDataHeader();
+			int length = (header == null) ? 0 : AppleUtil.getWordValue(header, 2);
+			return disk.openInputStream(this, 4, length);
+		} else if (isApplesoftBasicFile() || isIntegerBasicFile()) {
+			return disk.openInputStream(this, 2, getSize());
+		}
+		return disk.openInputStream(this);
+	}
+
+	/**
+	 * Open a stream which writes the file data to the disk as it arrives.
+	 * As with setFileData, the length (and address) is placed at the start
+	 * of B, A, and I files, and the high bit is set on text files.
+	 */
+	public OutputStream openOutputStream() throws IOException {
+		if (isBinaryFile()) {
+			final int loadAddress = (address != null) ? address.intValue() : 0;	// Needs to be set via setAddress
+			address = null;
+			return new DosFileOutputStream(disk, this, 4) {
+				protected void writeHeader(byte[] sectorData, int length) {
+					AppleUtil.setWordValue(sectorData, 0, loadAddress);
+					AppleUtil.setWordValue(sectorData, 2, length);
+				}
+			};
+		} else if (isApplesoftBasicFile() || isIntegerBasicFile()) {
+			return new DosFileOutputStream(disk, this, 2) {
+				protected void writeHeader(byte[] sectorData, int length) {
+					AppleUtil.setWordValue(sectorData, 0, length);
+				}
+			};
+		} else if (isTextFile()) {
+			return new DosFileOutputStream(disk, this, 0) {
+				public void write(int b) throws IOException {
+					super.write(b | 0x80);
+				}
+				public void write(byte[] b, int off, int len) throws IOException {
+					byte[] data = Arrays.copyOfRange(b, off, off + len);
+					for (int i=0; i<data.length; i++) {
+						data[i] = (byte)(data[i] | 0x80);
+					}
+					super.write(data, 0, data.length);
+				}
+			};
+		}
+		return disk.openOutputStream(this);
+	}
+
 	/**
 	 * Set the file data.  This is essentially the save operation.
 	 * Specifically, if the filetype is binary, the length and
@@ -363,6 +445,7 @@ public class DosFileEntry implements FileEntry {
 	 * Empirically, the data must be set before the address is set.
 	 */
 	public void setFileData(byte[] data) throws DiskFullException {
+		dataHeaderLayout = null;
 		if (isBinaryFile()) {
 			byte[] filedata = new byte[data.length + 4];
 			if (address != null) {
@@ -502,8 +585,8 @@ public class DosFileEntry implements FileEntry {
      */
     public int getAddress() {
         if (needsAddress()) {
-            byte[] rawData = disk.getFileData(this);
-            return AppleUtil.getWordValue(rawData, 0);
+            byte[] header = readDataHeader();
+            return (header == null) ? 0 : AppleUtil.getWordValue(header, 0);
         }
         return 0;
     }
@@ -0,0 +1,228 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.os.dos33;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.StorageBundle;
+import com.webcodepro.applecommander.util.TextBundle;
+
+/**
+ * Writes a DOS 3.3 file as the data arrives.  Each data sector is allocated
+ * and written once it fills, and another track/sector list is chained on
+ * whenever the current one is full.  The sectors used and the VTOC are
+ * updated when the stream is closed.
+ * <p>
+ * Room may be reserved at the start of the file for a header (such as the
+ * address and length of a binary file).  The first data sector is held
+ * until the stream is closed so that writeHeader can fill it in once the
+ * length is known.
+ * <p>
+ * The VTOC is held by the stream while it is open, so the disk should not
+ * otherwise be changed until the stream has been closed.
+ */
+public class DosFileOutputStream extends OutputStream {
+	private TextBundle textBundle = StorageBundle.getInstance();
+	private DosFormatDisk disk;
+	private DosFileEntry fileEntry;
+	private byte[] vtoc;
+	private int tracks;
+	private int sectors;
+	private int headerLength;
+	private byte[] sectorData = new byte[Disk.SECTOR_SIZE];
+	/** Next byte to be filled in sectorData. */
+	private int position;
+	/** Number of bytes written to the stream, not counting the header. */
+	private int length;
+	private int totalSectors;
+	private int listTrack;
+	private int listSector;
+	private byte[] trackSectorList = new byte[Disk.SECTOR_SIZE];
+	private int trackSectorOffset = 0x0c;
+	private int firstTrack = -1;
+	private int firstSector;
+	private byte[] firstSectorData;
+	/** Where the search for the next free sector begins. */
+	private int searchTrack = 1;
+	private int searchSector = 0;
+	/** Set once the disk has filled; whatever was written is kept. */
+	private boolean diskFull;
+	private boolean closed;
+
+	/**
+	 * Begin writing the given file, reserving headerLength bytes at the
+	 * start of the file.  Any existing data is released.
+	 */
+	public DosFileOutputStream(DosFormatDisk disk, DosFileEntry fileEntry, int headerLength) 
+			throws IOException {
+		this.disk = disk;
+		this.fileEntry = fileEntry;
+		this.headerLength = headerLength;
+		this.position = headerLength;
+		disk.freeSectors(fileEntry);
+		this.vtoc = disk.readVtoc();
+		this.tracks = disk.getTracks();
+		this.sectors = disk.getSectors();
+		int track = fileEntry.getTrack();
+		if (track == 0 || track == 255) {
+			int unit = allocateSector();
+			fileEntry.setTrack(unit / sectors);
+			fileEntry.setSector(unit % sectors);
+		} else {
+			disk.setSectorUsed(track, fileEntry.getSector(), vtoc);
+		}
+		listTrack = fileEntry.getTrack();
+		listSector = fileEntry.getSector();
+		totalSectors = 1;
+	}
+
+	/**
+	 * Fill in the header reserved at the start of the first data sector.
+	 * The length does not include the header.
+	 */
+	protected void writeHeader(byte[] sectorData, int length) {
+		// no header by default
+	}
+
+	/**
+	 * Write a single byte.
+	 */
+	public void write(int b) throws IOException {
+		ensureOpen();
+		sectorData[position++] = (byte) b;
+		length++;
+		if (position == Disk.SECTOR_SIZE) {
+			writeDataSector();
+		}
+	}
+
+	/**
+	 * Write len bytes from b.
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		while (len > 0) {
+			int count = Math.min(len, Disk.SECTOR_SIZE - position);
+			System.arraycopy(b, off, sectorData, position, count);
+			position+= count;
+			length+= count;
+			off+= count;
+			len-= count;
+			if (position == Disk.SECTOR_SIZE) {
+				writeDataSector();
+			}
+		}
+	}
+
+	/**
+	 * Write the final sectors and update the file entry and VTOC.
+	 */
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (!diskFull && position > 0) {
+				writeDataSector();
+			}
+		} finally {
+			if (firstSectorData != null) {
+				writeHeader(firstSectorData, length);
+				disk.writeSector(firstTrack, firstSector, firstSectorData);
+			}
+			disk.writeSector(listTrack, listSector, trackSectorList);	// last T/S list
+			fileEntry.setSectorsUsed(totalSectors);
+			disk.writeVtoc(vtoc);
+		}
+	}
+
+	/**
+	 * Write out the current data sector and record it in the track/sector
+	 * list, starting a new list when the current one is full.
+	 */
+	protected void writeDataSector() throws IOException {
+		int unit = allocateSector();
+		if (trackSectorOffset >= 0x100) {
+			// filled up this track/sector list - chain on another
+			trackSectorList[0x01] = (byte) (unit / sectors);
+			trackSectorList[0x02] = (byte) (unit % sectors);
+			disk.writeSector(listTrack, listSector, trackSectorList);
+			trackSectorList = new byte[Disk.SECTOR_SIZE];
+			trackSectorOffset = 0x0c;
+			listTrack = unit / sectors;
+			listSector = unit % sectors;
+			totalSectors++;
+			unit = allocateSector();
+		}
+		int t = unit / sectors;
+		int s = unit % sectors;
+		trackSectorList[trackSectorOffset] = (byte) t;
+		trackSectorList[trackSectorOffset+1] = (byte) s;
+		trackSectorOffset+= 2;
+		if (firstSectorData == null) {
+			firstTrack = t;
+			firstSector = s;
+			firstSectorData = sectorData.clone();
+		} else {
+			disk.writeSector(t, s, sectorData);
+		}
+		totalSectors++;
+		Arrays.fill(sectorData, (byte) 0);
+		position = 0;
+	}
+
+	/**
+	 * Locate and mark the next free sector, answering with its linear
+	 * sector number (track * sectors + sector).
+	 */
+	private int allocateSector() throws IOException {
+		while (searchTrack < tracks) {
+			int t = searchTrack;
+			int s = searchSector;
+			searchSector++;
+			if (searchSector >= sectors) {
+				searchTrack++;
+				searchSector = 0;
+			}
+			if (disk.isSectorFree(t, s, vtoc)) {
+				disk.setSectorUsed(t, s, vtoc);
+				return t * sectors + s;
+			}
+		}
+		diskFull = true;
+		DiskFullException ex = new DiskFullException(
+				textBundle.get("DosFormatDisk.NoMoreSpaceError"), disk.getFilename()); //$NON-NLS-1$
+		throw new IOException(ex.getMessage(), ex);
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed"); //$NON-NLS-1$
+		}
+		if (diskFull) {
+			throw new IOException(textBundle.get("DosFormatDisk.NoMoreSpaceError")); //$NON-NLS-1$
+		}
+	}
+}
@@ -19,16 +19,22 @@
  */
 package com.webcodepro.applecommander.storage.os.dos33;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Set;
 import java.util.HashSet;
 
+import com.webcodepro.applecommander.storage.AllocationPolicy;
 import com.webcodepro.applecommander.storage.DirectoryEntry;
 import com.webcodepro.applecommander.storage.DiskException;
 import com.webcodepro.applecommander.storage.DiskCorruptException;
 import com.webcodepro.applecommander.storage.DiskFullException;
 import com.webcodepro.applecommander.storage.DiskGeometry;
+import com.webcodepro.applecommander.storage.FileDataInputStream;
 import com.webcodepro.applecommander.storage.FileEntry;
 import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.StorageBundle;
@@ -47,6 +53,15 @@ import com.webcodepro.applecommander.util.TextBundle;
  */
 public class DosFormatDisk extends FormattedDisk {
 	private TextBundle textBundle = StorageBundle.getInstance();
+	/**
+	 * The VTOC as held during a batch.  Null when not changed by the batch.
+	 */
+	private byte[] batchVtoc;
+	/**
+	 * The catalog sector (track and sector) in which a free entry was last
+	 * found during a batch.  Null when the search starts at the beginning.
+	 */
+	private int[] catalogCursor;
 	/**
 	 * Indicates the index of the track in the location array.
 	 */	
@@ -177,12 +192,21 @@ public class DosFormatDisk extends FormattedDisk {
 		byte[] vtoc = readVtoc();
 		int track = AppleUtil.getUnsignedByte(vtoc[1]);
 		int sector = AppleUtil.getUnsignedByte(vtoc[2]);
+		int[] cursor = isBatchActive() ? catalogCursor : null;
+		if (cursor != null) {
+			// entries before the cursor were in use when last searched
+			track = cursor[0];
+			sector = cursor[1];
+		}
 		while (sector != 0) { // bug fix: iterate through all catalog _sectors_
 			byte[] catalogSector = readSector(track, sector);
 			int offset = 0x0b;
 			while (offset < 0xff) {	// iterate through all entries
 				int value = AppleUtil.getUnsignedByte(catalogSector[offset]);
 				if (value == 0 || value == 0xff) {
+					if (isBatchActive()) {
+						catalogCursor = new int[] { track, sector };
+					}
 					return new DosFileEntry(this, track, sector, offset);
 				}
 				offset+= DosFileEntry.FILE_DESCRIPTIVE_ENTRY_LENGTH;
@@ -190,6 +214,11 @@ public class DosFormatDisk extends FormattedDisk {
 			track = catalogSector[1];
 			sector = catalogSector[2];
 		}
+		if (cursor != null) {
+			// an entry before the cursor may have been freed elsewhere
+			catalogCursor = null;
+			return createFile();
+		}
 		throw new DiskFullException(
 				textBundle.get("DosFormatDisk.NoMoreSpaceError") //$NON-NLS-1$
 				, this.getFilename());
@@ -276,16 +305,52 @@ public class DosFormatDisk extends FormattedDisk {
 	 * Return the VTOC (Volume Table Of Contents).
 	 */
 	protected byte[] readVtoc() {
+		if (batchVtoc != null) {
+			return batchVtoc.clone();
+		}
 		return readSector(CATALOG_TRACK, VTOC_SECTOR);
 	}
 	
 	/**
-	 * Save the VTOC (Volume Table Of Contents) to disk.
+	 * Save the VTOC (Volume Table Of Contents) to disk.  During a batch,
+	 * the VTOC is held until the batch is committed.
 	 */
 	protected void writeVtoc(byte[] vtoc) {
+		if (isBatchActive()) {
+			batchVtoc = vtoc.clone();
+			return;
+		}
 		writeSector(CATALOG_TRACK, VTOC_SECTOR, vtoc);
 	}
 
+	/**
+	 * Write the VTOC held by the batch.
+	 */
+	protected void flushBatch() {
+		if (batchVtoc != null) {
+			byte[] vtoc = batchVtoc;
+			batchVtoc = null;
+			writeVtoc(vtoc);
+		}
+		catalogCursor = null;
+	}
+
+	/**
+	 * Search the catalog from the beginning the next time a file is
+	 * created during a batch, as an entry has been freed.
+	 */
+	protected void resetCatalogCursor() {
+		catalogCursor = null;
+	}
+
+	/**
+	 * Forget the VTOC held by the batch.
+	 */
+	protected void discardBatch() {
+		batchVtoc = null;
+		catalogCursor = null;
+	}
+
 	/**
 	 * Get the disk usage iterator.
 	 */
@@ -445,22 +510,128 @@ public class DosFormatDisk extends FormattedDisk {
 		int track = dosEntry.getTrack();
 		int sector = dosEntry.getSector();
 		int offset = 0;
+		byte[] trackSectorList = new byte[SECTOR_SIZE];
 		while (track != 0) {
-			byte[] trackSectorList = readSector(track, sector);
+			readSectorInto(track, sector, trackSectorList, 0);
 			track = AppleUtil.getUnsignedByte(trackSectorList[0x01]);
 			sector = AppleUtil.getUnsignedByte(trackSectorList[0x02]);
 			for (int i=0x0c; i<0x100; i+=2) {
 				int t = AppleUtil.getUnsignedByte(trackSectorList[i]);
 				if (t == 0) break;
 				int s = AppleUtil.getUnsignedByte(trackSectorList[i+1]);
-				byte[] sectorData = readSector(t,s);
-				System.arraycopy(sectorData, 0, fileData, offset, sectorData.length);
-				offset+= sectorData.length;
+				readSectorInto(t, s, fileData, offset);
+				offset+= SECTOR_SIZE;
 			}
 		}
 		return fileData;
 	}
 
+	/**
+	 * Open a stream over the data associated with the specified FileEntry.
+	 * This answers with the same bytes as getFileData, reading each
+	 * track/sector list as the stream reaches it.
+	 */
+	public InputStream openInputStream(FileEntry fileEntry) throws IOException {
+		if ( !(fileEntry instanceof DosFileEntry)) {
+			throw new IllegalArgumentException(textBundle.get("DosFormatDisk.InvalidFileEntryError")); //$NON-NLS-1$
+		}
+		DosFileEntry dosEntry = (DosFileEntry) fileEntry;
+		int filesize = dosEntry.getSectorsUsed();
+		int length = (filesize > 0) ? (filesize-1) * SECTOR_SIZE : 0;
+		return openInputStream(dosEntry, 0, length);
+	}
+
+	/**
+	 * Open a stream over length bytes of file data, starting offset bytes
+	 * into the file.  This allows the length and address at the start of
+	 * B, A, and I files to be skipped.
+	 */
+	public InputStream openInputStream(DosFileEntry dosEntry, int offset, int length) 
+			throws IOException {
+		DosFileInputStream inputStream = new DosFileInputStream(dosEntry, offset + length);
+		inputStream.skip(offset);
+		return inputStream;
+	}
+
+	/**
+	 * Reads a file by following its chain of track/sector lists.
+	 */
+	private class DosFileInputStream extends FileDataInputStream {
+		private int track;
+		private int sector;
+		private byte[] trackSectorList;
+		private int trackSectorOffset;
+
+		public DosFileInputStream(DosFileEntry dosEntry, int length) {
+			super(SECTOR_SIZE, length);
+			this.track = (length > 0) ? dosEntry.getTrack() : 0;
+			this.sector = dosEntry.getSector();
+		}
+
+		protected boolean readNextBlock(byte[] buffer) {
+			while (true) {
+				if (trackSectorList == null || trackSectorOffset >= 0x100) {
+					if (track == 0) return false;
+					trackSectorList = readSector(track, sector);
+					track = AppleUtil.getUnsignedByte(trackSectorList[0x01]);
+					sector = AppleUtil.getUnsignedByte(trackSectorList[0x02]);
+					trackSectorOffset = 0x0c;
+				}
+				int t = AppleUtil.getUnsignedByte(trackSectorList[trackSectorOffset]);
+				if (t == 0) {
+					// no more sectors in this list
+					trackSectorOffset = 0x100;
+					continue;
+				}
+				int s = AppleUtil.getUnsignedByte(trackSectorList[trackSectorOffset+1]);
+				trackSectorOffset+= 2;
+				readSectorInto(t, s, buffer, 0);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Open a stream which writes the raw file data as it arrives, as
+	 * setFileData does.
+	 * @see DosFileOutputStream
+	 */
+	public OutputStream openOutputStream(FileEntry fileEntry) throws IOException {
+		if ( !(fileEntry instanceof DosFileEntry)) {
+			throw new IllegalArgumentException(textBundle.get("DosFormatDisk.InvalidFileEntryError")); //$NON-NLS-1$
+		}
+		return new DosFileOutputStream(this, (DosFileEntry) fileEntry, 0);
+	}
+
+	/**
+	 * Read only the first data sector of the file.  The length (and address)
+	 * of B, A, and I files is kept at the start of this sector, so there is
+	 * no need to read the entire file to get them.  Answers null when the
+	 * file has no data sectors.  As with getFileData, a track/sector list
+	 * without any entries yields zeros.
+	 */
+	public byte[] getFirstDataSector(DosFileEntry dosEntry) {
+		if (dosEntry.getSectorsUsed() <= 1) {
+			return null;
+		}
+		byte[] sectorData = new byte[SECTOR_SIZE];
+		int track = dosEntry.getTrack();
+		int sector = dosEntry.getSector();
+		byte[] trackSectorList = new byte[SECTOR_SIZE];
+		while (track != 0) {
+			readSectorInto(track, sector, trackSectorList, 0);
+			int t = AppleUtil.getUnsignedByte(trackSectorList[0x0c]);
+			if (t != 0) {
+				int s = AppleUtil.getUnsignedByte(trackSectorList[0x0d]);
+				readSectorInto(t, s, sectorData, 0);
+				break;
+			}
+			track = AppleUtil.getUnsignedByte(trackSectorList[0x01]);
+			sector = AppleUtil.getUnsignedByte(trackSectorList[0x02]);
+		}
+		return sectorData;
+	}
+
 	/**
 	 * Writes the raw bytes into the file.  This bypasses any special formatting
 	 * of the data (such as prepending the data with a length and/or an address).
@@ -488,11 +659,12 @@ public class DosFormatDisk extends FormattedDisk {
 		// free "old" data and just rewrite stuff...
 		freeSectors(fileEntry);
 		byte[] vtoc = readVtoc();
+		int extentStart = reserveExtent(vtoc, Math.max(1, numberOfSectors));
 		int track = fileEntry.getTrack();
 		int sector = fileEntry.getSector();
-		if (track == 0 || track == 255) {
-			track = 1;
-			sector = 0;
+		if (track == 0 || track == 255 || extentStart != -1) {
+			track = (extentStart != -1) ? extentStart / getSectors() : 1;
+			sector = (extentStart != -1) ? extentStart % getSectors() : 0;
 			while (true) {
 				if (isSectorFree(track,sector,vtoc)) {
 					break;
@@ -511,8 +683,8 @@ public class DosFormatDisk extends FormattedDisk {
 		int offset = 0;
 		int trackSectorOffset = 0x0c;
 		int totalSectors = 0;
-		int t=1;	// initial search for space
-		int s=0;
+		int t = (extentStart != -1) ? track : 1;	// initial search for space
+		int s = (extentStart != -1) ? sector : 0;
 		while (offset < data.length) {
 			// locate next free sector
 			while (true) {
@@ -554,6 +726,67 @@ public class DosFormatDisk extends FormattedDisk {
 		writeVtoc(vtoc);
 	}
 	
+	/**
+	 * When the allocation policy is BEST_FIT_EXTENT, locate the smallest run
+	 * of free sectors (numbered linearly from track 1, sector 0) which holds
+	 * numberOfSectors, data and track/sector lists alike.  Answers the linear
+	 * sector number the run starts at, or -1 to allocate first fit.
+	 */
+	protected int reserveExtent(byte[] vtoc, int numberOfSectors) {
+		if (getAllocationPolicy() != AllocationPolicy.BEST_FIT_EXTENT) {
+			return -1;
+		}
+		int sectors = getSectors();
+		int totalSectors = getTracks() * sectors;
+		int bestStart = -1;
+		int bestLength = Integer.MAX_VALUE;
+		int runStart = -1;
+		for (int unit=sectors; unit<=totalSectors; unit++) {
+			if (unit < totalSectors && isSectorFree(unit / sectors, unit % sectors, vtoc)) {
+				if (runStart == -1) runStart = unit;
+			} else if (runStart != -1) {
+				int runLength = unit - runStart;
+				if (runLength >= numberOfSectors && runLength < bestLength) {
+					bestStart = runStart;
+					bestLength = runLength;
+				}
+				runStart = -1;
+			}
+		}
+		return bestStart;
+	}
+
+	/**
+	 * Answer with the number of contiguous runs of sectors used by the file,
+	 * including its track/sector lists.  Sectors are numbered linearly, so
+	 * a run may continue from the last sector of one track onto the next.
+	 */
+	public int getExtentCount(FileEntry fileEntry) {
+		if ( !(fileEntry instanceof DosFileEntry)) {
+			throw new IllegalArgumentException(textBundle.get("DosFormatDisk.InvalidFileEntryError")); //$NON-NLS-1$
+		}
+		DosFileEntry dosEntry = (DosFileEntry) fileEntry;
+		BitSet sectors = new BitSet();
+		int track = dosEntry.getTrack();
+		if (track == 255) return 0;
+		int sector = dosEntry.getSector();
+		while (track != 0) {
+			int unit = track * getSectors() + sector;
+			if (sectors.get(unit)) break;	// looping track/sector list
+			sectors.set(unit);
+			byte[] trackSectorList = readSector(track, sector);
+			track = AppleUtil.getUnsignedByte(trackSectorList[0x01]);
+			sector = AppleUtil.getUnsignedByte(trackSectorList[0x02]);
+			for (int i=0x0c; i<0x100; i+=2) {
+				int t = AppleUtil.getUnsignedByte(trackSectorList[i]);
+				if (t == 0) break;
+				int s = AppleUtil.getUnsignedByte(trackSectorList[i+1]);
+				sectors.set(t * getSectors() + s);
+			}
+		}
+		return countExtents(sectors);
+	}
+
 	/**
 	 * Free sectors used by a DosFileEntry.
 	 */
@@ -19,6 +19,8 @@
  */
 package com.webcodepro.applecommander.storage.os.dos33;
 
+import java.nio.ByteBuffer;
+
 import com.webcodepro.applecommander.storage.StorageBundle;
 import com.webcodepro.applecommander.storage.physical.ImageOrder;
 import com.webcodepro.applecommander.util.TextBundle;
@@ -121,6 +123,22 @@ public class OzDosFormatDisk extends DosFormatDisk {
 		System.arraycopy(blockData, logicalOffset, sectorData, 0, SECTOR_SIZE);
 		return sectorData;
 	}
+	/**
+	 * Read the specified sector into the given buffer at offset.
+	 */
+	public void readSectorInto(int track, int sector, byte[] buffer, int offset) 
+			throws IllegalArgumentException {
+		readSectorBuffer(track, sector).get(buffer, offset, SECTOR_SIZE);
+	}
+	/**
+	 * Answer with a read-only view of the specified sector.
+	 */
+	public ByteBuffer readSectorBuffer(int track, int sector) throws IllegalArgumentException {
+		ByteBuffer blockData = readBlockBuffer(getBlockNumber(track,sector));
+		blockData.position(logicalOffset);
+		blockData.limit(logicalOffset + SECTOR_SIZE);
+		return blockData.slice();
+	}
 	/**
 	 * Write the specified sector.
 	 */
@@ -129,7 +147,7 @@ public class OzDosFormatDisk extends DosFormatDisk {
 		int blockNumber = getBlockNumber(track,sector);
 		byte[] blockData = readBlock(blockNumber);
 		System.arraycopy(bytes, 0, blockData, logicalOffset, SECTOR_SIZE);
-		getImageOrder().writeBlock(blockNumber, blockData);
+		writeBlock(blockNumber, blockData);
 	}
 	/**
 	 * Compute the block number.
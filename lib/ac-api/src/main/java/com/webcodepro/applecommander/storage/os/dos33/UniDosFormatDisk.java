@@ -19,6 +19,8 @@
  */
 package com.webcodepro.applecommander.storage.os.dos33;
 
+import java.nio.ByteBuffer;
+
 import com.webcodepro.applecommander.storage.StorageBundle;
 import com.webcodepro.applecommander.storage.physical.ImageOrder;
 import com.webcodepro.applecommander.util.TextBundle;
@@ -119,11 +121,26 @@ public class UniDosFormatDisk extends DosFormatDisk {
 		return getImageOrder().readSector(track+logicalOffset, sector);
 	}
 	
+	/**
+	 * Read the specified sector into the given buffer at offset.
+	 */
+	public void readSectorInto(int track, int sector, byte[] buffer, int offset) 
+			throws IllegalArgumentException {
+		getImageOrder().readSectorInto(track+logicalOffset, sector, buffer, offset);
+	}
+	
+	/**
+	 * Answer with a read-only view of the specified sector.
+	 */
+	public ByteBuffer readSectorBuffer(int track, int sector) throws IllegalArgumentException {
+		return getImageOrder().readSectorBuffer(track+logicalOffset, sector);
+	}
+	
 	/**
 	 * Write the specified sector.
 	 */
 	public void writeSector(int track, int sector, byte[] bytes) 
 			throws IllegalArgumentException {
-		getImageOrder().writeSector(track+logicalOffset, sector, bytes);
+		super.writeSector(track+logicalOffset, sector, bytes);
 	}
 }
@@ -116,9 +116,11 @@ public class GutenbergFileEntry implements FileEntry {
 	 * Set the name of this file.
 	 */
 	public void setFilename(String filename) {
+		String oldFilename = isDeleted() ? null : getFilename();
 		byte[] data = readFileEntry();
 		AppleUtil.setString(data, 0, filename.toUpperCase(), getMaximumFilenameLength());
 		writeFileEntry(data);
+		getFormattedDisk().updateFileIndex(this, oldFilename);
 	}
 
 	/**
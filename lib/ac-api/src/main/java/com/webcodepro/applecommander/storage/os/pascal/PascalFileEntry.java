@@ -22,6 +22,7 @@
 package com.webcodepro.applecommander.storage.os.pascal;
 
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -104,7 +105,9 @@ public class PascalFileEntry implements FileEntry {
 	 * Set the name of this file.
 	 */
 	public void setFilename(String filename) {
+		String oldFilename = isDeleted() ? null : getFilename();
 		AppleUtil.setPascalString(fileEntry, 6, filename.toUpperCase(), 15);
+		disk.updateFileIndex(this, oldFilename);
 	}
 
 	/**
@@ -238,6 +241,7 @@ public class PascalFileEntry implements FileEntry {
 			volEntry.setFileCount(count - 2); // inlcudes the volume entry
 			dir.set(0, volEntry);
 			disk.putDirectory(dir);
+			disk.invalidateFileIndex();
 			deleted = true;
 		}
 	}
@@ -306,6 +310,14 @@ public class PascalFileEntry implements FileEntry {
 		return disk.getFileData(this);
 	}
 
+	/**
+	 * Open a stream over the file data, which is read from the disk as the
+	 * stream is read.
+	 */
+	public InputStream openInputStream() {
+		return disk.openInputStream(this);
+	}
+
 	/**
 	 * Filter text: change CR/LF to CR; compress leading SP.
 	 * author John B. Matthews
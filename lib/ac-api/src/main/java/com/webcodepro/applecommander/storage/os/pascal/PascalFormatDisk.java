@@ -21,6 +21,7 @@
  */
 package com.webcodepro.applecommander.storage.os.pascal;
 
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Date;
@@ -29,6 +30,7 @@ import java.util.List;
 import com.webcodepro.applecommander.storage.DirectoryEntry;
 import com.webcodepro.applecommander.storage.DiskFullException;
 import com.webcodepro.applecommander.storage.DiskGeometry;
+import com.webcodepro.applecommander.storage.FileDataInputStream;
 import com.webcodepro.applecommander.storage.FileEntry;
 import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.StorageBundle;
@@ -229,6 +231,8 @@ public class PascalFormatDisk extends FormattedDisk {
 			dir.set(index, entry);
 			// write it back to disk
 			putDirectory(dir);
+			// entries following the new one have moved
+			invalidateFileIndex();
 			return entry;
 		} else {
 			throw new DiskFullException(
@@ -546,6 +550,27 @@ public class PascalFormatDisk extends FormattedDisk {
 		return fileData;
 	}
 	
+	/**
+	 * Open a stream over the data associated with the specified FileEntry.
+	 * Pascal files are contiguous, so the blocks are simply read in order.
+	 */
+	public InputStream openInputStream(FileEntry fileEntry) {
+		if ( !(fileEntry instanceof PascalFileEntry)) {
+			throw new IllegalArgumentException(textBundle.get("PascalFormatDisk.IncorrectFileEntryError")); //$NON-NLS-1$
+		}
+		PascalFileEntry pascalEntry = (PascalFileEntry) fileEntry;
+		final int lastBlock = pascalEntry.getLastBlock();
+		return new FileDataInputStream(BLOCK_SIZE, Math.max(0, pascalEntry.getSize())) {
+			private int block = pascalEntry.getFirstBlock();
+
+			protected boolean readNextBlock(byte[] buffer) {
+				if (block >= lastBlock) return false;
+				readBlockInto(block++, buffer, 0);
+				return true;
+			}
+		};
+	}
+	
 	/**
 	 * Format the disk as an Apple Pascal disk.
 	 * @see com.webcodepro.applecommander.storage.FormattedDisk#format()
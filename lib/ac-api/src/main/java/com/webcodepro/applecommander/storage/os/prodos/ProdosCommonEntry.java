@@ -19,9 +19,11 @@
  */
 package com.webcodepro.applecommander.storage.os.prodos;
 
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 import com.webcodepro.applecommander.storage.FormattedDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
 import com.webcodepro.applecommander.util.AppleUtil;
 
 /**
@@ -47,6 +49,17 @@ public class ProdosCommonEntry {
 	 * The offset into the block that the FileEntry is at.
 	 */
 	private int offset;
+	/**
+	 * The cached fileEntry bytes.  Null until first read.
+	 */
+	private byte[] entry;
+	/**
+	 * The disk image and its modification count when the cached fileEntry
+	 * bytes were read.  Any write to the image (by this entry or otherwise)
+	 * invalidates the cache.
+	 */
+	private ByteArrayImageLayout entryLayout;
+	private long entryModificationCount;
 	
 	/**
 	 * Constructor for ProdosCommonEntry.
@@ -58,6 +71,16 @@ public class ProdosCommonEntry {
 		this.offset = offset;
 	}
 	
+	/**
+	 * Constructor for ProdosCommonEntry where the directory block has
+	 * already been read.  The entry is taken from the block data, so
+	 * no further disk reads are needed until the image changes.
+	 */
+	public ProdosCommonEntry(ProdosFormatDisk disk, int block, int offset, byte[] blockData) {
+		this(disk, block, offset);
+		cacheFileEntry(blockData, offset);
+	}
+	
 	/**
 	 * Get the block in which the FileEntry resides.
 	 */
@@ -76,10 +99,33 @@ public class ProdosCommonEntry {
 	 * Read the fileEntry bytes from the disk image.
 	 */
 	protected byte[] readFileEntry() {
-		byte[] data = disk.readBlock(block);
-		byte[] entry = new byte[ENTRY_LENGTH];
-		System.arraycopy(data, offset, entry, 0, ENTRY_LENGTH);
-		return entry;
+		if (!isCacheValid()) {
+			ByteBuffer data = disk.readBlockBuffer(block);
+			data.position(offset);
+			byte[] bytes = new byte[ENTRY_LENGTH];
+			data.get(bytes);
+			cacheFileEntry(bytes, 0);
+		}
+		return entry.clone();
+	}
+
+	/**
+	 * Remember the fileEntry bytes as of the current disk image.
+	 */
+	private void cacheFileEntry(byte[] data, int start) {
+		entry = new byte[ENTRY_LENGTH];
+		System.arraycopy(data, start, entry, 0, ENTRY_LENGTH);
+		entryLayout = disk.getDiskImageManager();
+		entryModificationCount = entryLayout.getModificationCount();
+	}
+
+	/**
+	 * Indicates if the cached fileEntry bytes still match the disk image.
+	 */
+	private boolean isCacheValid() {
+		ByteArrayImageLayout layout = disk.getDiskImageManager();
+		return entry != null && entryLayout == layout 
+			&& entryModificationCount == layout.getModificationCount();
 	}
 
 	/**
@@ -100,6 +146,7 @@ public class ProdosCommonEntry {
 		byte[] data = disk.readBlock(block);
 		System.arraycopy(entry, 0, data, offset, ENTRY_LENGTH);
 		disk.writeBlock(block, data);
+		cacheFileEntry(entry, 0);
 	}
 
 	/**
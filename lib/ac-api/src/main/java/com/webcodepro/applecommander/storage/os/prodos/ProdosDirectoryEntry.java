@@ -48,6 +48,16 @@ public class ProdosDirectoryEntry extends ProdosFileEntry implements DirectoryEn
 		subdirectoryHeader.setProdosDirectoryEntry(this);
 	}
 
+	/**
+	 * Constructor for ProdosDirectoryEntry from an already read directory block.
+	 */
+	public ProdosDirectoryEntry(ProdosFormatDisk disk, int block, int offset, byte[] blockData,
+			ProdosSubdirectoryHeader subdirectoryHeader) {
+		super(disk, block, offset, blockData);
+		this.subdirectoryHeader = subdirectoryHeader;
+		subdirectoryHeader.setProdosDirectoryEntry(this);
+	}
+
 	/**
 	 * Get the subdirectory header.
 	 */
@@ -19,6 +19,9 @@
  */
 package com.webcodepro.applecommander.storage.os.prodos;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -58,6 +61,13 @@ public class ProdosFileEntry extends ProdosCommonEntry implements FileEntry {
 	public ProdosFileEntry(ProdosFormatDisk disk, int block, int offset) {
 		super(disk, block, offset);
 	}
+
+	/**
+	 * Constructor for ProdosFileEntry from an already read directory block.
+	 */
+	public ProdosFileEntry(ProdosFormatDisk disk, int block, int offset, byte[] blockData) {
+		super(disk, block, offset, blockData);
+	}
 	
 	/**
 	 * Return the name of this file.
@@ -120,6 +130,7 @@ public class ProdosFileEntry extends ProdosCommonEntry implements FileEntry {
 	 * Set the name of this file.
 	 */
 	public void setFilename(String filename) {
+		String oldFilename = isDeleted() ? null : getFilename();
 		byte[] fileEntry = readFileEntry();
 		if (isDeleted()) {
 			AppleUtil.setString(fileEntry, 1, filename.toUpperCase(), 15);
@@ -141,6 +152,7 @@ public class ProdosFileEntry extends ProdosCommonEntry implements FileEntry {
 			setAuxiliaryType(fileEntry, lowByte, highByte);
 		}
 		writeFileEntry(fileEntry);
+		getDisk().updateFileIndex(this, oldFilename);
 	}
 
 	/**
@@ -377,7 +389,12 @@ public class ProdosFileEntry extends ProdosCommonEntry implements FileEntry {
 	 * Delete the file.
 	 */
 	public void delete() {
+		if (isDirectory()) {
+			// the directory key block may be reused by a new directory
+			getDisk().invalidateFileIndex();
+		}
 		getDisk().freeBlocks(this);
+		getDisk().resetDirectoryCursor(getHeaderPointer());
 
 		//decrement file count in header block
 		int headerBlock = getHeaderPointer();
@@ -500,6 +517,22 @@ public class ProdosFileEntry extends ProdosCommonEntry implements FileEntry {
 		return getDisk().getFileData(this);
 	}
 
+	/**
+	 * Open a stream over the file data, which is read from the disk as the
+	 * stream is read.
+	 */
+	public InputStream openInputStream() {
+		return getDisk().openInputStream(this);
+	}
+
+	/**
+	 * Open a stream which writes the file data to the disk as it arrives.
+	 * The file entry is updated when the stream is closed.
+	 */
+	public OutputStream openOutputStream() throws IOException {
+		return getDisk().openOutputStream(this);
+	}
+
 	/**
 	 * Set the file data.  This is essentially the save operation.
 	 * Specifically, if the filetype is binary, the length and
@@ -519,6 +552,22 @@ public class ProdosFileEntry extends ProdosCommonEntry implements FileEntry {
 		getDisk().setFileData(this, dataFork, resourceFork);
 	}
 
+	/**
+	 * Set the file data from a stream of known length.  The data is copied
+	 * onto the disk a block at a time.
+	 */
+	public void setFileData(InputStream data, int length) throws DiskFullException, IOException {
+		getDisk().setFileData(this, data, length);
+	}
+
+	/**
+	 * Set both forks (storage type $05) from streams of known length.
+	 */
+	public void setFileData(InputStream dataFork, int dataLength, InputStream resourceFork, int resourceLength)
+			throws DiskFullException, IOException {
+		getDisk().setFileData(this, dataFork, dataLength, resourceFork, resourceLength);
+	}
+
 	/**
 	 * Get the suggested FileFilter.  This appears to be operating system
 	 * specific, so each operating system needs to implement some manner
@@ -0,0 +1,234 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.os.prodos;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Date;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskFullException;
+
+/**
+ * Writes a ProDOS file as the data arrives.  Each data block is allocated
+ * and written once it fills, so the file is never held in memory.  The file
+ * grows from a seedling to a sapling at the second data block and to a tree
+ * at block 257, with index blocks allocated as they are needed.  When the
+ * disk is set to write sparse files, all-zero data blocks after the first
+ * are left as holes.  The file entry (key block, storage type, blocks used
+ * and EOF) and the Volume Bit Map are updated when the stream is closed.
+ * <p>
+ * The Volume Bit Map is held by the stream while it is open, so the disk
+ * should not otherwise be changed until the stream has been closed.
+ */
+public class ProdosFileOutputStream extends OutputStream {
+	/** The EOF is a 3-byte value. */
+	private static final long MAXIMUM_LENGTH = 0xffffff;
+
+	private ProdosFormatDisk disk;
+	private ProdosFileEntry fileEntry;
+	private ProdosVolumeBitmap bitmap;
+	private byte[] blockData = new byte[Disk.BLOCK_SIZE];
+	/** Next byte to be filled in blockData. */
+	private int position;
+	/** Number of bytes written to the stream. */
+	private long length;
+	private int dataBlocks;
+	private int blocksUsed;
+	private int firstBlockNumber;
+	private int indexBlockNumber;
+	private byte[] indexBlockData;
+	private int masterIndexBlockNumber;
+	private byte[] masterIndexBlockData;
+	/** Set once the disk has filled; whatever was written is kept. */
+	private boolean diskFull;
+	private boolean closed;
+
+	/**
+	 * Begin writing the given file.  Any existing data is released.
+	 */
+	public ProdosFileOutputStream(ProdosFormatDisk disk, ProdosFileEntry fileEntry) {
+		this.disk = disk;
+		this.fileEntry = fileEntry;
+		disk.freeBlocks(fileEntry);
+		this.bitmap = disk.getVolumeBitmap();
+	}
+
+	/**
+	 * Write a single byte.
+	 */
+	public void write(int b) throws IOException {
+		ensureOpen(1);
+		blockData[position++] = (byte) b;
+		length++;
+		if (position == Disk.BLOCK_SIZE) {
+			writeDataBlock();
+		}
+	}
+
+	/**
+	 * Write len bytes from b.
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen(len);
+		while (len > 0) {
+			int count = Math.min(len, Disk.BLOCK_SIZE - position);
+			System.arraycopy(b, off, blockData, position, count);
+			position+= count;
+			length+= count;
+			off+= count;
+			len-= count;
+			if (position == Disk.BLOCK_SIZE) {
+				writeDataBlock();
+			}
+		}
+	}
+
+	/**
+	 * Write the final block and update the file entry and Volume Bit Map.
+	 */
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (!diskFull && (position > 0 || dataBlocks == 0)) {
+				writeDataBlock();	// an empty file still has one data block
+			}
+		} finally {
+			if (dataBlocks == 1) {
+				fileEntry.setKeyPointer(firstBlockNumber);
+				fileEntry.setSeedlingFile();
+			} else if (dataBlocks > 1 && dataBlocks <= 256) {
+				disk.writeBlock(indexBlockNumber, indexBlockData);
+				fileEntry.setKeyPointer(indexBlockNumber);
+				fileEntry.setSaplingFile();
+			} else if (dataBlocks > 256) {
+				if (indexBlockNumber != 0) disk.writeBlock(indexBlockNumber, indexBlockData);
+				disk.writeBlock(masterIndexBlockNumber, masterIndexBlockData);
+				fileEntry.setKeyPointer(masterIndexBlockNumber);
+				fileEntry.setTreeFile();
+			}
+			if (dataBlocks > 0) {
+				fileEntry.setBlocksUsed(blocksUsed);
+				fileEntry.setEofPosition((int) Math.min(length, (long) dataBlocks * Disk.BLOCK_SIZE));
+				fileEntry.setLastModificationDate(new Date());
+			}
+			disk.writeVolumeBitMap(bitmap);
+		}
+	}
+
+	/**
+	 * Write out the current data block and record it in the index blocks,
+	 * growing the file structure as needed.  Every block this step needs is
+	 * reserved before any is used, so a full disk leaves the file and the
+	 * Volume Bit Map as they were after the previous block.
+	 */
+	protected void writeDataBlock() throws IOException {
+		// the first block is always allocated
+		boolean sparse = dataBlocks > 0 && disk.isSparseWrite() && ProdosFormatDisk.isZeroBlock(blockData);
+		boolean toSapling = dataBlocks == 1;
+		boolean indexFull = dataBlocks > 1 && dataBlocks % 256 == 0;
+		boolean toTree = indexFull && masterIndexBlockNumber == 0;
+		// index blocks of a tree file are only allocated once they are needed
+		boolean newIndex = toSapling || (dataBlocks > 1 && !sparse && (indexFull || indexBlockData == null));
+		int[] blocks = allocateBlocks((sparse ? 0 : 1) + (toTree ? 1 : 0) + (newIndex ? 1 : 0));
+		int next = 0;
+
+		if (toSapling) {
+			// seedling to sapling; the index block follows the first data block
+			indexBlockNumber = blocks[next++];
+			indexBlockData = new byte[Disk.BLOCK_SIZE];
+			setIndexEntry(indexBlockData, 0, firstBlockNumber);
+			newIndex = false;
+		}
+		int blockNumber = 0;
+		if (!sparse) {
+			blockNumber = blocks[next++];
+			disk.writeBlock(blockNumber, blockData);
+		}
+		if (indexFull) {
+			if (toTree) {
+				masterIndexBlockNumber = blocks[next++];
+				masterIndexBlockData = new byte[Disk.BLOCK_SIZE];
+				setIndexEntry(masterIndexBlockData, 0, indexBlockNumber);
+			}
+			if (indexBlockNumber != 0) disk.writeBlock(indexBlockNumber, indexBlockData);
+			indexBlockNumber = 0;
+			indexBlockData = null;
+		}
+		if (newIndex) {
+			indexBlockNumber = blocks[next++];
+			indexBlockData = new byte[Disk.BLOCK_SIZE];
+			setIndexEntry(masterIndexBlockData, dataBlocks / 256, indexBlockNumber);
+		}
+		if (dataBlocks == 0) {
+			firstBlockNumber = blockNumber;
+		} else if (!sparse) {
+			setIndexEntry(indexBlockData, dataBlocks % 256, blockNumber);
+		}
+		dataBlocks++;
+		Arrays.fill(blockData, (byte) 0);
+		position = 0;
+	}
+
+	/**
+	 * Allocate the given number of blocks, or none at all if the disk
+	 * cannot hold them all.
+	 */
+	private int[] allocateBlocks(int count) throws IOException {
+		int[] blocks = new int[count];
+		int allocated = 0;
+		try {
+			while (allocated < count) {
+				blocks[allocated] = disk.findFreeBlock(bitmap);
+				disk.setBlockUsed(bitmap, blocks[allocated]);
+				allocated++;
+			}
+		} catch (DiskFullException ex) {
+			for (int i=0; i<allocated; i++) {
+				disk.setBlockFree(bitmap, blocks[i]);
+			}
+			diskFull = true;
+			throw new IOException(ex.getMessage(), ex);
+		}
+		blocksUsed+= count;
+		return blocks;
+	}
+
+	private static void setIndexEntry(byte[] index, int i, int blockNumber) {
+		index[i] = (byte)(blockNumber % 256);
+		index[i+0x100] = (byte)(blockNumber / 256);
+	}
+
+	private void ensureOpen(int count) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed"); //$NON-NLS-1$
+		}
+		if (diskFull) {
+			throw new IOException("Disk is full"); //$NON-NLS-1$
+		}
+		if (length + count > MAXIMUM_LENGTH) {
+			throw new IOException("File is too large for ProDOS"); //$NON-NLS-1$
+		}
+	}
+}
@@ -19,23 +19,33 @@
  */
 package com.webcodepro.applecommander.storage.os.prodos;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.HashSet;
 
+import com.webcodepro.applecommander.storage.AllocationPolicy;
 import com.webcodepro.applecommander.storage.DirectoryEntry;
 import com.webcodepro.applecommander.storage.DiskException;
 import com.webcodepro.applecommander.storage.DiskCorruptException;
 import com.webcodepro.applecommander.storage.DiskFullException;
 import com.webcodepro.applecommander.storage.DiskGeometry;
+import com.webcodepro.applecommander.storage.FileDataInputStream;
 import com.webcodepro.applecommander.storage.FileEntry;
 import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.StorageBundle;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
 import com.webcodepro.applecommander.storage.physical.ImageOrder;
 import com.webcodepro.applecommander.util.AppleUtil;
 import com.webcodepro.applecommander.util.TextBundle;
@@ -81,6 +91,28 @@ public class ProdosFormatDisk extends FormattedDisk {
 	 * Hold on to the volume directory header.
 	 */
 	private ProdosVolumeDirectoryHeader volumeHeader;
+	/**
+	 * The Volume Bit Map as last read or written, along with the disk image
+	 * and modification count it was read from.  Any other change to the
+	 * disk image causes it to be read again.
+	 */
+	private ProdosVolumeBitmap volumeBitmap;
+	private ByteArrayImageLayout volumeBitmapLayout;
+	private long volumeBitmapModificationCount;
+	/**
+	 * Indicates that all-zero data blocks are left as holes when writing.
+	 */
+	private boolean sparseWrite;
+	/**
+	 * The Volume Bit Map as held during a batch, accumulating the changed
+	 * bitmap blocks.  Null when not changed by the batch.
+	 */
+	private ProdosVolumeBitmap batchBitmap;
+	/**
+	 * The directory block in which a free entry was last found during a
+	 * batch, keyed by the key block of the directory.
+	 */
+	private Map<Integer,Integer> directoryCursors = new HashMap<>();
 
 	/**
 	 * This class holds filetype mappings.
@@ -116,7 +148,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 	 */
 	private class ProdosDiskUsage implements DiskUsage {
 		private int location = -1;
-		private transient byte[] data = null;
+		private transient ProdosVolumeBitmap data = null;
 		public boolean hasNext() {
 			return location == -1 || location < getVolumeHeader().getTotalBlocks() - 1;
 		}
@@ -132,9 +164,9 @@ public class ProdosFormatDisk extends FormattedDisk {
 						.get("ProdosFormatDisk.InvalidDimensionError")); //$NON-NLS-1$
 			}
 			if (data == null) {
-				data = readVolumeBitMap();
+				data = loadVolumeBitmap();
 			}
-			return isBlockFree(data, location);
+			return data.isBlockFree(location);
 		}
 		public boolean isUsed() {
 			return !isFree();
@@ -210,12 +242,20 @@ public class ProdosFormatDisk extends FormattedDisk {
 			
 		int blockNumber = directory.getFileEntryBlock();
 		int headerBlock = blockNumber;
+		Integer cursor = isBatchActive() ? directoryCursors.get(headerBlock) : null;
+		if (cursor != null) {
+			// entries before the cursor were in use when last searched
+			blockNumber = cursor;
+		}
 		while (blockNumber != 0) {
 			byte[] block = readBlock(blockNumber);
 			int offset = 4;
 			while (offset+ProdosCommonEntry.ENTRY_LENGTH < BLOCK_SIZE) {
 				int value = AppleUtil.getUnsignedByte(block[offset]);
 				if ((value & 0xf0) == 0) {
+					if (isBatchActive()) {
+						directoryCursors.put(headerBlock, blockNumber);
+					}
 					ProdosFileEntry fileEntry = 
 						new ProdosFileEntry(this, blockNumber, offset);
 					fileEntry.setKeyPointer(0); //may have been recycled
@@ -236,7 +276,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 			}
 			int nextBlockNumber = AppleUtil.getWordValue(block, NEXT_BLOCK_POINTER);
 			if (nextBlockNumber == 0 && directory instanceof ProdosSubdirectoryHeader) {
-				byte[] volumeBitmap = readVolumeBitMap();
+				ProdosVolumeBitmap volumeBitmap = getVolumeBitmap();
 				nextBlockNumber = findFreeBlock(volumeBitmap);
 				setBlockUsed(volumeBitmap, nextBlockNumber);
 				writeVolumeBitMap(volumeBitmap);
@@ -254,6 +294,11 @@ public class ProdosFormatDisk extends FormattedDisk {
 			}
 			blockNumber = nextBlockNumber;
 		}
+		if (cursor != null) {
+			// an entry before the cursor may have been freed elsewhere
+			directoryCursors.remove(headerBlock);
+			return createFile(directory);
+		}
 		if (directory instanceof ProdosSubdirectoryHeader) {
 		    throw new DiskFullException(textBundle.get("ProdosFormatDisk.UnableToAllocateSpaceError"), this.getFilename()); //$NON-NLS-1$
 		} else {
@@ -285,17 +330,16 @@ public class ProdosFormatDisk extends FormattedDisk {
 			byte[] block = readBlock(blockNumber);
 			int offset = 4;
 			while (offset+ProdosCommonEntry.ENTRY_LENGTH < BLOCK_SIZE) {
-				ProdosCommonEntry tester = 
-					new ProdosCommonEntry(this, blockNumber, offset);
-				if (tester.isVolumeHeader() || tester.isSubdirectoryHeader()) {
+				// Entries decode from the block already read
+				ProdosFileEntry fileEntry = 
+					new ProdosFileEntry(this, blockNumber, offset, block);
+				if (fileEntry.isVolumeHeader() || fileEntry.isSubdirectoryHeader()) {
 					// ignore it, we've already got it
-				} else if (!tester.isEmpty()) {
-					ProdosFileEntry fileEntry = 
-						new ProdosFileEntry(this, blockNumber, offset);
+				} else if (!fileEntry.isEmpty()) {
 					if (fileEntry.isDirectory()) {
 						int keyPointer = fileEntry.getKeyPointer();
 						ProdosDirectoryEntry directoryEntry =
-							new ProdosDirectoryEntry(this, blockNumber, offset,
+							new ProdosDirectoryEntry(this, blockNumber, offset, block,
 								new ProdosSubdirectoryHeader(this, keyPointer));
 						files.add(directoryEntry);
 					} else {
@@ -321,16 +365,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 	 * Return the number of free blocks on the disk.
 	 */
 	public int getFreeBlocks() {
-		int freeBlocks = 0;
-		int blocksToProcess = (volumeHeader.getTotalBlocks() + 4095) / 4096;
-		int blockNumber = volumeHeader.getBitMapPointer();
-		for (int ix=0; ix<blocksToProcess; ix++) {
-			byte[] block = readBlock(blockNumber+ix);
-			for (int byt=0; byt<block.length; byt++) {
-				freeBlocks+= AppleUtil.getBitCount(block[byt]);
-			}
-		}
-		return freeBlocks;
+		return loadVolumeBitmap().getFreeBlocks();
 	}
 
 	/**
@@ -546,7 +581,8 @@ public class ProdosFormatDisk extends FormattedDisk {
 
 	/**
 	 * Get the data associated with the specified FileEntry.
-	 * Note that this could return a 16MB file!  Sparse files are not treated specially.
+	 * Note that this could return a 16MB file!  Sparse blocks (and missing
+	 * index blocks of a tree file) are left as zeros.
 	 */
 	public byte[] getFileData(FileEntry fileEntry) {
 		if ( !(fileEntry instanceof ProdosFileEntry)) {
@@ -555,21 +591,25 @@ public class ProdosFormatDisk extends FormattedDisk {
 		ProdosFileEntry prodosEntry = (ProdosFileEntry) fileEntry;
 		byte[] fileData = new byte[prodosEntry.getEofPosition()];
 		if (prodosEntry.isSeedlingFile()) {
-			byte[] blockData = readBlock(prodosEntry.getKeyPointer());
-			System.arraycopy(blockData, 0, fileData, 0, prodosEntry.getEofPosition());
+			readBlockBuffer(prodosEntry.getKeyPointer()).get(fileData, 0, prodosEntry.getEofPosition());
 		} else if (prodosEntry.isSaplingFile()) {
-			byte[] indexBlock = readBlock(prodosEntry.getKeyPointer());
+			byte[] indexBlock = new byte[BLOCK_SIZE];
+			readBlockInto(prodosEntry.getKeyPointer(), indexBlock, 0);
 			getIndexBlockData(fileData, indexBlock, 0);
 		} else if (prodosEntry.isTreeFile()) {
 			byte[] masterIndexBlock = readBlock(prodosEntry.getKeyPointer());
+			byte[] indexBlock = new byte[BLOCK_SIZE];
 			int offset = 0;
 			for (int i=0; i<0x100; i++) {
 				int blockNumber = AppleUtil.getWordValue(masterIndexBlock[i], masterIndexBlock[i+0x100]);
 				if (blockNumber > 0) {
-					// FIXME - this may break sparse files!
-					byte[] indexBlock = readBlock(blockNumber);
+					readBlockInto(blockNumber, indexBlock, 0);
 					offset= getIndexBlockData(fileData, indexBlock, offset);
+				} else {
+					// no index block; all 256 data blocks are sparse
+					offset= Math.min(offset + 0x100 * BLOCK_SIZE, fileData.length);
 				}
+				if (offset >= fileData.length) break;
 			}
 		} else {
 			throw new IllegalArgumentException(textBundle.get("ProdosFormatDisk.UnknownStorageType")); //$NON-NLS-1$
@@ -577,11 +617,82 @@ public class ProdosFormatDisk extends FormattedDisk {
 		return fileData;
 	}
 
+	/**
+	 * Open a stream over the data associated with the specified FileEntry.
+	 * Index blocks are read as the stream reaches them, so only a few blocks
+	 * are held in memory regardless of the size of the file.  Sparse blocks
+	 * (including missing index blocks of a tree file) read as zeros.
+	 */
+	public InputStream openInputStream(FileEntry fileEntry) {
+		if ( !(fileEntry instanceof ProdosFileEntry)) {
+			throw new IllegalArgumentException(textBundle.get("ProdosFormatDisk.MustHaveEntry")); //$NON-NLS-1$
+		}
+		ProdosFileEntry prodosEntry = (ProdosFileEntry) fileEntry;
+		if (!prodosEntry.isSeedlingFile() && !prodosEntry.isSaplingFile() && !prodosEntry.isTreeFile()) {
+			throw new IllegalArgumentException(textBundle.get("ProdosFormatDisk.UnknownStorageType")); //$NON-NLS-1$
+		}
+		return new ProdosFileInputStream(prodosEntry);
+	}
+
+	/**
+	 * Reads a seedling, sapling or tree file a block at a time.
+	 */
+	private class ProdosFileInputStream extends FileDataInputStream {
+		private int storageType;
+		private int keyBlock;
+		private byte[] masterIndexBlock;
+		private byte[] indexBlock;
+		/** Number of data blocks which have been read so far. */
+		private int blockCount;
+
+		public ProdosFileInputStream(ProdosFileEntry fileEntry) {
+			super(BLOCK_SIZE, fileEntry.getEofPosition());
+			this.storageType = fileEntry.getStorageType();
+			this.keyBlock = fileEntry.getKeyPointer();
+		}
+
+		protected boolean readNextBlock(byte[] buffer) {
+			int blockNumber;
+			if (storageType == 0x01) {
+				if (blockCount > 0) return false;
+				blockNumber = keyBlock;
+			} else if (storageType == 0x02) {
+				if (blockCount >= 0x100) return false;
+				if (indexBlock == null) indexBlock = readBlock(keyBlock);
+				blockNumber = getIndexEntry(indexBlock, blockCount);
+			} else {
+				if (blockCount >= 0x10000) return false;
+				if (masterIndexBlock == null) masterIndexBlock = readBlock(keyBlock);
+				if (blockCount % 0x100 == 0) {
+					int indexBlockNumber = getIndexEntry(masterIndexBlock, blockCount / 0x100);
+					indexBlock = (indexBlockNumber == 0) ? null : readBlock(indexBlockNumber);
+				}
+				blockNumber = (indexBlock == null) ? 0 : getIndexEntry(indexBlock, blockCount % 0x100);
+			}
+			if (blockNumber != 0) readBlockInto(blockNumber, buffer, 0);
+			blockCount++;
+			return true;
+		}
+
+		private int getIndexEntry(byte[] index, int i) {
+			return AppleUtil.getWordValue(index[i], index[i+0x100]);
+		}
+	}
+
 	/**
 	 * Free blocks used by a ProdosFileEntry.
 	 */
 	protected void freeBlocks(ProdosFileEntry prodosFileEntry) {
-		byte[] bitmap = readVolumeBitMap();
+		if (prodosFileEntry.getKeyPointer() == 0) return;	// new entry
+		ProdosVolumeBitmap bitmap = getVolumeBitmap();
+		freeBlocks(bitmap, prodosFileEntry);
+		writeVolumeBitMap(bitmap);
+	}
+
+	/**
+	 * Mark the blocks used by a ProdosFileEntry as free in the given bitmap.
+	 */
+	private void freeBlocks(ProdosVolumeBitmap bitmap, ProdosFileEntry prodosFileEntry) {
 		int block = prodosFileEntry.getKeyPointer();
 		if (block == 0) return;	// new entry
 		if (prodosFileEntry.isGEOSFile()) {
@@ -605,13 +716,12 @@ public class ProdosFormatDisk extends FormattedDisk {
 				}
 			}
 		}
-		writeVolumeBitMap(bitmap);
 	}
 
 	/**
 	 * Free the given index block and the data blocks it points to.
 	 */
-	private void freeBlocksInIndex(byte[] bitmap, int indexBlockNumber, boolean isGEOS) {
+	private void freeBlocksInIndex(ProdosVolumeBitmap bitmap, int indexBlockNumber, boolean isGEOS) {
 		setBlockFree(bitmap, indexBlockNumber);
 		byte[] indexBlock = readBlock(indexBlockNumber);
 		for (int i=0; i<0x100; i++) {
@@ -625,6 +735,115 @@ public class ProdosFormatDisk extends FormattedDisk {
 		}
 	}
 
+	/**
+	 * Directories are identified in the file index by their key block.
+	 */
+	protected Object getDirectoryKey(DirectoryEntry directory) {
+		if (directory == this) {
+			return volumeHeader.getFileEntryBlock();
+		} else if (directory instanceof ProdosDirectoryEntry) {
+			return ((ProdosDirectoryEntry) directory).getSubdirectoryHeader().getFileEntryBlock();
+		}
+		return super.getDirectoryKey(directory);
+	}
+
+	/**
+	 * The header pointer of a file entry is the key block of its directory.
+	 */
+	protected Object getParentKey(FileEntry fileEntry) {
+		if (fileEntry instanceof ProdosFileEntry) {
+			return ((ProdosFileEntry) fileEntry).getHeaderPointer();
+		}
+		return super.getParentKey(fileEntry);
+	}
+
+	/**
+	 * An entry is located by the directory block which holds it.  Every entry
+	 * in that block belongs to the same directory, whatever its header
+	 * pointer says (older images may have a wrong one).
+	 */
+	protected Object getEntryLocation(FileEntry fileEntry) {
+		if (fileEntry instanceof ProdosCommonEntry) {
+			return ((ProdosCommonEntry) fileEntry).getFileEntryBlock();
+		}
+		return super.getEntryLocation(fileEntry);
+	}
+
+	/**
+	 * Answer with the number of contiguous runs of blocks used by the file,
+	 * including its key and index blocks.  Answers -1 for a storage type
+	 * that is not understood.
+	 */
+	public int getExtentCount(FileEntry fileEntry) {
+		if ( !(fileEntry instanceof ProdosFileEntry)) {
+			throw new IllegalArgumentException(textBundle.get("ProdosFormatDisk.MustHaveEntry")); //$NON-NLS-1$
+		}
+		ProdosFileEntry prodosEntry = (ProdosFileEntry) fileEntry;
+		BitSet blocks = new BitSet();
+		int keyBlock = prodosEntry.getKeyPointer();
+		if (prodosEntry.isGEOSFile()) {
+			blocks.set(prodosEntry.getAuxiliaryType());
+		}
+		if (prodosEntry.isForkedFile()) {
+			blocks.set(keyBlock);
+			byte[] extendedKeyBlock = readBlock(keyBlock);
+			for (int fork=0; fork<0x200; fork+= 0x100) {
+				int storageType = extendedKeyBlock[fork] & 0xff;
+				int forkKeyBlock = AppleUtil.getWordValue(extendedKeyBlock, fork+1);
+				if (!collectBlocks(blocks, storageType, forkKeyBlock, false)) return -1;
+			}
+		} else if (prodosEntry.isDirectory()) {
+			int blockNumber = keyBlock;
+			while (blockNumber != 0 && !blocks.get(blockNumber)) {
+				blocks.set(blockNumber);
+				blockNumber = AppleUtil.getWordValue(readBlock(blockNumber), NEXT_BLOCK_POINTER);
+			}
+		} else if (!collectBlocks(blocks, prodosEntry.getStorageType(), keyBlock, 
+				prodosEntry.isGEOSFile())) {
+			return -1;
+		}
+		return countExtents(blocks);
+	}
+
+	/**
+	 * Record the key, index and data blocks of a seedling, sapling or tree
+	 * file.  Answers false for any other storage type.
+	 */
+	private boolean collectBlocks(BitSet blocks, int storageType, int keyBlock, boolean isGEOS) {
+		if (keyBlock == 0) return true;
+		blocks.set(keyBlock);
+		switch (storageType) {
+		case 0x01:
+			return true;
+		case 0x02:
+			collectIndexBlocks(blocks, readBlock(keyBlock), isGEOS);
+			return true;
+		case 0x03:
+			byte[] masterIndexBlock = readBlock(keyBlock);
+			for (int i=0; i<(isGEOS ? 0xfe : 0x100); i++) {
+				int indexBlockNumber = AppleUtil.getWordValue(
+						masterIndexBlock[i], masterIndexBlock[i+0x100]);
+				if (indexBlockNumber > 0) {
+					blocks.set(indexBlockNumber);
+					collectIndexBlocks(blocks, readBlock(indexBlockNumber), isGEOS);
+				}
+			}
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Record the data blocks pointed to by an index block.
+	 */
+	private void collectIndexBlocks(BitSet blocks, byte[] indexBlock, boolean isGEOS) {
+		for (int i=0; i<(isGEOS ? 0xfe : 0x100); i++) {
+			int blockNumber = AppleUtil.getWordValue(indexBlock[i], indexBlock[i+0x100]);
+			if (blockNumber > 0) blocks.set(blockNumber);
+		}
+	}
+
 	/**
 	 * Read file data from the given index block.
 	 * Note that block number 0 is an unused block.
@@ -632,15 +851,14 @@ public class ProdosFormatDisk extends FormattedDisk {
 	protected int getIndexBlockData(byte[] fileData, byte[] indexBlock, int offset) {
 		for (int i=0; i<0x100; i++) {
 			int blockNumber = AppleUtil.getWordValue(indexBlock[i], indexBlock[i+0x100]);
-			byte[] blockData = readBlock(blockNumber);
-			if (offset + blockData.length > fileData.length) { // end of file
+			if (offset + BLOCK_SIZE > fileData.length) { // end of file
 				int bytesToCopy = fileData.length - offset;
-				if (blockNumber != 0) System.arraycopy(blockData, 0, fileData, offset, bytesToCopy);
+				if (blockNumber != 0) readBlockBuffer(blockNumber).get(fileData, offset, bytesToCopy);
 				offset+= bytesToCopy;
 				break;
 			}
-			if (blockNumber != 0) System.arraycopy(blockData, 0, fileData, offset, blockData.length);
-			offset+= blockData.length;
+			if (blockNumber != 0) readBlockInto(blockNumber, fileData, offset);
+			offset+= BLOCK_SIZE;
 		}
 		return offset;
 	}
@@ -656,10 +874,39 @@ public class ProdosFormatDisk extends FormattedDisk {
 		if (fileEntry.isGEOSFile()) {
 			// If this is a GEOS file, things are a bit different.
 			setGEOSFileData(fileEntry, fileData);
+		} else {
+			try {
+				setFileData(fileEntry, new ByteArrayInputStream(fileData), fileData.length);
+			} catch (IOException ex) {
+				// An in-memory stream does not fail
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Set the data associated with the specified ProdosFileEntry, reading
+	 * fileLength bytes from the stream one block at a time.  The data is
+	 * written to the disk as it is read, so it is never held in memory in
+	 * its entirety (other than for GEOS files).
+	 * <p>
+	 * The data is written to free blocks; the old blocks are only released
+	 * and the file entry updated once the stream has supplied fileLength
+	 * bytes.  If the stream fails or ends early, the file is unchanged and
+	 * the blocks written so far remain free.  Replacing a file therefore
+	 * requires room for the new data alongside the old.
+	 */
+	public void setFileData(ProdosFileEntry fileEntry, InputStream fileData, int fileLength) 
+		throws DiskFullException, IOException {
+
+		if (fileEntry.isGEOSFile()) {
+			byte[] data = new byte[fileLength];
+			readBlockData(fileData, data, fileLength);
+			setGEOSFileData(fileEntry, data);
 		} else {
 			// compute free space and see if the data will fit!
-			int numberOfDataBlocks = (fileData.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
-			if (fileData.length == 0) numberOfDataBlocks = 1;
+			int numberOfDataBlocks = (fileLength + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			if (fileLength == 0) numberOfDataBlocks = 1;
 			int numberOfBlocks = numberOfDataBlocks;
 			if (numberOfBlocks > 1) {
 				numberOfBlocks+= ((numberOfDataBlocks-1) / 256) + 1;	// that's 128K
@@ -667,19 +914,16 @@ public class ProdosFormatDisk extends FormattedDisk {
 					numberOfBlocks++;
 				}
 			}
-			if (numberOfBlocks > getFreeBlocks() + fileEntry.getBlocksUsed()) {
+			if (numberOfBlocks > getFreeBlocks()) {
 				throw new DiskFullException(textBundle.
 						format("ProdosFormatDisk.NotEnoughSpaceOnDiskError", //$NON-NLS-1$
 								numberOfBlocks, getFreeBlocks())
 						, this.getFilename());
 			}
-			// free "old" data and just rewrite stuff...
-			freeBlocks(fileEntry);
-			byte[] bitmap = readVolumeBitMap();
-			int blockNumber = fileEntry.getKeyPointer();
-			if (blockNumber == 0) {
-				blockNumber = findFreeBlock(bitmap);
-			}
+			// the old blocks stay in use until all of the data has been read
+			ProdosVolumeBitmap bitmap = getVolumeBitmap();
+			reserveExtent(bitmap, numberOfBlocks);
+			int blockNumber = 0;
 			int indexBlockNumber = 0;
 			byte[] indexBlockData = null;
 			int masterIndexBlockNumber = 0;
@@ -687,14 +931,18 @@ public class ProdosFormatDisk extends FormattedDisk {
 			int offset = 0;
 			int blockCount = 0;
 			// Need to let a file length go through once
-			while ((offset < fileData.length) || ((fileData.length == 0) && (offset == 0))){
-				if (blockCount > 0) blockNumber = findFreeBlock(bitmap);
-				setBlockUsed(bitmap, blockNumber);
-				blockCount++;
+			while ((offset < fileLength) || ((fileLength == 0) && (offset == 0))){
 				byte[] blockData = new byte[BLOCK_SIZE];
-				int length = Math.min(BLOCK_SIZE, fileData.length - offset);
-				System.arraycopy(fileData,offset,blockData,0,length);
-				writeBlock(blockNumber, blockData);
+				int length = Math.min(BLOCK_SIZE, fileLength - offset);
+				readBlockData(fileData, blockData, length);
+				// the first block is always allocated
+				boolean sparse = isSparseWrite() && offset > 0 && isZeroBlock(blockData);
+				if (!sparse) {
+					blockNumber = findFreeBlock(bitmap);
+					setBlockUsed(bitmap, blockNumber);
+					blockCount++;
+					writeBlock(blockNumber, blockData);
+				}
 				if (numberOfDataBlocks > 1) {
 					// growing to a tree file
 					if (offset > 0 && (offset / BLOCK_SIZE) % 256 == 0) {
@@ -703,10 +951,15 @@ public class ProdosFormatDisk extends FormattedDisk {
 							setBlockUsed(bitmap, masterIndexBlockNumber);
 							blockCount++;
 						}
-						writeBlock(indexBlockNumber, indexBlockData);
+						if (indexBlockNumber != 0) writeBlock(indexBlockNumber, indexBlockData);
 						indexBlockData = null;
 						indexBlockNumber = 0;
 					}
+					if (sparse) {
+						// leave a hole; an index block is only allocated once it is needed
+						offset+= BLOCK_SIZE;
+						continue;
+					}
 					// new index block
 					if (indexBlockData == null) {	// sapling files
 						indexBlockNumber = findFreeBlock(bitmap);
@@ -729,6 +982,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 				}
 				offset+= BLOCK_SIZE;
 			}
+			freeBlocks(bitmap, fileEntry);
 			if (numberOfDataBlocks == 1) {
 				fileEntry.setKeyPointer(blockNumber);
 				fileEntry.setSeedlingFile();
@@ -737,17 +991,49 @@ public class ProdosFormatDisk extends FormattedDisk {
 				fileEntry.setKeyPointer(indexBlockNumber);
 				fileEntry.setSaplingFile();
 			} else {
-				writeBlock(indexBlockNumber, indexBlockData);
+				if (indexBlockNumber != 0) writeBlock(indexBlockNumber, indexBlockData);
 				writeBlock(masterIndexBlockNumber, masterIndexBlockData);
 				fileEntry.setKeyPointer(masterIndexBlockNumber);
 				fileEntry.setTreeFile();
 			}
 			fileEntry.setBlocksUsed(blockCount);
-			fileEntry.setEofPosition(fileData.length);
+			fileEntry.setEofPosition(fileLength);
 			fileEntry.setLastModificationDate(new Date());
 			writeVolumeBitMap(bitmap);
 		}
 	}
+
+	/**
+	 * Open a stream which writes the file as the data arrives, allocating
+	 * blocks as they fill.  GEOS files are collected in memory and written
+	 * on close.
+	 * @see ProdosFileOutputStream
+	 */
+	public OutputStream openOutputStream(FileEntry fileEntry) throws IOException {
+		if ( !(fileEntry instanceof ProdosFileEntry)) {
+			throw new IllegalArgumentException(textBundle.get("ProdosFormatDisk.MustHaveEntry")); //$NON-NLS-1$
+		}
+		ProdosFileEntry prodosEntry = (ProdosFileEntry) fileEntry;
+		if (prodosEntry.isGEOSFile()) {
+			return super.openOutputStream(fileEntry);
+		}
+		return new ProdosFileOutputStream(this, prodosEntry);
+	}
+
+	/**
+	 * Fill the start of a block buffer from the stream.  The remainder of
+	 * the buffer is left as-is.
+	 */
+	protected static void readBlockData(InputStream input, byte[] blockData, int length) throws IOException {
+		int offset = 0;
+		while (offset < length) {
+			int count = input.read(blockData, offset, length - offset);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			offset += count;
+		}
+	}
 	
 	/**
 	 * Set the data associated with the specified ProdosFileEntry into sectors
@@ -758,11 +1044,27 @@ public class ProdosFormatDisk extends FormattedDisk {
 	protected void setFileData(ProdosFileEntry fileEntry, byte[] dataFork, byte[] resourceFork) 
 		throws DiskFullException {
 
-		int dataLength = 0, resourceLength = 0;
-		if (dataFork != null)
-			dataLength = dataFork.length;
-		if (resourceFork != null)
-			resourceLength = resourceFork.length;
+		byte[] empty = new byte[0];
+		if (dataFork == null)
+			dataFork = empty;
+		if (resourceFork == null)
+			resourceFork = empty;
+		try {
+			setFileData(fileEntry, new ByteArrayInputStream(dataFork), dataFork.length, 
+				new ByteArrayInputStream(resourceFork), resourceFork.length);
+		} catch (IOException ex) {
+			// An in-memory stream does not fail
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Set both forks of the specified ProdosFileEntry (storage type $05),
+	 * reading each fork from its stream one block at a time.
+	 */
+	public void setFileData(ProdosFileEntry fileEntry, InputStream dataFork, int dataLength, 
+			InputStream resourceFork, int resourceLength) throws DiskFullException, IOException {
+
 		// compute free space and see if the data will fit!
 		int numberOfDataBlocks = (dataLength + BLOCK_SIZE - 1) / BLOCK_SIZE +
 			(resourceLength + BLOCK_SIZE - 1) / BLOCK_SIZE;
@@ -781,7 +1083,8 @@ public class ProdosFormatDisk extends FormattedDisk {
 		}
 		// free "old" data and just rewrite stuff...
 		freeBlocks(fileEntry);
-		byte[] bitmap = readVolumeBitMap();
+		ProdosVolumeBitmap bitmap = getVolumeBitmap();
+		reserveExtent(bitmap, numberOfBlocks + 1);	// includes the extended key block
 		int blockNumber = fileEntry.getKeyPointer();
 		if (blockNumber == 0) {
 			blockNumber = findFreeBlock(bitmap);
@@ -803,7 +1106,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 			blockCount++;
 			byte[] blockData = new byte[BLOCK_SIZE];
 			int length = Math.min(BLOCK_SIZE, dataLength - offset);
-			System.arraycopy(dataFork,offset,blockData,0,length);
+			readBlockData(dataFork, blockData, length);
 			writeBlock(blockNumber, blockData);
 			if (numberOfDataBlocks > 1) {
 				// growing to a tree file
@@ -867,7 +1170,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 			blockCount++;
 			byte[] blockData = new byte[BLOCK_SIZE];
 			int length = Math.min(BLOCK_SIZE, resourceLength - offset);
-			System.arraycopy(resourceFork,offset,blockData,0,length);
+			readBlockData(resourceFork, blockData, length);
 			writeBlock(blockNumber, blockData);
 			if (numberOfDataBlocks > 1) {
 				// growing to a tree file
@@ -949,7 +1252,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 		}
 		// free "old" data and just rewrite stuff...
 		freeBlocks(fileEntry);
-		byte[] bitmap = readVolumeBitMap();
+		ProdosVolumeBitmap bitmap = getVolumeBitmap();
 
 		// Place the first BLOCK_SIZE bytes of data in a block pointed to by the aux address.
 		int headerBlockNumber = findFreeBlock(bitmap);
@@ -970,7 +1273,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 	/**
 	 * Set the GEOS "sapling" file data.
 	 */
-	protected void setGEOSSaplingData(byte[] bitmap, ProdosFileEntry fileEntry, byte[] fileData)
+	protected void setGEOSSaplingData(ProdosVolumeBitmap bitmap, ProdosFileEntry fileEntry, byte[] fileData)
 		throws DiskFullException {
 
 		int indexBlockNumber = findFreeBlock(bitmap);
@@ -1009,7 +1312,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 	/**
 	 * Set the GEOS "tree" file data.
 	 */
-	protected void setGEOSTreeData(byte[] bitmap, ProdosFileEntry fileEntry, byte[] fileData)
+	protected void setGEOSTreeData(ProdosVolumeBitmap bitmap, ProdosFileEntry fileEntry, byte[] fileData)
 		throws DiskFullException {
 
 		int masterIndexBlockNumber = findFreeBlock(bitmap);
@@ -1077,6 +1380,78 @@ public class ProdosFormatDisk extends FormattedDisk {
 	/**
 	 * Locate a free block in the Volume Bitmap.
 	 */
+	protected int findFreeBlock(ProdosVolumeBitmap volumeBitmap) throws DiskFullException {
+		int block = -1;
+		if (volumeBitmap.getAllocationStart() > 0) {
+			block = volumeBitmap.findFreeBlock(volumeBitmap.getAllocationStart());
+		}
+		if (block == -1) {
+			block = volumeBitmap.findFreeBlock(1);
+		}
+		if (block != -1) {
+			if ((block+1) * BLOCK_SIZE <= getPhysicalSize()) {
+				return block;
+			}
+			throw new ProdosDiskSizeDoesNotMatchException(
+				textBundle.get("ProdosFormatDisk.ProdosDiskSizeDoesNotMatchError") //$NON-NLS-1$
+				, this.getFilename());
+		}
+		throw new DiskFullException(
+			textBundle.get("ProdosFormatDisk.NoFreeBlockAvailableError") //$NON-NLS-1$
+			, this.getFilename());
+	}
+
+	/**
+	 * Indicates if all-zero data blocks are left unallocated when a file is
+	 * written, as ProDOS itself does.
+	 */
+	public boolean isSparseWrite() {
+		return sparseWrite;
+	}
+
+	/**
+	 * Set whether all-zero data blocks are left unallocated when a file is
+	 * written.  The first data block is always allocated.  This is off by
+	 * default so every block of a file is allocated.
+	 */
+	public void setSparseWrite(boolean sparseWrite) {
+		this.sparseWrite = sparseWrite;
+	}
+
+	/**
+	 * Indicates if a block contains only zeros.
+	 */
+	protected static boolean isZeroBlock(byte[] blockData) {
+		for (byte b : blockData) {
+			if (b != 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * When the allocation policy is BEST_FIT_EXTENT, locate the smallest run
+	 * of free blocks that holds numberOfBlocks (data and index blocks) and
+	 * have findFreeBlock allocate from the start of that run.  Answers true
+	 * if such a run was found; otherwise allocation remains first fit.
+	 */
+	protected boolean reserveExtent(ProdosVolumeBitmap volumeBitmap, int numberOfBlocks) {
+		if (getAllocationPolicy() != AllocationPolicy.BEST_FIT_EXTENT) {
+			return false;
+		}
+		int limit = Math.min(volumeBitmap.getTotalBlocks(), getPhysicalSize() / BLOCK_SIZE);
+		int start = volumeBitmap.findBestFitRun(numberOfBlocks, limit);
+		if (start == -1) {
+			return false;
+		}
+		volumeBitmap.setAllocationStart(start);
+		return true;
+	}
+
+	/**
+	 * Locate a free block in the Volume Bitmap.
+	 * @deprecated use {@link #findFreeBlock(ProdosVolumeBitmap)}
+	 */
+	@Deprecated
 	protected int findFreeBlock(byte[] volumeBitmap) throws DiskFullException {
 		int block = 1;
 		int blocksOnDisk = getBitmapLength();
@@ -1097,7 +1472,36 @@ public class ProdosFormatDisk extends FormattedDisk {
 	}
 	
 	/**
-	 * Read the Volume Bit Map.
+	 * Write the Volume Bit Map held by the batch.
+	 */
+	protected void flushBatch() {
+		if (batchBitmap != null) {
+			ProdosVolumeBitmap bitmap = batchBitmap;
+			batchBitmap = null;
+			storeVolumeBitMap(bitmap);
+		}
+		directoryCursors.clear();
+	}
+
+	/**
+	 * Forget the Volume Bit Map held by the batch.
+	 */
+	protected void discardBatch() {
+		batchBitmap = null;
+		directoryCursors.clear();
+	}
+
+	/**
+	 * Search the given directory from its first block the next time a
+	 * file is created during a batch, as an entry has been freed.
+	 */
+	protected void resetDirectoryCursor(int headerBlock) {
+		directoryCursors.remove(headerBlock);
+	}
+
+	/**
+	 * Read the Volume Bit Map.  During a batch, this includes the changes
+	 * held by the batch.
 	 */
 	public byte[] readVolumeBitMap() {
 		int volumeBitmapBlock = volumeHeader.getBitMapPointer();
@@ -1108,6 +1512,10 @@ public class ProdosFormatDisk extends FormattedDisk {
 		for (int i=0; i<blocksToRead; i++) {
 			System.arraycopy(readBlock(volumeBitmapBlock+i), 0, data, i*BLOCK_SIZE, BLOCK_SIZE);
 		}
+		if (batchBitmap != null) {
+			byte[] held = batchBitmap.toBytes();
+			System.arraycopy(held, 0, data, 0, Math.min(held.length, data.length));
+		}
 		return data;
 	}
 	
@@ -1115,6 +1523,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 	 * Write the Volume Bit Map.
 	 */
 	public void writeVolumeBitMap(byte[] data) {
+		batchBitmap = null;
 		int volumeBitmapBlock = volumeHeader.getBitMapPointer();
 		int volumeBitmapBlocks = volumeHeader.getTotalBlocks();
 		int blocksToWrite = (volumeBitmapBlocks / 4096) + 1;
@@ -1129,6 +1538,92 @@ public class ProdosFormatDisk extends FormattedDisk {
 		}
 	}
 	
+	/**
+	 * Answer with a copy of the Volume Bit Map which may be changed and then
+	 * saved with writeVolumeBitMap.  The bitmap is only read from disk when
+	 * the disk image has changed since it was last read or written.
+	 */
+	public ProdosVolumeBitmap getVolumeBitmap() {
+		return new ProdosVolumeBitmap(loadVolumeBitmap());
+	}
+
+	/**
+	 * Answer with the cached Volume Bit Map, reading it if needed.  This
+	 * must not be changed.
+	 */
+	protected ProdosVolumeBitmap loadVolumeBitmap() {
+		if (batchBitmap != null) {
+			return batchBitmap;
+		}
+		ByteArrayImageLayout layout = getDiskImageManager();
+		if (volumeBitmap == null || volumeBitmapLayout != layout 
+				|| volumeBitmapModificationCount != layout.getModificationCount()) {
+			int totalBlocks = volumeHeader.getTotalBlocks();
+			int bitmapBlocks = (totalBlocks + ProdosVolumeBitmap.BLOCKS_PER_BITMAP_BLOCK - 1) 
+				/ ProdosVolumeBitmap.BLOCKS_PER_BITMAP_BLOCK;
+			int bitmapBlock = volumeHeader.getBitMapPointer();
+			byte[] data = new byte[bitmapBlocks * BLOCK_SIZE];
+			for (int i=0; i<bitmapBlocks; i++) {
+				readBlockInto(bitmapBlock+i, data, i*BLOCK_SIZE);
+			}
+			volumeBitmap = new ProdosVolumeBitmap(data, totalBlocks);
+			volumeBitmapLayout = layout;
+			volumeBitmapModificationCount = layout.getModificationCount();
+		}
+		return volumeBitmap;
+	}
+
+	/**
+	 * Write the changed blocks of the Volume Bit Map.  During a batch, the
+	 * bitmap is held until the batch is committed.
+	 */
+	public void writeVolumeBitMap(ProdosVolumeBitmap bitmap) {
+		if (isBatchActive()) {
+			// changed flags carry over, so the held copy accumulates them
+			batchBitmap = new ProdosVolumeBitmap(bitmap);
+		} else {
+			storeVolumeBitMap(bitmap);
+		}
+	}
+
+	/**
+	 * Write the changed blocks of the Volume Bit Map to the disk image.
+	 */
+	private void storeVolumeBitMap(ProdosVolumeBitmap bitmap) {
+		int volumeBitmapBlock = volumeHeader.getBitMapPointer();
+		for (int i=0; i<bitmap.getBitmapBlocks(); i++) {
+			if (bitmap.hasChanged(i)) {
+				writeBlock(volumeBitmapBlock+i, bitmap.getBitmapBlock(i));
+			}
+		}
+		bitmap.clearChanges();
+		ByteArrayImageLayout layout = getDiskImageManager();
+		volumeBitmap = new ProdosVolumeBitmap(bitmap);
+		volumeBitmapLayout = layout;
+		volumeBitmapModificationCount = layout.getModificationCount();
+	}
+
+	/**
+	 * Determine if the specified block is free.
+	 */
+	public boolean isBlockFree(ProdosVolumeBitmap bitmap, int blockNumber) {
+		return bitmap.isBlockFree(blockNumber);
+	}
+
+	/**
+	 * Set if the specified block is free.
+	 */
+	public void setBlockFree(ProdosVolumeBitmap bitmap, int blockNumber) {
+		bitmap.setBlockFree(blockNumber);
+	}
+
+	/**
+	 * Set if the specified block is used.
+	 */
+	public void setBlockUsed(ProdosVolumeBitmap bitmap, int blockNumber) {
+		bitmap.setBlockUsed(blockNumber);
+	}
+
 	/**
 	 * Determine if the specified block is free.
 	 */
@@ -1203,7 +1698,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 		volumeHeader.setBitMapPointer(6);
 		volumeHeader.setTotalBlocks(totalBlocks);
 		// setup bitmap usage
-		byte[] bitmap = readVolumeBitMap();
+		ProdosVolumeBitmap bitmap = getVolumeBitmap();
 		for (int block=0; block<totalBlocks; block++) {
 			if (block < usedBlocks) {
 				setBlockUsed(bitmap, block);
@@ -1382,7 +1877,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 				int value = AppleUtil.getUnsignedByte(block[offset]);
 				if ((value & 0xf0) == 0) {
 					// First, create a new block to contain our subdirectory
-					byte[] volumeBitmap = readVolumeBitMap();
+					ProdosVolumeBitmap volumeBitmap = getVolumeBitmap();
 					int newDirBlockNumber = findFreeBlock(volumeBitmap);
 					setBlockUsed(volumeBitmap, newDirBlockNumber);
 					// Clean out the block - it may have been recycled, and control structures need to be gone
@@ -1414,7 +1909,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 					fileEntry.setCanRename(true);
 					fileEntry.setCanWrite(true);
 					fileEntry.setSubdirectory();
-					fileEntry.setHeaderPointer(blockNumber);
+					fileEntry.setHeaderPointer(directory.getFileEntryBlock());
 					fileEntry.setFilename(name);
 					fileEntry.setFiletype(0x0f); // Filetype = subdirectory
 					directory.incrementFileCount();
@@ -1425,7 +1920,7 @@ public class ProdosFormatDisk extends FormattedDisk {
 			}
 			int nextBlockNumber = AppleUtil.getWordValue(block, NEXT_BLOCK_POINTER);
 			if (nextBlockNumber == 0 && directory instanceof ProdosSubdirectoryHeader) {
-				byte[] volumeBitmap = readVolumeBitMap();
+				ProdosVolumeBitmap volumeBitmap = getVolumeBitmap();
 				nextBlockNumber = findFreeBlock(volumeBitmap);
 				setBlockUsed(volumeBitmap, nextBlockNumber);
 				writeVolumeBitMap(volumeBitmap);
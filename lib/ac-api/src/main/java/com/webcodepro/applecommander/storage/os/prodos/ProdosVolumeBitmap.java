@@ -0,0 +1,285 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.os.prodos;
+
+import java.util.Arrays;
+
+import com.webcodepro.applecommander.storage.Disk;
+
+/**
+ * An in-memory copy of the ProDOS Volume Bit Map.  The bitmap is kept as
+ * 64-bit words in the same bit order as on disk (the first block of each
+ * word is the high bit), so a free block can be located a word at a time
+ * with Long.numberOfLeadingZeros.  A running count of free blocks and a
+ * hint of the lowest block that may be free are maintained as blocks are
+ * allocated and released.
+ * <p>
+ * Changes are tracked per bitmap block so writing the bitmap back only
+ * touches the blocks which have changed.
+ */
+public class ProdosVolumeBitmap {
+	/**
+	 * Number of blocks described by one bitmap block.
+	 */
+	public static final int BLOCKS_PER_BITMAP_BLOCK = Disk.BLOCK_SIZE * 8;
+	private static final int WORDS_PER_BITMAP_BLOCK = BLOCKS_PER_BITMAP_BLOCK / 64;
+
+	/** The bitmap; a set bit indicates a free block. */
+	private long[] words;
+	/** Number of blocks on the volume. */
+	private int totalBlocks;
+	/** Number of set bits in words. */
+	private int freeBlocks;
+	/** No block below this one is free. */
+	private int nextFreeHint;
+	/** Bitmap blocks which have been changed. */
+	private boolean[] changedBlocks;
+	/** Preferred block to allocate from; 0 when there is no preference. */
+	private int allocationStart;
+
+	/**
+	 * Create the bitmap from the bytes of the Volume Bit Map blocks.
+	 */
+	public ProdosVolumeBitmap(byte[] data, int totalBlocks) {
+		if (data.length % Disk.BLOCK_SIZE != 0) {
+			throw new IllegalArgumentException("Bitmap must be a whole number of blocks"); //$NON-NLS-1$
+		}
+		this.totalBlocks = totalBlocks;
+		this.words = new long[data.length / 8];
+		for (int i=0; i<words.length; i++) {
+			long word = 0;
+			for (int b=0; b<8; b++) {
+				word = (word << 8) | (data[i*8+b] & 0xff);
+			}
+			words[i] = word;
+			freeBlocks+= Long.bitCount(word);
+		}
+		this.changedBlocks = new boolean[data.length / Disk.BLOCK_SIZE];
+		this.nextFreeHint = 0;
+	}
+
+	/**
+	 * Create a copy of another bitmap.
+	 */
+	public ProdosVolumeBitmap(ProdosVolumeBitmap bitmap) {
+		this.words = bitmap.words.clone();
+		this.totalBlocks = bitmap.totalBlocks;
+		this.freeBlocks = bitmap.freeBlocks;
+		this.nextFreeHint = bitmap.nextFreeHint;
+		this.changedBlocks = bitmap.changedBlocks.clone();
+	}
+
+	/**
+	 * Answer with the number of blocks on the volume.
+	 */
+	public int getTotalBlocks() {
+		return totalBlocks;
+	}
+
+	/**
+	 * Answer with the number of bitmap blocks.
+	 */
+	public int getBitmapBlocks() {
+		return changedBlocks.length;
+	}
+
+	/**
+	 * Answer with the number of free blocks.  As with the original block
+	 * count, every bit in the bitmap blocks is counted.
+	 */
+	public int getFreeBlocks() {
+		return freeBlocks;
+	}
+
+	/**
+	 * Determine if the specified block is free.
+	 */
+	public boolean isBlockFree(int blockNumber) {
+		return (words[blockNumber >> 6] & mask(blockNumber)) != 0;
+	}
+
+	/**
+	 * Mark the specified block as free.
+	 */
+	public void setBlockFree(int blockNumber) {
+		int i = blockNumber >> 6;
+		long mask = mask(blockNumber);
+		if ((words[i] & mask) == 0) {
+			words[i] |= mask;
+			freeBlocks++;
+			changedBlocks[i / WORDS_PER_BITMAP_BLOCK] = true;
+		}
+		if (blockNumber < nextFreeHint) {
+			nextFreeHint = blockNumber;
+		}
+	}
+
+	/**
+	 * Mark the specified block as used.
+	 */
+	public void setBlockUsed(int blockNumber) {
+		int i = blockNumber >> 6;
+		long mask = mask(blockNumber);
+		if ((words[i] & mask) != 0) {
+			words[i] &= ~mask;
+			freeBlocks--;
+			changedBlocks[i / WORDS_PER_BITMAP_BLOCK] = true;
+		}
+	}
+
+	/**
+	 * Locate the lowest free block at or after the given block.  Answers
+	 * -1 if there is no such block on the volume.
+	 */
+	public int findFreeBlock(int fromBlock) {
+		int block = Math.max(fromBlock, nextFreeHint);
+		int i = block >> 6;
+		if (i >= words.length) {
+			return -1;
+		}
+		long word = words[i] & (-1L >>> (block & 63));
+		while (word == 0) {
+			i++;
+			if (i >= words.length || i * 64 >= totalBlocks) {
+				if (fromBlock <= nextFreeHint) nextFreeHint = totalBlocks;
+				return -1;
+			}
+			word = words[i];
+		}
+		int found = i * 64 + Long.numberOfLeadingZeros(word);
+		if (found >= totalBlocks) {
+			if (fromBlock <= nextFreeHint) nextFreeHint = totalBlocks;
+			return -1;
+		}
+		if (fromBlock <= nextFreeHint) {
+			// everything from the hint up to this block is in use
+			nextFreeHint = found;
+		}
+		return found;
+	}
+
+	/**
+	 * Locate the lowest used block at or after the given block.  Answers
+	 * with the number of blocks on the volume if there is no such block.
+	 */
+	public int findUsedBlock(int fromBlock) {
+		int i = fromBlock >> 6;
+		if (i >= words.length) {
+			return totalBlocks;
+		}
+		long word = ~words[i] & (-1L >>> (fromBlock & 63));
+		while (word == 0) {
+			i++;
+			if (i >= words.length || i * 64 >= totalBlocks) {
+				return totalBlocks;
+			}
+			word = ~words[i];
+		}
+		return Math.min(i * 64 + Long.numberOfLeadingZeros(word), totalBlocks);
+	}
+
+	/**
+	 * Locate the smallest run of free blocks below limit that holds at
+	 * least length blocks, answering with the first block of that run.
+	 * Answers -1 if no run is long enough.
+	 */
+	public int findBestFitRun(int length, int limit) {
+		limit = Math.min(limit, totalBlocks);
+		int bestStart = -1;
+		int bestLength = Integer.MAX_VALUE;
+		int start = findFreeBlock(1);
+		while (start != -1 && start < limit) {
+			int end = Math.min(findUsedBlock(start), limit);
+			int runLength = end - start;
+			if (runLength >= length && runLength < bestLength) {
+				bestStart = start;
+				bestLength = runLength;
+				if (runLength == length) break;	// cannot do better
+			}
+			if (end >= limit) break;
+			start = findFreeBlock(end);
+		}
+		return bestStart;
+	}
+
+	/**
+	 * Answer with the block allocation should begin from, or 0 if there
+	 * is no preference.
+	 */
+	public int getAllocationStart() {
+		return allocationStart;
+	}
+
+	/**
+	 * Set the block allocation should begin from.  This is not part of the
+	 * on-disk bitmap and is not carried over to copies.
+	 */
+	public void setAllocationStart(int allocationStart) {
+		this.allocationStart = allocationStart;
+	}
+
+	/**
+	 * Indicates if the given bitmap block has changed.
+	 */
+	public boolean hasChanged(int bitmapBlock) {
+		return changedBlocks[bitmapBlock];
+	}
+
+	/**
+	 * Copy one bitmap block out in the on-disk format.
+	 */
+	public byte[] getBitmapBlock(int bitmapBlock) {
+		byte[] data = new byte[Disk.BLOCK_SIZE];
+		int start = bitmapBlock * WORDS_PER_BITMAP_BLOCK;
+		for (int i=0; i<WORDS_PER_BITMAP_BLOCK; i++) {
+			long word = words[start+i];
+			for (int b=7; b>=0; b--) {
+				data[i*8+b] = (byte) word;
+				word >>>= 8;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Answer with the bitmap in the on-disk format.
+	 */
+	public byte[] toBytes() {
+		byte[] data = new byte[changedBlocks.length * Disk.BLOCK_SIZE];
+		for (int i=0; i<changedBlocks.length; i++) {
+			System.arraycopy(getBitmapBlock(i), 0, data, i * Disk.BLOCK_SIZE, Disk.BLOCK_SIZE);
+		}
+		return data;
+	}
+
+	/**
+	 * Forget any changes, typically once the bitmap has been written.
+	 */
+	public void clearChanges() {
+		Arrays.fill(changedBlocks, false);
+	}
+
+	/**
+	 * Answer with the bit for a block within its word.
+	 */
+	private static long mask(int blockNumber) {
+		return 1L << (63 - (blockNumber & 63));
+	}
+}
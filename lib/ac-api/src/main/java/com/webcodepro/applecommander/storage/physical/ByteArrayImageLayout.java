@@ -19,6 +19,15 @@
  */
 package com.webcodepro.applecommander.storage.physical;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.webcodepro.applecommander.storage.Disk;
+
 /**
  * Manages the layout of the physical disk.  This hides implementation details, 
  * such as if the disk is in 2IMG order.
@@ -35,7 +44,41 @@ public class ByteArrayImageLayout {
 	 * Indicates if the disk image has changed.
 	 */
 	private boolean changed;
+	/**
+	 * Identifies the 512-byte regions of the physical image which have been
+	 * written since the image was last saved.  Null indicates the entire
+	 * image needs to be written.
+	 */
+	private BitSet changedBlocks;
+	/**
+	 * The file which holds this disk image as of the last load or save.
+	 * The changed blocks are relative to this file.
+	 */
+	private File backingFile;
+	/**
+	 * Incremented whenever the disk image is written or replaced.  Allows
+	 * information derived from the image to be cached safely.
+	 */
+	private long modificationCount;
+	/**
+	 * Original contents of each 512-byte region written since the journal
+	 * was started, keyed by region number.  Null when not journaling.
+	 */
+	private Map<Integer,byte[]> journal;
+	/**
+	 * The changed indicator and changed blocks as of the start of the journal.
+	 */
+	private boolean journalChanged;
+	private BitSet journalChangedBlocks;
 	
+	/**
+	 * Construct a ByteArrayImageLayout without a backing array.  This is
+	 * intended for subclasses that supply the disk image by other means.
+	 */
+	protected ByteArrayImageLayout() {
+		// empty
+	}
+
 	/**
 	 * Construct a ByteArrayImageLayout.
 	 */
@@ -48,7 +91,7 @@ public class ByteArrayImageLayout {
 	 */
 	public ByteArrayImageLayout(byte[] diskImage, boolean changed) {
 		setDiskImage(diskImage);
-		this.changed = changed;
+		setChanged(changed);
 	}
 	
 	/**
@@ -72,6 +115,8 @@ public class ByteArrayImageLayout {
 	public void setDiskImage(byte[] diskImage) {
 		this.diskImage = diskImage;
 		changed = true;
+		changedBlocks = null;
+		modificationCount++;
 	}
 
 	/**
@@ -86,16 +131,106 @@ public class ByteArrayImageLayout {
 	 */
 	public byte[] readBytes(int start, int length) {
 		byte[] buffer = new byte[length];
-		System.arraycopy(diskImage, start, buffer, 0, length);
+		readBytes(start, buffer, 0, length);
 		return buffer;
 	}
+
+	/**
+	 * Copy a portion of the disk image into the given buffer.
+	 */
+	public void readBytes(int start, byte[] buffer, int offset, int length) {
+		System.arraycopy(diskImage, start, buffer, offset, length);
+	}
+
+	/**
+	 * Answer with a read-only view of a portion of the disk image.
+	 * No data is copied; the view reflects later writes to the image.
+	 */
+	public ByteBuffer readBuffer(int start, int length) {
+		return ByteBuffer.wrap(diskImage, start, length).slice().asReadOnlyBuffer();
+	}
 	
 	/**
 	 * Write data to the disk image.
 	 */
 	public void writeBytes(int start, byte[] bytes) {
+		if (journal != null) {
+			journalRegions(start, bytes.length);
+		}
 		changed = true;
+		modificationCount++;
 		System.arraycopy(bytes, 0, diskImage, start, bytes.length);
+		if (changedBlocks != null && bytes.length > 0) {
+			changedBlocks.set(start / Disk.BLOCK_SIZE, 
+				(start + bytes.length + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE);
+		}
+	}
+
+	/**
+	 * Record the original contents of the regions about to be written.
+	 */
+	private void journalRegions(int start, int length) {
+		for (int region = start / Disk.BLOCK_SIZE; region * Disk.BLOCK_SIZE < start + length; region++) {
+			if (!journal.containsKey(region)) {
+				int offset = region * Disk.BLOCK_SIZE;
+				journal.put(region, Arrays.copyOfRange(diskImage, offset, 
+					Math.min(offset + Disk.BLOCK_SIZE, diskImage.length)));
+			}
+		}
+	}
+
+	/**
+	 * Start recording the original contents of everything written to the
+	 * disk image, so that the writes can be undone by rollbackJournal.
+	 */
+	public void beginJournal() {
+		if (journal != null) {
+			throw new IllegalStateException("Journal has already been started"); //$NON-NLS-1$
+		}
+		journal = new HashMap<>();
+		journalChanged = changed;
+		journalChangedBlocks = getChangedBlocks();
+	}
+
+	/**
+	 * Indicates if writes are being journaled.
+	 */
+	public boolean isJournaling() {
+		return journal != null;
+	}
+
+	/**
+	 * Stop journaling and keep all writes.
+	 */
+	public void endJournal() {
+		journal = null;
+		journalChangedBlocks = null;
+	}
+
+	/**
+	 * Undo every write made since beginJournal and stop journaling.  The
+	 * changed indicator and changed blocks are restored as well.
+	 */
+	public void rollbackJournal() {
+		if (journal == null) {
+			throw new IllegalStateException("Journal has not been started"); //$NON-NLS-1$
+		}
+		for (Map.Entry<Integer,byte[]> entry : journal.entrySet()) {
+			byte[] original = entry.getValue();
+			System.arraycopy(original, 0, diskImage, entry.getKey() * Disk.BLOCK_SIZE, original.length);
+		}
+		changed = journalChanged;
+		changedBlocks = journalChangedBlocks;
+		modificationCount++;
+		endJournal();
+	}
+
+	/**
+	 * Answer with a counter that changes every time the disk image is
+	 * written or replaced.  Unlike hasChanged, this is not reset by a save.
+	 */
+	public long getModificationCount() {
+		return modificationCount;
 	}
 
 	/**
@@ -107,9 +242,35 @@ public class ByteArrayImageLayout {
 	}
 	
 	/**
-	 * Set the changed indicator.
+	 * Set the changed indicator.  Clearing it also clears the changed
+	 * blocks; setting it marks the entire image as changed.
 	 */
 	public void setChanged(boolean changed) {
 		this.changed = changed;
+		this.changedBlocks = changed ? null : new BitSet();
+	}
+
+	/**
+	 * Answer with the 512-byte regions of the physical image (including any
+	 * header) which have been written since the last save.  Answers null when
+	 * the entire image must be written, such as after the image was replaced.
+	 */
+	public BitSet getChangedBlocks() {
+		return (changedBlocks == null) ? null : (BitSet) changedBlocks.clone();
+	}
+
+	/**
+	 * Answer with the file which held this disk image as of the last load
+	 * or save.  Null if there is no such file (new or compressed images).
+	 */
+	public File getBackingFile() {
+		return backingFile;
+	}
+
+	/**
+	 * Set the file which holds this disk image.
+	 */
+	public void setBackingFile(File backingFile) {
+		this.backingFile = backingFile;
 	}
 }
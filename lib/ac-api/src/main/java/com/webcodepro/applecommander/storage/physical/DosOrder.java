@@ -19,6 +19,8 @@
  */
 package com.webcodepro.applecommander.storage.physical;
 
+import java.nio.ByteBuffer;
+
 import com.webcodepro.applecommander.storage.Disk;
 import com.webcodepro.applecommander.storage.StorageBundle;
 import com.webcodepro.applecommander.util.TextBundle;
@@ -30,6 +32,17 @@ import com.webcodepro.applecommander.util.TextBundle;
  */
 public class DosOrder extends ImageOrder {
 	private TextBundle textBundle = StorageBundle.getInstance();
+	/**
+	 * The DOS sectors holding the first half of each ProDOS block
+	 * within a track.
+	 */
+	private static final int[] sectorMapping1 = { 0, 13, 11, 9, 7, 5, 3, 1 };
+	/**
+	 * The DOS sectors holding the second half of each ProDOS block
+	 * within a track.
+	 */
+	private static final int[] sectorMapping2 = { 14, 12, 10, 8, 6, 4, 2, 15 };
+
 	/**
 	 * Construct a DosOrder.
 	 */
@@ -58,6 +71,21 @@ public class DosOrder extends ImageOrder {
 		return readBytes(getOffset(track, sector), Disk.SECTOR_SIZE);
 	}
 	
+	/**
+	 * Read the specified sector into the given buffer at offset.
+	 */
+	public void readSectorInto(int track, int sector, byte[] buffer, int offset) 
+			throws IllegalArgumentException {
+		readBytes(getOffset(track, sector), buffer, offset, Disk.SECTOR_SIZE);
+	}
+	
+	/**
+	 * Answer with a read-only view of the specified sector.
+	 */
+	public ByteBuffer readSectorBuffer(int track, int sector) throws IllegalArgumentException {
+		return readBuffer(getOffset(track, sector), Disk.SECTOR_SIZE);
+	}
+	
 	/**
 	 * Write the specified sector.
 	 */
@@ -93,18 +121,22 @@ public class DosOrder extends ImageOrder {
 	 * Note: Defined in terms of reading sectors.
 	 */
 	public byte[] readBlock(int block) {
-		int track = block / 8;
-		int sectorIndex = block % 8;
-		int[] sectorMapping1 = { 0, 13, 11, 9, 7, 5, 3, 1 };
-		int[] sectorMapping2 = { 14, 12, 10, 8, 6, 4, 2, 15 };
-		int sector1 = sectorMapping1[sectorIndex];
-		int sector2 = sectorMapping2[sectorIndex];
 		byte[] blockData = new byte[Disk.BLOCK_SIZE];
-		System.arraycopy(readSector(track, sector1), 0, blockData, 0, Disk.SECTOR_SIZE);
-		System.arraycopy(readSector(track, sector2), 0, blockData, Disk.SECTOR_SIZE, Disk.SECTOR_SIZE);
+		readBlockInto(block, blockData, 0);
 		return blockData;
 	}
 	
+	/**
+	 * Read the block from the disk image into the given buffer at offset.
+	 * Note: Defined in terms of reading sectors.
+	 */
+	public void readBlockInto(int block, byte[] buffer, int offset) {
+		int track = block / 8;
+		int sectorIndex = block % 8;
+		readSectorInto(track, sectorMapping1[sectorIndex], buffer, offset);
+		readSectorInto(track, sectorMapping2[sectorIndex], buffer, offset + Disk.SECTOR_SIZE);
+	}
+	
 	/**
 	 * Write the block to the disk image.
 	 * Note: Defined in terms of reading sectors.
@@ -112,8 +144,6 @@ public class DosOrder extends ImageOrder {
 	public void writeBlock(int block, byte[] data) {
 		int track = block / 8;
 		int sectorIndex = block % 8;
-		int[] sectorMapping1 = { 0, 13, 11, 9, 7, 5, 3, 1 };
-		int[] sectorMapping2 = { 14, 12, 10, 8, 6, 4, 2, 15 };
 		int sector1 = sectorMapping1[sectorIndex];
 		int sector2 = sectorMapping2[sectorIndex];
 		byte[] sectorData = new byte[Disk.SECTOR_SIZE];
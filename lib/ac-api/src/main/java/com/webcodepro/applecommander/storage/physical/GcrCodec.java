@@ -0,0 +1,151 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.physical;
+
+/**
+ * Encodes and decodes the 6 and 2 data field used by DOS 3.3 and ProDOS on
+ * 16 sector disks.  The primary source of information for this process is
+ * Beneath Apple DOS, chapter 3.
+ * <p>
+ * All translation is table driven and the codec does not allocate while
+ * encoding or decoding; callers supply the source and destination buffers.
+ * Nibble buffers are treated as circular (as a track is), so a data field
+ * may wrap around the end of the buffer.
+ * <p>
+ * A codec instance holds a small scratch buffer and is therefore not
+ * thread-safe.  Use one instance per thread.
+ */
+public class GcrCodec {
+	/**
+	 * Number of disk bytes in an encoded data field, excluding the prologue
+	 * and epilogue: 342 data nibbles plus the checksum.
+	 */
+	public static final int DATA_FIELD_SIZE = 343;
+	/**
+	 * Number of auxiliary nibbles, which hold the low 2 bits of each byte.
+	 */
+	private static final int AUX_SIZE = 0x56;
+	/**
+	 * This is the 6 and 2 write translate table, as given in Beneath
+	 * Apple DOS, pg 3-21.
+	 */
+	private static final byte[] WRITE_TRANSLATE_TABLE = {
+		//$0          $1          $2          $3          $4          $5          $6          $7 
+		(byte)0x96, (byte)0x97, (byte)0x9a, (byte)0x9b, (byte)0x9d, (byte)0x9e, (byte)0x9f, (byte)0xa6, // +$00 
+		(byte)0xa7, (byte)0xab, (byte)0xac, (byte)0xad, (byte)0xae, (byte)0xaf, (byte)0xb2, (byte)0xb3, // +$08
+		(byte)0xb4, (byte)0xb5, (byte)0xb6, (byte)0xb7, (byte)0xb9, (byte)0xba, (byte)0xbb, (byte)0xbc, // +$10
+		(byte)0xbd, (byte)0xbe, (byte)0xbf, (byte)0xcb, (byte)0xcd, (byte)0xce, (byte)0xcf, (byte)0xd3, // +$18
+		(byte)0xd6, (byte)0xd7, (byte)0xd9, (byte)0xda, (byte)0xdb, (byte)0xdc, (byte)0xdd, (byte)0xde, // +$20
+		(byte)0xdf, (byte)0xe5, (byte)0xe6, (byte)0xe7, (byte)0xe9, (byte)0xea, (byte)0xeb, (byte)0xec, // +$28
+		(byte)0xed, (byte)0xee, (byte)0xef, (byte)0xf2, (byte)0xf3, (byte)0xf4, (byte)0xf5, (byte)0xf6, // +$30
+		(byte)0xf7, (byte)0xf9, (byte)0xfa, (byte)0xfb, (byte)0xfc, (byte)0xfd, (byte)0xfe, (byte)0xff  // +$38
+	};
+	/**
+	 * The read translate table, indexed by disk byte.  Disk bytes which are
+	 * not valid 6 and 2 values decode to zero.
+	 */
+	static final int[] READ_TRANSLATE_TABLE = new int[256];
+	/**
+	 * The low 2 bits of each byte are stored reversed.  This table reverses
+	 * every bit pair in a byte, so an entire auxiliary nibble is handled with
+	 * a single lookup.
+	 */
+	private static final int[] REVERSE_PAIRS_TABLE = new int[256];
+	static {
+		for (int i=0; i<WRITE_TRANSLATE_TABLE.length; i++) {
+			READ_TRANSLATE_TABLE[WRITE_TRANSLATE_TABLE[i] & 0xff] = i;
+		}
+		for (int i=0; i<REVERSE_PAIRS_TABLE.length; i++) {
+			int value = 0;
+			for (int pair=0; pair<8; pair+=2) {
+				int bits = (i >> pair) & 0x03;
+				value |= ((bits >> 1) | ((bits & 0x01) << 1)) << pair;
+			}
+			REVERSE_PAIRS_TABLE[i] = value;
+		}
+	}
+
+	/**
+	 * Decoded auxiliary values, with bit pairs already reversed.
+	 */
+	private final int[] aux = new int[AUX_SIZE];
+	/**
+	 * Decoded upper 6 bits of each data byte.
+	 */
+	private final int[] high = new int[256];
+
+	/**
+	 * Decode the data field that begins at offset (just past the data field
+	 * prologue) into 256 bytes of sectorData, starting at sectorOffset.
+	 * If the checksum does not match, sectorData is left untouched.
+	 * @return true if the checksum matched
+	 */
+	public boolean decode(byte[] nibbles, int offset, byte[] sectorData, int sectorOffset) {
+		int position = offset % nibbles.length;
+		int checksum = 0;
+		for (int i=0; i<AUX_SIZE; i++) {
+			checksum ^= READ_TRANSLATE_TABLE[nibbles[position] & 0xff];
+			aux[i] = REVERSE_PAIRS_TABLE[checksum];
+			if (++position == nibbles.length) position = 0;
+		}
+		for (int i=0; i<high.length; i++) {
+			checksum ^= READ_TRANSLATE_TABLE[nibbles[position] & 0xff];
+			high[i] = checksum;
+			if (++position == nibbles.length) position = 0;
+		}
+		checksum ^= READ_TRANSLATE_TABLE[nibbles[position] & 0xff];
+		if (checksum != 0) return false;	// BAD DATA
+		for (int i=0; i<high.length; i++) {
+			int shift = (i / AUX_SIZE) * 2;
+			int lowerBits = (aux[i % AUX_SIZE] >> shift) & 0x03;
+			sectorData[sectorOffset + i] = (byte) ((high[i] << 2) | lowerBits);
+		}
+		return true;
+	}
+
+	/**
+	 * Encode 256 bytes of sectorData (starting at sectorOffset) as a data field,
+	 * writing DATA_FIELD_SIZE disk bytes into nibbles beginning at offset.
+	 * The output matches the DOS 3.3 RWTS prenibble and write routines
+	 * ($B800 and $B82A) byte for byte.
+	 */
+	public void encode(byte[] sectorData, int sectorOffset, byte[] nibbles, int offset) {
+		int position = offset % nibbles.length;
+		int previous = 0;
+		for (int i=0; i<AUX_SIZE; i++) {
+			// RWTS takes the third pair from byte (i+172) mod 256, so the unused
+			// bits of the last two auxiliary nibbles come from bytes 0 and 1.
+			int value = (sectorData[sectorOffset + i] & 0x03)
+					| (sectorData[sectorOffset + i + AUX_SIZE] & 0x03) << 2
+					| (sectorData[sectorOffset + ((i + AUX_SIZE * 2) & 0xff)] & 0x03) << 4;
+			value = REVERSE_PAIRS_TABLE[value];
+			nibbles[position] = WRITE_TRANSLATE_TABLE[value ^ previous];
+			previous = value;
+			if (++position == nibbles.length) position = 0;
+		}
+		for (int i=0; i<high.length; i++) {
+			int value = (sectorData[sectorOffset + i] & 0xff) >> 2;
+			nibbles[position] = WRITE_TRANSLATE_TABLE[value ^ previous];
+			previous = value;
+			if (++position == nibbles.length) position = 0;
+		}
+		nibbles[position] = WRITE_TRANSLATE_TABLE[previous];
+	}
+}
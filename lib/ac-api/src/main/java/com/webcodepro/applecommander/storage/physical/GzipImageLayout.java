@@ -0,0 +1,254 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.physical;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+
+import com.webcodepro.applecommander.util.StreamUtil;
+
+/**
+ * Manages a physical disk image that is read from a gzip-compressed file on
+ * demand.  When a GzipIndex of restart points is available, reads only inflate
+ * the span of the image that contains the requested data.  Recently used spans
+ * are kept in memory.
+ * <p>
+ * An index is available when the file was written by ParallelGzipWriter (the
+ * member headers are the index), when a current index was saved alongside the
+ * file, or when saving the index is requested.  Building an index means
+ * decoding the whole stream, so any other file is simply inflated once.
+ * <p>
+ * As with MappedFileImageLayout, the first write (or request for the entire
+ * image through getDiskImage) inflates the whole image into a byte array,
+ * and this layout behaves exactly as a ByteArrayImageLayout from then on.
+ *
+ * @see GzipIndex
+ * @see MappedFileImageLayout
+ */
+public class GzipImageLayout extends ByteArrayImageLayout {
+	/** Default distance between restart points, in uncompressed bytes. */
+	public static final int DEFAULT_SPAN = 256 * 1024;
+	/** Number of inflated spans to keep in memory. */
+	private static final int CACHED_SPANS = 8;
+	/** Suffix of the saved index file. */
+	public static final String INDEX_SUFFIX = ".gzidx"; //$NON-NLS-1$
+
+	/**
+	 * The compressed file contents.  Null once the image has been inflated
+	 * into a byte array.
+	 */
+	private byte[] compressed;
+	private GzipIndex index;
+	private Map<Integer,byte[]> spans = new LinkedHashMap<Integer,byte[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer,byte[]> eldest) {
+			return size() > CACHED_SPANS;
+		}
+	};
+
+	/**
+	 * Construct a GzipImageLayout for the given file.  A saved index is
+	 * used if one is present and current.
+	 */
+	public GzipImageLayout(File file) throws IOException {
+		this(file, false, DEFAULT_SPAN);
+	}
+
+	/**
+	 * Construct a GzipImageLayout for the given file, optionally building and
+	 * saving an index next to the file when there is none.
+	 */
+	public GzipImageLayout(File file, boolean saveIndex) throws IOException {
+		this(file, saveIndex, DEFAULT_SPAN);
+	}
+
+	/**
+	 * Construct a GzipImageLayout for the given file with restart points
+	 * every span bytes.
+	 */
+	public GzipImageLayout(File file, boolean saveIndex, int span) throws IOException {
+		this.compressed = Files.readAllBytes(file.toPath());
+		File indexFile = getIndexFile(file);
+		this.index = GzipIndex.read(indexFile, file);
+		if (index == null) {
+			index = GzipIndex.scanMembers(compressed);
+		}
+		if (index == null) {
+			if (saveIndex) {
+				index = GzipIndex.build(compressed, span);
+				index.write(indexFile, file);
+			} else {
+				materialize();
+			}
+		}
+		setChanged(false);
+	}
+
+	/**
+	 * Answer with the index file that accompanies the given compressed file.
+	 */
+	public static File getIndexFile(File file) {
+		return new File(file.getPath() + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Indicates if the disk image is still being inflated on demand.
+	 */
+	public boolean isIndexed() {
+		return compressed != null;
+	}
+
+	/**
+	 * Answer with the index in use.  Null once the image has been inflated.
+	 */
+	public GzipIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Get the physical disk image.  This inflates the full image.
+	 */
+	public byte[] getDiskImage() {
+		materialize();
+		return super.getDiskImage();
+	}
+
+	/**
+	 * Set the physical disk image.  This releases the compressed data.
+	 */
+	public void setDiskImage(byte[] diskImage) {
+		compressed = null;
+		index = null;
+		spans.clear();
+		super.setDiskImage(diskImage);
+	}
+
+	/**
+	 * Answer with the physical size of this disk volume.
+	 */
+	public int getPhysicalSize() {
+		if (compressed != null) {
+			return index.getSize();
+		}
+		return super.getPhysicalSize();
+	}
+
+	/**
+	 * Copy a portion of the disk image into the given buffer, inflating
+	 * only the spans involved.
+	 */
+	public synchronized void readBytes(int start, byte[] buffer, int offset, int length) {
+		if (compressed == null) {
+			super.readBytes(start, buffer, offset, length);
+			return;
+		}
+		Objects.checkFromIndexSize(start, length, index.getSize());
+		while (length > 0) {
+			int checkpoint = index.find(start);
+			int spanStart = index.getCheckpoints().get(checkpoint).getOffset();
+			byte[] span = getSpan(checkpoint);
+			int count = Math.min(length, span.length - (start - spanStart));
+			System.arraycopy(span, start - spanStart, buffer, offset, count);
+			start += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Answer with a read-only view of a portion of the disk image.
+	 */
+	public synchronized ByteBuffer readBuffer(int start, int length) {
+		if (compressed == null) {
+			return super.readBuffer(start, length);
+		}
+		Objects.checkFromIndexSize(start, length, index.getSize());
+		int checkpoint = index.find(start);
+		if (start + length <= index.getSpanEnd(checkpoint)) {
+			int spanStart = index.getCheckpoints().get(checkpoint).getOffset();
+			return ByteBuffer.wrap(getSpan(checkpoint), start - spanStart, length).slice().asReadOnlyBuffer();
+		}
+		return ByteBuffer.wrap(readBytes(start, length)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Write data to the disk image.
+	 */
+	public void writeBytes(int start, byte[] bytes) {
+		materialize();
+		super.writeBytes(start, bytes);
+	}
+
+	/**
+	 * Answer with the inflated data for a span, decoding it if needed.
+	 */
+	protected byte[] getSpan(int checkpoint) {
+		byte[] span = spans.get(checkpoint);
+		if (span == null) {
+			GzipIndex.Checkpoint start = index.getCheckpoints().get(checkpoint);
+			int end = index.getSpanEnd(checkpoint);
+			GzipInflater inflater = new GzipInflater(compressed, false);
+			inflater.reset(start.getBitPosition(), start.getWindow(), start.getOffset());
+			try {
+				while (inflater.getOffset() < end && !inflater.isFinished()) {
+					inflater.inflateBlock();
+				}
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+			int from = start.getWindow().length;
+			span = new byte[end - start.getOffset()];
+			System.arraycopy(inflater.getOutput(), from, span, 0, span.length);
+			spans.put(checkpoint, span);
+		}
+		return span;
+	}
+
+	/**
+	 * Inflate the entire image into a byte array.  The changed indicator
+	 * (and changed blocks) are not affected since the content is identical.
+	 */
+	protected synchronized void materialize() {
+		if (compressed == null) {
+			return;
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream(
+				index != null ? index.getSize() : compressed.length);
+		try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			StreamUtil.copy(input, output);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		boolean changed = hasChanged();
+		setDiskImage(output.toByteArray());
+		setChanged(changed);
+	}
+}
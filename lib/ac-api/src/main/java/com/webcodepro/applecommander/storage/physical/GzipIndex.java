@@ -0,0 +1,239 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.physical;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A random-access index into a gzip stream.  Each checkpoint marks a deflate
+ * block boundary along with the uncompressed offset at that point and the
+ * 32KB of output preceding it, which is enough to resume decoding there.
+ * <p>
+ * An index may be saved alongside the compressed file; it records the size
+ * and timestamp of that file so a stale index is not used.
+ */
+public class GzipIndex {
+	private static final int MAGIC = 0x41434758;	// "ACGX"
+	private static final int VERSION = 1;
+
+	private List<Checkpoint> checkpoints = new ArrayList<>();
+	private int size;
+
+	/**
+	 * Build an index for the gzip stream.  Streams written by
+	 * ParallelGzipWriter are indexed at each member from the member headers
+	 * alone.  Otherwise the entire stream is decoded, recording a checkpoint
+	 * at the first block boundary after every span bytes of output.
+	 */
+	public static GzipIndex build(byte[] compressed, int span) throws IOException {
+		GzipIndex index = scanMembers(compressed);
+		if (index != null) {
+			return index;
+		}
+		index = new GzipIndex();
+		GzipInflater inflater = new GzipInflater(compressed, true);
+		index.checkpoints.add(new Checkpoint(inflater.start(), 0, new byte[0]));
+		int lastOffset = 0;
+		while (!inflater.isFinished()) {
+			inflater.inflateBlock();
+			int offset = inflater.getOffset();
+			if (!inflater.isFinished() && offset - lastOffset >= span) {
+				index.checkpoints.add(new Checkpoint(inflater.getBitPosition(), offset, inflater.getWindow()));
+				lastOffset = offset;
+				inflater.discardOutput();
+			}
+		}
+		index.size = inflater.getOffset();
+		return index;
+	}
+
+	/**
+	 * Index a stream of members which each carry the ParallelGzipWriter
+	 * extra field.  Answers null if any member does not.
+	 */
+	protected static GzipIndex scanMembers(byte[] compressed) {
+		GzipIndex index = new GzipIndex();
+		int position = 0;
+		int offset = 0;
+		while (position < compressed.length) {
+			int headerSize = ParallelGzipWriter.HEADER_SIZE;
+			if (position + headerSize > compressed.length
+					|| (compressed[position] & 0xff) != 0x1f
+					|| (compressed[position+1] & 0xff) != 0x8b
+					|| compressed[position+2] != 8
+					|| compressed[position+3] != 0x04	// FEXTRA only
+					|| compressed[position+10] != 12 || compressed[position+11] != 0	// XLEN
+					|| compressed[position+12] != ParallelGzipWriter.SUBFIELD_ID1
+					|| compressed[position+13] != ParallelGzipWriter.SUBFIELD_ID2
+					|| compressed[position+14] != 8 || compressed[position+15] != 0) {
+				return null;
+			}
+			int memberSize = getInt(compressed, position+16);
+			int dataSize = getInt(compressed, position+20);
+			if (memberSize < headerSize || dataSize < 0 || position + memberSize > compressed.length) {
+				return null;
+			}
+			index.checkpoints.add(new Checkpoint((long) (position + headerSize) * 8, offset, new byte[0]));
+			position += memberSize;
+			offset += dataSize;
+		}
+		if (index.checkpoints.isEmpty()) {
+			return null;
+		}
+		index.size = offset;
+		return index;
+	}
+
+	private static int getInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff) | (bytes[offset+1] & 0xff) << 8
+			| (bytes[offset+2] & 0xff) << 16 | (bytes[offset+3] & 0xff) << 24;
+	}
+
+	/**
+	 * Read a saved index.  Answers null if the index does not exist or
+	 * does not match the compressed file.
+	 */
+	public static GzipIndex read(File indexFile, File compressedFile) {
+		if (!indexFile.isFile()) {
+			return null;
+		}
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(indexFile))))) {
+			if (input.readInt() != MAGIC || input.readInt() != VERSION
+					|| input.readLong() != compressedFile.length()
+					|| input.readLong() != compressedFile.lastModified()) {
+				return null;
+			}
+			GzipIndex index = new GzipIndex();
+			index.size = input.readInt();
+			int count = input.readInt();
+			for (int i=0; i<count; i++) {
+				long bitPosition = input.readLong();
+				int offset = input.readInt();
+				byte[] window = new byte[input.readInt()];
+				input.readFully(window);
+				index.checkpoints.add(new Checkpoint(bitPosition, offset, window));
+			}
+			return index;
+		} catch (IOException ex) {
+			return null;	// unreadable; it will be rebuilt
+		}
+	}
+
+	/**
+	 * Save this index, tied to the current size and timestamp of the
+	 * compressed file.
+	 */
+	public void write(File indexFile, File compressedFile) throws IOException {
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(new FileOutputStream(indexFile))))) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeLong(compressedFile.length());
+			output.writeLong(compressedFile.lastModified());
+			output.writeInt(size);
+			output.writeInt(checkpoints.size());
+			for (Checkpoint checkpoint : checkpoints) {
+				output.writeLong(checkpoint.getBitPosition());
+				output.writeInt(checkpoint.getOffset());
+				output.writeInt(checkpoint.getWindow().length);
+				output.write(checkpoint.getWindow());
+			}
+		}
+	}
+
+	/**
+	 * Answer with the total uncompressed size.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Answer with all checkpoints, in order.
+	 */
+	public List<Checkpoint> getCheckpoints() {
+		return Collections.unmodifiableList(checkpoints);
+	}
+
+	/**
+	 * Answer with the index of the last checkpoint at or before offset.
+	 */
+	public int find(int offset) {
+		int low = 0;
+		int high = checkpoints.size() - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (checkpoints.get(middle).getOffset() <= offset) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Answer with the uncompressed offset where the given checkpoint's
+	 * span ends.
+	 */
+	public int getSpanEnd(int checkpoint) {
+		return (checkpoint + 1 < checkpoints.size()) ? checkpoints.get(checkpoint + 1).getOffset() : size;
+	}
+
+	/**
+	 * A restart point in the compressed stream.
+	 */
+	public static class Checkpoint {
+		private long bitPosition;
+		private int offset;
+		private byte[] window;
+
+		public Checkpoint(long bitPosition, int offset, byte[] window) {
+			this.bitPosition = bitPosition;
+			this.offset = offset;
+			this.window = window;
+		}
+		/** Position of the deflate block in the compressed stream, in bits. */
+		public long getBitPosition() {
+			return bitPosition;
+		}
+		/** Uncompressed offset at this point. */
+		public int getOffset() {
+			return offset;
+		}
+		/** The output which precedes this point (up to 32KB). */
+		public byte[] getWindow() {
+			return window;
+		}
+	}
+}
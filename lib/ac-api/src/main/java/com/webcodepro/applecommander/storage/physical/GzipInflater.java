@@ -0,0 +1,483 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.physical;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * A gzip decoder which can stop after any deflate block and later resume
+ * decoding from that block, given the 32KB of output which preceded it.
+ * This is the approach used by zlib's zran example; java.util.zip.Inflater
+ * cannot be positioned at a bit offset, so the deflate format (RFC 1951)
+ * is decoded here directly.
+ * <p>
+ * The entire compressed stream is held in memory.  Concatenated gzip members
+ * (RFC 1952) are decoded as one continuous stream.  Output accumulates in a
+ * growable buffer; callers discard what they no longer need.
+ */
+class GzipInflater {
+	/** Size of the deflate history window. */
+	public static final int WINDOW_SIZE = 32768;
+	private static final int MAX_BITS = 15;
+	private static final int[] LENGTH_BASE = {
+		3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+		35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+	private static final int[] LENGTH_EXTRA = {
+		0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+		3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+	private static final int[] DISTANCE_BASE = {
+		1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+		257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145,
+		8193, 12289, 16385, 24577 };
+	private static final int[] DISTANCE_EXTRA = {
+		0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+		7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+	private static final int[] CODE_LENGTH_ORDER = {
+		16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+	private static final HuffmanTable FIXED_LITERALS;
+	private static final HuffmanTable FIXED_DISTANCES;
+	static {
+		int[] lengths = new int[288];
+		Arrays.fill(lengths, 0, 144, 8);
+		Arrays.fill(lengths, 144, 256, 9);
+		Arrays.fill(lengths, 256, 280, 7);
+		Arrays.fill(lengths, 280, 288, 8);
+		FIXED_LITERALS = new HuffmanTable();
+		FIXED_LITERALS.build(lengths, 0, 288);
+		Arrays.fill(lengths, 0, 30, 5);
+		FIXED_DISTANCES = new HuffmanTable();
+		FIXED_DISTANCES.build(lengths, 0, 30);
+	}
+
+	private final byte[] input;
+	private int inputPos;
+	private long bitBuffer;
+	private int bitCount;
+
+	private byte[] output = new byte[WINDOW_SIZE * 4];
+	private int outputPos;
+	/** Uncompressed offset of output[0]. */
+	private int outputStart;
+	private boolean finished;
+
+	private final boolean verify;
+	private final CRC32 crc = new CRC32();
+	private int memberSize;
+
+	private final HuffmanTable literals = new HuffmanTable();
+	private final HuffmanTable distances = new HuffmanTable();
+	private final int[] lengths = new int[320];
+
+	/**
+	 * Create a decoder for the given gzip stream.  When verify is set, the
+	 * CRC and size of each member is checked; this is only meaningful when
+	 * decoding begins at the start of the stream.
+	 */
+	public GzipInflater(byte[] input, boolean verify) {
+		this.input = input;
+		this.verify = verify;
+	}
+
+	/**
+	 * Read the first gzip member header and answer with the bit position of
+	 * the first deflate block.
+	 */
+	public long start() throws ZipException, EOFException {
+		inputPos = 0;
+		bitBuffer = 0;
+		bitCount = 0;
+		outputPos = 0;
+		outputStart = 0;
+		finished = false;
+		readHeader();
+		return getBitPosition();
+	}
+
+	/**
+	 * Position the decoder at a deflate block boundary.  The window holds the
+	 * output which immediately precedes offset (up to WINDOW_SIZE bytes).
+	 */
+	public void reset(long bitPosition, byte[] window, int offset) {
+		inputPos = (int) (bitPosition >>> 3);
+		bitBuffer = 0;
+		bitCount = 0;
+		int skip = (int) (bitPosition & 7);
+		if (skip > 0) {
+			needBits(skip);
+			dropBits(skip);
+		}
+		ensureCapacity(window.length);
+		System.arraycopy(window, 0, output, 0, window.length);
+		outputPos = window.length;
+		outputStart = offset - window.length;
+		finished = false;
+	}
+
+	/** Answer with the current position in the compressed stream, in bits. */
+	public long getBitPosition() {
+		return (long) inputPos * 8 - bitCount;
+	}
+
+	/** Indicates the last gzip member has been fully decoded. */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/** Answer with the uncompressed offset of the next byte to be decoded. */
+	public int getOffset() {
+		return outputStart + outputPos;
+	}
+
+	/** Answer with the output buffer.  Valid data ends at getOutputPosition(). */
+	public byte[] getOutput() {
+		return output;
+	}
+
+	/** Answer with the position in the output buffer of the next byte. */
+	public int getOutputPosition() {
+		return outputPos;
+	}
+
+	/** Answer with a copy of the last WINDOW_SIZE (or fewer) bytes of output. */
+	public byte[] getWindow() {
+		int length = Math.min(WINDOW_SIZE, outputPos);
+		return Arrays.copyOfRange(output, outputPos - length, outputPos);
+	}
+
+	/** Discard all output except the history needed for back references. */
+	public void discardOutput() {
+		int keep = Math.min(WINDOW_SIZE, outputPos);
+		System.arraycopy(output, outputPos - keep, output, 0, keep);
+		outputStart += outputPos - keep;
+		outputPos = keep;
+	}
+
+	/**
+	 * Decode one deflate block.  At the end of a gzip member the trailer is
+	 * consumed, followed by the header of the next member if there is one.
+	 */
+	public void inflateBlock() throws ZipException, EOFException {
+		if (finished) {
+			return;
+		}
+		int blockStart = outputPos;
+		boolean last = bits(1) == 1;
+		switch (bits(2)) {
+		case 0:
+			inflateStored();
+			break;
+		case 1:
+			inflateCodes(FIXED_LITERALS, FIXED_DISTANCES);
+			break;
+		case 2:
+			readDynamicTables();
+			inflateCodes(literals, distances);
+			break;
+		default:
+			throw new ZipException("Invalid deflate block type"); //$NON-NLS-1$
+		}
+		if (verify) {
+			crc.update(output, blockStart, outputPos - blockStart);
+			memberSize += outputPos - blockStart;
+		}
+		if (last) {
+			readTrailer();
+			if (hasAnotherMember()) {
+				readHeader();
+			} else {
+				finished = true;
+			}
+		}
+	}
+
+	/**
+	 * Read a gzip member header.  Must be positioned on a byte boundary.
+	 */
+	private void readHeader() throws ZipException, EOFException {
+		alignToByte();
+		if (readByte() != 0x1f || readByte() != 0x8b || readByte() != 8) {
+			throw new ZipException("Not in GZIP format"); //$NON-NLS-1$
+		}
+		int flags = readByte();
+		skipBytes(6);	// MTIME, XFL, OS
+		if ((flags & 0x04) != 0) {	// FEXTRA
+			int length = readByte() | readByte() << 8;
+			skipBytes(length);
+		}
+		if ((flags & 0x08) != 0) {	// FNAME
+			while (readByte() != 0) ;
+		}
+		if ((flags & 0x10) != 0) {	// FCOMMENT
+			while (readByte() != 0) ;
+		}
+		if ((flags & 0x02) != 0) {	// FHCRC
+			skipBytes(2);
+		}
+		crc.reset();
+		memberSize = 0;
+	}
+
+	private void readTrailer() throws ZipException, EOFException {
+		alignToByte();
+		long expectedCrc = readInt();
+		long expectedSize = readInt();
+		if (verify && (expectedCrc != crc.getValue() || expectedSize != (memberSize & 0xffffffffL))) {
+			throw new ZipException("Corrupt GZIP trailer"); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Another member follows if there is room for one and it starts with the
+	 * gzip signature; like GZIPInputStream, anything else is ignored.
+	 */
+	private boolean hasAnotherMember() {
+		return inputPos + 18 <= input.length
+			&& (input[inputPos] & 0xff) == 0x1f
+			&& (input[inputPos+1] & 0xff) == 0x8b;
+	}
+
+	private void inflateStored() throws ZipException, EOFException {
+		alignToByte();
+		int length = readByte() | readByte() << 8;
+		int complement = readByte() | readByte() << 8;
+		if (length != (~complement & 0xffff)) {
+			throw new ZipException("Invalid stored block length"); //$NON-NLS-1$
+		}
+		if (inputPos + length > input.length) {
+			throw new EOFException();
+		}
+		ensureCapacity(length);
+		System.arraycopy(input, inputPos, output, outputPos, length);
+		inputPos += length;
+		outputPos += length;
+	}
+
+	private void inflateCodes(HuffmanTable literals, HuffmanTable distances) throws ZipException {
+		while (true) {
+			int symbol = decode(literals);
+			if (symbol < 256) {
+				if (outputPos == output.length) ensureCapacity(1);
+				output[outputPos++] = (byte) symbol;
+			} else if (symbol == 256) {
+				return;
+			} else {
+				symbol -= 257;
+				if (symbol >= LENGTH_BASE.length) {
+					throw new ZipException("Invalid literal/length code"); //$NON-NLS-1$
+				}
+				int length = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+				symbol = decode(distances);
+				if (symbol >= DISTANCE_BASE.length) {
+					throw new ZipException("Invalid distance code"); //$NON-NLS-1$
+				}
+				int distance = DISTANCE_BASE[symbol] + bits(DISTANCE_EXTRA[symbol]);
+				if (distance > outputPos) {
+					throw new ZipException("Invalid distance too far back"); //$NON-NLS-1$
+				}
+				ensureCapacity(length);
+				int from = outputPos - distance;
+				if (distance >= length) {
+					System.arraycopy(output, from, output, outputPos, length);
+					outputPos += length;
+				} else {
+					for (int i=0; i<length; i++) {
+						output[outputPos++] = output[from++];
+					}
+				}
+			}
+		}
+	}
+
+	private void readDynamicTables() throws ZipException {
+		int literalCount = bits(5) + 257;
+		int distanceCount = bits(5) + 1;
+		int codeLengthCount = bits(4) + 4;
+		if (literalCount > 286 || distanceCount > 30) {
+			throw new ZipException("Invalid dynamic block code counts"); //$NON-NLS-1$
+		}
+		Arrays.fill(lengths, 0, 19, 0);
+		for (int i=0; i<codeLengthCount; i++) {
+			lengths[CODE_LENGTH_ORDER[i]] = bits(3);
+		}
+		HuffmanTable codeLengths = literals;	// reused before the literals are read
+		build(codeLengths, 0, 19);
+		int total = literalCount + distanceCount;
+		int index = 0;
+		while (index < total) {
+			int symbol = decode(codeLengths);
+			if (symbol < 16) {
+				lengths[index++] = symbol;
+				continue;
+			}
+			int value = 0;
+			int repeat;
+			if (symbol == 16) {
+				if (index == 0) {
+					throw new ZipException("Invalid repeat with no previous length"); //$NON-NLS-1$
+				}
+				value = lengths[index-1];
+				repeat = 3 + bits(2);
+			} else if (symbol == 17) {
+				repeat = 3 + bits(3);
+			} else {
+				repeat = 11 + bits(7);
+			}
+			if (index + repeat > total) {
+				throw new ZipException("Invalid code lengths"); //$NON-NLS-1$
+			}
+			Arrays.fill(lengths, index, index + repeat, value);
+			index += repeat;
+		}
+		if (lengths[256] == 0) {
+			throw new ZipException("Missing end-of-block code"); //$NON-NLS-1$
+		}
+		build(literals, 0, literalCount);
+		build(distances, literalCount, distanceCount);
+	}
+
+	private void build(HuffmanTable table, int offset, int count) throws ZipException {
+		try {
+			table.build(lengths, offset, count);
+		} catch (IllegalArgumentException ex) {
+			throw new ZipException(ex.getMessage());
+		}
+	}
+
+	private int decode(HuffmanTable table) throws ZipException {
+		needBits(table.bits);
+		int entry = table.entries[(int) (bitBuffer & ((1 << table.bits) - 1))];
+		if (entry == 0) {
+			throw new ZipException("Invalid Huffman code"); //$NON-NLS-1$
+		}
+		dropBits(entry & 0x0f);
+		return entry >>> 4;
+	}
+
+	private int bits(int count) {
+		if (count == 0) {
+			return 0;
+		}
+		needBits(count);
+		int value = (int) (bitBuffer & ((1L << count) - 1));
+		dropBits(count);
+		return value;
+	}
+
+	/**
+	 * Load at least count bits.  Past the end of the input, zero bits are
+	 * supplied so a Huffman lookup can peek; reading the gzip trailer will
+	 * catch a stream that actually ran short.
+	 */
+	private void needBits(int count) {
+		while (bitCount < count) {
+			int b = (inputPos < input.length) ? input[inputPos] & 0xff : 0;
+			inputPos++;
+			bitBuffer |= (long) b << bitCount;
+			bitCount += 8;
+		}
+	}
+
+	private void dropBits(int count) {
+		bitBuffer >>>= count;
+		bitCount -= count;
+	}
+
+	/** Discard any partial byte and return whole buffered bytes to the input. */
+	private void alignToByte() {
+		dropBits(bitCount & 7);
+		inputPos -= bitCount >>> 3;
+		bitBuffer = 0;
+		bitCount = 0;
+	}
+
+	private int readByte() throws EOFException {
+		if (inputPos >= input.length) {
+			throw new EOFException();
+		}
+		return input[inputPos++] & 0xff;
+	}
+
+	private long readInt() throws EOFException {
+		return (readByte() | readByte() << 8 | readByte() << 16 | (long) readByte() << 24);
+	}
+
+	private void skipBytes(int count) throws EOFException {
+		if (inputPos + count > input.length) {
+			throw new EOFException();
+		}
+		inputPos += count;
+	}
+
+	private void ensureCapacity(int additional) {
+		if (outputPos + additional > output.length) {
+			output = Arrays.copyOf(output, Math.max(output.length * 2, outputPos + additional));
+		}
+	}
+
+	/**
+	 * A single-level Huffman decoding table, indexed by the next (bit
+	 * reversed) bits of input.  Each entry holds the symbol and code length;
+	 * zero marks an unused code.
+	 */
+	private static class HuffmanTable {
+		private int[] entries = new int[1 << MAX_BITS];
+		private int bits;
+		private final int[] counts = new int[MAX_BITS + 1];
+		private final int[] nextCode = new int[MAX_BITS + 1];
+
+		private void build(int[] lengths, int offset, int count) throws IllegalArgumentException {
+			Arrays.fill(counts, 0);
+			int maxLength = 1;
+			for (int i=0; i<count; i++) {
+				int length = lengths[offset + i];
+				counts[length]++;
+				maxLength = Math.max(maxLength, length);
+			}
+			counts[0] = 0;
+			int left = 1;
+			for (int length=1; length<=MAX_BITS; length++) {
+				left = (left << 1) - counts[length];
+				if (left < 0) {
+					throw new IllegalArgumentException("Over-subscribed Huffman code"); //$NON-NLS-1$
+				}
+			}
+			int code = 0;
+			for (int length=1; length<=MAX_BITS; length++) {
+				code = (code + counts[length-1]) << 1;
+				nextCode[length] = code;
+			}
+			bits = maxLength;
+			int size = 1 << bits;
+			Arrays.fill(entries, 0, size, 0);
+			for (int symbol=0; symbol<count; symbol++) {
+				int length = lengths[offset + symbol];
+				if (length == 0) continue;
+				int reversed = Integer.reverse(nextCode[length]++) >>> (32 - length);
+				int entry = symbol << 4 | length;
+				for (int i=reversed; i<size; i+=1<<length) {
+					entries[i] = entry;
+				}
+			}
+		}
+	}
+}
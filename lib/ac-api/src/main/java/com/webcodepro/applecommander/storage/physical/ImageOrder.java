@@ -19,6 +19,8 @@
  */
 package com.webcodepro.applecommander.storage.physical;
 
+import java.nio.ByteBuffer;
+
 import com.webcodepro.applecommander.storage.Disk;
 
 /**
@@ -94,6 +96,20 @@ public abstract class ImageOrder {
 		return diskImageManager.readBytes(start, length);
 	}
 	
+	/**
+	 * Copy a portion of the disk image into the given buffer.
+	 */
+	public void readBytes(int start, byte[] buffer, int offset, int length) {
+		diskImageManager.readBytes(start, buffer, offset, length);
+	}
+
+	/**
+	 * Answer with a read-only view of a portion of the disk image.
+	 */
+	public ByteBuffer readBuffer(int start, int length) {
+		return diskImageManager.readBuffer(start, length);
+	}
+	
 	/**
 	 * Write data to the disk image.
 	 */
@@ -118,6 +134,22 @@ public abstract class ImageOrder {
 	 */
 	public abstract byte[] readBlock(int block);
 	
+	/**
+	 * Read the block from the disk image into the given buffer at offset.
+	 * Subclasses should override this to avoid the intermediate copy.
+	 */
+	public void readBlockInto(int block, byte[] buffer, int offset) {
+		System.arraycopy(readBlock(block), 0, buffer, offset, Disk.BLOCK_SIZE);
+	}
+	
+	/**
+	 * Answer with a read-only view of the block.  Where the block is stored
+	 * contiguously in the disk image, no data is copied.
+	 */
+	public ByteBuffer readBlockBuffer(int block) {
+		return ByteBuffer.wrap(readBlock(block)).asReadOnlyBuffer();
+	}
+	
 	/**
 	 * Write the block to the disk image.
 	 */
@@ -156,6 +188,23 @@ public abstract class ImageOrder {
 	 */
 	public abstract byte[] readSector(int track, int sector) throws IllegalArgumentException;
 	
+	/**
+	 * Read the specified sector into the given buffer at offset.
+	 * Subclasses should override this to avoid the intermediate copy.
+	 */
+	public void readSectorInto(int track, int sector, byte[] buffer, int offset) 
+			throws IllegalArgumentException {
+		System.arraycopy(readSector(track, sector), 0, buffer, offset, Disk.SECTOR_SIZE);
+	}
+	
+	/**
+	 * Answer with a read-only view of the specified sector.  Where the sector
+	 * is stored contiguously in the disk image, no data is copied.
+	 */
+	public ByteBuffer readSectorBuffer(int track, int sector) throws IllegalArgumentException {
+		return ByteBuffer.wrap(readSector(track, sector)).asReadOnlyBuffer();
+	}
+	
 	/**
 	 * Write the specified sector.
 	 */
@@ -0,0 +1,194 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.physical;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * Manages a physical disk image that is memory-mapped from a file.  The
+ * file is mapped read-only, so only the pages that are actually read are
+ * brought into memory.  This keeps opening a large hard disk image (just
+ * to read the volume directory, for instance) cheap.
+ * <p>
+ * The first time the image is written to (or the entire image is requested
+ * through getDiskImage), the mapped contents are copied into a byte array
+ * and this layout behaves exactly as a ByteArrayImageLayout from that point
+ * on.  The file itself is never modified through the mapping.
+ * <p>
+ * An offset may be supplied to skip a header at the beginning of the file
+ * (such as with 2IMG images).  As with UniversalDiskImageLayout, the physical
+ * size includes that header.
+ *
+ * @see UniversalDiskImageLayout
+ */
+public class MappedFileImageLayout extends ByteArrayImageLayout {
+	/**
+	 * The memory-mapped disk image.  Null once the image has been copied
+	 * into a byte array.
+	 */
+	private ByteBuffer mappedImage;
+	/**
+	 * Number of bytes at the start of the file which precede the disk data.
+	 */
+	private int offset;
+
+	/**
+	 * Construct a MappedFileImageLayout for the given file.
+	 */
+	public MappedFileImageLayout(File file) throws IOException {
+		this(file, 0);
+	}
+
+	/**
+	 * Construct a MappedFileImageLayout for the given file, where the
+	 * disk data begins at offset bytes into the file.
+	 */
+	public MappedFileImageLayout(File file, int offset) throws IOException {
+		this(map(file), offset);
+		setBackingFile(file.getAbsoluteFile());
+	}
+
+	/**
+	 * Construct a MappedFileImageLayout around an already mapped buffer.
+	 * The buffer is treated as read-only.
+	 */
+	public MappedFileImageLayout(ByteBuffer mappedImage, int offset) {
+		this.mappedImage = mappedImage.asReadOnlyBuffer();
+		this.offset = offset;
+		setChanged(false);
+	}
+
+	/**
+	 * Map the given file as a read-only buffer.  The channel is closed
+	 * immediately; the mapping remains valid until it is garbage collected.
+	 */
+	public static ByteBuffer map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/**
+	 * Answer with a layout that has the same mapping but skips the given
+	 * number of header bytes.
+	 */
+	public MappedFileImageLayout withOffset(int offset) {
+		if (mappedImage == null) {
+			throw new IllegalStateException("Disk image is no longer mapped"); //$NON-NLS-1$
+		}
+		MappedFileImageLayout layout = new MappedFileImageLayout(mappedImage, offset);
+		layout.setBackingFile(getBackingFile());
+		return layout;
+	}
+
+	/**
+	 * Indicates if the disk image is still being read from the mapped file.
+	 */
+	public boolean isMapped() {
+		return mappedImage != null;
+	}
+
+	/**
+	 * Get the physical disk image.  This copies the full image out of the
+	 * mapped file.
+	 */
+	public byte[] getDiskImage() {
+		materialize();
+		return super.getDiskImage();
+	}
+
+	/**
+	 * Set the physical disk image.  This releases the mapped file.
+	 */
+	public void setDiskImage(byte[] diskImage) {
+		mappedImage = null;
+		super.setDiskImage(diskImage);
+	}
+
+	/**
+	 * Answer with the physical size of this disk volume.
+	 */
+	public int getPhysicalSize() {
+		if (mappedImage != null) {
+			return mappedImage.capacity();
+		}
+		return super.getPhysicalSize();
+	}
+
+	/**
+	 * Copy a portion of the disk image into the given buffer.
+	 */
+	public void readBytes(int start, byte[] buffer, int bufferOffset, int length) {
+		if (mappedImage == null) {
+			super.readBytes(start + offset, buffer, bufferOffset, length);
+			return;
+		}
+		Objects.checkFromIndexSize(start + offset, length, mappedImage.capacity());
+		ByteBuffer view = mappedImage.duplicate();
+		view.position(start + offset);
+		view.get(buffer, bufferOffset, length);
+	}
+
+	/**
+	 * Answer with a read-only view of a portion of the disk image.
+	 * While mapped, the view reads directly from the file.
+	 */
+	public ByteBuffer readBuffer(int start, int length) {
+		if (mappedImage == null) {
+			return super.readBuffer(start + offset, length);
+		}
+		Objects.checkFromIndexSize(start + offset, length, mappedImage.capacity());
+		ByteBuffer view = mappedImage.duplicate();
+		view.position(start + offset);
+		view.limit(start + offset + length);
+		return view.slice();
+	}
+
+	/**
+	 * Write data to the disk image.
+	 */
+	public void writeBytes(int start, byte[] bytes) {
+		materialize();
+		super.writeBytes(start + offset, bytes);
+	}
+
+	/**
+	 * Copy the mapped file into a byte array.  The changed indicator (and
+	 * changed blocks) are not affected since the content is identical.
+	 */
+	protected void materialize() {
+		if (mappedImage == null) {
+			return;
+		}
+		byte[] diskImage = new byte[mappedImage.capacity()];
+		ByteBuffer view = mappedImage.duplicate();
+		view.position(0);
+		view.get(diskImage);
+		boolean changed = hasChanged();
+		setDiskImage(diskImage);
+		setChanged(changed);
+	}
+}
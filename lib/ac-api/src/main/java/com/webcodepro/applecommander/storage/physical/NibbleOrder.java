@@ -19,8 +19,10 @@
  */
 package com.webcodepro.applecommander.storage.physical;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import com.webcodepro.applecommander.storage.Disk;
 import com.webcodepro.applecommander.storage.StorageBundle;
 import com.webcodepro.applecommander.util.AppleUtil;
 import com.webcodepro.applecommander.util.TextBundle;
@@ -32,21 +34,6 @@ import com.webcodepro.applecommander.util.TextBundle;
  */
 public class NibbleOrder extends DosOrder {
 	private TextBundle textBundle = StorageBundle.getInstance();
-	/**
-	 * This is the 6 and 2 write translate table, as given in Beneath
-	 * Apple DOS, pg 3-21.
-	 */
-	private static int[] writeTranslateTable = {
-		//$0    $1    $2    $3    $4    $5    $6    $7 
-		0x96, 0x97, 0x9a, 0x9b, 0x9d, 0x9e, 0x9f, 0xa6,	// +$00 
-		0xa7, 0xab, 0xac, 0xad, 0xae, 0xaf, 0xb2, 0xb3, // +$08
-		0xb4, 0xb5, 0xb6, 0xb7, 0xb9, 0xba, 0xbb, 0xbc, // +$10
-		0xbd, 0xbe, 0xbf, 0xcb, 0xcd, 0xce, 0xcf, 0xd3, // +$18
-		0xd6, 0xd7, 0xd9, 0xda, 0xdb, 0xdc, 0xdd, 0xde, // +$20
-		0xdf, 0xe5,	0xe6, 0xe7, 0xe9, 0xea, 0xeb, 0xec, // +$28
-		0xed, 0xee, 0xef, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, // +$30
-		0xf7, 0xf9, 0xfa, 0xfb, 0xfc, 0xfd, 0xfe, 0xff  // +$38
-	};
 	/**
 	 * This maps a DOS 3.3 sector to a physical sector.
 	 * (readSector and writeSector work off of the DOS 3.3
@@ -63,24 +50,44 @@ public class NibbleOrder extends DosOrder {
 	 * from 0x00 to 0x3f which is further decoded...
 	 */
 	public int[] readTranslateTable;
+	/**
+	 * Per-track cache of data field offsets and decoded sectors.  Built
+	 * lazily and discarded whenever the image is changed other than
+	 * through writeSector.
+	 */
+	private TrackCache[] trackCache;
+	/** The layout and modification count the track cache was built from. */
+	private ByteArrayImageLayout trackCacheLayout;
+	private long trackCacheModificationCount;
+	/**
+	 * The 6 and 2 codec.  Only used while holding this object's lock.
+	 */
+	private GcrCodec codec = new GcrCodec();
+	/**
+	 * Scratch buffer for an encoded data field.
+	 */
+	private byte[] dataField = new byte[GcrCodec.DATA_FIELD_SIZE];
 	
 	/**
 	 * Construct a NibbleOrder.
 	 */
 	public NibbleOrder(ByteArrayImageLayout diskImageManager) {
 		super(diskImageManager);
-		// Construct the read translation table:
-		readTranslateTable = new int[256];
-		for (int i=0; i<writeTranslateTable.length; i++) {
-			readTranslateTable[writeTranslateTable[i]] = i;
-		}
+		readTranslateTable = GcrCodec.READ_TRANSLATE_TABLE.clone();
+	}
+	
+	/**
+	 * Answer with the number of disk bytes in a track.
+	 */
+	protected int getTrackSize() {
+		return getPhysicalSize() / getTracksPerDisk();
 	}
 	
 	/**
 	 * Read nibbilized track data.
 	 */
 	protected byte[] readTrackData(int track) {
-		int trackSize = getPhysicalSize() / getTracksPerDisk();
+		int trackSize = getTrackSize();
 		return readBytes(track * trackSize, trackSize);
 	}
 	
@@ -88,67 +95,163 @@ public class NibbleOrder extends DosOrder {
 	 * Write nibbilized track data.
 	 */
 	protected void writeTrackData(int track, byte[] trackData) {
-		int trackSize = getPhysicalSize() / getTracksPerDisk();
+		int trackSize = getTrackSize();
 		writeBytes(track * trackSize, trackData);
 	}
+	
+	/**
+	 * Write raw bytes to the nibble image.  This invalidates the track cache.
+	 */
+	public void writeBytes(int start, byte[] bytes) {
+		invalidateTrackCache();
+		super.writeBytes(start, bytes);
+	}
+	
+	/**
+	 * Replace the disk image manager.  This invalidates the track cache.
+	 */
+	public void setDiskImageManager(ByteArrayImageLayout diskImageManager) {
+		invalidateTrackCache();
+		super.setDiskImageManager(diskImageManager);
+	}
 
 	/**
 	 * Retrieve the specified sector.  The primary source of information
 	 * for this process is directly from Beneath Apple DOS, chapter 3.
+	 * Sectors are decoded a track at a time and cached; a copy of the
+	 * cached sector is returned.
 	 */
 	public byte[] readSector(int track, int dosSector) throws IllegalArgumentException {
-		int sector = sectorInterleave[dosSector];
-		// 1. read track
-		byte[] trackData = readTrackData(track);
-		// 2. locate address field for this track and sector
-		int offset = 0;
-		byte[] addressField = new byte[14];
-		boolean found = false;
-		int attempts = getSectorsPerTrack();
-		while (!found && attempts >= 0) {
-			int nextOffset = locateField(0xd5, 0xaa, 0x96, trackData, addressField, offset);
-			attempts--; 
-			offset = nextOffset;
-			int t = decodeOddEven(addressField, 5);
-			int s = decodeOddEven(addressField, 7);
-			found = (t == track && s == sector);
-		}
-		if (!found) {
+		byte[] sectorData = getDecodedSector(track, sectorInterleave[dosSector], 1);
+		return (sectorData == null) ? null : sectorData.clone();
+	}
+	
+	/**
+	 * Read the specified sector into the given buffer at offset.
+	 * This copies directly out of the decoded track cache.
+	 */
+	public void readSectorInto(int track, int dosSector, byte[] buffer, int offset) 
+			throws IllegalArgumentException {
+		System.arraycopy(getValidSector(track, sectorInterleave[dosSector]), 0, 
+				buffer, offset, Disk.SECTOR_SIZE);
+	}
+	
+	/**
+	 * Answer with a read-only view of the decoded sector.
+	 */
+	public ByteBuffer readSectorBuffer(int track, int dosSector) throws IllegalArgumentException {
+		return ByteBuffer.wrap(getValidSector(track, sectorInterleave[dosSector])).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Answer with the cached decoded sector, treating a sector which failed
+	 * its checksum the same as one which could not be located.
+	 */
+	protected byte[] getValidSector(int track, int sector) {
+		byte[] sectorData = getDecodedSector(track, sector, 1);
+		if (sectorData == null) {
 			throw new IllegalArgumentException(textBundle
 				.format("NibbleOrder.InvalidPhysicalSectorError", sector, track, 1)); //$NON-NLS-1$
 		}
-		// 3. read data field that immediately follows the address field
-		byte[] dataField = new byte[349];
-		locateField(0xd5, 0xaa, 0xad, trackData, dataField, offset);
-		// 4. translate data field
-		byte[] buffer = new byte[342];
-		int checksum = 0;
-		for (int i=0; i<buffer.length; i++) {
-			int b = AppleUtil.getUnsignedByte(dataField[i+3]);
-			checksum ^= readTranslateTable[b];		// XOR
-			if (i < 86) {
-				buffer[buffer.length - i - 1] = (byte) checksum;
-			} else {
-				buffer[i - 86] = (byte) checksum;
+		return sectorData;
+	}
+	
+	/**
+	 * Answer with the cached decoded sector for the given physical sector.
+	 * A null indicates the sector failed its checksum.  The array is shared
+	 * with the cache and must not be modified.
+	 * @param operation identifies the caller in the error message (1=read, 2=write)
+	 */
+	protected synchronized byte[] getDecodedSector(int track, int sector, int operation) {
+		TrackCache cache = getTrackCache(track);
+		if (cache.dataFieldOffsets[sector] < 0) {
+			throw new IllegalArgumentException(textBundle
+				.format("NibbleOrder.InvalidPhysicalSectorError", sector, track, operation)); //$NON-NLS-1$
+		}
+		return cache.sectors[sector];
+	}
+	
+	/**
+	 * Answer with the cache for the given track, parsing and decoding the
+	 * track on first use.  The whole cache is discarded if the image was
+	 * changed behind its back.
+	 */
+	protected synchronized TrackCache getTrackCache(int track) {
+		ByteArrayImageLayout layout = getDiskImageManager();
+		if (trackCache == null || trackCacheLayout != layout
+				|| trackCacheModificationCount != layout.getModificationCount()) {
+			trackCache = new TrackCache[getTracksPerDisk()];
+			trackCacheLayout = layout;
+			trackCacheModificationCount = layout.getModificationCount();
+		}
+		if (trackCache[track] == null) {
+			byte[] trackData = readTrackData(track);
+			TrackCache cache = new TrackCache(getSectorsPerTrack());
+			locateDataFields(track, trackData, cache.dataFieldOffsets);
+			for (int sector=0; sector<cache.sectors.length; sector++) {
+				if (cache.dataFieldOffsets[sector] >= 0) {
+					cache.sectors[sector] = decodeDataField(trackData, cache.dataFieldOffsets[sector]);
+				}
 			}
+			trackCache[track] = cache;
 		}
-		checksum ^= readTranslateTable[AppleUtil.getUnsignedByte(dataField[345])];
-		if (checksum != 0) return null;	// BAD DATA
-		// 5. decode data field
-		byte[] sectorData = new byte[256];
-		for (int i=0; i<sectorData.length; i++) {
-			int b1 = AppleUtil.getUnsignedByte(buffer[i]);
-			int lowerBits = buffer.length - (i % 86) - 1;
-			int b2 = AppleUtil.getUnsignedByte(buffer[lowerBits]);
-			int shiftPairs = (i / 86) * 2;
-			// shift b1 up by 2 bytes (contains bits 7-2)
-			// align 2 bits in b2 appropriately, mask off anything but
-			// bits 0 and 1 and then REVERSE THEM...
-			int[] reverseValues = { 0x0, 0x2, 0x1, 0x3 };
-			int b = (b1 << 2) | reverseValues[(b2 >> shiftPairs) & 0x03];
-			sectorData[i] = (byte) b;
+		return trackCache[track];
+	}
+	
+	/**
+	 * Discard all cached track information.  This must be done whenever the
+	 * nibble image is changed by anything other than writeSector.
+	 */
+	public synchronized void invalidateTrackCache() {
+		trackCache = null;
+	}
+	
+	/**
+	 * Scan the track once, recording where the data field of each physical sector
+	 * begins.  The recorded offset is the first byte following the data field
+	 * prologue and may wrap around the end of the track.  Sectors that cannot be
+	 * located are left as -1.  If a sector appears more than once, the first
+	 * occurrence wins.
+	 */
+	protected void locateDataFields(int track, byte[] trackData, int[] offsets) {
+		Arrays.fill(offsets, -1);
+		byte[] addressField = new byte[14];
+		for (int i=0; i<trackData.length; i++) {
+			if (!isPrologue(trackData, i, 0xd5, 0xaa, 0x96)) continue;
+			for (int j=0; j<addressField.length; j++) {
+				addressField[j] = trackData[(i + j) % trackData.length];
+			}
+			int t = decodeOddEven(addressField, 5);
+			int s = decodeOddEven(addressField, 7);
+			if (t != track || s >= offsets.length || offsets[s] >= 0) continue;
+			// the data field immediately follows the address field
+			int start = i + addressField.length - 1;
+			for (int j=start; j<start+trackData.length; j++) {
+				if (isPrologue(trackData, j, 0xd5, 0xaa, 0xad)) {
+					offsets[s] = (j + 3) % trackData.length;
+					break;
+				}
+			}
 		}
-		return sectorData;
+	}
+	
+	/**
+	 * Indicates if the 3 byte field prologue starts at the given (possibly
+	 * wrapped) offset in the track.
+	 */
+	protected boolean isPrologue(byte[] trackData, int offset, int byte1, int byte2, int byte3) {
+		return AppleUtil.getUnsignedByte(trackData[offset % trackData.length]) == byte1
+			&& AppleUtil.getUnsignedByte(trackData[(offset+1) % trackData.length]) == byte2
+			&& AppleUtil.getUnsignedByte(trackData[(offset+2) % trackData.length]) == byte3;
+	}
+	
+	/**
+	 * Decode the data field which begins at offset (just past the prologue).
+	 * Answers null if the checksum does not match.
+	 */
+	protected byte[] decodeDataField(byte[] trackData, int offset) {
+		byte[] sectorData = new byte[Disk.SECTOR_SIZE];
+		return codec.decode(trackData, offset, sectorData, 0) ? sectorData : null;
 	}
 	
 	/**
@@ -208,85 +311,34 @@ public class NibbleOrder extends DosOrder {
 	}
 	
 	/**
-	 * Write the specified sector.
+	 * Write the specified sector.  Only the data field of the sector is
+	 * written back to the image; the track cache is updated in place.
 	 */
-	public void writeSector(int track, int dosSector, byte[] sectorData) throws IllegalArgumentException {
+	public synchronized void writeSector(int track, int dosSector, byte[] sectorData) throws IllegalArgumentException {
 		int sector = sectorInterleave[dosSector];
-		// 1. read track
-		byte[] trackData = readTrackData(track);
-		// 2. locate address field for this track and sector
-		int offset = 0;
-		byte[] addressField = new byte[14];
-		boolean found = false;
-		while (!found && offset < trackData.length) {
-			int nextOffset = locateField(0xd5, 0xaa, 0x96, trackData, addressField, offset);
-			if (nextOffset < offset) {	// we wrapped!
-				throw new IllegalArgumentException(textBundle
-					.format("NibbleOrder.InvalidPhysicalSectorError", sector, track, 2)); //$NON-NLS-1$
-			}
-			offset = nextOffset;
-			int t = decodeOddEven(addressField, 5);
-			int s = decodeOddEven(addressField, 7);
-			found = (t == track && s == sector); 
-		}
-		if (!found) {
+		// 1. locate the data field for this track and sector
+		TrackCache cache = getTrackCache(track);
+		int offset = cache.dataFieldOffsets[sector];
+		if (offset < 0) {
 			throw new IllegalArgumentException(textBundle
 					.format("NibbleOrder.InvalidPhysicalSectorError", sector, track, 2)); //$NON-NLS-1$
 		}
-
-		// 3. PRENIBBLE: This is Java translated from assembly @ $B800
-		//               The Java routine was not working...  :o(
-		int[] bb00 = new int[0x100];
-		int[] bc00 = new int[0x56];
-		int x = 0;
-		int y = 2;
-		while (true) {
-			y--;
-			if (y < 0) { 
-				y+= 256;
-			}
-			int a = AppleUtil.getUnsignedByte(sectorData[y]);
-			bc00[x]<<= 1;
-			bc00[x]|= a & 1;
-			a>>= 1;
-			bc00[x]<<= 1;
-			bc00[x]|= a & 1;
-			a>>= 1;
-			bb00[y] = a;
-			x++;
-			if (x >= 0x56) {
-				x = 0;
-				if (y == 0) break;	// done
-			}
-		}
-		for (x=0; x<0x56; x++) {
-			bc00[x]&= 0x3f;
+		// 2. encode the data field
+		codec.encode(sectorData, 0, dataField, 0);
+		// 3. write to disk (data may wrap around the end of the track)
+		int trackSize = getTrackSize();
+		int trackStart = track * trackSize;
+		if (offset + dataField.length <= trackSize) {
+			getDiskImageManager().writeBytes(trackStart + offset, dataField);
+		} else {
+			int length = trackSize - offset;
+			getDiskImageManager().writeBytes(trackStart + offset, Arrays.copyOf(dataField, length));
+			getDiskImageManager().writeBytes(trackStart, 
+					Arrays.copyOfRange(dataField, length, dataField.length));
 		}
-
-		// 4. Translated from portions of WRITE at $B82A:
-		byte[] diskData = new byte[343];
-		int pos = 0;
-		for (y=0x56; y>0; y--) {
-			if (y == 0x56) {
-				diskData[pos++] = (byte) writeTranslateTable[bc00[y-1]];
-			} else {
-				diskData[pos++] = (byte) writeTranslateTable[bc00[y] ^ bc00[y-1]];
-			}
-		}
-		diskData[pos++] = (byte) writeTranslateTable[bc00[0] ^ bb00[y]];
-		for (y=1; y<256; y++) {
-			diskData[pos++] = (byte) writeTranslateTable[bb00[y] ^ bb00[y-1]];
-		}
-		diskData[pos++] = (byte) writeTranslateTable[bb00[255]];
-
-		// 5. write to disk (data may wrap - hence the manual copy)
-		byte[] dataFieldPrologue = new byte[3];
-		offset= locateField(0xd5, 0xaa, 0xad, trackData, dataFieldPrologue, offset);
-		for (int i=0; i<diskData.length; i++) {
-			pos = (offset + i) % trackData.length;
-			trackData[pos] = diskData[i];
-		}
-		writeTrackData(track, trackData);
+		cache.sectors[sector] = Arrays.copyOf(sectorData, Disk.SECTOR_SIZE);
+		// the cache already reflects this write
+		trackCacheModificationCount = getDiskImageManager().getModificationCount();
 	}
 	
 	/**
@@ -323,6 +375,7 @@ public class NibbleOrder extends DosOrder {
 		// pre-fill entire disk with 0xff
 		byte[] diskImage = new byte[232960];	// 6656 bytes per track
 		Arrays.fill(diskImage, (byte)0xff);
+		invalidateTrackCache();
 		getDiskImageManager().setDiskImage(diskImage);
 		// create initial address and data fields
 		byte[] addressField = new byte[14];
@@ -359,4 +412,19 @@ public class NibbleOrder extends DosOrder {
 			writeTrackData(track, trackData);
 		}
 	}
+
+	/**
+	 * Data field locations and decoded sector data for a single track.
+	 */
+	protected static class TrackCache {
+		/** Offset just past the data field prologue, or -1 if not found. */
+		private final int[] dataFieldOffsets;
+		/** Decoded sector data; null if the sector failed its checksum. */
+		private final byte[][] sectors;
+		
+		protected TrackCache(int sectorsPerTrack) {
+			dataFieldOffsets = new int[sectorsPerTrack];
+			sectors = new byte[sectorsPerTrack][];
+		}
+	}
 }
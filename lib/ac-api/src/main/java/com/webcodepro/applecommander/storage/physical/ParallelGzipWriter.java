@@ -0,0 +1,172 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.physical;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes gzip data using several threads, in the manner of pigz.  The data
+ * is split into chunks which are compressed independently on a ForkJoinPool
+ * and written, in order, as concatenated gzip members.  Any gzip reader
+ * (including GZIPInputStream) reads the result as a single stream.
+ * <p>
+ * Each member carries an "AC" extra field holding the size of the member
+ * and of its uncompressed data.  GzipIndex uses this to index the file
+ * without inflating it; other readers ignore it.
+ */
+public class ParallelGzipWriter {
+	/** Default amount of uncompressed data in each gzip member. */
+	public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+	/** Extra field subfield identifier. */
+	static final int SUBFIELD_ID1 = 'A';
+	static final int SUBFIELD_ID2 = 'C';
+	/** Length of a member header, which always includes the extra field. */
+	static final int HEADER_SIZE = 10 + 2 + 4 + 8;
+
+	private int level;
+	private int threads;
+	private int chunkSize;
+
+	/**
+	 * Create a writer with the default level and one thread per processor.
+	 */
+	public ParallelGzipWriter() {
+		this(Deflater.DEFAULT_COMPRESSION, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a writer with the given compression level (as for Deflater)
+	 * and number of threads.
+	 */
+	public ParallelGzipWriter(int level, int threads) {
+		this(level, threads, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Create a writer with the given compression level, number of threads,
+	 * and amount of uncompressed data per member.
+	 */
+	public ParallelGzipWriter(int level, int threads, int chunkSize) {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + level); //$NON-NLS-1$
+		}
+		if (threads < 1 || chunkSize < 1) {
+			throw new IllegalArgumentException("Threads and chunk size must be positive"); //$NON-NLS-1$
+		}
+		this.level = level;
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Compress data and write it to output.  The output stream is not closed.
+	 */
+	public void write(byte[] data, OutputStream output) throws IOException {
+		if (threads == 1 || data.length <= chunkSize) {
+			for (int offset=0; offset<data.length || offset==0; offset+=chunkSize) {
+				output.write(compressMember(data, offset, Math.min(chunkSize, data.length - offset)));
+			}
+			return;
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<Future<byte[]>> members = new ArrayList<>();
+			for (int offset=0; offset<data.length; offset+=chunkSize) {
+				final int start = offset;
+				final int length = Math.min(chunkSize, data.length - offset);
+				members.add(pool.submit(() -> compressMember(data, start, length)));
+			}
+			for (Future<byte[]> member : members) {
+				output.write(member.get());
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		} catch (ExecutionException ex) {
+			throw new IOException(ex.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Compress one chunk as a complete gzip member.
+	 */
+	protected byte[] compressMember(byte[] data, int offset, int length) {
+		Deflater deflater = new Deflater(level, true);
+		ByteArrayOutputStream member = new ByteArrayOutputStream(HEADER_SIZE + length / 2);
+		try {
+			byte[] buffer = new byte[65536];
+			member.write(new byte[HEADER_SIZE], 0, HEADER_SIZE);	// filled in below
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				member.write(buffer, 0, count);
+			}
+		} finally {
+			deflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		writeInt(member, (int) crc.getValue());
+		writeInt(member, length);
+		byte[] bytes = member.toByteArray();
+		// Header: ID1 ID2 CM FLG(FEXTRA) MTIME(4) XFL OS XLEN(2), then the subfield
+		bytes[0] = 0x1f;
+		bytes[1] = (byte) 0x8b;
+		bytes[2] = 8;
+		bytes[3] = 0x04;
+		bytes[9] = 0;
+		putShort(bytes, 10, 4 + 8);
+		bytes[12] = SUBFIELD_ID1;
+		bytes[13] = SUBFIELD_ID2;
+		putShort(bytes, 14, 8);
+		putInt(bytes, 16, bytes.length);
+		putInt(bytes, 20, length);
+		return bytes;
+	}
+
+	private static void writeInt(ByteArrayOutputStream output, int value) {
+		output.write(value);
+		output.write(value >> 8);
+		output.write(value >> 16);
+		output.write(value >> 24);
+	}
+
+	private static void putShort(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) value;
+		bytes[offset+1] = (byte) (value >> 8);
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		putShort(bytes, offset, value);
+		putShort(bytes, offset+2, value >> 16);
+	}
+}
@@ -19,6 +19,8 @@
  */
 package com.webcodepro.applecommander.storage.physical;
 
+import java.nio.ByteBuffer;
+
 import com.webcodepro.applecommander.storage.Disk;
 import com.webcodepro.applecommander.storage.StorageBundle;
 import com.webcodepro.applecommander.util.TextBundle;
@@ -67,15 +69,27 @@ public class ProdosOrder extends ImageOrder {
 
 	/**
 	 * Read the block from the disk image.
-	 * Note: Defined in terms of reading sectors.
 	 */
 	public byte[] readBlock(int block) {
 		return readBytes(block * Disk.BLOCK_SIZE, Disk.BLOCK_SIZE);
 	}
 	
+	/**
+	 * Read the block from the disk image into the given buffer at offset.
+	 */
+	public void readBlockInto(int block, byte[] buffer, int offset) {
+		readBytes(block * Disk.BLOCK_SIZE, buffer, offset, Disk.BLOCK_SIZE);
+	}
+	
+	/**
+	 * Answer with a read-only view of the block.
+	 */
+	public ByteBuffer readBlockBuffer(int block) {
+		return readBuffer(block * Disk.BLOCK_SIZE, Disk.BLOCK_SIZE);
+	}
+	
 	/**
 	 * Write the block to the disk image.
-	 * Note: Defined in terms of reading sectors.
 	 */
 	public void writeBlock(int block, byte[] data) {
 		writeBytes(block * Disk.BLOCK_SIZE, data);
@@ -85,24 +99,38 @@ public class ProdosOrder extends ImageOrder {
 	 * Retrieve the specified sector.
 	 */
 	public byte[] readSector(int track, int sector) throws IllegalArgumentException {
-		int block = track * 8 + blockInterleave[sector];
-		byte[] blockData = readBlock(block);
-		int offset = blockOffsets[sector];
-		byte[] sectorData = new byte[Disk.SECTOR_SIZE];
-		System.arraycopy(blockData, offset * Disk.SECTOR_SIZE, 
-			sectorData, 0, Disk.SECTOR_SIZE); 
-		return sectorData;
+		return readBytes(getSectorOffset(track, sector), Disk.SECTOR_SIZE);
+	}
+	
+	/**
+	 * Read the specified sector into the given buffer at offset.
+	 */
+	public void readSectorInto(int track, int sector, byte[] buffer, int offset) 
+			throws IllegalArgumentException {
+		readBytes(getSectorOffset(track, sector), buffer, offset, Disk.SECTOR_SIZE);
+	}
+	
+	/**
+	 * Answer with a read-only view of the specified sector.
+	 */
+	public ByteBuffer readSectorBuffer(int track, int sector) throws IllegalArgumentException {
+		return readBuffer(getSectorOffset(track, sector), Disk.SECTOR_SIZE);
 	}
 	
 	/**
 	 * Write the specified sector.
 	 */
 	public void writeSector(int track, int sector, byte[] bytes) throws IllegalArgumentException {
+		writeBytes(getSectorOffset(track, sector), bytes);
+	}
+
+	/**
+	 * Compute the offset of a DOS track and sector into the disk image.
+	 * Each block holds two sectors, as described by the interleave tables.
+	 */
+	protected int getSectorOffset(int track, int sector) {
 		int block = track * 8 + blockInterleave[sector];
-		byte[] blockData = readBlock(block);
-		int offset = blockOffsets[sector];
-		System.arraycopy(bytes, 0, blockData, offset * Disk.SECTOR_SIZE, bytes.length);
-		writeBlock(block, blockData);
+		return block * Disk.BLOCK_SIZE + blockOffsets[sector] * Disk.SECTOR_SIZE;
 	}
 
 	/**
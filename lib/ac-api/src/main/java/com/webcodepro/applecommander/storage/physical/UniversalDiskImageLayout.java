@@ -19,6 +19,8 @@
  */
 package com.webcodepro.applecommander.storage.physical;
 
+import java.nio.ByteBuffer;
+
 /**
  * Manages the physical 2IMG disk.
  * @author Rob Greene (RobGreene@users.sourceforge.net)
@@ -51,10 +53,17 @@ public class UniversalDiskImageLayout extends ByteArrayImageLayout {
 	}
 
 	/**
-	 * Extract a portion of the disk image.
+	 * Copy a portion of the disk image into the given buffer.
+	 */
+	public void readBytes(int start, byte[] buffer, int offset, int length) {
+		super.readBytes(start + OFFSET, buffer, offset, length);
+	}
+
+	/**
+	 * Answer with a read-only view of a portion of the disk image.
 	 */
-	public byte[] readBytes(int start, int length) {
-		return super.readBytes(start + OFFSET, length);
+	public ByteBuffer readBuffer(int start, int length) {
+		return super.readBuffer(start + OFFSET, length);
 	}
 	
 	/**
@@ -0,0 +1,251 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.search;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FormattedDisk;
+import com.webcodepro.applecommander.storage.filters.ApplesoftFileFilter;
+import com.webcodepro.applecommander.util.BytePattern;
+import com.webcodepro.applecommander.util.filestreamer.FileStreamer;
+import com.webcodepro.applecommander.util.filestreamer.FileTuple;
+import com.webcodepro.applecommander.util.filestreamer.TypeOfFile;
+
+/**
+ * Search the contents of every file in many disk images for a byte pattern.
+ * <p>
+ * Images are searched in parallel, as are the files within each image.  File 
+ * contents are streamed through a fixed-size buffer, so large files are not read 
+ * into memory.  Optionally the high bit of every byte is cleared before matching 
+ * (so plain and high-bit text both match), and Applesoft programs are searched as 
+ * their detokenized listing rather than their raw bytes.
+ * <p>
+ * Sample usage:
+ * <pre>
+ * ContentSearch.create(BytePattern.of("HELLO"))
+ *              .clearHighBit(true)
+ *              .addImage("MASTER.DSK")
+ *              .search(System.out::println);
+ * </pre>
+ */
+public class ContentSearch {
+    private static final Logger LOG = Logger.getLogger(ContentSearch.class.getName());
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static ContentSearch create(BytePattern pattern) {
+        return new ContentSearch(pattern);
+    }
+
+    private final BytePattern pattern;
+    private List<Object> sources = new ArrayList<>();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean clearHighBit;
+    private boolean detokenize;
+
+    private ContentSearch(BytePattern pattern) {
+        this.pattern = Objects.requireNonNull(pattern);
+    }
+
+    /** Search the files of a loaded disk image. */
+    public ContentSearch add(Disk disk) {
+        sources.add(Objects.requireNonNull(disk));
+        return this;
+    }
+    /** Search the files of a disk image which is opened only while it is searched. */
+    public ContentSearch addImage(String filename) {
+        sources.add(Objects.requireNonNull(filename));
+        return this;
+    }
+    /** Clear the high bit of file contents (and the pattern) before matching. */
+    public ContentSearch clearHighBit(boolean flag) {
+        this.clearHighBit = flag;
+        return this;
+    }
+    /** Search Applesoft programs as their detokenized listing. */
+    public ContentSearch detokenize(boolean flag) {
+        this.detokenize = flag;
+        return this;
+    }
+    /** Number of threads used to search; defaults to the number of processors. */
+    public ContentSearch threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Answer with every hit, in the order the images were added and the files 
+     * were found.
+     */
+    public List<Hit> search() throws IOException {
+        List<Hit> hits = new ArrayList<>();
+        search(hits::add);
+        return hits;
+    }
+
+    /**
+     * Report every hit to the consumer, in the order the images were added and the 
+     * files were found.  The consumer is called by one thread at a time, as soon as
+     * the hits of an image (and all images before it) are known.
+     */
+    public void search(Consumer<Hit> consumer) throws IOException {
+        BytePattern matcher = clearHighBit ? pattern.clearHighBit() : pattern;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, sources.size())
+                                .parallel()
+                                .mapToObj(i -> searchImage(i, matcher))
+                                .forEachOrdered(hits -> hits.forEach(consumer)))
+                .get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) ex.getCause()).getCause();
+            } else if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private List<Hit> searchImage(int index, BytePattern matcher) {
+        Object source = sources.get(index);
+        String imageName = source instanceof Disk ? ((Disk) source).getFilename() : (String) source;
+        FormattedDisk[] formattedDisks;
+        try {
+            Disk disk = source instanceof Disk ? (Disk) source : new Disk(imageName);
+            formattedDisks = disk.getFormattedDisks();
+        } catch (IOException | DiskException | RuntimeException ex) {
+            LOG.warning(() -> String.format("Unable to search '%s': %s", imageName, ex.getMessage()));
+            return Collections.emptyList();
+        }
+        
+        List<Hit> hits = new ArrayList<>();
+        for (int volume=0; volume<formattedDisks.length; volume++) {
+            final int v = volume;
+            hits.addAll(FileStreamer.forFormattedDisks(formattedDisks[volume])
+                    .ignoreErrors(true)
+                    .includeTypeOfFile(TypeOfFile.FILE)
+                    .recursive(true)
+                    .stream()
+                    .parallel()
+                    .flatMap(tuple -> searchFile(imageName, v, tuple, matcher).stream())
+                    .collect(Collectors.toList()));
+        }
+        return hits;
+    }
+
+    private List<Hit> searchFile(String imageName, int volume, FileTuple tuple, BytePattern matcher) {
+        List<Hit> hits = new ArrayList<>();
+        FileEntry fileEntry = tuple.fileEntry;
+        try {
+            if (detokenize && fileEntry.getSuggestedFilter() instanceof ApplesoftFileFilter) {
+                byte[] listing = new ApplesoftFileFilter().filter(fileEntry);
+                int position = 0;
+                while ((position = matcher.indexOf(listing, position, listing.length)) != -1) {
+                    hits.add(new Hit(imageName, volume, tuple, position, true));
+                    position++;
+                }
+            } else {
+                try (InputStream inputStream = fileEntry.openInputStream()) {
+                    search(inputStream, matcher, offset -> hits.add(new Hit(imageName, volume, tuple, offset, false)));
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.warning(() -> String.format("Unable to search '%s' in '%s': %s", tuple.fullPath(), 
+                    imageName, ex.getMessage()));
+        }
+        return hits;
+    }
+
+    /**
+     * Scan the stream in fixed-size pieces.  The last length-1 bytes of each piece are
+     * carried into the next one, so a match which spans two pieces is found exactly once.
+     */
+    private void search(InputStream inputStream, BytePattern matcher, Consumer<Long> offsets) throws IOException {
+        int overlap = matcher.length() - 1;
+        byte[] buffer = new byte[Math.max(BUFFER_SIZE, overlap * 2)];
+        long base = 0;
+        int kept = 0;
+        int length;
+        while ((length = inputStream.read(buffer, kept, buffer.length - kept)) != -1) {
+            if (clearHighBit) {
+                BytePattern.clearHighBit(buffer, kept, kept + length);
+            }
+            int limit = kept + length;
+            int position = 0;
+            while ((position = matcher.indexOf(buffer, position, limit)) != -1) {
+                offsets.accept(base + position);
+                position++;
+            }
+            kept = Math.min(overlap, limit);
+            System.arraycopy(buffer, limit - kept, buffer, 0, kept);
+            base += limit - kept;
+        }
+    }
+
+    /** Where the pattern was found. */
+    public static class Hit {
+        public final String imageName;
+        /** Index of the volume within the image (for images with several volumes, such as UniDOS). */
+        public final int volume;
+        public final String volumeName;
+        public final String path;
+        /** Offset of the match within the file, or within its listing when detokenized. */
+        public final long offset;
+        /** True if the match is in a detokenized Applesoft listing. */
+        public final boolean detokenized;
+
+        private Hit(String imageName, int volume, FileTuple tuple, long offset, boolean detokenized) {
+            this.imageName = imageName;
+            this.volume = volume;
+            this.volumeName = tuple.formattedDisk.getDiskName();
+            this.path = tuple.fullPath();
+            this.offset = offset;
+            this.detokenized = detokenized;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s:%s:%d", imageName, path, offset);
+        }
+    }
+}
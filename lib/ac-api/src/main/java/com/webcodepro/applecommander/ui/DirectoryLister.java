@@ -20,16 +20,16 @@
 package com.webcodepro.applecommander.ui;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.List;
 import java.util.stream.Collectors;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 import com.webcodepro.applecommander.storage.Disk;
 import com.webcodepro.applecommander.storage.DiskUnrecognizedException;
 import com.webcodepro.applecommander.storage.FormattedDisk;
@@ -50,6 +50,9 @@ public class DirectoryLister {
 	public static DirectoryLister json(int display) {
 		return new DirectoryLister(new JsonListingStrategy(display));
 	}
+	public static DirectoryLister ndjson(int display) {
+		return new DirectoryLister(new NdJsonListingStrategy(display));
+	}
 
 	private ListingStrategy strategy;
 	
@@ -156,55 +159,143 @@ public class DirectoryLister {
 		}
 	}
 	
+	/**
+	 * Writes the listing as one JSON document.  Each file is written as it is visited, so
+	 * memory does not grow with the number of files.
+	 */
 	public static class JsonListingStrategy extends ListingStrategy {
-		private JsonObject root;
-		private JsonArray disks;
-		private JsonObject currentDisk;
-		private JsonArray files;
-		private Gson gson = new Gson();
+		private Writer out;
+		private JsonWriter writer;
+		private List<String> keys;
 		public JsonListingStrategy(int display) {
 			super(display);
 		}
         @Override
 		public void first(Disk disk) {
-			root = new JsonObject();
-			root.addProperty("filename", disk.getFilename());
-			root.addProperty("order", disk.getOrderName());
-			root.addProperty("physicalSize", disk.getPhysicalSize());
-			this.disks = new JsonArray();
-			root.add("disks", disks);
+			try {
+				out = new OutputStreamWriter(System.out);
+				writer = createJsonWriter(out);
+				writer.beginObject();
+				writer.name("filename").value(disk.getFilename());
+				writer.name("order").value(disk.getOrderName());
+				writer.name("physicalSize").value(disk.getPhysicalSize());
+				writer.name("disks").beginArray();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
 		}
         @Override
 		public void beforeDisk(FormattedDisk disk) {
-			currentDisk = new JsonObject();
-			disks.add(currentDisk);
-			currentDisk.addProperty("diskName", disk.getDiskName());
-			currentDisk.addProperty("format", disk.getFormat());
-			currentDisk.addProperty("freeSpace", disk.getFreeSpace());
-			currentDisk.addProperty("usedSpace", disk.getUsedSpace());
-			currentDisk.addProperty("logicalDiskNumber", disk.getLogicalDiskNumber());
-			files = new JsonArray();
-			currentDisk.add("files", files);
-
+			try {
+				writer.beginObject();
+				writer.name("diskName").value(disk.getDiskName());
+				writer.name("format").value(disk.getFormat());
+				writer.name("freeSpace").value(disk.getFreeSpace());
+				writer.name("usedSpace").value(disk.getUsedSpace());
+				writer.name("logicalDiskNumber").value(disk.getLogicalDiskNumber());
+				writer.name("files").beginArray();
+				keys = columnKeys(disk, display);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
 		}
         @Override
 		public void afterDisk(FormattedDisk disk) {
-			currentDisk = null;
+			try {
+				writer.endArray();
+				writer.endObject();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
 		}
         @Override
 		public void forEach(FileTuple tuple) {
-			JsonObject file = new JsonObject();
-			files.add(file);
-			
-			List<FileColumnHeader> headers = tuple.formattedDisk.getFileColumnHeaders(display);
-			List<String> columns = tuple.fileEntry.getFileColumnData(display);
-			for (int i=0; i<headers.size(); i++) {
-				file.addProperty(headers.get(i).getKey(), columns.get(i));
+			try {
+				writer.beginObject();
+				writeColumns(writer, keys, tuple.fileEntry.getFileColumnData(display));
+				writer.endObject();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
 			}
 		}
         @Override
 		public void last(Disk disk) {
-			System.out.println(gson.toJson(root));			
+			try {
+				writer.endArray();
+				writer.endObject();
+				writer.flush();
+				out.write(System.lineSeparator());
+				out.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Writes one JSON object per file, one per line (NDJSON), for piping into other tools.  Each
+	 * line carries the image and disk it came from.
+	 */
+	public static class NdJsonListingStrategy extends ListingStrategy {
+		private Writer out;
+		private String filename;
+		private List<String> keys;
+		public NdJsonListingStrategy(int display) {
+			super(display);
+		}
+        @Override
+		public void first(Disk disk) {
+			out = new OutputStreamWriter(System.out);
+			filename = disk.getFilename();
+		}
+        @Override
+		public void beforeDisk(FormattedDisk disk) {
+			keys = columnKeys(disk, display);
+		}
+        @Override
+		public void forEach(FileTuple tuple) {
+			try {
+				JsonWriter writer = createJsonWriter(out);
+				writer.beginObject();
+				writer.name("filename").value(filename);
+				writer.name("diskName").value(tuple.formattedDisk.getDiskName());
+				writer.name("logicalDiskNumber").value(tuple.formattedDisk.getLogicalDiskNumber());
+				writer.name("path").value(tuple.fullPath());
+				writeColumns(writer, keys, tuple.fileEntry.getFileColumnData(display));
+				writer.endObject();
+				writer.flush();
+				out.write(System.lineSeparator());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+        @Override
+		public void last(Disk disk) {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+	
+	/** Configured to match the output of the default Gson instance. */
+	private static JsonWriter createJsonWriter(Writer out) {
+		JsonWriter writer = new JsonWriter(out);
+		writer.setHtmlSafe(true);
+		writer.setSerializeNulls(false);
+		return writer;
+	}
+	private static List<String> columnKeys(FormattedDisk disk, int display) {
+		return disk.getFileColumnHeaders(display)
+				.stream()
+				.map(FileColumnHeader::getKey)
+				.collect(Collectors.toList());
+	}
+	private static void writeColumns(JsonWriter writer, List<String> keys, List<String> columns) 
+			throws IOException {
+		for (int i=0; i<keys.size(); i++) {
+			writer.name(keys.get(i)).value(columns.get(i));
 		}
 	}
 }
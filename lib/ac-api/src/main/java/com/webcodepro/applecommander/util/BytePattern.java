@@ -0,0 +1,100 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A byte sequence to search for, using the Boyer-Moore-Horspool algorithm.  The
+ * skip table is built once, so a pattern can be shared by many threads.
+ */
+public class BytePattern {
+    private final byte[] pattern;
+    private final int[] skip = new int[256];
+
+    public BytePattern(byte[] pattern) {
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("Search pattern may not be empty");
+        }
+        this.pattern = pattern.clone();
+        int last = pattern.length - 1;
+        Arrays.fill(skip, pattern.length);
+        for (int i=0; i<last; i++) {
+            skip[pattern[i] & 0xff] = last - i;
+        }
+    }
+    
+    /** Create a pattern for the text, one byte per character. */
+    public static BytePattern of(String text) {
+        return new BytePattern(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+    
+    /** Answer with this pattern with the high bit of every byte cleared. */
+    public BytePattern clearHighBit() {
+        byte[] bytes = pattern.clone();
+        clearHighBit(bytes, 0, bytes.length);
+        return new BytePattern(bytes);
+    }
+    
+    /** Clear the high bit of bytes in the given range, in place. */
+    public static void clearHighBit(byte[] data, int from, int to) {
+        for (int i=from; i<to; i++) {
+            data[i] &= 0x7f;
+        }
+    }
+    
+    public int length() {
+        return pattern.length;
+    }
+    
+    public byte[] getBytes() {
+        return pattern.clone();
+    }
+    
+    /**
+     * Answer with the position of the first match which starts at or after from and
+     * ends at or before to, or -1.
+     */
+    public int indexOf(byte[] data, int from, int to) {
+        int last = pattern.length - 1;
+        int position = Math.max(from, 0);
+        while (position + last < to) {
+            int i = last;
+            while (data[position + i] == pattern[i]) {
+                if (i == 0) {
+                    return position;
+                }
+                i--;
+            }
+            position += skip[data[position + last] & 0xff];
+        }
+        return -1;
+    }
+    
+    public int indexOf(byte[] data) {
+        return indexOf(data, 0, data.length);
+    }
+    
+    @Override
+    public String toString() {
+        return new String(pattern, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -21,8 +21,6 @@
  */
 package com.webcodepro.applecommander.util;
 
-import java.util.List;
-
 import com.webcodepro.applecommander.storage.DirectoryEntry;
 import com.webcodepro.applecommander.storage.DiskException;
 import com.webcodepro.applecommander.storage.FileEntry;
@@ -46,45 +44,28 @@ public class Name {
     }
     
     public FileEntry getEntry(FormattedDisk formattedDisk) throws DiskException {
-        List<FileEntry> files = formattedDisk.getFiles();
-        FileEntry entry = null;
+        DirectoryEntry directory = formattedDisk;
         for (int i = 0; i < path.length - 1; i++) {
-            String dirName = path[i];
-            for (int j = 0; j < files.size(); j++) {
-                entry = (FileEntry) files.get(j);
-                String entryName = entry.getFilename();
-                if (entry.isDirectory() && dirName.equalsIgnoreCase(entryName)) {
-                    files = ((DirectoryEntry) entry).getFiles();
-                }
+            FileEntry entry = formattedDisk.getFile(directory, path[i]);
+            if (entry != null && entry.isDirectory()) {
+                directory = (DirectoryEntry) entry;
             }
         }
-        for (int i = 0; i < files.size(); i++) {
-            entry = (FileEntry) files.get(i);
-            String entryName = entry.getFilename();
-            if (!entry.isDeleted() && name.equalsIgnoreCase(entryName)) {
-                return entry;
-            }
-        }
-        return null;
+        return formattedDisk.getFile(directory, name);
     }
     
     public FileEntry createEntry(FormattedDisk formattedDisk) throws DiskException {
         if (path.length == 1) {
             return formattedDisk.createFile();
         }
-        List<FileEntry> files = formattedDisk.getFiles();
         DirectoryEntry dir = null, parentDir = null;
         for (int i = 0; i < path.length - 1; i++) {
             String dirName = path[i];
             dir = null;
-            for (int j = 0; j < files.size(); j++) {
-                FileEntry entry = (FileEntry) files.get(j);
-                String entryName = entry.getFilename();
-                if (!entry.isDeleted() && entry.isDirectory() && dirName.equalsIgnoreCase(entryName)) {
-                    dir = (DirectoryEntry) entry;
-                    parentDir = dir;
-                    files = dir.getFiles();
-                }
+            FileEntry entry = formattedDisk.getFile(parentDir != null ? parentDir : formattedDisk, dirName);
+            if (entry != null && entry.isDirectory()) {
+                dir = (DirectoryEntry) entry;
+                parentDir = dir;
             }
             if (dir == null) {
                 if (parentDir != null) {
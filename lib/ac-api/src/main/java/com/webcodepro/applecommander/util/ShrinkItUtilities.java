@@ -18,12 +18,22 @@
  */
 package com.webcodepro.applecommander.util;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskException;
 import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.StorageBundle;
 import com.webcodepro.applecommander.storage.os.prodos.ProdosFileEntry;
@@ -43,6 +53,12 @@ import com.webcodepro.shrinkit.io.LittleEndianByteInputStream;
  */
 public class ShrinkItUtilities
 {
+	/**
+	 * Largest record (in uncompressed bytes) that is decompressed ahead into
+	 * memory when unpacking with more than one thread.
+	 */
+	public static final int MAX_PREFETCH_SIZE = 1024 * 1024;
+
 	/**
 	 * Interpret a NuFile/NuFX/Shrinkit archive as a full disk image.
 	 * 
@@ -69,111 +85,141 @@ public class ShrinkItUtilities
 	 *             the file has some malformed-ness about it
 	 */
 	public static byte[] unpackSHKFile(String fileName, int startBlocks) throws IOException
+	{
+		return unpackSHKLayout(fileName, startBlocks).getDiskImage();
+	}
+
+	/**
+	 * Interpret a NuFile/NuFX/Shrinkit archive as a full disk image, answering
+	 * with the layout holding that image.  Files are streamed a block at a
+	 * time onto the new volume.
+	 * 
+	 * @see #unpackSHKLayout(String, int, int)
+	 */
+	public static ByteArrayImageLayout unpackSHKLayout(String fileName, int startBlocks) throws IOException
+	{
+		return unpackSHKLayout(fileName, startBlocks, 1);
+	}
+
+	/**
+	 * Interpret a NuFile/NuFX/Shrinkit archive as a full disk image, answering
+	 * with the layout holding that image.  A disk image thread is
+	 * decompressed directly into the layout's buffer; no other copy of the
+	 * image is made.
+	 * <p>
+	 * With a single thread, files are decompressed a block at a time directly
+	 * onto a new ProDOS volume.  With more threads, upcoming records are
+	 * decompressed on a pool of that size while files are still created on
+	 * the volume one at a time, in archive order.  At most two records per
+	 * thread are held in memory, and a record larger than MAX_PREFETCH_SIZE
+	 * is streamed as in the single thread case.  The resulting image is
+	 * identical either way.
+	 * 
+	 * @throws IOException
+	 *             the file is not readable or has some malformed-ness about it
+	 */
+	public static ByteArrayImageLayout unpackSHKLayout(String fileName, int startBlocks, int threads) throws IOException
 	{
 		TextBundle textBundle = StorageBundle.getInstance();
-		byte dmgBuffer[] = null;
 		File file = new File(fileName);
 		if (file.isDirectory() || !file.canRead())
 		{
 			throw new IOException(textBundle.format("NotAFile", fileName, 1)); //$NON-NLS-1$ 
 		}
-		InputStream is = new FileInputStream(file);
-		NuFileArchive a = new NuFileArchive(is);
-		// If we need to build a disk to hold files (i.e. .shk vs. .sdk), how big would that disk need to be?
-		int newDiskSize = Disk.sizeToFit(a.getArchiveSize());
-		if (startBlocks > 0)
-			newDiskSize = startBlocks*512;
-		ByteArrayImageLayout layout = new ByteArrayImageLayout(newDiskSize);
-		ImageOrder imageOrder = new ProdosOrder(layout);
-		// Create a new disk in anticipation of unpacking files - we don't actually know if we'll need it yet, though.
-		FormattedDisk[] disks = ProdosFormatDisk.create(fileName, "APPLECOMMANDER", imageOrder); //$NON-NLS-1$
-		// Make some typing easier... get a handle to the disk we created, with ProdosFormatDisk extensions. 
-		ProdosFormatDisk pdDisk = (ProdosFormatDisk) disks[0];
-		ThreadRecord dataFork, resourceFork;
-		for (HeaderBlock b : a.getHeaderBlocks())
-		{
-			ProdosFileEntry newFile = null;
-			dataFork = null;
-			resourceFork = null;
-			for (ThreadRecord r : b.getThreadRecords())
+		NuFileArchive a;
+		try (InputStream is = new FileInputStream(file))
+		{
+			a = new NuFileArchive(is);
+		}
+		ByteArrayImageLayout dmgLayout = null;
+		// The volume to hold files is only built once a file is found (i.e. .shk vs. .sdk)
+		ProdosFormatDisk pdDisk = null;
+		ByteArrayImageLayout layout = null;
+		ExecutorService pool = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+		try
+		{
+			Deque<Future<UnpackedRecord>> pending = new ArrayDeque<>();
+			Iterator<HeaderBlock> headers = a.getHeaderBlocks().iterator();
+			while (headers.hasNext() || !pending.isEmpty())
 			{
-				try
+				// Keep the pool busy with the records that follow
+				while (headers.hasNext() && pending.size() < Math.max(1, threads * 2))
 				{
-					switch (r.getThreadKind())
-					{
-					case ASCII_TEXT:
-						break;
-					case ALLOCATED_SPACE:
-						break;
-					case APPLE_IIGS_ICON:
-						break;
-					case CREATE_DIRECTORY:
-						break;
-					case DATA_FORK:
-						// This is a normal-ish file - hang on to the thread record
-						dataFork = r;
-						break;
-					case DISK_IMAGE:
-						dmgBuffer = readThread(r);
-						break;
-					case RESOURCE_FORK:
-						// This is a resource fork - we're talking GSOS FST here
-						resourceFork = r;
-						break;
-					case FILENAME:
-						break;
-					default:
-						// Hmmm, this should not occur - but let us not fret about it.
-						break;
-					}
+					UnpackedRecord record = new UnpackedRecord(headers.next());
+					if (pool == null || record.getLength() > MAX_PREFETCH_SIZE)
+						pending.add(CompletableFuture.completedFuture(record));
+					else
+						pending.add(pool.submit(record::decompress));
 				}
-				catch (Exception ex)
+				UnpackedRecord record = pending.remove().get();
+				if (record.diskImage != null)
 				{
-					throw new IOException(ex.getMessage());
+					dmgLayout = new ByteArrayImageLayout(record.getDiskImage());
 				}
-			}
-			try
-			{
-				if ((dataFork != null) || (resourceFork != null))
+				if ((record.dataFork != null) || (record.resourceFork != null))
 				{
-					Name name = new Name(b.getFilename());
-					newFile = (ProdosFileEntry)name.createEntry(pdDisk);
-					if (newFile != null)
+					if (pdDisk == null)
 					{
-						if (resourceFork != null)
-						{
-							// If we have a resource fork in addition to a data fork,
-							// then we've got a GSOS storage type $5. 
-							newFile.setFileData(readThread(dataFork), readThread(resourceFork));
-							newFile.setStorageType(0x05);
-						}
-						else
-						{
-							// We have a traditional file, no resource fork.
-							newFile.setFileData(readThread(dataFork));
-						}
-						newFile.setFilename(b.getFinalFilename());
-						newFile.setFiletype(b.getFileType());
-						newFile.setAuxiliaryType((int) b.getExtraType());
-						// TODO: dates differ by a month or so from what CiderPress reports.  
-						newFile.setCreationDate(b.getCreateWhen());
-						newFile.setLastModificationDate(b.getModWhen());
-						newFile = null;
+						// How big would a disk to hold the files need to be?
+						int newDiskSize = Disk.sizeToFit(a.getArchiveSize());
+						if (startBlocks > 0)
+							newDiskSize = startBlocks*512;
+						layout = new ByteArrayImageLayout(newDiskSize);
+						pdDisk = createDisk(fileName, layout);
 					}
+					record.createFile(pdDisk);
 				}
 			}
-			catch (Exception ex)
-			{
-				throw new IOException(ex.getMessage());
-			}
 		}
-		if (dmgBuffer != null)
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException(ex.getMessage());
+		}
+		catch (ExecutionException ex)
+		{
+			throw new IOException(ex.getCause().getMessage());
+		}
+		catch (IOException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			throw new IOException(ex.getMessage());
+		}
+		finally
+		{
+			if (pool != null)
+				pool.shutdownNow();
+		}
+		if (dmgLayout != null)
 		{
 			// Disk images take precedence... if they have both disk images and files, just return the disk.
-			return dmgBuffer;
+			dmgLayout.setChanged(false);
+			return dmgLayout;
 		}
-		else
-			return imageOrder.readBytes(0, newDiskSize);
+		if (layout == null)
+		{
+			// An archive without files still produces an (empty) volume
+			int newDiskSize = Disk.sizeToFit(a.getArchiveSize());
+			if (startBlocks > 0)
+				newDiskSize = startBlocks*512;
+			layout = new ByteArrayImageLayout(newDiskSize);
+			createDisk(fileName, layout);
+		}
+		layout.setChanged(false);
+		return layout;
+	}
+
+	/**
+	 * Format a new ProDOS volume onto the layout.
+	 */
+	private static ProdosFormatDisk createDisk(String fileName, ByteArrayImageLayout layout)
+	{
+		ImageOrder imageOrder = new ProdosOrder(layout);
+		FormattedDisk[] disks = ProdosFormatDisk.create(fileName, "APPLECOMMANDER", imageOrder); //$NON-NLS-1$
+		return (ProdosFormatDisk) disks[0];
 	}
 
 	/**
@@ -188,12 +234,152 @@ public class ShrinkItUtilities
 		byte[] buffer = null;
 		if (thread != null)
 		{
-			thread.readThreadData(new LittleEndianByteInputStream(thread.getRawInputStream()));
-			InputStream fis = thread.getInputStream();
-			buffer = new byte[(int) (thread.getThreadEof())];
-			fis.read(buffer, 0, buffer.length);
-			fis.close();
+			buffer = new byte[getThreadLength(thread)];
+			try (InputStream fis = openThread(thread))
+			{
+				int offset = 0;
+				while (offset < buffer.length)
+				{
+					int count = fis.read(buffer, offset, buffer.length - offset);
+					if (count < 0)
+						break;
+					offset += count;
+				}
+			}
 		}
 		return buffer;
 	}
+
+	/**
+	 * Open a stream of the uncompressed data in a thread.  A missing thread
+	 * is treated as empty.
+	 */
+	public static InputStream openThread(ThreadRecord thread) throws IOException
+	{
+		if (thread == null)
+			return new ByteArrayInputStream(new byte[0]);
+		thread.readThreadData(new LittleEndianByteInputStream(thread.getRawInputStream()));
+		return thread.getInputStream();
+	}
+
+	/**
+	 * Answer with the uncompressed length of a thread.
+	 */
+	public static int getThreadLength(ThreadRecord thread)
+	{
+		if (thread == null)
+			return 0;
+		return (int) thread.getThreadEof();
+	}
+
+	/**
+	 * The threads of interest in one archive record.  The record may be
+	 * decompressed ahead of time (on another thread); otherwise the threads
+	 * are decompressed as they are read.
+	 */
+	private static class UnpackedRecord
+	{
+		private HeaderBlock header;
+		private ThreadRecord dataFork;
+		private ThreadRecord resourceFork;
+		private ThreadRecord diskImage;
+		private byte[] dataForkData;
+		private byte[] resourceForkData;
+		private byte[] diskImageData;
+
+		public UnpackedRecord(HeaderBlock header)
+		{
+			this.header = header;
+			for (ThreadRecord r : header.getThreadRecords())
+			{
+				switch (r.getThreadKind())
+				{
+				case DATA_FORK:
+					// This is a normal-ish file - hang on to the thread record
+					dataFork = r;
+					break;
+				case DISK_IMAGE:
+					diskImage = r;
+					break;
+				case RESOURCE_FORK:
+					// This is a resource fork - we're talking GSOS FST here
+					resourceFork = r;
+					break;
+				default:
+					// Text, icons, filenames and the like are not unpacked
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Answer with the uncompressed length of all threads of interest.
+		 */
+		public long getLength()
+		{
+			return (long) getThreadLength(dataFork) + getThreadLength(resourceFork) 
+				+ getThreadLength(diskImage);
+		}
+
+		/**
+		 * Decompress all threads of interest into memory.
+		 */
+		public UnpackedRecord decompress() throws IOException
+		{
+			if (dataFork != null)
+				dataForkData = readThread(dataFork);
+			if (resourceFork != null)
+				resourceForkData = readThread(resourceFork);
+			if (diskImage != null)
+				diskImageData = readThread(diskImage);
+			return this;
+		}
+
+		public byte[] getDiskImage() throws IOException
+		{
+			return (diskImageData != null) ? diskImageData : readThread(diskImage);
+		}
+
+		private InputStream open(ThreadRecord thread, byte[] data) throws IOException
+		{
+			return (data != null) ? new ByteArrayInputStream(data) : openThread(thread);
+		}
+
+		/**
+		 * Create this record's file on the disk.
+		 */
+		public void createFile(ProdosFormatDisk pdDisk) throws DiskException, IOException
+		{
+			Name name = new Name(header.getFilename());
+			ProdosFileEntry newFile = (ProdosFileEntry)name.createEntry(pdDisk);
+			if (newFile == null)
+				return;
+			if (resourceFork != null)
+			{
+				// If we have a resource fork in addition to a data fork,
+				// then we've got a GSOS storage type $5. 
+				try (InputStream data = open(dataFork, dataForkData);
+					InputStream resource = open(resourceFork, resourceForkData))
+				{
+					newFile.setFileData(data, getThreadLength(dataFork), 
+						resource, getThreadLength(resourceFork));
+				}
+				newFile.setStorageType(0x05);
+			}
+			else
+			{
+				// We have a traditional file, no resource fork.
+				try (InputStream data = open(dataFork, dataForkData))
+				{
+					newFile.setFileData(data, getThreadLength(dataFork));
+				}
+			}
+			newFile.setFilename(header.getFinalFilename());
+			newFile.setFiletype(header.getFileType());
+			newFile.setAuxiliaryType((int) header.getExtraType());
+			// TODO: dates differ by a month or so from what CiderPress reports.  
+			newFile.setCreationDate(header.getCreateWhen());
+			newFile.setLastModificationDate(header.getModWhen());
+		}
+	}
 }
@@ -26,13 +26,16 @@ import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Spliterators;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
@@ -57,6 +60,8 @@ import com.webcodepro.applecommander.storage.FormattedDisk;
  *             .filter(this::fileFilter)
  *             .forEach(fileHandler);
  * </pre>
+ * The stream may be made parallel, in which case sibling directories are walked on 
+ * separate threads.
  * 
  * @author rob
  */
@@ -81,6 +86,7 @@ public class FileStreamer {
     // Processor flags (used in gathering)
     private boolean ignoreErrorsFlag = false;
     private boolean recursiveFlag = true;
+    private boolean prefetchFlag = false;
     
     // Processor events
     private Consumer<FormattedDisk> beforeDisk = NOOP_CONSUMER;
@@ -119,6 +125,14 @@ public class FileStreamer {
     public FileStreamer matchGlobs(String... globs) {
         return matchGlobs(Arrays.asList(globs));
     }
+    /**
+     * Read the next subdirectory in the background while the current one is walked.  Only use
+     * this when the disk is not modified during the walk.
+     */
+    public FileStreamer prefetch(boolean flag) {
+        this.prefetchFlag = flag;
+        return this;
+    }
     public FileStreamer includeTypeOfFile(TypeOfFile type) {
         this.filters = filters.and(type.predicate);
         return this;
@@ -137,7 +151,7 @@ public class FileStreamer {
     }
     
     public Stream<FileTuple> stream() {
-        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), 0), false)
+        return StreamSupport.stream(new FileTupleIterator(), false)
                             .filter(filters);
     }
     public Iterator<FileTuple> iterator() {
@@ -167,21 +181,37 @@ public class FileStreamer {
         return false;
     }
     
-    private class FileTupleIterator implements Iterator<FileTuple> {
-        private LinkedList<FileTuple> files = new LinkedList<>();
+    /**
+     * Walks the directories depth-first, reading each directory only when the walk reaches it.
+     * Only the directories on the path to the current file are held, so memory is bounded by
+     * directory depth rather than by the number of files.  This is also the Spliterator for 
+     * {@link #stream()}; a split hands out sibling subtrees so parallel streams fan out.
+     */
+    private class FileTupleIterator implements Iterator<FileTuple>, Spliterator<FileTuple> {
+        private final Deque<Frame> stack = new ArrayDeque<>();
+        private FileTuple nextTuple;
         private FormattedDisk currentDisk;
         
         private FileTupleIterator() {
+            List<FileTuple> roots = new ArrayList<>();
             for (FormattedDisk formattedDisk : formattedDisks) {
-                files.addAll(toTupleList(FileTuple.of(formattedDisk)));
+                roots.add(FileTuple.of(formattedDisk));
             }
+            stack.push(new Frame(roots));
+        }
+        private FileTupleIterator(Deque<Frame> frames, FileTuple nextTuple) {
+            this.stack.addAll(frames);
+            this.nextTuple = nextTuple;
         }
 
         @Override
         public boolean hasNext() {
-            boolean hasNext = !files.isEmpty();
+            if (nextTuple == null) {
+                nextTuple = advance();
+            }
+            boolean hasNext = nextTuple != null;
             if (hasNext) {
-                FileTuple tuple = files.peek();
+                FileTuple tuple = nextTuple;
                 // Was there a disk switch?
                 if (tuple.formattedDisk != currentDisk) {
                     if (currentDisk != null) {
@@ -202,29 +232,218 @@ public class FileStreamer {
         @Override
         public FileTuple next() {
             if (hasNext()) {
-                FileTuple tuple = files.removeFirst();
-                if (recursiveFlag && tuple.fileEntry.isDirectory()) {
-                    FileTuple newTuple = tuple.pushd(tuple.fileEntry);
-                    files.addAll(0, toTupleList(newTuple));
-                }
+                FileTuple tuple = nextTuple;
+                nextTuple = null;
                 return tuple;
             } else {
                 throw new NoSuchElementException();
             }
         }
         
-        private List<FileTuple> toTupleList(FileTuple tuple) {
-            List<FileTuple> list = new ArrayList<>();
-            try {
-                for (FileEntry fileEntry : tuple.directoryEntry.getFiles()) {
-                    list.add(tuple.of(fileEntry));
+        @Override
+        public boolean tryAdvance(Consumer<? super FileTuple> action) {
+            if (hasNext()) {
+                action.accept(next());
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super FileTuple> action) {
+            while (hasNext()) {
+                action.accept(next());
+            }
+        }
+
+        /**
+         * Split off everything before the midpoint of the shallowest directory that has at least
+         * two entries left to visit.  Disk events are tied to the order of the walk, so no split 
+         * is made when they are in use.
+         */
+        @Override
+        public Spliterator<FileTuple> trySplit() {
+            if (beforeDisk != NOOP_CONSUMER || afterDisk != NOOP_CONSUMER) {
+                return null;
+            }
+            // A single disk has nothing to split until its root directory is entered
+            Frame bottom = stack.peekLast();
+            if (stack.size() == 1 && bottom.directory == null && bottom.remaining() == 1) {
+                stack.push(new Frame(bottom.take()));
+            }
+            Deque<Frame> prefix = new ArrayDeque<>();
+            for (Frame frame : stack) {
+                prefix.addLast(frame);
+            }
+            while (!prefix.isEmpty()) {
+                Frame frame = prefix.removeLast();
+                int remaining = frame.remaining();
+                if (remaining >= 2) {
+                    prefix.addLast(frame.splitPrefix(frame.index + remaining / 2));
+                    FileTupleIterator split = new FileTupleIterator(prefix, nextTuple);
+                    // Everything deeper than the split directory now belongs to the prefix
+                    while (stack.peek() != frame) {
+                        stack.pop();
+                    }
+                    nextTuple = null;
+                    return split;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+
+        private FileTuple advance() {
+            while (!stack.isEmpty()) {
+                Frame frame = stack.peek();
+                if (frame.remaining() == 0) {
+                    stack.pop();
+                    frame.cancelPrefetch();
+                    continue;
+                }
+                boolean isRoot = frame.directory == null;
+                Frame prefetched = frame.takePrefetch();
+                FileTuple tuple = frame.take();
+                if (isRoot) {
+                    stack.push(new Frame(tuple));
+                    continue;
                 }
-            } catch (DiskException e) {
-                if (!ignoreErrorsFlag) {
-                    throw new RuntimeException(e);
+                if (recursiveFlag && tuple.fileEntry.isDirectory()) {
+                    stack.push(prefetched != null ? prefetched : new Frame(tuple.pushd(tuple.fileEntry)));
+                    frame.prefetchNext();
                 }
+                return tuple;
+            }
+            return null;
+        }
+    }
+    
+    /** One directory of the walk, with the range of its entries still to be visited. */
+    private class Frame {
+        /** The directory being walked; null for the list of disks. */
+        private final FileTuple directory;
+        private List<FileTuple> children;
+        private CompletableFuture<List<FileTuple>> pending;
+        private int index;
+        private int end;
+        /** The next subdirectory, read ahead of the walk when prefetching. */
+        private Frame prefetch;
+        private int prefetchIndex;
+        private int scanIndex;
+
+        private Frame(List<FileTuple> roots) {
+            this.directory = null;
+            this.children = roots;
+            this.end = roots.size();
+        }
+        private Frame(FileTuple directory) {
+            this.directory = directory;
+        }
+        private Frame(Frame frame, int end) {
+            this.directory = frame.directory;
+            this.children = frame.children;
+            this.index = frame.index;
+            this.end = end;
+            this.scanIndex = Math.min(frame.scanIndex, end);
+        }
+
+        private int remaining() {
+            load();
+            return end - index;
+        }
+        private FileTuple take() {
+            load();
+            return children.get(index++);
+        }
+        private Frame takePrefetch() {
+            if (prefetch != null && prefetchIndex == index) {
+                Frame frame = prefetch;
+                prefetch = null;
+                return frame;
+            }
+            return null;
+        }
+        /** Answer a frame for the entries before end; this frame keeps the rest. */
+        private Frame splitPrefix(int end) {
+            Frame frame = new Frame(this, end);
+            if (prefetch != null && prefetchIndex < end) {
+                frame.prefetch = prefetch;
+                frame.prefetchIndex = prefetchIndex;
+                prefetch = null;
+            }
+            index = end;
+            scanIndex = Math.max(scanIndex, end);
+            prefetchNext();
+            return frame;
+        }
+
+        private void load() {
+            if (children != null) {
+                return;
+            }
+            if (pending != null) {
+                try {
+                    children = pending.join();
+                } catch (CompletionException ex) {
+                    if (ex.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) ex.getCause();
+                    }
+                    throw ex;
+                }
+                pending = null;
+            } else {
+                children = readDirectory(directory);
+            }
+            end = children.size();
+            prefetchNext();
+        }
+        private void startPrefetch() {
+            pending = CompletableFuture.supplyAsync(() -> readDirectory(directory));
+        }
+        /** Start reading the next subdirectory this frame will descend into. */
+        private void prefetchNext() {
+            if (!prefetchFlag || !recursiveFlag || directory == null || prefetch != null) {
+                return;
+            }
+            scanIndex = Math.max(scanIndex, index);
+            while (scanIndex < end) {
+                FileTuple tuple = children.get(scanIndex++);
+                if (tuple.fileEntry.isDirectory()) {
+                    prefetch = new Frame(tuple.pushd(tuple.fileEntry));
+                    prefetchIndex = scanIndex - 1;
+                    prefetch.startPrefetch();
+                    return;
+                }
+            }
+        }
+        private void cancelPrefetch() {
+            if (prefetch != null && prefetch.pending != null) {
+                prefetch.pending.cancel(false);
+            }
+            prefetch = null;
+        }
+    }
+    
+    private List<FileTuple> readDirectory(FileTuple tuple) {
+        List<FileTuple> list = new ArrayList<>();
+        try {
+            for (FileEntry fileEntry : tuple.directoryEntry.getFiles()) {
+                list.add(tuple.of(fileEntry));
+            }
+        } catch (DiskException e) {
+            if (!ignoreErrorsFlag) {
+                throw new RuntimeException(e);
             }
-            return list;
         }
+        return list;
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import java.util.Random;
+
+import com.webcodepro.applecommander.storage.os.dos33.DosFormatDisk;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.DosOrder;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+
+/**
+ * Compares the FIRST_FIT and BEST_FIT_EXTENT allocation policies on a
+ * fragmented disk.  For each policy this reports the number of extents
+ * the new files occupy and the time taken to read them back.  This is
+ * not run as part of the test suite; run it directly with the test
+ * classpath.
+ */
+public class AllocationBenchmark {
+    private static final int ITERATIONS = 200;
+
+    public static void main(String[] args) throws DiskException {
+        for (AllocationPolicy policy : AllocationPolicy.values()) {
+            FormattedDisk prodos = ProdosFormatDisk.create("bench.po", "BENCH",
+                    new ProdosOrder(new ByteArrayImageLayout(Disk.APPLE_32MB_HARDDISK)))[0];
+            run("ProDOS 32MB", prodos, policy, 4096, 200_000);
+            FormattedDisk dos = DosFormatDisk.create("bench.do",
+                    new DosOrder(new ByteArrayImageLayout(Disk.APPLE_140KB_DISK)))[0];
+            run("DOS 3.3 140K", dos, policy, 1000, 20_000);
+        }
+    }
+
+    /**
+     * Fragment the disk by writing small files and deleting every other
+     * one, then write and read back larger files with the given policy.
+     */
+    private static void run(String name, FormattedDisk disk, AllocationPolicy policy,
+            int smallSize, int largeSize) throws DiskException {
+        byte[] small = new byte[smallSize];
+        int smallFiles = Math.min(40, disk.getFreeSpace() / smallSize / 4);
+        for (int i=0; i<smallFiles; i++) {
+            writeFile(disk, "SMALL" + i, small);
+        }
+        for (int i=0; i<smallFiles; i+= 2) {
+            disk.getFile("SMALL" + i).delete();
+        }
+
+        disk.setAllocationPolicy(policy);
+        byte[] large = new byte[largeSize];
+        new Random(14).nextBytes(large);
+        FileEntry[] files = new FileEntry[3];
+        int extents = 0;
+        for (int i=0; i<files.length; i++) {
+            files[i] = writeFile(disk, "LARGE" + i, large);
+            extents+= disk.getExtentCount(files[i]);
+        }
+
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int n=0; n<ITERATIONS; n++) {
+            for (FileEntry file : files) {
+                bytes+= disk.getFileData(file).length;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-14s %-16s extents=%-4d %8.1f MB/s%n", name, policy, extents,
+                bytes / seconds / (1024 * 1024));
+    }
+
+    private static FileEntry writeFile(FormattedDisk disk, String filename, byte[] data)
+            throws DiskException {
+        FileEntry entry = disk.createFile();
+        entry.setFilename(filename);
+        entry.setFiletype(disk.getFiletypes()[0]);
+        disk.setFileData(entry, data);
+        return entry;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.webcodepro.applecommander.storage.Disk.FormatSignature;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+import com.webcodepro.applecommander.testconfig.TestConfig;
+
+/**
+ * Test the single-pass format probing done by Disk.
+ */
+public class DiskFormatProbeTest {
+    private TestConfig config = TestConfig.getInstance();
+
+    @Test
+    public void testSignatures() throws IOException {
+        assertSignature("Prodos.dsk", FormatSignature.PRODOS);
+        assertSignature("DOS 3.3.po", FormatSignature.DOS);
+        assertSignature("UniDOS_3.3.dsk", FormatSignature.UNIDOS);
+        assertSignature("RDOSboot.dsk", FormatSignature.RDOS);
+        assertSignature("Marble Madness (1985)(Electronic Arts).2mg", FormatSignature.PRODOS);
+    }
+
+    @Test
+    public void testProbeIsMemoized() throws IOException, DiskException {
+        Disk disk = new Disk(config.getDiskDir() + "/Prodos.dsk");
+        assertTrue(disk.isProdosFormat());
+        long probeTime = disk.getProbeTime();
+        assertTrue(probeTime > 0);
+        assertFalse(disk.isDosFormat());
+        assertFalse(disk.isCpmFormat());
+        disk.getFormattedDisks();
+        assertEquals(probeTime, disk.getProbeTime());
+    }
+
+    @Test
+    public void testWriteInvalidatesProbe() throws IOException {
+        Disk disk = new Disk(config.getDiskDir() + "/Prodos.dsk");
+        assertEquals(FormatSignature.PRODOS, disk.getFormatSignature());
+        disk.writeBlock(2, new byte[Disk.BLOCK_SIZE]);
+        assertFalse(disk.isProdosFormat());
+    }
+
+    @Test
+    public void testUnrecognized() {
+        byte[] image = new byte[Disk.APPLE_140KB_DISK];
+        Arrays.fill(image, (byte)0xff);
+        Disk disk = new Disk("blank.po", new ProdosOrder(new ByteArrayImageLayout(image)));
+        assertNull(disk.getFormatSignature());
+        assertEquals(-1, disk.testImageOrder());
+    }
+
+    private void assertSignature(String filename, FormatSignature expected) throws IOException {
+        Disk disk = new Disk(config.getDiskDir() + "/" + filename);
+        assertEquals(filename, expected, disk.getFormatSignature());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+import org.junit.Test;
+
+import com.webcodepro.applecommander.testconfig.TestConfig;
+
+/**
+ * Test that Disk.save only writes the blocks which changed.
+ */
+public class DiskSaveTest {
+    private TestConfig config = TestConfig.getInstance();
+
+    @Test
+    public void testSaveChangedBlocksOnly() throws IOException, DiskException {
+        File file = copyDisk("Prodos.dsk");
+        try {
+            byte[] original = Files.readAllBytes(file.toPath());
+            Disk disk = new Disk(file.getPath());
+            FormattedDisk formattedDisk = disk.getFormattedDisks()[0];
+            FileEntry fileEntry = formattedDisk.getFile("SETTINGS");
+            fileEntry.setLocked(!fileEntry.isLocked());
+
+            BitSet changedBlocks = disk.getDiskImageManager().getChangedBlocks();
+            assertNotNull(changedBlocks);
+            assertTrue(changedBlocks.cardinality() > 0 && changedBlocks.cardinality() <= 2);
+            formattedDisk.save();
+            assertFalse(disk.hasChanged());
+
+            byte[] saved = Files.readAllBytes(file.toPath());
+            assertEquals(original.length, saved.length);
+            for (int i=0; i<saved.length; i++) {
+                if (!changedBlocks.get(i / Disk.BLOCK_SIZE)) {
+                    assertEquals(original[i], saved[i]);
+                }
+            }
+
+            Disk reloaded = new Disk(file.getPath());
+            FileEntry reloadedEntry = reloaded.getFormattedDisks()[0].getFile("SETTINGS");
+            assertEquals(fileEntry.isLocked(), reloadedEntry.isLocked());
+            assertArrayEquals(fileEntry.getFileData(), reloadedEntry.getFileData());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testReplacedImageRequiresFullSave() throws IOException {
+        File file = copyDisk("Prodos.dsk");
+        try {
+            Disk disk = new Disk(file.getPath());
+            disk.getImageOrder().format();
+            assertNull(disk.getDiskImageManager().getChangedBlocks());
+            disk.save();
+
+            byte[] saved = Files.readAllBytes(file.toPath());
+            assertEquals(disk.getPhysicalSize(), saved.length);
+            for (byte b : saved) {
+                assertEquals(0, b);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFullSaveReplacesDifferentLengthFile() throws IOException {
+        File file = copyDisk("Prodos.dsk");
+        File target = Files.createTempFile("disksavetest", ".dsk").toFile();
+        try {
+            byte[] original = Files.readAllBytes(file.toPath());
+            Files.write(target.toPath(), new byte[original.length * 2]);
+            Disk disk = new Disk(file.getPath());
+            disk.saveAs(target.getPath());
+
+            assertArrayEquals(original, Files.readAllBytes(target.toPath()));
+            File[] leftovers = target.getParentFile().listFiles(
+                    (dir, name) -> name.startsWith(target.getName()) && name.endsWith(".tmp"));
+            assertEquals(0, leftovers.length);
+        } finally {
+            file.delete();
+            target.delete();
+        }
+    }
+
+    private File copyDisk(String name) throws IOException {
+        Path source = new File(config.getDiskDir(), name).toPath();
+        Path target = Files.createTempFile("disksavetest", ".dsk");
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        return target.toFile();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.catalog;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.catalog.CatalogIndex.ImageRecord;
+import com.webcodepro.applecommander.storage.catalog.CatalogIndex.Match;
+import com.webcodepro.applecommander.testconfig.TestConfig;
+
+public class CatalogIndexTest {
+    private Path directory;
+    
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("catalog");
+        Path diskDir = Paths.get(TestConfig.getInstance().getDiskDir());
+        Files.createDirectory(directory.resolve("sub"));
+        Files.copy(diskDir.resolve("MASTER.DSK"), directory.resolve("MASTER.DSK"));
+        Files.copy(diskDir.resolve("Prodos.dsk"), directory.resolve("sub/Prodos.dsk"));
+        Files.write(directory.resolve("sub/notes.txt"), "not an image".getBytes());
+        Files.write(directory.resolve("garbage.po"), new byte[1000]);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+    
+    @Test
+    public void testScanAndQuery() throws IOException, DiskException {
+        CatalogIndex index = new CatalogIndex();
+        CatalogIndexer.Result result = CatalogIndexer.create(index).threads(2).scan(directory);
+        assertEquals(3, result.getAdded());
+        assertEquals(1, result.getFailed());
+        assertEquals(3, index.getImages().size());
+        
+        ImageRecord garbage = index.getImage(directory.resolve("garbage.po").toAbsolutePath().toString());
+        assertNotNull(garbage.getError());
+        assertTrue(garbage.getVolumes().isEmpty());
+        
+        String prodosPath = directory.resolve("sub/Prodos.dsk").toAbsolutePath().toString();
+        List<Match> matches = index.findByName("prodos");
+        assertEquals(1, matches.size());
+        Match match = matches.get(0);
+        assertEquals(prodosPath, match.getImage().getPath());
+        assertEquals("SYS", match.getFile().getFiletype());
+        
+        FileEntry fileEntry = new Disk(prodosPath).getFormattedDisks()[0].getFile("PRODOS");
+        long hash;
+        try (InputStream inputStream = fileEntry.openInputStream()) {
+            hash = CatalogIndexer.hash(inputStream);
+        }
+        assertEquals(hash, match.getFile().getHash());
+        assertEquals(fileEntry.getSize(), match.getFile().getSize());
+        assertEquals(1, index.find("PRODOS", hash).size());
+        assertEquals(0, index.find("PRODOS", hash + 1).size());
+        assertTrue(index.findByHash(hash).contains(match));
+        
+        assertFalse(index.findByName("HELLO").isEmpty());
+    }
+    
+    @Test
+    public void testRescan() throws IOException {
+        CatalogIndex index = new CatalogIndex();
+        CatalogIndexer indexer = CatalogIndexer.create(index);
+        indexer.scan(directory);
+        
+        CatalogIndexer.Result result = indexer.scan(directory);
+        assertEquals(0, result.getAdded());
+        assertEquals(0, result.getUpdated());
+        assertEquals(3, result.getUnchanged());
+        
+        // Same size and timestamp, but a different header
+        Path master = directory.resolve("MASTER.DSK");
+        FileTime lastModified = Files.getLastModifiedTime(master);
+        try (RandomAccessFile file = new RandomAccessFile(master.toFile(), "rw")) {
+            file.seek(100);
+            file.write(0xff);
+        }
+        Files.setLastModifiedTime(master, lastModified);
+        Files.delete(directory.resolve("garbage.po"));
+        
+        result = indexer.scan(directory);
+        assertEquals(1, result.getUpdated());
+        assertEquals(1, result.getUnchanged());
+        assertEquals(1, result.getRemoved());
+        assertEquals(2, index.getImages().size());
+    }
+    
+    @Test
+    public void testWriteAndRead() throws IOException {
+        CatalogIndex index = new CatalogIndex();
+        CatalogIndexer.create(index).scan(directory);
+        File indexFile = directory.resolve("catalog.idx").toFile();
+        index.write(indexFile);
+        
+        CatalogIndex copy = CatalogIndex.read(indexFile);
+        assertEquals(index.getImages().size(), copy.getImages().size());
+        for (ImageRecord image : index.getImages()) {
+            ImageRecord other = copy.getImage(image.getPath());
+            assertTrue(other.isSameFile(image.getSize(), image.getLastModified(), image.getHeaderHash()));
+            assertEquals(image.getOrder(), other.getOrder());
+            assertEquals(image.getError(), other.getError());
+            assertEquals(image.getVolumes().size(), other.getVolumes().size());
+        }
+        Match match = copy.findByName("PRODOS").get(0);
+        assertEquals(index.findByName("PRODOS").get(0).getFile().getHash(), match.getFile().getHash());
+        
+        CatalogIndexer.Result result = CatalogIndexer.create(copy).scan(directory);
+        assertEquals(3, result.getUnchanged());
+        
+        assertTrue(CatalogIndex.read(directory.resolve("missing.idx").toFile()).getImages().isEmpty());
+    }
+}
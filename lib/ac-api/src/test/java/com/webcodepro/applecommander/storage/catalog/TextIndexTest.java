@@ -0,0 +1,163 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.catalog;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.webcodepro.applecommander.storage.catalog.TextIndex.Document;
+import com.webcodepro.applecommander.testconfig.TestConfig;
+
+public class TextIndexTest {
+    private Path directory;
+    private TextIndex textIndex;
+    private CatalogIndexer indexer;
+    
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("textindex");
+        Path diskDir = Paths.get(TestConfig.getInstance().getDiskDir());
+        Files.copy(diskDir.resolve("MASTER.DSK"), directory.resolve("MASTER.DSK"));
+        Files.write(directory.resolve("garbage.po"), new byte[1000]);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+    
+    @Test
+    public void testTrigrams() {
+        byte[] folded = TextIndex.fold("abAB".getBytes(StandardCharsets.ISO_8859_1));
+        assertArrayEquals("ABAB".getBytes(StandardCharsets.ISO_8859_1), folded);
+        assertEquals(2, TextIndex.trigrams(folded).length);
+        assertEquals(0, TextIndex.trigrams(new byte[2]).length);
+        assertTrue(TextIndex.contains(new byte[] { (byte)0xc8, (byte)0xc9, 0x21 }, "hi!"));
+    }
+    
+    @Test
+    public void testFindAndConfirm() throws IOException {
+        scan();
+        List<Document> candidates = textIndex.find("rob greene");
+        assertFalse(candidates.isEmpty());
+        String masterPath = directory.resolve("MASTER.DSK").toAbsolutePath().toString();
+        List<Document> confirmed = indexer.confirm(candidates, "rob greene");
+        assertFalse(confirmed.isEmpty());
+        for (Document document : confirmed) {
+            assertEquals(masterPath, document.getImagePath());
+            assertEquals(0, document.getVolume());
+        }
+        assertTrue(confirmed.stream().anyMatch(d -> "HELLO".equals(d.getPath())));
+        
+        assertTrue(textIndex.find("NO SUCH TEXT ANYWHERE").isEmpty());
+        // Every trigram is present, but the text itself is not
+        assertTrue(indexer.confirm(textIndex.find("ROB GREENEROB GREENE"), "ROB GREENEROB GREENE").isEmpty());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testShortQuery() {
+        new TextIndex().find("AB");
+    }
+    
+    @Test
+    public void testRescan() throws IOException {
+        scan();
+        CatalogIndex index = new CatalogIndex();
+        indexer = CatalogIndexer.create(index).textIndex(textIndex);
+        
+        // The catalog is new, so everything is read again and replaced in the text index
+        int documents = textIndex.getDocumentCount();
+        assertEquals(2, indexer.scan(directory).getAdded());
+        assertEquals(documents, textIndex.getDocumentCount());
+        assertEquals(2, indexer.scan(directory).getUnchanged());
+        
+        // A text index alone being out of date still reads the image
+        CatalogIndexer.Result result = CatalogIndexer.create(index).textIndex(new TextIndex()).scan(directory);
+        assertEquals(2, result.getUpdated());
+        
+        Path master = directory.resolve("MASTER.DSK");
+        FileTime lastModified = Files.getLastModifiedTime(master);
+        try (RandomAccessFile file = new RandomAccessFile(master.toFile(), "rw")) {
+            file.seek(100);
+            file.write(0xff);
+        }
+        Files.setLastModifiedTime(master, lastModified);
+        result = indexer.scan(directory);
+        assertEquals(1, result.getUpdated());
+        assertEquals(documents, textIndex.getDocumentCount());
+        
+        Files.delete(master);
+        indexer.scan(directory);
+        assertEquals(0, textIndex.getDocumentCount());
+        assertTrue(textIndex.find("ROB GREENE").isEmpty());
+    }
+    
+    @Test
+    public void testWriteAndRead() throws IOException {
+        scan();
+        // Leave removed documents behind so that writing compacts them
+        textIndex.removeImage(directory.resolve("garbage.po").toAbsolutePath().toString());
+        String masterPath = directory.resolve("MASTER.DSK").toAbsolutePath().toString();
+        textIndex.addImage("other.dsk", 1, 1, 1, 
+                Map.of(new Document("other.dsk", 0, "NOTES"), TextIndex.trigrams(TextIndex.fold("ROB GREENE".getBytes()))));
+        textIndex.removeImage("other.dsk");
+        File indexFile = directory.resolve("text.idx").toFile();
+        textIndex.write(indexFile);
+        
+        TextIndex copy = TextIndex.read(indexFile);
+        assertEquals(textIndex.getDocumentCount(), copy.getDocumentCount());
+        assertEquals(textIndex.getImagePaths(), copy.getImagePaths());
+        List<Document> expected = textIndex.find("ROB GREENE");
+        List<Document> actual = copy.find("ROB GREENE");
+        assertEquals(expected.size(), actual.size());
+        for (int i=0; i<expected.size(); i++) {
+            assertEquals(masterPath, actual.get(i).getImagePath());
+            assertEquals(expected.get(i).getPath(), actual.get(i).getPath());
+        }
+        assertFalse(indexer.confirm(actual, "rob greene").isEmpty());
+        
+        assertTrue(TextIndex.read(directory.resolve("missing.idx").toFile()).getImagePaths().isEmpty());
+    }
+    
+    private void scan() throws IOException {
+        textIndex = new TextIndex();
+        indexer = CatalogIndexer.create(new CatalogIndex()).threads(2).textIndex(textIndex);
+        CatalogIndexer.Result result = indexer.scan(directory);
+        assertEquals(2, result.getAdded());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.compare;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FormattedDisk;
+import com.webcodepro.applecommander.storage.compare.DuplicateFinder.Location;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+
+public class DuplicateFinderTest {
+    @Test
+    public void testSameSizeDifferentContent() throws IOException, DiskException {
+        FormattedDisk disk = createDisk("A.PO");
+        addFile(disk, "ONE", "HELLO");
+        addFile(disk, "TWO", "WORLD");
+        addFile(disk, "THREE", "HELLO");
+        addFile(disk, "FOUR", "HELLO, WORLD");
+
+        List<List<Location>> duplicates = DuplicateFinder.create().add(disk).findDuplicates();
+        assertEquals(1, duplicates.size());
+        assertEquals("[/ONE, /THREE]", paths(duplicates.get(0)));
+    }
+
+    @Test
+    public void testAcrossImages() throws IOException, DiskException {
+        FormattedDisk diskA = createDisk("A.PO");
+        addFile(diskA, "ONE", "HELLO");
+        addFile(diskA, "TWO", "WORLD");
+        FormattedDisk diskB = createDisk("B.PO");
+        addFile(diskB, "UNO", "WORLD");
+        addFile(diskB, "DOS", "HELLO");
+        addFile(diskB, "TRES", "OTHER");
+
+        List<List<Location>> duplicates = DuplicateFinder.create().add(diskA).add(diskB).threads(2).findDuplicates();
+        assertEquals(2, duplicates.size());
+        assertEquals("[/ONE, /DOS]", paths(duplicates.get(0)));
+        assertEquals("[/TWO, /UNO]", paths(duplicates.get(1)));
+        assertEquals(0, duplicates.get(0).get(0).source);
+        assertEquals(1, duplicates.get(0).get(1).source);
+        assertNotNull(duplicates.get(0).get(0).tuple);
+
+        duplicates = DuplicateFinder.create().add(diskA).add(diskB).matchWithinVolume(true).findDuplicates();
+        assertTrue(duplicates.isEmpty());
+    }
+
+    @Test
+    public void testImageByFilename() throws IOException, DiskException {
+        File file = File.createTempFile("dups-", ".po");
+        file.deleteOnExit();
+        FormattedDisk diskA = createDisk(file.getPath());
+        addFile(diskA, "ONE", "HELLO");
+        addFile(diskA, "TWO", "HELLO");
+        diskA.save();
+        FormattedDisk diskB = createDisk("B.PO");
+        addFile(diskB, "THREE", "HELLO");
+
+        List<List<Location>> duplicates = DuplicateFinder.create()
+                .addImage(file.getPath())
+                .add(diskB)
+                .findDuplicates();
+        assertEquals(1, duplicates.size());
+        assertEquals("[/ONE, /TWO, /THREE]", paths(duplicates.get(0)));
+        assertEquals(file.getPath(), duplicates.get(0).get(0).imageName);
+        assertNull(duplicates.get(0).get(0).tuple);
+    }
+
+    @Test
+    public void testSmallBufferConfirmsGroupsSeparately() throws IOException, DiskException {
+        FormattedDisk disk = createDisk("A.PO");
+        for (int i=0; i<10; i++) {
+            addFile(disk, "A" + i, "CONTENT " + i);
+            addFile(disk, "B" + i, "CONTENT " + i);
+            addFile(disk, "C" + i, "OTHER!! " + i);
+        }
+
+        List<List<Location>> expected = DuplicateFinder.create().add(disk).findDuplicates();
+        assertEquals(10, expected.size());
+        List<List<Location>> duplicates = DuplicateFinder.create().add(disk).bufferSize(1).threads(2).findDuplicates();
+        assertEquals(expected.size(), duplicates.size());
+        for (int i=0; i<expected.size(); i++) {
+            assertEquals(paths(expected.get(i)), paths(duplicates.get(i)));
+            assertEquals(String.format("[/A%d, /B%d]", i, i), paths(duplicates.get(i)));
+        }
+    }
+
+    private FormattedDisk createDisk(String filename) {
+        ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+        return ProdosFormatDisk.create(filename, "DUPS", new ProdosOrder(layout))[0];
+    }
+
+    private void addFile(FormattedDisk disk, String name, String content) throws DiskException {
+        FileEntry fileEntry = disk.createFile();
+        fileEntry.setFilename(name);
+        fileEntry.setFiletype("BIN");
+        fileEntry.setFileData(content.getBytes());
+    }
+
+    private String paths(List<Location> group) {
+        return group.stream().map(location -> location.path).collect(Collectors.toList()).toString();
+    }
+}
@@ -19,15 +19,31 @@
  */
 package com.webcodepro.applecommander.storage.os.dos33;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.Test;
 
+import com.webcodepro.applecommander.storage.AllocationPolicy;
 import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskException;
 import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
 import com.webcodepro.applecommander.storage.physical.DosOrder;
 import com.webcodepro.applecommander.storage.physical.ImageOrder;
+import com.webcodepro.applecommander.testconfig.TestConfig;
+import com.webcodepro.applecommander.util.AppleUtil;
 
 public class DosFormatDiskTest {
     @Test
@@ -43,4 +59,216 @@ public class DosFormatDiskTest {
          assertEquals("THE FILE NAME", disk.getSuggestedFilename("The File Name"));
          assertEquals("A\t HIDDEN TAB", disk.getSuggestedFilename("\t hidden tab"));
     }
+
+    @Test
+    public void testSizeFromFirstSector() throws IOException, DiskException {
+        Disk disk = new Disk(TestConfig.getInstance().getDiskDir() + "/MASTER.DSK");
+        DosFormatDisk dosDisk = (DosFormatDisk) disk.getFormattedDisks()[0];
+        int checked = 0;
+        for (FileEntry entry : dosDisk.getFiles()) {
+            DosFileEntry dosEntry = (DosFileEntry) entry;
+            if (dosEntry.isDeleted()) continue;
+            byte[] rawdata = dosDisk.getFileData(dosEntry);
+            String filetype = dosEntry.getFiletype();
+            if ("B".equals(filetype)) {
+                assertEquals(AppleUtil.getWordValue(rawdata, 2), dosEntry.getSize());
+                assertEquals(AppleUtil.getWordValue(rawdata, 0), dosEntry.getAddress());
+                checked++;
+            } else if ("A".equals(filetype) || "I".equals(filetype)) {
+                assertEquals(AppleUtil.getWordValue(rawdata, 0), dosEntry.getSize());
+                checked++;
+            }
+        }
+        assertTrue(checked > 0);
+    }
+
+    @Test
+    public void testOpenInputStream() throws IOException, DiskException {
+        Disk disk = new Disk(TestConfig.getInstance().getDiskDir() + "/MASTER.DSK");
+        DosFormatDisk dosDisk = (DosFormatDisk) disk.getFormattedDisks()[0];
+        int checked = 0;
+        for (FileEntry entry : dosDisk.getFiles()) {
+            if (entry.isDeleted()) continue;
+            try (InputStream inputStream = entry.openInputStream()) {
+                assertArrayEquals(entry.getFileData(), inputStream.readAllBytes());
+            }
+            try (InputStream inputStream = dosDisk.openInputStream(entry)) {
+                assertArrayEquals(dosDisk.getFileData(entry), inputStream.readAllBytes());
+            }
+            checked++;
+        }
+        assertTrue(checked > 0);
+    }
+
+    @Test
+    public void testSizeFollowsFileData() throws DiskException {
+        ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+        DosFormatDisk disk = DosFormatDisk.create("deleteme.do", new DosOrder(layout))[0];
+        DosFileEntry entry = (DosFileEntry) disk.createFile();
+        entry.setFilename("TEST");
+        entry.setFiletype("B");
+        entry.setFileData(new byte[1000]);
+        entry.setAddress(0x2000);
+        assertEquals(1000, entry.getSize());
+        assertEquals(0x2000, entry.getAddress());
+        entry.setFileData(new byte[3000]);
+        assertEquals(3000, entry.getSize());
+        // changes through another entry object are seen as well
+        DosFileEntry other = (DosFileEntry) disk.getFiles().get(0);
+        other.setAddress(0x4000);
+        assertEquals(0x4000, entry.getAddress());
+        assertEquals(3000, entry.getSize());
+    }
+
+    @Test
+    public void testOpenOutputStream() throws DiskException, IOException {
+        ByteArrayImageLayout byteLayout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+        DosFormatDisk byteDisk = DosFormatDisk.create("deleteme.do", new DosOrder(byteLayout))[0];
+        ByteArrayImageLayout streamLayout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+        DosFormatDisk streamDisk = DosFormatDisk.create("deleteme.do", new DosOrder(streamLayout))[0];
+        Random random = new Random(16);
+        String[] filetypes = { "B", "A", "T", "S" };
+        int[][] sizes = { { 0, 252, 1000, 20000 }, { 0, 252, 1000, 20000 }, 
+                { 0, 252, 1000 }, { 35000 } };  // 35000 needs a second T/S list
+        for (int i=0; i<filetypes.length; i++) {
+            String filetype = filetypes[i];
+            for (int size : sizes[i]) {
+                byte[] data = new byte[size];
+                random.nextBytes(data);
+                FileEntry byteEntry = byteDisk.createFile();
+                byteEntry.setFilename(filetype + size);
+                byteEntry.setFiletype(filetype);
+                if (byteEntry.needsAddress()) byteEntry.setAddress(0x803);
+                byteEntry.setFileData(data.clone());
+                FileEntry streamEntry = streamDisk.createFile();
+                streamEntry.setFilename(filetype + size);
+                streamEntry.setFiletype(filetype);
+                if (streamEntry.needsAddress()) streamEntry.setAddress(0x803);
+                try (OutputStream outputStream = streamEntry.openOutputStream()) {
+                    for (int offset=0; offset<size; offset+= 300) {
+                        outputStream.write(data, offset, Math.min(300, size - offset));
+                    }
+                }
+                assertArrayEquals(byteEntry.getFileData(), streamEntry.getFileData());
+            }
+        }
+        assertArrayEquals(byteLayout.getDiskImage(), streamLayout.getDiskImage());
+    }
+
+    @Test
+    public void testBestFitExtentAllocation() throws DiskException {
+        byte[] data = new byte[20000];
+        new Random(14).nextBytes(data);
+
+        DosFormatDisk firstFit = createFragmentedDisk();
+        FileEntry entry = firstFit.createFile();
+        entry.setFilename("BIG");
+        entry.setFiletype("B");
+        firstFit.setFileData(entry, data);
+        assertTrue(firstFit.getExtentCount(entry) > 1);
+        assertArrayEquals(data, Arrays.copyOf(firstFit.getFileData(entry), data.length));
+
+        DosFormatDisk bestFit = createFragmentedDisk();
+        bestFit.setAllocationPolicy(AllocationPolicy.BEST_FIT_EXTENT);
+        entry = bestFit.createFile();
+        entry.setFilename("BIG");
+        entry.setFiletype("B");
+        bestFit.setFileData(entry, data);
+        assertEquals(1, bestFit.getExtentCount(entry));
+        assertArrayEquals(data, Arrays.copyOf(bestFit.getFileData(entry), data.length));
+        assertEquals(firstFit.getFreeSectors(), bestFit.getFreeSectors());
+    }
+
+    @Test
+    public void testFileIndexReusedEntry() throws DiskException {
+        ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+        DosFormatDisk disk = DosFormatDisk.create("deleteme.do", new DosOrder(layout))[0];
+        FileEntry first = disk.createFile();
+        first.setFilename("HELLO");
+        disk.setFileData(first, new byte[100]);
+        FileEntry second = disk.createFile();
+        second.setFilename("WORLD");
+        disk.setFileData(second, new byte[100]);
+        assertEquals("WORLD", disk.getFile("world").getFilename());
+        long misses = disk.getFileIndexMisses();
+
+        // The deleted entry keeps its name until it is reused
+        disk.getFile("HELLO").delete();
+        assertNull(disk.getFile("HELLO"));
+        FileEntry reused = disk.createFile();
+        reused.setFilename("WORLD.COPY");
+        disk.setFileData(reused, new byte[100]);
+        assertNotNull(disk.getFile("WORLD.COPY"));
+        assertNotNull(disk.getFile("WORLD"));
+        assertEquals(misses, disk.getFileIndexMisses());
+    }
+
+    @Test
+    public void testBatchMatchesUnbatchedImport() throws DiskException {
+        ByteArrayImageLayout plainLayout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+        DosFormatDisk plainDisk = DosFormatDisk.create("deleteme.do", new DosOrder(plainLayout))[0];
+        ByteArrayImageLayout batchLayout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+        DosFormatDisk batchDisk = DosFormatDisk.create("deleteme.do", new DosOrder(batchLayout))[0];
+        importFiles(plainDisk);
+        batchDisk.beginBatch();
+        importFiles(batchDisk);
+        assertEquals(plainDisk.getFreeSectors(), batchDisk.getFreeSectors());
+        batchDisk.commit();
+        assertArrayEquals(plainLayout.getDiskImage(), batchLayout.getDiskImage());
+    }
+
+    @Test
+    public void testBatchRollbackOnDiskFull() throws DiskException {
+        ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+        DosFormatDisk disk = DosFormatDisk.create("deleteme.do", new DosOrder(layout))[0];
+        byte[] before = layout.getDiskImage().clone();
+        disk.beginBatch();
+        try {
+            for (int i=0; ; i++) {
+                FileEntry entry = disk.createFile();
+                entry.setFilename("FILE" + i);
+                entry.setFiletype("B");
+                disk.setFileData(entry, new byte[10000]);
+            }
+        } catch (DiskFullException ex) {
+            disk.rollback();
+        }
+        assertArrayEquals(before, layout.getDiskImage());
+        assertEquals(0, disk.getFiles().stream().filter(f -> !f.isDeleted()).count());
+    }
+
+    private void importFiles(DosFormatDisk disk) throws DiskException {
+        Random random = new Random(19);
+        for (int i=0; i<60; i++) {
+            FileEntry entry = disk.createFile();
+            entry.setFilename("FILE" + i);
+            entry.setFiletype("B");
+            byte[] data = new byte[random.nextInt(1000)];
+            random.nextBytes(data);
+            disk.setFileData(entry, data);
+        }
+        disk.getFile("FILE10").delete();
+        FileEntry entry = disk.createFile();
+        entry.setFilename("REPLACED");
+        entry.setFiletype("B");
+        disk.setFileData(entry, new byte[100]);
+    }
+
+    /**
+     * Create a disk with a series of five sector holes in it.
+     */
+    private DosFormatDisk createFragmentedDisk() throws DiskException {
+        ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+        DosFormatDisk disk = DosFormatDisk.create("deleteme.do", new DosOrder(layout))[0];
+        for (int i=0; i<20; i++) {
+            FileEntry entry = disk.createFile();
+            entry.setFilename("FILE" + i);
+            entry.setFiletype("B");
+            disk.setFileData(entry, new byte[1000]);
+        }
+        for (int i=0; i<20; i+= 2) {
+            disk.getFile("FILE" + i).delete();
+        }
+        return disk;
+    }
 }
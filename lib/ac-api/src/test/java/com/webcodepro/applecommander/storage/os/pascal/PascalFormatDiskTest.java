@@ -19,12 +19,19 @@
  */
 package com.webcodepro.applecommander.storage.os.pascal;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
 import org.junit.Test;
 
 import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskException;
 import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.FileEntry;
 import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
 import com.webcodepro.applecommander.storage.physical.ImageOrder;
 import com.webcodepro.applecommander.storage.physical.ProdosOrder;
@@ -43,4 +50,20 @@ public class PascalFormatDiskTest {
         assertEquals("THEFILENAME", disk.getSuggestedFilename("The File Name"));
         assertEquals("HIDDENTAB", disk.getSuggestedFilename("\t hidden tab"));
     }
+
+    @Test
+    public void testOpenInputStream() throws DiskException, IOException {
+        ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+        PascalFormatDisk disk = PascalFormatDisk.create("deleteme.po", "TEST", new ProdosOrder(layout))[0];
+        byte[] data = new byte[1300];
+        new Random(15).nextBytes(data);
+        FileEntry entry = disk.createFile();
+        entry.setFilename("TEST");
+        entry.setFiletype("data");
+        entry.setFileData(data);
+        try (InputStream inputStream = entry.openInputStream()) {
+            assertArrayEquals(entry.getFileData(), inputStream.readAllBytes());
+        }
+        assertEquals(data.length, entry.getSize());
+    }
 }
@@ -21,13 +21,35 @@ package com.webcodepro.applecommander.storage.os.prodos;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.Test;
 
+import com.webcodepro.applecommander.storage.AllocationPolicy;
+import com.webcodepro.applecommander.storage.DirectoryEntry;
 import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskException;
 import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FormattedDisk;
 import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
 import com.webcodepro.applecommander.storage.physical.ImageOrder;
 import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+import com.webcodepro.applecommander.testconfig.TestConfig;
+import com.webcodepro.applecommander.util.AppleUtil;
+import com.webcodepro.applecommander.util.Name;
 
 public class ProdosFormatDiskTest {
     @Test
@@ -43,4 +65,551 @@ public class ProdosFormatDiskTest {
         assertEquals("THE.FILE.NAME", disk.getSuggestedFilename("The File Name"));
         assertEquals("A..HIDDEN.TAB", disk.getSuggestedFilename("\t hidden tab"));
     }
+
+    @Test
+    public void testStreamedFileData() throws DiskFullException, IOException {
+        ProdosFormatDisk byteDisk = createDisk(Disk.APPLE_800KB_DISK);
+        ProdosFormatDisk streamDisk = createDisk(Disk.APPLE_800KB_DISK);
+        Random random = new Random(9);
+        for (int size : new int[] { 0, 1, 512, 513, 140000, 200000 }) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            String name = "FILE" + size;
+            ProdosFileEntry byteEntry = (ProdosFileEntry) byteDisk.createFile();
+            byteEntry.setFilename(name);
+            byteEntry.setFileData(data);
+            ProdosFileEntry streamEntry = (ProdosFileEntry) streamDisk.createFile();
+            streamEntry.setFilename(name);
+            streamEntry.setFileData(trickle(data), size);
+            
+            assertArrayEquals(data, streamEntry.getFileData());
+            assertEquals(byteEntry.getBlocksUsed(), streamEntry.getBlocksUsed());
+            assertEquals(byteEntry.getStorageType(), streamEntry.getStorageType());
+        }
+        assertEquals(byteDisk.getFreeBlocks(), streamDisk.getFreeBlocks());
+    }
+
+    @Test
+    public void testStreamedForks() throws DiskFullException, IOException {
+        ProdosFormatDisk byteDisk = createDisk(Disk.APPLE_800KB_DISK);
+        ProdosFormatDisk streamDisk = createDisk(Disk.APPLE_800KB_DISK);
+        Random random = new Random(10);
+        byte[] dataFork = new byte[70000];
+        byte[] resourceFork = new byte[1234];
+        random.nextBytes(dataFork);
+        random.nextBytes(resourceFork);
+        ProdosFileEntry byteEntry = (ProdosFileEntry) byteDisk.createFile();
+        byteEntry.setFilename("FORKED");
+        byteEntry.setFileData(dataFork, resourceFork);
+        ProdosFileEntry streamEntry = (ProdosFileEntry) streamDisk.createFile();
+        streamEntry.setFilename("FORKED");
+        streamEntry.setFileData(trickle(dataFork), dataFork.length, trickle(resourceFork), resourceFork.length);
+        
+        assertEquals(byteEntry.getBlocksUsed(), streamEntry.getBlocksUsed());
+        assertEquals(byteDisk.getFreeBlocks(), streamDisk.getFreeBlocks());
+        // the extended key block describes both forks
+        assertArrayEquals(byteDisk.readBlock(byteEntry.getKeyPointer()), 
+                streamDisk.readBlock(streamEntry.getKeyPointer()));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testStreamTooShort() throws DiskException, IOException {
+        ProdosFormatDisk disk = createDisk(Disk.APPLE_140KB_DISK);
+        ProdosFileEntry entry = (ProdosFileEntry) disk.createFile();
+        entry.setFilename("SHORT");
+        byte[] data = new byte[5000];
+        new Random(5).nextBytes(data);
+        entry.setFileData(data);
+        assertTrue(entry.isSaplingFile());
+        int blocksUsed = entry.getBlocksUsed();
+        int keyPointer = entry.getKeyPointer();
+        int freeBlocks = disk.getFreeBlocks();
+        try {
+            entry.setFileData(new ByteArrayInputStream(new byte[3000]), 20000);
+        } finally {
+            // the existing file and its blocks are untouched
+            ProdosFileEntry reread = (ProdosFileEntry) disk.getFile("SHORT");
+            assertArrayEquals(data, reread.getFileData());
+            assertEquals(blocksUsed, reread.getBlocksUsed());
+            assertEquals(keyPointer, reread.getKeyPointer());
+            assertArrayEquals(data, entry.getFileData());
+            assertEquals(freeBlocks, disk.getFreeBlocks());
+            entry.delete();
+            assertEquals(freeBlocks + blocksUsed, disk.getFreeBlocks());
+        }
+    }
+
+    @Test
+    public void testDirectoryListingReadsEachBlockOnce() throws DiskException, IOException {
+        byte[] image = Files.readAllBytes(Paths.get(TestConfig.getInstance().getDiskDir(), "Prodos.dsk"));
+        CountingLayout layout = new CountingLayout(image);
+        ProdosFormatDisk disk = new ProdosFormatDisk("Prodos.dsk", new ProdosOrder(layout));
+        layout.reads = 0;
+        List<FileEntry> files = disk.getFiles();
+        int listingReads = layout.reads;
+        assertTrue(files.size() > 0);
+        for (FileEntry file : files) {
+            file.getFileColumnData(FormattedDisk.FILE_DISPLAY_DETAIL);
+            file.getSize();
+        }
+        assertEquals(listingReads, layout.reads);
+    }
+
+    @Test
+    public void testEntryCacheSeesOtherWrites() throws DiskException {
+        ProdosFormatDisk disk = createDisk(Disk.APPLE_140KB_DISK);
+        ProdosFileEntry entry = (ProdosFileEntry) disk.createFile();
+        entry.setFilename("FIRST");
+        entry.setFileData(new byte[10]);
+        ProdosFileEntry other = (ProdosFileEntry) disk.getFiles().get(0);
+        assertEquals("FIRST", other.getFilename());
+        entry.setFilename("SECOND");
+        entry.setFiletype("BIN");
+        assertEquals("SECOND", other.getFilename());
+        assertEquals("BIN", other.getFiletype());
+        other.setAuxiliaryType(0x2000);
+        assertEquals(0x2000, entry.getAuxiliaryType());
+    }
+
+    @Test
+    public void testBestFitExtentAllocation() throws DiskException {
+        byte[] data = new byte[30000];
+        new Random(14).nextBytes(data);
+
+        ProdosFormatDisk firstFit = createFragmentedDisk();
+        FileEntry entry = firstFit.createFile();
+        entry.setFilename("BIG");
+        entry.setFileData(data);
+        assertTrue(firstFit.getExtentCount(entry) > 1);
+        assertArrayEquals(data, entry.getFileData());
+
+        ProdosFormatDisk bestFit = createFragmentedDisk();
+        bestFit.setAllocationPolicy(AllocationPolicy.BEST_FIT_EXTENT);
+        entry = bestFit.createFile();
+        entry.setFilename("BIG");
+        entry.setFileData(data);
+        assertEquals(1, bestFit.getExtentCount(entry));
+        assertArrayEquals(data, entry.getFileData());
+        assertEquals(firstFit.getFreeBlocks(), bestFit.getFreeBlocks());
+
+        // a small file lands in one of the holes rather than after BIG
+        entry = bestFit.createFile();
+        entry.setFilename("SMALL");
+        entry.setFileData(new byte[2048]);
+        assertEquals(1, bestFit.getExtentCount(entry));
+        assertTrue(((ProdosFileEntry) entry).getKeyPointer() < 
+                ((ProdosFileEntry) bestFit.getFile("BIG")).getKeyPointer());
+    }
+
+    @Test
+    public void testOpenInputStream() throws DiskException, IOException {
+        ProdosFormatDisk disk = createDisk(Disk.APPLE_800KB_DISK);
+        Random random = new Random(15);
+        for (int size : new int[] { 0, 100, 512, 5000, 200000 }) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            FileEntry entry = disk.createFile();
+            entry.setFilename("FILE" + size);
+            entry.setFileData(data);
+            try (InputStream inputStream = entry.openInputStream()) {
+                assertArrayEquals(data, inputStream.readAllBytes());
+            }
+        }
+
+        Disk image = new Disk(TestConfig.getInstance().getDiskDir() + "/Prodos.dsk");
+        ProdosFormatDisk prodos = (ProdosFormatDisk) image.getFormattedDisks()[0];
+        for (FileEntry entry : prodos.getFiles()) {
+            if (entry.isDirectory() || ((ProdosFileEntry) entry).isForkedFile()) continue;
+            try (InputStream inputStream = entry.openInputStream()) {
+                assertArrayEquals(entry.getFileData(), inputStream.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testOpenOutputStream() throws DiskException, IOException {
+        ProdosFormatDisk byteDisk = createDisk(Disk.APPLE_800KB_DISK);
+        ProdosFormatDisk streamDisk = createDisk(Disk.APPLE_800KB_DISK);
+        Random random = new Random(16);
+        for (int size : new int[] { 0, 100, 512, 1024, 5000, 131072, 200000 }) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            ProdosFileEntry byteEntry = (ProdosFileEntry) byteDisk.createFile();
+            byteEntry.setFilename("FILE" + size);
+            byteEntry.setFileData(data);
+            ProdosFileEntry streamEntry = (ProdosFileEntry) streamDisk.createFile();
+            streamEntry.setFilename("FILE" + size);
+            try (OutputStream outputStream = streamEntry.openOutputStream()) {
+                if (size > 0) outputStream.write(data[0]);
+                for (int offset=1; offset<size; offset+= 700) {
+                    outputStream.write(data, offset, Math.min(700, size - offset));
+                }
+            }
+            assertArrayEquals(data, streamEntry.getFileData());
+            assertEquals(byteEntry.getKeyPointer(), streamEntry.getKeyPointer());
+            assertEquals(byteEntry.getBlocksUsed(), streamEntry.getBlocksUsed());
+            assertEquals(byteEntry.getStorageType(), streamEntry.getStorageType());
+            assertEquals(byteDisk.getFreeBlocks(), streamDisk.getFreeBlocks());
+        }
+        // rewriting a file releases the old blocks
+        int freeBlocks = streamDisk.getFreeBlocks();
+        FileEntry entry = streamDisk.getFile("FILE200000");
+        try (OutputStream outputStream = entry.openOutputStream()) {
+            outputStream.write(new byte[10]);
+        }
+        assertEquals(10, entry.getSize());
+        assertEquals(freeBlocks + 393, streamDisk.getFreeBlocks());
+    }
+
+    @Test
+    public void testOutputStreamDiskFull() throws DiskException, IOException {
+        ProdosFormatDisk disk = createDisk(Disk.APPLE_140KB_DISK);
+        FileEntry entry = disk.createFile();
+        entry.setFilename("TOOBIG");
+        OutputStream outputStream = entry.openOutputStream();
+        try {
+            outputStream.write(new byte[200000]);
+            fail("expected the disk to fill up");
+        } catch (IOException ex) {
+            assertTrue(ex.getCause() instanceof DiskFullException);
+        }
+        outputStream.close();
+        // what was written is kept, and accounted for
+        assertEquals(0, disk.getFreeBlocks());
+        entry.delete();
+        assertEquals(disk.getFreeBlocks(), createDisk(Disk.APPLE_140KB_DISK).getFreeBlocks());
+    }
+
+    @Test
+    public void testOutputStreamDiskFullAtTransitions() throws DiskException, IOException {
+        // seedling to sapling needs an index block and a data block
+        assertDiskFullReleasesBlocks(2, 1);
+        // sapling to tree needs a data block, the master index block and an index block
+        assertDiskFullReleasesBlocks(257 + 2, 257);
+        assertDiskFullReleasesBlocks(257 + 1, 257);
+    }
+
+    /**
+     * Stream a file onto a disk with only freeBlocks available and check that
+     * what was written (blocksUsed) is exactly what the Volume Bit Map lost.
+     */
+    private void assertDiskFullReleasesBlocks(int freeBlocks, int blocksUsed) throws DiskException, IOException {
+        ProdosFormatDisk disk = createDisk(Disk.APPLE_800KB_DISK);
+        FileEntry entry = disk.createFile();
+        entry.setFilename("TOOBIG");
+        ProdosVolumeBitmap bitmap = disk.getVolumeBitmap();
+        for (int block=bitmap.getTotalBlocks()-1; bitmap.getFreeBlocks() > freeBlocks; block--) {
+            bitmap.setBlockUsed(block);
+        }
+        disk.writeVolumeBitMap(bitmap);
+        assertEquals(freeBlocks, disk.getFreeBlocks());
+
+        OutputStream outputStream = entry.openOutputStream();
+        try {
+            outputStream.write(new byte[(freeBlocks + 1) * Disk.BLOCK_SIZE]);
+            fail("expected the disk to fill up");
+        } catch (IOException ex) {
+            assertTrue(ex.getCause() instanceof DiskFullException);
+        }
+        outputStream.close();
+        assertEquals(blocksUsed, ((ProdosFileEntry) entry).getBlocksUsed());
+        assertEquals(freeBlocks - blocksUsed, disk.getFreeBlocks());
+        assertArrayEquals(new byte[(blocksUsed == 1 ? 1 : blocksUsed - 1) * Disk.BLOCK_SIZE], entry.getFileData());
+        entry.delete();
+        assertEquals(freeBlocks, disk.getFreeBlocks());
+    }
+
+    @Test
+    public void testSparseWrite() throws DiskException, IOException {
+        byte[] data = new byte[300000];
+        Random random = new Random(17);
+        for (int i=0; i<1000; i++) {
+            data[i] = (byte) random.nextInt();
+            data[data.length - 1000 + i] = (byte) random.nextInt();
+        }
+
+        ProdosFormatDisk disk = createDisk(Disk.APPLE_800KB_DISK);
+        ProdosFileEntry entry = (ProdosFileEntry) disk.createFile();
+        entry.setFilename("FULL");
+        entry.setFileData(data);
+        assertEquals(586 + 3 + 1, entry.getBlocksUsed());
+
+        disk.setSparseWrite(true);
+        entry = (ProdosFileEntry) disk.createFile();
+        entry.setFilename("SPARSE");
+        entry.setFileData(data);
+        // 5 data blocks, 2 index blocks and the master index block
+        assertEquals(8, entry.getBlocksUsed());
+        assertTrue(entry.isTreeFile());
+        byte[] masterIndexBlock = disk.readBlock(entry.getKeyPointer());
+        assertEquals(0, AppleUtil.getWordValue(masterIndexBlock[1], masterIndexBlock[0x101]));
+        assertArrayEquals(data, entry.getFileData());
+        try (InputStream inputStream = entry.openInputStream()) {
+            assertArrayEquals(data, inputStream.readAllBytes());
+        }
+
+        ProdosFileEntry streamEntry = (ProdosFileEntry) disk.createFile();
+        streamEntry.setFilename("STREAMED");
+        try (OutputStream outputStream = streamEntry.openOutputStream()) {
+            outputStream.write(data);
+        }
+        assertEquals(8, streamEntry.getBlocksUsed());
+        assertArrayEquals(data, streamEntry.getFileData());
+        assertEquals(1, disk.getExtentCount(streamEntry));
+    }
+
+    @Test
+    public void testFileIndex() throws DiskException {
+        ProdosFormatDisk disk = createDisk(Disk.APPLE_800KB_DISK);
+        ProdosDirectoryEntry dir = (ProdosDirectoryEntry) disk.createDirectory("DIR");
+        for (int i=0; i<20; i++) {
+            dir.createFile().setFilename("FILE" + i);
+        }
+        // Lands in the second block of DIR
+        ProdosDirectoryEntry sub = (ProdosDirectoryEntry) dir.createDirectory("SUB");
+        assertEquals(dir.getKeyPointer(), sub.getHeaderPointer());
+
+        assertEquals("SUB", new Name("dir/sub").getEntry(disk).getFilename());
+        assertEquals("FILE5", disk.getFile("file5").getFilename());
+        long misses = disk.getFileIndexMisses();
+        long hits = disk.getFileIndexHits();
+        for (int i=0; i<20; i++) {
+            assertEquals("FILE" + i, disk.getFile(dir, "File" + i).getFilename());
+        }
+        assertNull(disk.getFile(dir, "MISSING"));
+        assertEquals(misses, disk.getFileIndexMisses());
+        assertEquals(hits + 21, disk.getFileIndexHits());
+
+        // Maintained by rename, create and delete
+        disk.getFile(dir, "FILE5").setFilename("RENAMED");
+        assertNull(disk.getFile(dir, "FILE5"));
+        assertEquals("RENAMED", disk.getFile(dir, "RENAMED").getFilename());
+        dir.createFile().setFilename("NEW");
+        assertNotNull(disk.getFile(dir, "NEW"));
+        disk.getFile(dir, "RENAMED").delete();
+        assertNull(disk.getFile(dir, "RENAMED"));
+        assertEquals(misses, disk.getFileIndexMisses());
+        // Searching every directory indexes SUB as well
+        assertNull(disk.getFile("RENAMED"));
+        assertEquals(misses + 1, disk.getFileIndexMisses());
+    }
+
+    @Test
+    public void testFileIndexSeesOtherWriters() throws DiskException {
+        ProdosFormatDisk disk = createDisk(Disk.APPLE_800KB_DISK);
+        ProdosDirectoryEntry dir = (ProdosDirectoryEntry) disk.createDirectory("DIR");
+        dir.createFile().setFilename("OLD");
+        assertNull(disk.getFile(dir, "NEW"));
+        long misses = disk.getFileIndexMisses();
+        // changes made through this disk keep the index
+        dir.createFile().setFilename("MINE");
+        assertNotNull(disk.getFile(dir, "MINE"));
+        assertEquals(misses, disk.getFileIndexMisses());
+
+        // another disk over the same image
+        ProdosFormatDisk other = new ProdosFormatDisk(disk.getFilename(), disk.getImageOrder());
+        ((DirectoryEntry) other.getFile("DIR")).createFile().setFilename("NEW");
+        assertEquals("NEW", disk.getFile(dir, "NEW").getFilename());
+        assertEquals("NEW", disk.getFile("NEW").getFilename());
+        // the volume directory and DIR are each scanned once more
+        assertEquals(misses + 2, disk.getFileIndexMisses());
+    }
+
+    @Test
+    public void testGetFileSearchOrder() throws DiskException {
+        ProdosFormatDisk disk = createDisk(Disk.APPLE_800KB_DISK);
+        ProdosDirectoryEntry first = (ProdosDirectoryEntry) disk.createDirectory("FIRST");
+        ProdosDirectoryEntry second = (ProdosDirectoryEntry) disk.createDirectory("SECOND");
+        ProdosDirectoryEntry deep = (ProdosDirectoryEntry) first.createDirectory("DEEP");
+        addFile(first, "SAME", 1);
+        addFile(disk, "SAME", 2);
+        addFile(deep, "TWIN", 3);
+        addFile(second, "TWIN", 4);
+        addFile(second, "ONLY", 5);
+        addFile(disk, "GONE", 6).delete();
+
+        // the volume directory is searched before any subdirectory
+        assertEquals(2, disk.getFile("SAME").getFileData()[0]);
+        // subdirectories are searched in directory order, each to its full depth
+        assertEquals(3, disk.getFile("TWIN").getFileData()[0]);
+        assertEquals(5, disk.getFile("only").getFileData()[0]);
+        // deleted files are not located
+        assertNull(disk.getFile("GONE"));
+    }
+
+    private FileEntry addFile(DirectoryEntry directory, String name, int content) throws DiskException {
+        FileEntry entry = directory.createFile();
+        entry.setFilename(name);
+        entry.setFileData(new byte[] { (byte) content });
+        return entry;
+    }
+
+    @Test
+    public void testFileIndexWithWrongHeaderPointer() throws DiskException {
+        ProdosFormatDisk disk = createDisk(Disk.APPLE_800KB_DISK);
+        ProdosDirectoryEntry dir = (ProdosDirectoryEntry) disk.createDirectory("DIR");
+        for (int i=0; i<20; i++) {
+            dir.createFile().setFilename("FILE" + i);
+        }
+        // Images written by older versions point at the block holding the entry
+        ProdosDirectoryEntry sub = (ProdosDirectoryEntry) dir.createDirectory("SUB");
+        assertNotEquals(dir.getKeyPointer(), sub.getFileEntryBlock());
+        sub.setHeaderPointer(sub.getFileEntryBlock());
+        disk.invalidateFileIndex();
+        assertNotNull(disk.getFile(dir, "SUB"));
+
+        // Rename through a different FileEntry object than the one indexed
+        for (FileEntry entry : dir.getFiles()) {
+            if ("SUB".equals(entry.getFilename())) entry.setFilename("MOVED");
+        }
+        assertEquals("MOVED", disk.getFile(dir, "MOVED").getFilename());
+        assertNull(disk.getFile(dir, "SUB"));
+        assertEquals("MOVED", new Name("DIR/MOVED").getEntry(disk).getFilename());
+    }
+
+    @Test
+    public void testBatchMatchesUnbatchedImport() throws DiskException {
+        ProdosFormatDisk plainDisk = createDisk(Disk.APPLE_800KB_DISK);
+        ProdosFormatDisk batchDisk = createDisk(Disk.APPLE_800KB_DISK);
+        importFiles(plainDisk);
+        batchDisk.beginBatch();
+        importFiles(batchDisk);
+        assertTrue(batchDisk.isBatchActive());
+        assertEquals(plainDisk.getFreeBlocks(), batchDisk.getFreeBlocks());
+        batchDisk.commit();
+        assertArrayEquals(plainDisk.getDiskImageManager().getDiskImage(), 
+                batchDisk.getDiskImageManager().getDiskImage());
+    }
+
+    @Test
+    public void testBatchRollbackOnDiskFull() throws DiskException {
+        ProdosFormatDisk disk = createDisk(Disk.APPLE_140KB_DISK);
+        FileEntry existing = disk.createFile();
+        existing.setFilename("EXISTING");
+        existing.setFileData(new byte[1000]);
+        ByteArrayImageLayout layout = disk.getDiskImageManager();
+        byte[] before = layout.getDiskImage().clone();
+        int freeBlocks = disk.getFreeBlocks();
+
+        disk.beginBatch();
+        try {
+            for (int i=0; ; i++) {
+                FileEntry entry = disk.createFile();
+                entry.setFilename("FILE" + i);
+                entry.setFileData(new byte[20000]);
+            }
+        } catch (DiskFullException ex) {
+            disk.rollback();
+        }
+        assertFalse(disk.isBatchActive());
+        assertArrayEquals(before, layout.getDiskImage());
+        assertEquals(freeBlocks, disk.getFreeBlocks());
+        assertEquals(1, disk.getFiles().size());
+        assertNull(disk.getFile("FILE0"));
+    }
+
+    @Test
+    public void testReadVolumeBitMapDuringBatch() throws DiskException {
+        ProdosFormatDisk disk = createDisk(Disk.APPLE_140KB_DISK);
+        disk.beginBatch();
+        FileEntry entry = disk.createFile();
+        entry.setFilename("HELD");
+        entry.setFileData(new byte[5000]);
+        byte[] image = disk.getDiskImageManager().getDiskImage().clone();
+
+        byte[] data = disk.readVolumeBitMap();
+        byte[] held = disk.getVolumeBitmap().toBytes();
+        assertArrayEquals(held, Arrays.copyOf(data, held.length));
+        // reading must not write the held bitmap
+        assertArrayEquals(image, disk.getDiskImageManager().getDiskImage());
+        disk.commit();
+        assertArrayEquals(data, disk.readVolumeBitMap());
+    }
+
+    @Test
+    public void testSaveDuringBatchFails() throws IOException, DiskException {
+        ProdosFormatDisk disk = createDisk(Disk.APPLE_140KB_DISK);
+        File file = new File(disk.getFilename());
+        disk.beginBatch();
+        try {
+            disk.createFile().setFilename("HELD");
+            disk.save();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            // expected
+        } finally {
+            file.delete();
+        }
+        assertTrue(disk.isBatchActive());
+        disk.rollback();
+        assertNull(disk.getFile("HELD"));
+    }
+
+    private void importFiles(ProdosFormatDisk disk) throws DiskException {
+        Random random = new Random(19);
+        ProdosDirectoryEntry dir = (ProdosDirectoryEntry) disk.createDirectory("DIR");
+        for (int i=0; i<70; i++) {
+            FileEntry entry = (i % 2 == 0) ? disk.createFile() : dir.createFile();
+            entry.setFilename("FILE" + i);
+            byte[] data = new byte[random.nextInt(5000)];
+            random.nextBytes(data);
+            entry.setFileData(data);
+        }
+        disk.getFile("FILE10").delete();
+        disk.createFile().setFilename("REPLACED");
+    }
+
+    /**
+     * Create a disk with a series of five block holes in it.
+     */
+    private ProdosFormatDisk createFragmentedDisk() throws DiskException {
+        ProdosFormatDisk disk = createDisk(Disk.APPLE_800KB_DISK);
+        for (int i=0; i<20; i++) {
+            FileEntry entry = disk.createFile();
+            entry.setFilename("FILE" + i);
+            entry.setFileData(new byte[2048]);
+        }
+        for (int i=0; i<20; i+= 2) {
+            disk.getFile("FILE" + i).delete();
+        }
+        return disk;
+    }
+
+    private ProdosFormatDisk createDisk(int size) {
+        ByteArrayImageLayout layout = new ByteArrayImageLayout(size);
+        ImageOrder order = new ProdosOrder(layout);
+        return ProdosFormatDisk.create("deleteme.po", "STREAM", order)[0];
+    }
+
+    /**
+     * A stream which never answers with more than 100 bytes per read.
+     */
+    private InputStream trickle(byte[] data) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 100));
+            }
+        };
+    }
+
+    private static class CountingLayout extends ByteArrayImageLayout {
+        private int reads;
+
+        public CountingLayout(byte[] diskImage) {
+            super(diskImage);
+        }
+
+        @Override
+        public void readBytes(int start, byte[] buffer, int offset, int length) {
+            reads++;
+            super.readBytes(start, buffer, offset, length);
+        }
+
+        @Override
+        public ByteBuffer readBuffer(int start, int length) {
+            reads++;
+            return super.readBuffer(start, length);
+        }
+    }
 }
@@ -0,0 +1,102 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.os.prodos;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskFullException;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+import com.webcodepro.applecommander.util.AppleUtil;
+
+public class ProdosVolumeBitmapTest {
+    @Test
+    public void testMatchesByteBitmap() {
+        Random random = new Random(13);
+        int totalBlocks = 5000;
+        byte[] data = new byte[2 * Disk.BLOCK_SIZE];
+        random.nextBytes(data);
+        ProdosVolumeBitmap bitmap = new ProdosVolumeBitmap(data, totalBlocks);
+        assertEquals(countBits(data), bitmap.getFreeBlocks());
+        for (int i=0; i<20000; i++) {
+            int block = random.nextInt(totalBlocks);
+            if (random.nextBoolean()) {
+                bitmap.setBlockFree(block);
+                data[block / 8] = AppleUtil.setBit(data[block / 8], 7 - (block % 8));
+            } else {
+                bitmap.setBlockUsed(block);
+                data[block / 8] = AppleUtil.clearBit(data[block / 8], 7 - (block % 8));
+            }
+            int from = random.nextInt(totalBlocks);
+            assertEquals(naiveFind(data, from, totalBlocks), bitmap.findFreeBlock(from));
+            assertEquals(naiveFind(data, 0, totalBlocks), bitmap.findFreeBlock(0));
+        }
+        assertEquals(countBits(data), bitmap.getFreeBlocks());
+        assertArrayEquals(data, bitmap.toBytes());
+    }
+
+    @Test
+    public void testFullBitmap() {
+        byte[] data = new byte[Disk.BLOCK_SIZE];
+        ProdosVolumeBitmap bitmap = new ProdosVolumeBitmap(data, 280);
+        assertEquals(-1, bitmap.findFreeBlock(0));
+        bitmap.setBlockFree(279);
+        assertEquals(279, bitmap.findFreeBlock(1));
+        bitmap.setBlockUsed(279);
+        assertEquals(-1, bitmap.findFreeBlock(1));
+        assertTrue(bitmap.hasChanged(0));
+    }
+
+    @Test
+    public void testLargeFileAllocation() throws DiskFullException {
+        ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_32MB_HARDDISK);
+        ProdosFormatDisk disk = ProdosFormatDisk.create("deleteme.po", "BIG", new ProdosOrder(layout))[0];
+        int free = disk.getFreeBlocks();
+        ProdosFileEntry entry = (ProdosFileEntry) disk.createFile();
+        entry.setFilename("BIG.FILE");
+        byte[] data = new byte[16 * 1024 * 1024 - 1];
+        new Random(1).nextBytes(data);
+        entry.setFileData(data);
+        assertEquals(free - entry.getBlocksUsed(), disk.getFreeBlocks());
+        assertArrayEquals(data, entry.getFileData());
+        entry.delete();
+        assertEquals(free, disk.getFreeBlocks());
+    }
+
+    private int naiveFind(byte[] data, int from, int totalBlocks) {
+        for (int block=from; block<totalBlocks; block++) {
+            if (AppleUtil.isBitSet(data[block / 8], 7 - (block % 8))) return block;
+        }
+        return -1;
+    }
+
+    private int countBits(byte[] data) {
+        int count = 0;
+        for (byte b : data) count+= AppleUtil.getBitCount(b);
+        return count;
+    }
+}
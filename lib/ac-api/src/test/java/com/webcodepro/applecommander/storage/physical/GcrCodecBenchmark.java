@@ -0,0 +1,108 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.physical;
+
+import java.util.Random;
+
+import com.webcodepro.applecommander.storage.Disk;
+
+/**
+ * Reports the sectors per second decoded and encoded by GcrCodec, both
+ * on its own and through NibbleOrder (which also locates the address and
+ * data fields on each track).  This is not run as part of the test suite;
+ * run it directly with the test classpath.
+ */
+public class GcrCodecBenchmark {
+    private static final int SECTORS = 16;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        for (int round=0; round<ROUNDS; round++) {
+            codec(200_000);
+            nibbleOrder(200);
+            System.out.println();
+        }
+    }
+
+    private static void codec(int iterations) {
+        GcrCodec codec = new GcrCodec();
+        byte[][] sectors = new byte[SECTORS][Disk.SECTOR_SIZE];
+        Random random = new Random(5);
+        for (byte[] sector : sectors) random.nextBytes(sector);
+        byte[] nibbles = new byte[SECTORS * GcrCodec.DATA_FIELD_SIZE];
+
+        long start = System.nanoTime();
+        for (int n=0; n<iterations; n++) {
+            int s = n % SECTORS;
+            codec.encode(sectors[s], 0, nibbles, s * GcrCodec.DATA_FIELD_SIZE);
+        }
+        report("GcrCodec", "encode", iterations, start);
+
+        byte[] sectorData = new byte[Disk.SECTOR_SIZE];
+        start = System.nanoTime();
+        for (int n=0; n<iterations; n++) {
+            int s = n % SECTORS;
+            if (!codec.decode(nibbles, s * GcrCodec.DATA_FIELD_SIZE, sectorData, 0)) {
+                throw new IllegalStateException("Checksum error");
+            }
+        }
+        report("GcrCodec", "decode", iterations, start);
+    }
+
+    /**
+     * Write and then read every sector of a 140K nibble image.  Each read
+     * pass uses a new NibbleOrder, so no track is already decoded.
+     */
+    private static void nibbleOrder(int passes) {
+        NibbleOrder order = new NibbleOrder(new ByteArrayImageLayout(Disk.APPLE_140KB_NIBBLE_DISK));
+        order.format();
+        int tracks = order.getTracksPerDisk();
+        int sectorsPerTrack = order.getSectorsPerTrack();
+        byte[] sectorData = new byte[Disk.SECTOR_SIZE];
+        new Random(5).nextBytes(sectorData);
+
+        long start = System.nanoTime();
+        for (int n=0; n<passes; n++) {
+            sectorData[0] = (byte) n; // every pass writes different data
+            for (int track=0; track<tracks; track++) {
+                for (int sector=0; sector<sectorsPerTrack; sector++) {
+                    order.writeSector(track, sector, sectorData);
+                }
+            }
+        }
+        report("NibbleOrder", "encode", passes * tracks * sectorsPerTrack, start);
+
+        start = System.nanoTime();
+        for (int n=0; n<passes; n++) {
+            NibbleOrder reader = new NibbleOrder(order.getDiskImageManager());
+            for (int track=0; track<tracks; track++) {
+                for (int sector=0; sector<sectorsPerTrack; sector++) {
+                    reader.readSectorInto(track, sector, sectorData, 0);
+                }
+            }
+        }
+        report("NibbleOrder", "decode", passes * tracks * sectorsPerTrack, start);
+    }
+
+    private static void report(String name, String operation, long sectors, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-12s %-7s %12.0f sectors/s%n", name, operation, sectors / seconds);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.physical;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GcrCodecTest {
+    private GcrCodec codec = new GcrCodec();
+
+    @Test
+    public void testZerosEncodeAsFormatted() {
+        byte[] nibbles = new byte[GcrCodec.DATA_FIELD_SIZE];
+        codec.encode(new byte[256], 0, nibbles, 0);
+        byte[] expected = new byte[GcrCodec.DATA_FIELD_SIZE];
+        Arrays.fill(expected, (byte)0x96);
+        assertArrayEquals(expected, nibbles);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(6502);
+        byte[] sector = new byte[256];
+        byte[] nibbles = new byte[GcrCodec.DATA_FIELD_SIZE];
+        byte[] decoded = new byte[256 + 8];
+        for (int n=0; n<100; n++) {
+            random.nextBytes(sector);
+            codec.encode(sector, 0, nibbles, 0);
+            assertTrue(codec.decode(nibbles, 0, decoded, 8));
+            assertArrayEquals(sector, Arrays.copyOfRange(decoded, 8, decoded.length));
+        }
+    }
+
+    @Test
+    public void testMatchesRwtsEncoding() {
+        Random random = new Random(1983);
+        byte[] sector = new byte[256];
+        byte[] nibbles = new byte[GcrCodec.DATA_FIELD_SIZE];
+        for (int n=0; n<100; n++) {
+            random.nextBytes(sector);
+            codec.encode(sector, 0, nibbles, 0);
+            assertArrayEquals(rwtsEncode(sector), nibbles);
+        }
+    }
+
+    @Test
+    public void testWrapsAroundBuffer() {
+        Random random = new Random(42);
+        byte[] sector = new byte[256];
+        random.nextBytes(sector);
+        byte[] track = new byte[500];
+        codec.encode(sector, 0, track, 400);
+        byte[] decoded = new byte[256];
+        assertTrue(codec.decode(track, 400, decoded, 0));
+        assertArrayEquals(sector, decoded);
+    }
+
+    @Test
+    public void testBadChecksumLeavesBufferAlone() {
+        byte[] sector = new byte[256];
+        Arrays.fill(sector, (byte)0x5a);
+        byte[] nibbles = new byte[GcrCodec.DATA_FIELD_SIZE];
+        codec.encode(sector, 0, nibbles, 0);
+        nibbles[100] = (byte)0x97;
+        byte[] decoded = new byte[256];
+        assertFalse(codec.decode(nibbles, 0, decoded, 0));
+        for (byte b : decoded) assertEquals(0, b);
+    }
+
+    /**
+     * Reference encoder, translated from the DOS 3.3 RWTS prenibble ($B800)
+     * and write ($B82A) routines.
+     */
+    private byte[] rwtsEncode(byte[] sectorData) {
+        int[] writeTable = new int[64];
+        for (int i=0; i<256; i++) {
+            int value = GcrCodec.READ_TRANSLATE_TABLE[i];
+            if (value != 0 || i == 0x96) writeTable[value] = i;
+        }
+        int[] bb00 = new int[0x100];
+        int[] bc00 = new int[0x56];
+        int x = 0;
+        int y = 2;
+        while (true) {
+            y--;
+            if (y < 0) y+= 256;
+            int a = sectorData[y] & 0xff;
+            bc00[x]<<= 1;
+            bc00[x]|= a & 1;
+            a>>= 1;
+            bc00[x]<<= 1;
+            bc00[x]|= a & 1;
+            a>>= 1;
+            bb00[y] = a;
+            x++;
+            if (x >= 0x56) {
+                x = 0;
+                if (y == 0) break;
+            }
+        }
+        for (x=0; x<0x56; x++) bc00[x]&= 0x3f;
+        byte[] diskData = new byte[343];
+        int pos = 0;
+        for (y=0x56; y>0; y--) {
+            if (y == 0x56) {
+                diskData[pos++] = (byte) writeTable[bc00[y-1]];
+            } else {
+                diskData[pos++] = (byte) writeTable[bc00[y] ^ bc00[y-1]];
+            }
+        }
+        diskData[pos++] = (byte) writeTable[bc00[0] ^ bb00[y]];
+        for (y=1; y<256; y++) {
+            diskData[pos++] = (byte) writeTable[bb00[y] ^ bb00[y-1]];
+        }
+        diskData[pos++] = (byte) writeTable[bb00[255]];
+        return diskData;
+    }
+}
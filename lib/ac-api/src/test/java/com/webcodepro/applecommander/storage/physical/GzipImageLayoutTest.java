@@ -0,0 +1,221 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.physical;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FormattedDisk;
+import com.webcodepro.applecommander.testconfig.TestConfig;
+
+public class GzipImageLayoutTest {
+    private TestConfig config = TestConfig.getInstance();
+
+    @Test
+    public void testRandomReadsAllLevels() throws IOException {
+        byte[] data = createImage(300000);
+        for (int level : new int[] { Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, 
+                Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION }) {
+            File file = writeGzip(data, level);
+            try {
+                GzipImageLayout layout = new GzipImageLayout(file, true, 16384);
+                assertTrue(layout.getIndex().getCheckpoints().size() > 1);
+                assertSameData(data, layout);
+            } finally {
+                file.delete();
+                GzipImageLayout.getIndexFile(file).delete();
+            }
+        }
+    }
+
+    @Test
+    public void testConcatenatedMembers() throws IOException {
+        byte[] data = createImage(100000);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(gzip(Arrays.copyOfRange(data, 0, 40000), Deflater.DEFAULT_COMPRESSION));
+        output.write(gzip(Arrays.copyOfRange(data, 40000, data.length), Deflater.BEST_SPEED));
+        File file = File.createTempFile("concat-", ".dsk.gz");
+        try {
+            Files.write(file.toPath(), output.toByteArray());
+            GzipImageLayout layout = new GzipImageLayout(file, true, 8192);
+            assertSameData(data, layout);
+        } finally {
+            file.delete();
+            GzipImageLayout.getIndexFile(file).delete();
+        }
+    }
+
+    @Test
+    public void testUnindexedFileIsInflatedOnce() throws IOException {
+        byte[] data = createImage(100000);
+        File file = writeGzip(data, Deflater.DEFAULT_COMPRESSION);
+        try {
+            GzipImageLayout layout = new GzipImageLayout(file);
+            assertFalse(layout.isIndexed());
+            assertNull(layout.getIndex());
+            assertFalse(layout.hasChanged());
+            assertFalse(GzipImageLayout.getIndexFile(file).exists());
+            assertSameData(data, layout);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSavedIndex() throws IOException {
+        byte[] data = createImage(200000);
+        File file = writeGzip(data, Deflater.DEFAULT_COMPRESSION);
+        File indexFile = GzipImageLayout.getIndexFile(file);
+        try {
+            new GzipImageLayout(file, true, 32768);
+            assertTrue(indexFile.exists());
+            GzipIndex index = GzipIndex.read(indexFile, file);
+            assertNotNull(index);
+            assertEquals(data.length, index.getSize());
+            assertSameData(data, new GzipImageLayout(file));
+            // a changed file invalidates the index
+            assertTrue(file.setLastModified(file.lastModified() - 10000));
+            assertNull(GzipIndex.read(indexFile, file));
+        } finally {
+            file.delete();
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void testWriteInflatesImage() throws IOException {
+        byte[] data = createImage(50000);
+        File file = writeGzip(data, Deflater.DEFAULT_COMPRESSION);
+        try {
+            GzipImageLayout layout = new GzipImageLayout(file);
+            assertFalse(layout.hasChanged());
+            layout.writeBytes(1000, new byte[] { 1, 2, 3 });
+            assertFalse(layout.isIndexed());
+            assertTrue(layout.hasChanged());
+            data[1000] = 1;
+            data[1001] = 2;
+            data[1002] = 3;
+            assertArrayEquals(data, layout.getDiskImage());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCompressedDisk() throws IOException, DiskException {
+        byte[] data = Files.readAllBytes(new File(config.getDiskDir(), "Prodos.dsk").toPath());
+        File file = File.createTempFile("prodos-", ".dsk.gz");
+        try {
+            Files.write(file.toPath(), gzip(data, Deflater.DEFAULT_COMPRESSION));
+            Disk disk = new Disk(file.getPath());
+            assertTrue(disk.getDiskImageManager() instanceof GzipImageLayout);
+            assertFalse(disk.hasChanged());
+            Disk original = new Disk(config.getDiskDir() + "/Prodos.dsk");
+            FormattedDisk formattedDisk = disk.getFormattedDisks()[0];
+            FormattedDisk originalDisk = original.getFormattedDisks()[0];
+            assertEquals(originalDisk.getDiskName(), formattedDisk.getDiskName());
+            for (FileEntry entry : originalDisk.getFiles()) {
+                FileEntry other = formattedDisk.getFile(entry.getFilename());
+                assertNotNull(other);
+                if (!entry.isDirectory()) {
+                    assertArrayEquals(entry.getFileData(), other.getFileData());
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void assertSameData(byte[] expected, GzipImageLayout layout) {
+        assertEquals(expected.length, layout.getPhysicalSize());
+        Random random = new Random(1);
+        for (int i=0; i<200; i++) {
+            int start = random.nextInt(expected.length);
+            int length = Math.min(random.nextInt(40000), expected.length - start);
+            assertArrayEquals(Arrays.copyOfRange(expected, start, start + length), 
+                    layout.readBytes(start, length));
+            ByteBuffer buffer = layout.readBuffer(start, length);
+            byte[] actual = new byte[buffer.remaining()];
+            buffer.get(actual);
+            assertArrayEquals(Arrays.copyOfRange(expected, start, start + length), actual);
+        }
+    }
+
+    /**
+     * Mix of random and repetitive data so every deflate block type appears.
+     */
+    private byte[] createImage(int size) {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        int pos = 0;
+        while (pos < size) {
+            int length = Math.min(size - pos, 1 + random.nextInt(5000));
+            switch (random.nextInt(3)) {
+            case 0:
+                byte[] noise = new byte[length];
+                random.nextBytes(noise);
+                System.arraycopy(noise, 0, data, pos, length);
+                break;
+            case 1:
+                Arrays.fill(data, pos, pos + length, (byte) random.nextInt(256));
+                break;
+            default:
+                for (int i=0; i<length; i++) data[pos+i] = (byte) ("APPLE ][ ".charAt(i % 9) | 0x80);
+            }
+            pos += length;
+        }
+        return data;
+    }
+
+    private File writeGzip(byte[] data, int level) throws IOException {
+        File file = File.createTempFile("image-", ".po.gz");
+        Files.write(file.toPath(), gzip(data, level));
+        return file;
+    }
+
+    private byte[] gzip(byte[] data, int level) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output) {
+                { def.setLevel(level); }
+            }) {
+            gzip.write(data);
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.physical;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.testconfig.TestConfig;
+
+public class ImageOrderTest {
+    private TestConfig config = TestConfig.getInstance();
+
+    @Test
+    public void testDosOrder() throws IOException {
+        Disk disk = new Disk(config.getDiskDir() + "/DOS 3.3.po");
+        ImageOrder order = disk.getImageOrder();
+        assertSameData(new DosOrder(order.getDiskImageManager()));
+    }
+
+    @Test
+    public void testProdosOrder() throws IOException {
+        Disk disk = new Disk(config.getDiskDir() + "/Prodos.dsk");
+        ImageOrder order = disk.getImageOrder();
+        assertSameData(new ProdosOrder(order.getDiskImageManager()));
+    }
+
+    @Test
+    public void testNibbleOrder() {
+        ImageOrder order = new NibbleOrder(new ByteArrayImageLayout(Disk.APPLE_140KB_NIBBLE_DISK));
+        order.format();
+        byte[] data = new byte[Disk.SECTOR_SIZE];
+        for (int i=0; i<data.length; i++) data[i] = (byte)i;
+        order.writeSector(17, 3, data);
+        assertSameData(order);
+    }
+
+    @Test
+    public void testBufferIsReadOnly() throws IOException {
+        Disk disk = new Disk(config.getDiskDir() + "/Prodos.dsk");
+        ByteBuffer buffer = disk.getImageOrder().readBlockBuffer(2);
+        assertTrue(buffer.isReadOnly());
+    }
+
+    private void assertSameData(ImageOrder order) {
+        byte[] buffer = new byte[Disk.BLOCK_SIZE + 3];
+        for (int block=0; block<order.getBlocksOnDevice(); block++) {
+            byte[] expected = order.readBlock(block);
+            order.readBlockInto(block, buffer, 3);
+            assertArrayEquals(expected, slice(buffer, 3, Disk.BLOCK_SIZE));
+            assertArrayEquals(expected, toArray(order.readBlockBuffer(block)));
+        }
+        for (int track=0; track<order.getTracksPerDisk(); track++) {
+            for (int sector=0; sector<order.getSectorsPerTrack(); sector++) {
+                byte[] expected = order.readSector(track, sector);
+                order.readSectorInto(track, sector, buffer, 3);
+                assertArrayEquals(expected, slice(buffer, 3, Disk.SECTOR_SIZE));
+                assertArrayEquals(expected, toArray(order.readSectorBuffer(track, sector)));
+            }
+        }
+    }
+
+    private byte[] slice(byte[] data, int offset, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(data, offset, result, 0, length);
+        return result;
+    }
+
+    private byte[] toArray(ByteBuffer buffer) {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.physical;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.testconfig.TestConfig;
+
+public class MappedFileImageLayoutTest {
+    private TestConfig config = TestConfig.getInstance();
+
+    @Test
+    public void testReadMatchesFileContents() throws IOException {
+        File file = new File(config.getDiskDir(), "Prodos.dsk");
+        byte[] expected = Files.readAllBytes(file.toPath());
+        MappedFileImageLayout layout = new MappedFileImageLayout(file);
+
+        assertTrue(layout.isMapped());
+        assertEquals(expected.length, layout.getPhysicalSize());
+        for (int block=0; block<expected.length/Disk.BLOCK_SIZE; block++) {
+            int offset = block*Disk.BLOCK_SIZE;
+            assertArrayEquals(Arrays.copyOfRange(expected, offset, offset+Disk.BLOCK_SIZE),
+                    layout.readBytes(offset, Disk.BLOCK_SIZE));
+        }
+        assertTrue(layout.isMapped());
+        assertFalse(layout.hasChanged());
+    }
+
+    @Test
+    public void testWriteCopiesImage() throws IOException {
+        File file = new File(config.getDiskDir(), "Prodos.dsk");
+        byte[] original = Files.readAllBytes(file.toPath());
+        MappedFileImageLayout layout = new MappedFileImageLayout(file);
+
+        byte[] data = new byte[] { 1, 2, 3, 4 };
+        layout.writeBytes(1024, data);
+
+        assertFalse(layout.isMapped());
+        assertTrue(layout.hasChanged());
+        assertArrayEquals(data, layout.readBytes(1024, data.length));
+        assertArrayEquals(original, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testOffsetMatchesUniversalLayout() throws IOException {
+        File file = new File(config.getDiskDir(), "Marble Madness (1985)(Electronic Arts).2mg");
+        UniversalDiskImageLayout expected = new UniversalDiskImageLayout(Files.readAllBytes(file.toPath()));
+        MappedFileImageLayout layout = new MappedFileImageLayout(file)
+                .withOffset(UniversalDiskImageLayout.OFFSET);
+
+        assertEquals(expected.getPhysicalSize(), layout.getPhysicalSize());
+        assertArrayEquals(expected.readBytes(2*Disk.BLOCK_SIZE, Disk.BLOCK_SIZE),
+                layout.readBytes(2*Disk.BLOCK_SIZE, Disk.BLOCK_SIZE));
+    }
+
+    @Test
+    public void testDiskUsesMappedLayout() throws IOException {
+        Disk disk = new Disk(config.getDiskDir() + "/Prodos.dsk");
+        assertTrue(disk.getDiskImageManager() instanceof MappedFileImageLayout);
+        assertTrue(disk.isProdosFormat());
+        assertTrue(((MappedFileImageLayout)disk.getDiskImageManager()).isMapped());
+    }
+}
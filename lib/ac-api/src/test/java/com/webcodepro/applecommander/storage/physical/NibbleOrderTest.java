@@ -0,0 +1,128 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.physical;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.webcodepro.applecommander.storage.Disk;
+
+public class NibbleOrderTest {
+    @Test
+    public void testWriteIsVisibleToNewOrder() {
+        NibbleOrder order = createFormattedOrder();
+        for (int track=0; track<order.getTracksPerDisk(); track++) {
+            for (int sector=0; sector<order.getSectorsPerTrack(); sector++) {
+                order.writeSector(track, sector, pattern(track, sector));
+            }
+        }
+        NibbleOrder other = new NibbleOrder(order.getDiskImageManager());
+        for (int track=0; track<order.getTracksPerDisk(); track++) {
+            for (int sector=0; sector<order.getSectorsPerTrack(); sector++) {
+                assertArrayEquals(pattern(track, sector), order.readSector(track, sector));
+                assertArrayEquals(pattern(track, sector), other.readSector(track, sector));
+            }
+        }
+    }
+
+    @Test
+    public void testReturnedSectorIsACopy() {
+        NibbleOrder order = createFormattedOrder();
+        order.readSector(5, 5)[0] = 0x55;
+        assertArrayEquals(new byte[Disk.SECTOR_SIZE], order.readSector(5, 5));
+    }
+
+    @Test
+    public void testRawWriteInvalidatesCache() {
+        NibbleOrder order = createFormattedOrder();
+        order.writeSector(17, 0, pattern(17, 0));
+        assertArrayEquals(pattern(17, 0), order.readSector(17, 0));
+        order.format();
+        assertArrayEquals(new byte[Disk.SECTOR_SIZE], order.readSector(17, 0));
+    }
+
+    @Test
+    public void testDataFieldWrapsAroundTrack() {
+        NibbleOrder order = createFormattedOrder();
+        // Rotate track 3 so that the first data field straddles the end of the track
+        byte[] trackData = order.readTrackData(3);
+        byte[] rotated = new byte[trackData.length];
+        for (int i=0; i<trackData.length; i++) {
+            rotated[i] = trackData[(i + 200) % trackData.length];
+        }
+        order.writeTrackData(3, rotated);
+        order.writeSector(3, 0, pattern(3, 0));
+        assertArrayEquals(pattern(3, 0), order.readSector(3, 0));
+        assertArrayEquals(pattern(3, 0), new NibbleOrder(order.getDiskImageManager()).readSector(3, 0));
+    }
+
+    @Test
+    public void testOtherWriterInvalidatesCache() {
+        NibbleOrder order = createFormattedOrder();
+        NibbleOrder other = new NibbleOrder(order.getDiskImageManager());
+        order.writeSector(9, 4, pattern(9, 4));
+        assertArrayEquals(pattern(9, 4), order.readSector(9, 4));
+        other.writeSector(9, 4, pattern(4, 9));
+        assertArrayEquals(pattern(4, 9), order.readSector(9, 4));
+    }
+
+    @Test
+    public void testBadChecksumIsDescriptive() {
+        NibbleOrder order = createFormattedOrder();
+        order.readSector(2, 0);
+        // Change one data byte of the first data field (physical and DOS sector 0)
+        byte[] trackData = order.readTrackData(2);
+        int offset = 0;
+        while (!order.isPrologue(trackData, offset, 0xd5, 0xaa, 0xad)) offset++;
+        ByteArrayImageLayout layout = order.getDiskImageManager();
+        layout.writeBytes(2 * order.getTrackSize() + offset + 10, new byte[] { (byte)0x97 });
+
+        assertNull(order.readSector(2, 0));
+        try {
+            order.readSectorInto(2, 0, new byte[Disk.SECTOR_SIZE], 0);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        try {
+            order.readSectorBuffer(2, 0);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    private NibbleOrder createFormattedOrder() {
+        NibbleOrder order = new NibbleOrder(new ByteArrayImageLayout(Disk.APPLE_140KB_NIBBLE_DISK));
+        order.format();
+        return order;
+    }
+
+    private byte[] pattern(int track, int sector) {
+        byte[] data = new byte[Disk.SECTOR_SIZE];
+        for (int i=0; i<data.length; i++) {
+            data[i] = (byte)(i * 7 + track * 16 + sector);
+        }
+        return data;
+    }
+}
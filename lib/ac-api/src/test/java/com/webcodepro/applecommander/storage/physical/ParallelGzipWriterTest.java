@@ -0,0 +1,161 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.physical;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FormattedDisk;
+import com.webcodepro.applecommander.testconfig.TestConfig;
+
+public class ParallelGzipWriterTest {
+    private static final int CHUNK_SIZE = 16384;
+    private TestConfig config = TestConfig.getInstance();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (int size : new int[] { 0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, 3 * CHUNK_SIZE + 17 }) {
+            byte[] data = createData(size);
+            for (int level : new int[] { Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, 
+                    Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION }) {
+                for (int threads : new int[] { 1, 4 }) {
+                    byte[] compressed = compress(data, level, threads);
+                    assertArrayEquals(String.format("size=%d level=%d threads=%d", size, level, threads), 
+                            data, gunzip(compressed));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testThreadsProduceSameOutput() throws IOException {
+        byte[] data = createData(10 * CHUNK_SIZE + 5);
+        assertArrayEquals(compress(data, Deflater.DEFAULT_COMPRESSION, 1), 
+                compress(data, Deflater.DEFAULT_COMPRESSION, 3));
+    }
+
+    @Test
+    public void testMembersAreIndexed() throws IOException {
+        byte[] data = createData(5 * CHUNK_SIZE + 100);
+        GzipIndex index = GzipIndex.scanMembers(compress(data, Deflater.DEFAULT_COMPRESSION, 2));
+        assertEquals(6, index.getCheckpoints().size());
+        assertEquals(data.length, index.getSize());
+        for (int i=0; i<6; i++) {
+            assertEquals(i * CHUNK_SIZE, index.getCheckpoints().get(i).getOffset());
+        }
+        // Ordinary gzip streams fall back to a full decode
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(data);
+        }
+        assertNull(GzipIndex.scanMembers(output.toByteArray()));
+
+        File file = File.createTempFile("parallel-", ".po.gz");
+        try {
+            Files.write(file.toPath(), compress(data, Deflater.BEST_SPEED, 4));
+            GzipImageLayout layout = new GzipImageLayout(file);
+            assertEquals(data.length, layout.getPhysicalSize());
+            Random random = new Random(2);
+            for (int i=0; i<100; i++) {
+                int start = random.nextInt(data.length);
+                int length = Math.min(random.nextInt(3 * CHUNK_SIZE), data.length - start);
+                byte[] expected = new byte[length];
+                System.arraycopy(data, start, expected, 0, length);
+                assertArrayEquals(expected, layout.readBytes(start, length));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSaveCompressedDisk() throws IOException, DiskException {
+        byte[] data = Files.readAllBytes(new File(config.getDiskDir(), "Prodos.dsk").toPath());
+        File file = File.createTempFile("prodos-", ".dsk.gz");
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+                gzip.write(data);
+            }
+            Files.write(file.toPath(), output.toByteArray());
+            Disk disk = new Disk(file.getPath());
+            disk.getDiskImageManager().writeBytes(0, disk.getDiskImageManager().readBytes(0, 16));
+            disk.save();
+            assertArrayEquals(data, gunzip(Files.readAllBytes(file.toPath())));
+
+            Disk reopened = new Disk(file.getPath());
+            assertTrue(reopened.getDiskImageManager() instanceof GzipImageLayout);
+            FormattedDisk formattedDisk = reopened.getFormattedDisks()[0];
+            FormattedDisk originalDisk = new Disk(config.getDiskDir() + "/Prodos.dsk").getFormattedDisks()[0];
+            for (FileEntry entry : originalDisk.getFiles()) {
+                if (!entry.isDirectory()) {
+                    assertArrayEquals(entry.getFileData(), 
+                            formattedDisk.getFile(entry.getFilename()).getFileData());
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLevel() {
+        new ParallelGzipWriter(10, 1);
+    }
+
+    private byte[] compress(byte[] data, int level, int threads) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new ParallelGzipWriter(level, threads, CHUNK_SIZE).write(data, output);
+        return output.toByteArray();
+    }
+
+    private byte[] gunzip(byte[] compressed) throws IOException {
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return input.readAllBytes();
+        }
+    }
+
+    private byte[] createData(int size) {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        for (int i=0; i<size; i++) {
+            data[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(256) : "APPLE ][ ".charAt(i % 9));
+        }
+        return data;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.storage.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FormattedDisk;
+import com.webcodepro.applecommander.storage.os.prodos.ProdosFormatDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.storage.physical.ProdosOrder;
+import com.webcodepro.applecommander.storage.search.ContentSearch.Hit;
+import com.webcodepro.applecommander.testconfig.TestConfig;
+import com.webcodepro.applecommander.util.BytePattern;
+
+public class ContentSearchTest {
+    private static final String MASTER = TestConfig.getInstance().getDiskDir() + "/MASTER.DSK";
+    
+    @Test
+    public void testSpanningBuffers() throws IOException, DiskException {
+        byte[] data = new byte[70000];
+        for (int offset : new int[] { 0, 65533, 69994 }) {
+            System.arraycopy("NEEDLE".getBytes(), 0, data, offset, 6);
+        }
+        FormattedDisk disk = createDisk();
+        addFile(disk, "BIG", data);
+        
+        List<Hit> hits = ContentSearch.create(BytePattern.of("NEEDLE")).add(disk).search();
+        assertEquals("[0, 65533, 69994]", offsets(hits));
+        assertEquals("/BIG", hits.get(0).path);
+        assertEquals("/SEARCH/", hits.get(0).volumeName);
+    }
+    
+    @Test
+    public void testClearHighBit() throws IOException, DiskException {
+        byte[] data = "THE QUICK BROWN FOX".getBytes();
+        for (int i=0; i<data.length; i++) {
+            data[i] |= 0x80;
+        }
+        FormattedDisk disk = createDisk();
+        addFile(disk, "TEXT", data);
+        
+        assertTrue(ContentSearch.create(BytePattern.of("BROWN")).add(disk).search().isEmpty());
+        List<Hit> hits = ContentSearch.create(BytePattern.of("BROWN"))
+                .clearHighBit(true)
+                .add(disk)
+                .search();
+        assertEquals("[10]", offsets(hits));
+    }
+    
+    @Test
+    public void testDetokenize() throws IOException {
+        // Literals are stored as text, but keywords are tokens
+        List<Hit> hits = ContentSearch.create(BytePattern.of("NO MORE COLORS")).addImage(MASTER).search();
+        assertEquals(1, hits.size());
+        assertEquals("/COLORS", hits.get(0).path);
+        assertFalse(hits.get(0).detokenized);
+        
+        assertTrue(ContentSearch.create(BytePattern.of("PRINT \"THIS DISK")).addImage(MASTER).search().isEmpty());
+        hits = ContentSearch.create(BytePattern.of("PRINT \"THIS DISK"))
+                .detokenize(true)
+                .addImage(MASTER)
+                .search();
+        assertEquals(1, hits.size());
+        assertEquals("/HELLO", hits.get(0).path);
+        assertTrue(hits.get(0).detokenized);
+    }
+    
+    @Test
+    public void testManyImages() throws IOException, DiskException {
+        FormattedDisk disk = createDisk();
+        addFile(disk, "COPY", "NO MORE COLORS!".getBytes());
+        
+        List<Hit> hits = ContentSearch.create(BytePattern.of("NO MORE COLORS"))
+                .threads(2)
+                .addImage(MASTER)
+                .add(disk)
+                .addImage(MASTER)
+                .search();
+        assertEquals(3, hits.size());
+        assertEquals(MASTER, hits.get(0).imageName);
+        assertEquals("/COPY", hits.get(1).path);
+        assertEquals(MASTER, hits.get(2).imageName);
+    }
+    
+    private FormattedDisk createDisk() {
+        ByteArrayImageLayout layout = new ByteArrayImageLayout(Disk.APPLE_140KB_DISK);
+        return ProdosFormatDisk.create("search.po", "SEARCH", new ProdosOrder(layout))[0];
+    }
+
+    private void addFile(FormattedDisk disk, String name, byte[] data) throws DiskException {
+        FileEntry fileEntry = disk.createFile();
+        fileEntry.setFilename(name);
+        fileEntry.setFiletype("BIN");
+        fileEntry.setFileData(data);
+    }
+    
+    private String offsets(List<Hit> hits) {
+        return hits.stream().map(hit -> hit.offset).collect(Collectors.toList()).toString();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2021-2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskException;
+import com.webcodepro.applecommander.storage.FormattedDisk;
+import com.webcodepro.applecommander.storage.FormattedDisk.FileColumnHeader;
+import com.webcodepro.applecommander.testconfig.TestConfig;
+import com.webcodepro.applecommander.util.filestreamer.FileStreamer;
+import com.webcodepro.applecommander.util.filestreamer.FileTuple;
+
+public class DirectoryListerTest {
+    private TestConfig config = TestConfig.getInstance();
+
+    @Test
+    public void testJsonDos() throws IOException, DiskException {
+        assertJson("MASTER.DSK");
+    }
+
+    @Test
+    public void testJsonProdos() throws IOException, DiskException {
+        assertJson("Prodos.dsk");
+    }
+
+    @Test
+    public void testNdJsonDos() throws IOException, DiskException {
+        assertNdJson("MASTER.DSK");
+    }
+
+    @Test
+    public void testNdJsonProdos() throws IOException, DiskException {
+        assertNdJson("Prodos.dsk");
+    }
+
+    private void assertJson(String name) throws IOException, DiskException {
+        String filename = new File(config.getDiskDir(), name).getPath();
+        String output = list(DirectoryLister.json(FormattedDisk.FILE_DISPLAY_STANDARD), filename);
+        Disk disk = new Disk(filename);
+
+        JsonObject root = JsonParser.parseString(output).getAsJsonObject();
+        assertEquals(filename, root.get("filename").getAsString());
+        assertEquals(disk.getOrderName(), root.get("order").getAsString());
+        assertEquals(disk.getPhysicalSize(), root.get("physicalSize").getAsInt());
+        JsonArray disks = root.getAsJsonArray("disks");
+        FormattedDisk[] formattedDisks = disk.getFormattedDisks();
+        assertEquals(formattedDisks.length, disks.size());
+        for (int i=0; i<formattedDisks.length; i++) {
+            FormattedDisk formattedDisk = formattedDisks[i];
+            JsonObject diskObject = disks.get(i).getAsJsonObject();
+            assertEquals(formattedDisk.getDiskName(), diskObject.get("diskName").getAsString());
+            assertEquals(formattedDisk.getFormat(), diskObject.get("format").getAsString());
+            assertEquals(formattedDisk.getFreeSpace(), diskObject.get("freeSpace").getAsInt());
+            assertEquals(formattedDisk.getUsedSpace(), diskObject.get("usedSpace").getAsInt());
+
+            List<String> keys = columnKeys(formattedDisk);
+            List<FileTuple> tuples = files(formattedDisk);
+            JsonArray files = diskObject.getAsJsonArray("files");
+            assertTrue(tuples.size() > 0);
+            assertEquals(tuples.size(), files.size());
+            for (int f=0; f<tuples.size(); f++) {
+                JsonObject fileObject = files.get(f).getAsJsonObject();
+                assertEquals(keys, fileObject.keySet().stream().collect(Collectors.toList()));
+                assertColumns(keys, tuples.get(f), fileObject);
+            }
+        }
+    }
+
+    private void assertNdJson(String name) throws IOException, DiskException {
+        String filename = new File(config.getDiskDir(), name).getPath();
+        String output = list(DirectoryLister.ndjson(FormattedDisk.FILE_DISPLAY_STANDARD), filename);
+        Disk disk = new Disk(filename);
+
+        String[] lines = output.split("\\R");
+        int line = 0;
+        for (FormattedDisk formattedDisk : disk.getFormattedDisks()) {
+            List<String> keys = columnKeys(formattedDisk);
+            for (FileTuple tuple : files(formattedDisk)) {
+                JsonElement element = JsonParser.parseString(lines[line++]);
+                assertTrue(element.isJsonObject());
+                JsonObject fileObject = element.getAsJsonObject();
+                assertEquals(filename, fileObject.get("filename").getAsString());
+                assertEquals(formattedDisk.getDiskName(), fileObject.get("diskName").getAsString());
+                assertEquals(tuple.fullPath(), fileObject.get("path").getAsString());
+                assertColumns(keys, tuple, fileObject);
+            }
+        }
+        assertTrue(line > 0);
+        assertEquals(line, lines.length);
+    }
+
+    private void assertColumns(List<String> keys, FileTuple tuple, JsonObject fileObject) {
+        List<String> columns = tuple.fileEntry.getFileColumnData(FormattedDisk.FILE_DISPLAY_STANDARD);
+        for (int i=0; i<keys.size(); i++) {
+            assertEquals(columns.get(i), fileObject.get(keys.get(i)).getAsString());
+        }
+    }
+
+    private List<String> columnKeys(FormattedDisk formattedDisk) {
+        return formattedDisk.getFileColumnHeaders(FormattedDisk.FILE_DISPLAY_STANDARD)
+                .stream()
+                .map(FileColumnHeader::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private List<FileTuple> files(FormattedDisk formattedDisk) throws DiskException {
+        return FileStreamer.forFormattedDisks(formattedDisk)
+                .recursive(true)
+                .includeDeleted(false)
+                .stream()
+                .collect(Collectors.toList());
+    }
+
+    /** Run the lister, answering with what it wrote to System.out. */
+    private String list(DirectoryLister lister, String filename) throws IOException, DiskException {
+        PrintStream original = System.out;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(output, true));
+        try {
+            lister.list(filename);
+        } finally {
+            System.out.flush();
+            System.setOut(original);
+        }
+        return new String(output.toByteArray(), Charset.defaultCharset());
+    }
+}
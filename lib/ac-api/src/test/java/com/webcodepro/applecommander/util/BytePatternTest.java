@@ -0,0 +1,64 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BytePatternTest {
+    @Test
+    public void testIndexOf() {
+        BytePattern pattern = BytePattern.of("NEEDLE");
+        byte[] data = "HAYSTACK NEEDLE HAY NEEDLE".getBytes();
+        assertEquals(9, pattern.indexOf(data));
+        assertEquals(20, pattern.indexOf(data, 10, data.length));
+        assertEquals(-1, pattern.indexOf(data, 10, data.length - 1));
+        assertEquals(-1, pattern.indexOf(data, 21, data.length));
+        assertEquals(-1, BytePattern.of("NEEDLES").indexOf(data));
+    }
+
+    @Test
+    public void testOverlappingMatches() {
+        BytePattern pattern = BytePattern.of("AAA");
+        byte[] data = "AAAAA".getBytes();
+        assertEquals(0, pattern.indexOf(data, 0, data.length));
+        assertEquals(1, pattern.indexOf(data, 1, data.length));
+        assertEquals(2, pattern.indexOf(data, 2, data.length));
+        assertEquals(-1, pattern.indexOf(data, 3, data.length));
+    }
+
+    @Test
+    public void testClearHighBit() {
+        byte[] data = { (byte)0xc8, (byte)0xc9, 0x00, (byte)0xc8, (byte)0xc9 };
+        assertEquals(-1, BytePattern.of("HI").indexOf(data));
+        assertEquals(0, new BytePattern(new byte[] { (byte)0xc8, (byte)0xc9 }).indexOf(data));
+        
+        BytePattern.clearHighBit(data, 0, 2);
+        assertEquals(0, BytePattern.of("HI").indexOf(data));
+        assertEquals(0, new BytePattern(new byte[] { (byte)0xc8, (byte)0xc9 }).clearHighBit().indexOf(data));
+        assertEquals(3, new BytePattern(new byte[] { (byte)0xc8, (byte)0xc9 }).indexOf(data));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyPattern() {
+        new BytePattern(new byte[0]);
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * AppleCommander - An Apple ][ image utility.
+ * Copyright (C) 2022 by Robert Greene and others
+ * robgreene at users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU General Public License as published by the 
+ * Free Software Foundation; either version 2 of the License, or (at your 
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along 
+ * with this program; if not, write to the Free Software Foundation, Inc., 
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.webcodepro.applecommander.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.webcodepro.applecommander.storage.Disk;
+import com.webcodepro.applecommander.storage.DiskException;
+import com.webcodepro.applecommander.storage.FileEntry;
+import com.webcodepro.applecommander.storage.FormattedDisk;
+import com.webcodepro.applecommander.storage.physical.ByteArrayImageLayout;
+import com.webcodepro.applecommander.testconfig.TestConfig;
+import com.webcodepro.shrinkit.io.LittleEndianByteOutputStream;
+
+public class ShrinkItUtilitiesTest {
+    private static final int DATA_FORK = 0;
+    private static final int DISK_IMAGE = 1;
+    private static final int RESOURCE_FORK = 2;
+
+    private TestConfig config = TestConfig.getInstance();
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("shrinkit-", ".shk");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testDiskImageRecord() throws IOException {
+        byte[] image = Files.readAllBytes(new File(config.getDiskDir(), "Prodos.dsk").toPath());
+        Record record = new Record("PRODOS", 0, 280, 512);
+        record.threads.add(new Thread(DISK_IMAGE, image));
+        writeArchive(record);
+
+        ByteArrayImageLayout layout = ShrinkItUtilities.unpackSHKLayout(file.getPath(), 0);
+        assertArrayEquals(image, layout.getDiskImage());
+        assertFalse(layout.hasChanged());
+        assertTrue(layout.getChangedBlocks().isEmpty());
+    }
+
+    @Test
+    public void testFileRecords() throws IOException, DiskException {
+        List<Record> records = createFileRecords();
+        writeArchive(records.toArray(new Record[0]));
+
+        ByteArrayImageLayout layout = ShrinkItUtilities.unpackSHKLayout(file.getPath(), 0);
+        assertFalse(layout.hasChanged());
+        assertTrue(layout.getChangedBlocks().isEmpty());
+
+        File image = File.createTempFile("shrinkit-", ".po");
+        try {
+            Files.write(image.toPath(), layout.getDiskImage());
+            FormattedDisk disk = new Disk(image.getPath()).getFormattedDisks()[0];
+            for (Record record : records) {
+                FileEntry fileEntry = disk.getFile(record.name);
+                assertNotNull(record.name, fileEntry);
+                if (record.threads.size() == 1) {
+                    // getFileData does not read extended (forked) files
+                    assertArrayEquals(record.name, record.threads.get(0).data, fileEntry.getFileData());
+                }
+            }
+        } finally {
+            image.delete();
+        }
+    }
+
+    @Test
+    public void testThreadsProduceIdenticalImage() throws IOException {
+        List<Record> records = createFileRecords();
+        // Too large to decompress ahead; it is streamed between prefetched records
+        Record large = new Record("LARGE", 0x06, 0, 3);
+        large.threads.add(new Thread(DATA_FORK, randomBytes(new Random(7), ShrinkItUtilities.MAX_PREFETCH_SIZE + 1000)));
+        records.add(2, large);
+        writeArchive(records.toArray(new Record[0]));
+
+        byte[] expected = ShrinkItUtilities.unpackSHKLayout(file.getPath(), 0, 1).getDiskImage();
+        for (int threads : new int[] { 2, 4 }) {
+            ByteArrayImageLayout layout = ShrinkItUtilities.unpackSHKLayout(file.getPath(), 0, threads);
+            assertArrayEquals("threads=" + threads, expected, layout.getDiskImage());
+            assertFalse(layout.hasChanged());
+        }
+        assertArrayEquals(expected, ShrinkItUtilities.unpackSHKLayout(file.getPath(), 0).getDiskImage());
+    }
+
+    /**
+     * Files of each ProDOS storage type, and one with a resource fork.
+     */
+    private List<Record> createFileRecords() {
+        Random random = new Random(42);
+        List<Record> records = new ArrayList<>();
+        int[] sizes = { 0, 300, 5000, 70000, 140000 };
+        for (int i=0; i<sizes.length; i++) {
+            Record record = new Record("FILE" + i, 0x06, 0x2000 + i, 1);
+            record.threads.add(new Thread(DATA_FORK, randomBytes(random, sizes[i])));
+            records.add(record);
+        }
+        Record forked = new Record("FORKED", 0xb3, 0, 5);
+        forked.threads.add(new Thread(DATA_FORK, randomBytes(random, 2000)));
+        forked.threads.add(new Thread(RESOURCE_FORK, randomBytes(random, 700)));
+        records.add(forked);
+        return records;
+    }
+
+    private byte[] randomBytes(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Write an archive of uncompressed threads.  The CRCs are left as zero;
+     * they are not checked when reading.
+     */
+    private void writeArchive(Record... records) throws IOException {
+        Date date = new Date(1_000_000_000_000L);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianByteOutputStream output = new LittleEndianByteOutputStream(bytes);
+        output.writeNuFileId();
+        output.writeWord(0);                    // master_crc
+        output.writeLong(records.length);
+        output.writeDate(date);
+        output.writeDate(date);
+        output.writeWord(2);                    // master_version
+        output.write(new byte[8]);
+        output.writeLong(0);                    // master_eof
+        output.write(new byte[6]);
+        for (Record record : records) {
+            output.writeNuFxId();
+            output.writeWord(0);                // header_crc
+            output.writeWord(58);               // attrib_count
+            output.writeWord(3);                // version_number
+            output.writeLong(record.threads.size());
+            output.writeWord(1);                // file_sys_id (ProDOS)
+            output.writeWord('/');
+            output.writeLong(0xe3);             // access
+            output.writeLong(record.filetype);
+            output.writeLong(record.extraType);
+            output.writeWord(record.storageType);
+            output.writeDate(date);
+            output.writeDate(date);
+            output.writeDate(date);
+            output.writeWord(0);                // option_size
+            output.writeWord(record.name.length());
+            output.write(record.name.getBytes());
+            for (Thread thread : record.threads) {
+                output.writeWord(2);            // thread_class (data)
+                output.writeWord(0);            // thread_format (uncompressed)
+                output.writeWord(thread.kind);
+                output.writeWord(0);            // thread_crc
+                output.writeLong(thread.data.length);
+                output.writeLong(thread.data.length);
+            }
+            for (Thread thread : record.threads) {
+                output.write(thread.data);
+            }
+        }
+        output.close();
+        Files.write(file.toPath(), bytes.toByteArray());
+    }
+
+    private static class Record {
+        private final String name;
+        private final int filetype;
+        private final int extraType;
+        private final int storageType;
+        private final List<Thread> threads = new ArrayList<>();
+        private Record(String name, int filetype, int extraType, int storageType) {
+            this.name = name;
+            this.filetype = filetype;
+            this.extraType = extraType;
+            this.storageType = storageType;
+        }
+    }
+
+    private static class Thread {
+        private final int kind;
+        private final byte[] data;
+        private Thread(int kind, byte[] data) {
+            this.kind = kind;
+            this.data = data;
+        }
+    }
+}
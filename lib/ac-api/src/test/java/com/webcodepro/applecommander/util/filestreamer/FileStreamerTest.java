@@ -20,10 +20,14 @@
 package com.webcodepro.applecommander.util.filestreamer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Spliterator;
 import java.util.stream.Collectors;
 
 import org.junit.Test;
@@ -81,6 +85,65 @@ public class FileStreamerTest {
         assertEquals(expected, actual);
     }
     
+    @Test
+    public void testParallelListMerlin() throws DiskUnrecognizedException, IOException {
+        List<String> actual = 
+            FileStreamer.forDisk("./src/test/resources/disks/MERLIN8PRO1.DSK")
+                        .recursive(true)
+                        .stream()
+                        .parallel()
+                        .map(this::makeFullPath)
+                        .collect(Collectors.toList());
+        
+        assertEquals(EXPECTED_MERLIN, actual);
+    }
+
+    @Test
+    public void testSplitMerlin() throws DiskUnrecognizedException, IOException {
+        Spliterator<FileTuple> suffix = 
+            FileStreamer.forDisk("./src/test/resources/disks/MERLIN8PRO1.DSK")
+                        .recursive(true)
+                        .stream()
+                        .parallel()
+                        .spliterator();
+        Spliterator<FileTuple> prefix = suffix.trySplit();
+        assertNotNull(prefix);
+        
+        List<String> actual = new ArrayList<>();
+        prefix.forEachRemaining(tuple -> actual.add(makeFullPath(tuple)));
+        int split = actual.size();
+        suffix.forEachRemaining(tuple -> actual.add(makeFullPath(tuple)));
+        
+        assertTrue(split > 0 && split < EXPECTED_MERLIN.size());
+        assertEquals(EXPECTED_MERLIN, actual);
+    }
+
+    @Test
+    public void testPrefetchListMerlin() throws DiskUnrecognizedException, IOException {
+        List<String> actual = 
+            FileStreamer.forDisk("./src/test/resources/disks/MERLIN8PRO1.DSK")
+                        .recursive(true)
+                        .prefetch(true)
+                        .stream()
+                        .map(this::makeFullPath)
+                        .collect(Collectors.toList());
+        
+        assertEquals(EXPECTED_MERLIN, actual);
+    }
+
+    @Test
+    public void testParallelListUnidos() throws DiskUnrecognizedException, IOException {
+        List<String> actual = 
+            FileStreamer.forDisk("./src/test/resources/disks/UniDOS_3.3.dsk")
+                        .recursive(true)
+                        .stream()
+                        .parallel()
+                        .map(this::makeFullPath)
+                        .collect(Collectors.toList());
+        
+        assertEquals(EXPECTED_UNIDOS, actual);
+    }
+
     @Test
     public void testListUnidos() throws DiskUnrecognizedException, IOException {
         List<String> actual = 